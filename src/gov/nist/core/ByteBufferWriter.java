@@ -0,0 +1,258 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes the encoding of SIP messages straight into a growable heap
+ * ByteBuffer. Text is almost always ASCII, which is copied one char to one
+ * byte; a string with other characters is encoded with the charset of the
+ * writer, the same way String.getBytes would. This saves building a String of
+ * the whole message and converting it to bytes afterwards.
+ *
+ * A writer is not thread safe. getInstance hands out one writer per thread to
+ * be given back with release once its bytes have been copied.
+ *
+ * @since 2.0
+ */
+public final class ByteBufferWriter {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    // larger buffers are dropped when a pooled writer is released
+    private static final int MAX_POOLED_CAPACITY = 64 * 1024;
+
+    private static final ThreadLocal<ByteBufferWriter> pool = new ThreadLocal<ByteBufferWriter>() {
+        protected ByteBufferWriter initialValue() {
+            return new ByteBufferWriter();
+        }
+    };
+
+    private ByteBuffer buffer;
+
+    private byte[] array;
+
+    private int position;
+
+    private String charset = "UTF-8";
+
+    private StringBuilder scratch;
+
+    private boolean inUse;
+
+    public ByteBufferWriter() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public ByteBufferWriter(int capacity) {
+        buffer = ByteBuffer.allocate(capacity);
+        array = buffer.array();
+    }
+
+    /**
+     * Get the writer of the current thread, or a new one if that one is
+     * already in use further up the stack.
+     */
+    public static ByteBufferWriter getInstance() {
+        ByteBufferWriter writer = pool.get();
+        if (writer.inUse)
+            return new ByteBufferWriter();
+        writer.inUse = true;
+        return writer;
+    }
+
+    /**
+     * Give back a writer obtained from getInstance.
+     */
+    public static void release(ByteBufferWriter writer) {
+        if (writer.inUse) {
+            writer.inUse = false;
+            writer.clear();
+            writer.charset = "UTF-8";
+            if (writer.array.length > MAX_POOLED_CAPACITY) {
+                writer.buffer = ByteBuffer.allocate(INITIAL_CAPACITY);
+                writer.array = writer.buffer.array();
+            }
+            if (writer.scratch != null && writer.scratch.capacity() > MAX_POOLED_CAPACITY)
+                writer.scratch = null;
+        }
+    }
+
+    /**
+     * Set the charset of the characters that are not ASCII.
+     */
+    public void setCharset(String charset) {
+        this.charset = charset;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    private void ensureCapacity(int length) {
+        if (position + length > array.length) {
+            int capacity = Math.max(array.length * 2, position + length);
+            ByteBuffer larger = ByteBuffer.allocate(capacity);
+            System.arraycopy(array, 0, larger.array(), 0, position);
+            buffer = larger;
+            array = larger.array();
+        }
+    }
+
+    public ByteBufferWriter append(String s) {
+        int length = s.length();
+        ensureCapacity(length);
+        byte[] array = this.array;
+        int position = this.position;
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+                return appendEncoded(s);
+            array[position + i] = (byte) c;
+        }
+        this.position = position + length;
+        return this;
+    }
+
+    public ByteBufferWriter append(CharSequence s) {
+        if (s instanceof String)
+            return append((String) s);
+        int length = s.length();
+        ensureCapacity(length);
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c >= 0x80)
+                return appendEncoded(s.toString());
+            array[position + i] = (byte) c;
+        }
+        position += length;
+        return this;
+    }
+
+    private ByteBufferWriter appendEncoded(String s) {
+        try {
+            append(s.getBytes(charset));
+        } catch (UnsupportedEncodingException ex) {
+            InternalErrorHandler.handleException(ex);
+        }
+        return this;
+    }
+
+    public ByteBufferWriter append(char c) {
+        if (c >= 0x80)
+            return appendEncoded(String.valueOf(c));
+        ensureCapacity(1);
+        array[position++] = (byte) c;
+        return this;
+    }
+
+    public ByteBufferWriter append(int i) {
+        return append((long) i);
+    }
+
+    public ByteBufferWriter append(long l) {
+        if (l < 0) {
+            if (l == Long.MIN_VALUE)
+                return append(Long.toString(l));
+            append('-');
+            l = -l;
+        }
+        int digits = 1;
+        for (long v = l; v >= 10; v /= 10)
+            digits++;
+        ensureCapacity(digits);
+        int end = position + digits;
+        for (int i = end - 1; i >= position; i--) {
+            array[i] = (byte) ('0' + (l % 10));
+            l /= 10;
+        }
+        position = end;
+        return this;
+    }
+
+    public ByteBufferWriter append(Object o) {
+        return append(String.valueOf(o));
+    }
+
+    public ByteBufferWriter append(byte[] bytes) {
+        return append(bytes, 0, bytes.length);
+    }
+
+    public ByteBufferWriter append(byte[] bytes, int offset, int length) {
+        ensureCapacity(length);
+        System.arraycopy(bytes, offset, array, position, length);
+        position += length;
+        return this;
+    }
+
+    /**
+     * A string builder for the parts that are only encoded as text, emptied
+     * on each call. Whatever is built in it must be appended before the next
+     * call.
+     */
+    public StringBuilder scratch() {
+        if (scratch == null)
+            scratch = new StringBuilder(256);
+        scratch.setLength(0);
+        return scratch;
+    }
+
+    /**
+     * @return the number of bytes written.
+     */
+    public int length() {
+        return position;
+    }
+
+    /**
+     * Forget what was written.
+     */
+    public void clear() {
+        position = 0;
+    }
+
+    /**
+     * @return the bytes written, ready to be read, sharing the storage of the
+     *         writer until it is cleared.
+     */
+    public ByteBuffer getBuffer() {
+        ByteBuffer view = buffer.duplicate();
+        view.position(0);
+        view.limit(position);
+        return view;
+    }
+
+    /**
+     * @return a copy of the bytes written.
+     */
+    public byte[] toByteArray() {
+        byte[] bytes = new byte[position];
+        System.arraycopy(array, 0, bytes, 0, position);
+        return bytes;
+    }
+}
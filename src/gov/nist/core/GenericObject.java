@@ -709,4 +709,14 @@ public abstract class GenericObject implements Serializable, Cloneable {
     public StringBuilder encode(StringBuilder buffer) {
         return buffer.append(encode());
     }
+
+    /**
+     * Put the encoded version of this object in the given writer. Objects
+     * without a byte encoding of their own go through their string encoding.
+     */
+    public void encode(ByteBufferWriter writer) {
+        StringBuilder scratch = writer.scratch();
+        encode(scratch);
+        writer.append(scratch);
+    }
 }
@@ -124,6 +124,14 @@ public class Host extends GenericObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (addressType == IPV6ADDRESS && !isIPv6Reference(hostname)) {
+            writer.append('[').append(hostname).append(']');
+        } else {
+            writer.append(hostname);
+        }
+    }
+
     /**
      * Compare for equality of hosts.
      * Host names are compared by textual equality. No dns lookup
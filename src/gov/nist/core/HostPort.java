@@ -79,6 +79,12 @@ public final class HostPort extends GenericObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        host.encode(writer);
+        if (port != -1)
+            writer.append(COLON).append(port);
+    }
+
     /** returns true if the two objects are equals, false otherwise.
      * @param other Object to set
      * @return boolean
@@ -220,6 +220,20 @@ public class NameValue extends GenericObject implements Entry<String,String> {
         }
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (name != null && (value == null || isFlagParameter)) {
+            writer.append(name);
+        } else if (name != null && value instanceof String && ((String) value).length() > 0) {
+            writer.append(name).append(separator).append(quotes).append((String) value).append(quotes);
+        } else if (name != null && value instanceof GenericObject) {
+            writer.append(name).append(separator).append(quotes);
+            ((GenericObject) value).encode(writer);
+            writer.append(quotes);
+        } else {
+            super.encode(writer);
+        }
+    }
+
     public Object clone() {
         NameValue retval = (NameValue) super.clone();
         if (value != null)
@@ -116,6 +116,17 @@ public class NameValueList implements Serializable, Cloneable, Map<String,NameVa
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (!this.isEmpty()) {
+            Iterator<NameValue> iterator = this.iterator();
+            while (iterator.hasNext()) {
+                iterator.next().encode(writer);
+                if (iterator.hasNext())
+                    writer.append(separator);
+            }
+        }
+    }
+
     public String toString() {
         return this.encode();
     }
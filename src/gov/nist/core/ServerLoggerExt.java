@@ -0,0 +1,42 @@
+/*
+ * JBoss, Home of Professional Open Source.
+ * 
+ * This code has been contributed to the public domain.
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ */
+package gov.nist.core;
+
+import gov.nist.javax.sip.message.SIPMessage;
+
+/**
+ * Extension of the message trace logger that takes the bytes the channel put
+ * on the wire, so the message doesn't have to be encoded again just for the
+ * trace.
+ */
+public interface ServerLoggerExt extends ServerLogger {
+
+    /**
+     * Log a message from its encoded form.
+     *
+     * @param encoded the bytes of the message as sent or received
+     * @param message the message, null if only the bytes are at hand (retransmissions)
+     * @param from host:port of the sender
+     * @param to host:port of the receiver
+     * @param status processing status, may be null
+     * @param sender true if the stack sent the message
+     * @param time time at which the message was sent or received
+     */
+    void logMessage(byte[] encoded, SIPMessage message, String from, String to, String status,
+            boolean sender, long time);
+
+}
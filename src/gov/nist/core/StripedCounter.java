@@ -0,0 +1,81 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A counter that many threads can increment without contending on a single
+ * memory location. Each thread adds to one of several cells, spread over
+ * distinct cache lines, and reading the value sums the cells. Reads are not
+ * atomic with respect to concurrent increments, which is fine for statistics.
+ *
+ * @since 2.0
+ */
+public class StripedCounter {
+
+    // 8 longs, one cache line, between two cells
+    private static final int PADDING = 8;
+
+    private static final int STRIPES;
+
+    static {
+        int stripes = 1;
+        int processors = Runtime.getRuntime().availableProcessors();
+        while (stripes < processors && stripes < 64)
+            stripes <<= 1;
+        STRIPES = stripes;
+    }
+
+    private final AtomicLongArray cells = new AtomicLongArray(STRIPES * PADDING);
+
+    private static int index() {
+        long id = Thread.currentThread().getId();
+        return (int) ((id ^ (id >>> 16)) & (STRIPES - 1)) * PADDING;
+    }
+
+    public void increment() {
+        cells.incrementAndGet(index());
+    }
+
+    public void add(long delta) {
+        cells.addAndGet(index(), delta);
+    }
+
+    /**
+     * @return the sum of all increments so far.
+     */
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += cells.get(i * PADDING);
+        return sum;
+    }
+
+    public String toString() {
+        return Long.toString(get());
+    }
+}
@@ -0,0 +1,68 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.Properties;
+
+import javax.sip.address.Hop;
+
+/**
+ * An address resolver that the stack also uses for its own host name lookups
+ * and that it tells about unreachable targets, so that the resolver can fail
+ * over to another server. When the registered resolver implements this
+ * interface, the stack no longer calls {@link InetAddress#getByName(String)}
+ * directly when sending messages.
+ *
+ * @since 2.0
+ */
+public interface AddressResolverExt extends AddressResolver {
+
+    /**
+     * Passes the configuration properties of the stack to the resolver. Called
+     * once when the stack is created.
+     */
+    public void setStackProperties(Properties properties);
+
+    /**
+     * Looks up the address of a host. IP address literals are returned without
+     * a lookup.
+     *
+     * @param host a host name or IP address literal.
+     * @return the address of the host.
+     * @throws UnknownHostException if the host cannot be resolved.
+     */
+    public InetAddress resolveHost(String host) throws UnknownHostException;
+
+    /**
+     * Reports that a target returned by {@link #resolveAddress(Hop)} could not be
+     * reached, so that following resolutions prefer other targets for a while.
+     *
+     * @param hop the unreachable target, host being a name or an address.
+     */
+    public void reportFailure(Hop hop);
+}
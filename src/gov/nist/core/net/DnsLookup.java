@@ -0,0 +1,54 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of DNS records for the caching address resolver. The default
+ * implementation queries the system's DNS servers ({@link JndiDnsLookup});
+ * {@link ZoneFileDnsLookup} answers from a local zone file instead, which is
+ * handy for tests and for fixed deployments.
+ *
+ * Lookups may block; the resolver calls them from its own threads.
+ *
+ * @since 2.0
+ */
+public interface DnsLookup {
+
+    /**
+     * Looks up the records of the given type.
+     *
+     * @param name the domain name, without trailing dot.
+     * @param type one of the type constants in {@link DnsRecord}.
+     * @return the records found, an empty list if the name does not exist or
+     *         has no records of this type.
+     * @throws IOException if the lookup failed (for example a timeout), as
+     *         opposed to a negative answer.
+     */
+    public List<DnsRecord> lookup(String name, int type) throws IOException;
+}
@@ -0,0 +1,301 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A resource record returned by a {@link DnsLookup}. Only the record types used
+ * for locating SIP servers (RFC 3263) are represented: NAPTR, SRV, A and AAAA.
+ * The record data is kept in the presentation format of a zone file and parsed
+ * into the fields relevant for the type.
+ *
+ * @since 2.0
+ */
+public class DnsRecord {
+
+    public static final int A = 1;
+
+    public static final int SRV = 33;
+
+    public static final int NAPTR = 35;
+
+    public static final int AAAA = 28;
+
+    private final String name;
+
+    private final int type;
+
+    private final long ttl;
+
+    // NAPTR
+    private int order;
+
+    private int preference;
+
+    private String flags;
+
+    private String service;
+
+    private String regexp;
+
+    private String replacement;
+
+    // SRV
+    private int priority;
+
+    private int weight;
+
+    private int port;
+
+    private String target;
+
+    // A and AAAA
+    private InetAddress address;
+
+    private DnsRecord(String name, int type, long ttl) {
+        this.name = name;
+        this.type = type;
+        this.ttl = ttl;
+    }
+
+    /**
+     * Creates an address record.
+     *
+     * @param name the owner name of the record.
+     * @param ttl the time to live in seconds, -1 if unknown.
+     * @param address the address.
+     */
+    public static DnsRecord address(String name, long ttl, InetAddress address) {
+        DnsRecord record = new DnsRecord(normalize(name),
+                address.getAddress().length == 4 ? A : AAAA, ttl);
+        record.address = address;
+        return record;
+    }
+
+    /**
+     * Parses the data of a record given in zone file presentation format, for
+     * example <code>10 60 5060 sip.example.com.</code> for an SRV record.
+     *
+     * @param name the owner name of the record.
+     * @param type the record type.
+     * @param ttl the time to live in seconds, -1 if unknown.
+     * @param rdata the record data.
+     * @throws IllegalArgumentException if the data cannot be parsed.
+     */
+    public static DnsRecord parse(String name, int type, long ttl, String rdata) {
+        List<String> fields = split(rdata);
+        DnsRecord record = new DnsRecord(normalize(name), type, ttl);
+        try {
+            switch (type) {
+            case NAPTR:
+                record.order = Integer.parseInt(fields.get(0));
+                record.preference = Integer.parseInt(fields.get(1));
+                record.flags = fields.get(2).toLowerCase();
+                record.service = fields.get(3).toUpperCase();
+                record.regexp = fields.get(4);
+                record.replacement = normalize(fields.get(5));
+                break;
+            case SRV:
+                record.priority = Integer.parseInt(fields.get(0));
+                record.weight = Integer.parseInt(fields.get(1));
+                record.port = Integer.parseInt(fields.get(2));
+                record.target = normalize(fields.get(3));
+                break;
+            case A:
+            case AAAA:
+                // Only literals, so this does not go to the network
+                record.address = InetAddress.getByAddress(record.name,
+                        InetAddress.getByName(fields.get(0)).getAddress());
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupported record type " + type);
+            }
+        } catch (IndexOutOfBoundsException ex) {
+            throw new IllegalArgumentException("Bad record data: " + rdata);
+        } catch (NumberFormatException ex) {
+            throw new IllegalArgumentException("Bad record data: " + rdata);
+        } catch (UnknownHostException ex) {
+            throw new IllegalArgumentException("Bad record data: " + rdata);
+        }
+        return record;
+    }
+
+    /**
+     * Returns the type code for a record type mnemonic, or -1 if the type is
+     * not supported.
+     */
+    public static int typeOf(String mnemonic) {
+        if ("A".equalsIgnoreCase(mnemonic))
+            return A;
+        else if ("AAAA".equalsIgnoreCase(mnemonic))
+            return AAAA;
+        else if ("SRV".equalsIgnoreCase(mnemonic))
+            return SRV;
+        else if ("NAPTR".equalsIgnoreCase(mnemonic))
+            return NAPTR;
+        else
+            return -1;
+    }
+
+    /**
+     * Returns the mnemonic of a record type.
+     */
+    public static String typeName(int type) {
+        switch (type) {
+        case A:
+            return "A";
+        case AAAA:
+            return "AAAA";
+        case SRV:
+            return "SRV";
+        case NAPTR:
+            return "NAPTR";
+        default:
+            return Integer.toString(type);
+        }
+    }
+
+    /**
+     * Lower cases a domain name and strips the trailing dot.
+     */
+    public static String normalize(String name) {
+        String result = name.toLowerCase();
+        if (result.endsWith(".") && result.length() > 1)
+            result = result.substring(0, result.length() - 1);
+        return result;
+    }
+
+    /**
+     * Splits record data on white space, keeping quoted character strings
+     * (without the quotes) as one field.
+     */
+    private static List<String> split(String rdata) {
+        List<String> fields = new ArrayList<String>();
+        int i = 0;
+        int length = rdata.length();
+        while (i < length) {
+            char c = rdata.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"') {
+                int end = rdata.indexOf('"', i + 1);
+                if (end < 0)
+                    end = length;
+                fields.add(rdata.substring(i + 1, end));
+                i = end + 1;
+            } else {
+                int end = i;
+                while (end < length && !Character.isWhitespace(rdata.charAt(end)))
+                    end++;
+                fields.add(rdata.substring(i, end));
+                i = end;
+            }
+        }
+        return fields;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getType() {
+        return type;
+    }
+
+    /**
+     * @return the time to live in seconds, or -1 if the lookup does not report it.
+     */
+    public long getTtl() {
+        return ttl;
+    }
+
+    public int getOrder() {
+        return order;
+    }
+
+    public int getPreference() {
+        return preference;
+    }
+
+    public String getFlags() {
+        return flags;
+    }
+
+    public String getService() {
+        return service;
+    }
+
+    public String getRegexp() {
+        return regexp;
+    }
+
+    public String getReplacement() {
+        return replacement;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public int getWeight() {
+        return weight;
+    }
+
+    public int getPort() {
+        return port;
+    }
+
+    public String getTarget() {
+        return target;
+    }
+
+    public InetAddress getAddress() {
+        return address;
+    }
+
+    public String toString() {
+        StringBuilder buffer = new StringBuilder(name).append(' ').append(ttl)
+                .append(" IN ").append(typeName(type)).append(' ');
+        switch (type) {
+        case NAPTR:
+            buffer.append(order).append(' ').append(preference).append(" \"")
+                    .append(flags).append("\" \"").append(service).append("\" \"")
+                    .append(regexp).append("\" ").append(replacement);
+            break;
+        case SRV:
+            buffer.append(priority).append(' ').append(weight).append(' ')
+                    .append(port).append(' ').append(target);
+            break;
+        default:
+            buffer.append(address.getHostAddress());
+        }
+        return buffer.toString();
+    }
+}
@@ -0,0 +1,111 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Hashtable;
+import java.util.List;
+
+import javax.naming.NameNotFoundException;
+import javax.naming.NamingEnumeration;
+import javax.naming.NamingException;
+import javax.naming.directory.Attribute;
+import javax.naming.directory.Attributes;
+import javax.naming.directory.DirContext;
+import javax.naming.directory.InitialDirContext;
+
+/**
+ * Looks up NAPTR and SRV records with the JNDI DNS provider of the JDK, and
+ * addresses with {@link InetAddress#getAllByName(String)} so that the hosts
+ * file is honoured. Neither reports the time to live of the records, so the
+ * records returned have a TTL of -1 and the resolver applies its default.
+ *
+ * @since 2.0
+ */
+public class JndiDnsLookup implements DnsLookup {
+
+    private final Hashtable<String, String> environment = new Hashtable<String, String>();
+
+    public JndiDnsLookup() {
+        environment.put("java.naming.factory.initial", "com.sun.jndi.dns.DnsContextFactory");
+        environment.put("java.naming.provider.url", "dns:");
+    }
+
+    public List<DnsRecord> lookup(String name, int type) throws IOException {
+        if (type == DnsRecord.A || type == DnsRecord.AAAA) {
+            return lookupAddresses(name, type);
+        }
+        List<DnsRecord> records = new ArrayList<DnsRecord>();
+        DirContext context = null;
+        try {
+            context = new InitialDirContext(environment);
+            Attributes attributes = context.getAttributes(name, new String[] { DnsRecord.typeName(type) });
+            Attribute attribute = attributes.get(DnsRecord.typeName(type));
+            if (attribute != null) {
+                NamingEnumeration<?> values = attribute.getAll();
+                while (values.hasMore()) {
+                    try {
+                        records.add(DnsRecord.parse(name, type, -1, values.next().toString()));
+                    } catch (IllegalArgumentException ex) {
+                        // skip a record we cannot make sense of
+                    }
+                }
+            }
+        } catch (NameNotFoundException ex) {
+            return Collections.emptyList();
+        } catch (NamingException ex) {
+            IOException ioex = new IOException("DNS lookup of " + name + " failed");
+            ioex.initCause(ex);
+            throw ioex;
+        } finally {
+            if (context != null) {
+                try {
+                    context.close();
+                } catch (NamingException ex) {
+                }
+            }
+        }
+        return records;
+    }
+
+    private List<DnsRecord> lookupAddresses(String name, int type) {
+        List<DnsRecord> records = new ArrayList<DnsRecord>();
+        try {
+            for (InetAddress address : InetAddress.getAllByName(name)) {
+                DnsRecord record = DnsRecord.address(name, -1, address);
+                if (record.getType() == type)
+                    records.add(record);
+            }
+        } catch (UnknownHostException ex) {
+            // negative answer
+        }
+        return records;
+    }
+}
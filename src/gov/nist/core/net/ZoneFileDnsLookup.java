@@ -0,0 +1,142 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.core.net;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Answers DNS lookups from a local file in a subset of the master file format
+ * of RFC 1035. Every line holds one record:
+ *
+ * <pre>
+ * ; comment
+ * $TTL 300
+ * example.com.            300 IN NAPTR 10 50 "s" "SIP+D2U" "" _sip._udp.example.com.
+ * _sip._udp.example.com.  300 IN SRV   10 60 5060 sip1.example.com.
+ * sip1.example.com.           IN A     192.0.2.1
+ * </pre>
+ *
+ * The TTL and class are optional; a missing TTL takes the value of the last
+ * $TTL directive. Origins, relative names and multi-line records are not
+ * supported. The file is read again when it changes.
+ *
+ * @since 2.0
+ */
+public class ZoneFileDnsLookup implements DnsLookup {
+
+    private final File file;
+
+    private long lastModified = -1;
+
+    private Map<String, List<DnsRecord>> records = Collections.emptyMap();
+
+    public ZoneFileDnsLookup(String path) throws IOException {
+        this.file = new File(path);
+        load();
+    }
+
+    public List<DnsRecord> lookup(String name, int type) throws IOException {
+        Map<String, List<DnsRecord>> current;
+        synchronized (this) {
+            if (file.lastModified() != lastModified) {
+                load();
+            }
+            current = records;
+        }
+        List<DnsRecord> result = current.get(DnsRecord.normalize(name) + "/" + type);
+        return result == null ? Collections.<DnsRecord> emptyList() : result;
+    }
+
+    private void load() throws IOException {
+        long modified = file.lastModified();
+        Map<String, List<DnsRecord>> loaded = new HashMap<String, List<DnsRecord>>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        try {
+            long defaultTtl = -1;
+            int lineNumber = 0;
+            String line;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                int comment = line.indexOf(';');
+                if (comment >= 0 && line.lastIndexOf('"', comment) < 0)
+                    line = line.substring(0, comment);
+                String[] tokens = line.trim().split("\\s+", 2);
+                if (tokens[0].length() == 0)
+                    continue;
+                if (tokens[0].equalsIgnoreCase("$TTL")) {
+                    defaultTtl = Long.parseLong(tokens[1].trim());
+                    continue;
+                }
+                if (tokens.length < 2)
+                    throw new IOException(file + ":" + lineNumber + ": bad record");
+                String name = tokens[0];
+                String rest = tokens[1].trim();
+                long ttl = defaultTtl;
+                int type = -1;
+                // [ttl] [IN] type rdata
+                while (type == -1) {
+                    String[] parts = rest.split("\\s+", 2);
+                    if (parts.length < 2)
+                        throw new IOException(file + ":" + lineNumber + ": bad record");
+                    if (Character.isDigit(parts[0].charAt(0))) {
+                        ttl = Long.parseLong(parts[0]);
+                    } else if (!parts[0].equalsIgnoreCase("IN")) {
+                        type = DnsRecord.typeOf(parts[0]);
+                        if (type == -1)
+                            throw new IOException(file + ":" + lineNumber + ": unsupported type " + parts[0]);
+                    }
+                    rest = parts[1].trim();
+                }
+                DnsRecord record;
+                try {
+                    record = DnsRecord.parse(name, type, ttl, rest);
+                } catch (IllegalArgumentException ex) {
+                    throw new IOException(file + ":" + lineNumber + ": " + ex.getMessage());
+                }
+                String key = record.getName() + "/" + type;
+                List<DnsRecord> list = loaded.get(key);
+                if (list == null) {
+                    list = new ArrayList<DnsRecord>();
+                    loaded.put(key, list);
+                }
+                list.add(record);
+            }
+        } finally {
+            reader.close();
+        }
+        this.records = loaded;
+        this.lastModified = modified;
+    }
+}
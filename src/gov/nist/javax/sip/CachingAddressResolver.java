@@ -0,0 +1,508 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.LogWriter;
+import gov.nist.core.StackLogger;
+import gov.nist.core.net.AddressResolverExt;
+import gov.nist.core.net.DnsLookup;
+import gov.nist.core.net.DnsRecord;
+import gov.nist.core.net.JndiDnsLookup;
+import gov.nist.core.net.ZoneFileDnsLookup;
+import gov.nist.javax.sip.stack.HopImpl;
+import gov.nist.javax.sip.stack.MessageProcessor;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.sip.ListeningPoint;
+import javax.sip.address.Hop;
+
+/**
+ * An address resolver that locates SIP servers as described in RFC 3263 and
+ * caches the DNS answers. Register it with
+ * <code>gov.nist.javax.sip.ADDRESS_RESOLVER=gov.nist.javax.sip.CachingAddressResolver</code>.
+ * <p>
+ * For a hop without an explicit port and with a host name, the NAPTR records
+ * of the domain are consulted for the SRV name of the hop's transport, falling
+ * back to the conventional <code>_sip._udp</code>, <code>_sip._tcp</code> or
+ * <code>_sips._tcp</code> name. The SRV targets are ordered by priority and,
+ * within a priority, by a weighted random choice (RFC 2782). The first target
+ * that has not recently been reported unreachable is returned, so a failed
+ * server is skipped until the failover time has passed. Without SRV records
+ * the host is used with the default port of the transport.
+ * <p>
+ * The stack also resolves host names through {@link #resolveHost(String)}
+ * instead of calling InetAddress.getByName on its own threads.
+ * <p>
+ * Lookups run on a small pool of resolver threads. Answers are cached for
+ * their TTL; names that do not exist, or lookups that fail, are cached for the
+ * negative TTL. A caller waits for a lookup at most the configured timeout. An
+ * expired entry is still returned while it is refreshed in the background, so
+ * a slow DNS server only delays the first request to a domain.
+ * <p>
+ * The following stack properties configure the resolver:
+ * <ul>
+ * <li><b>gov.nist.javax.sip.DNS_ZONE_FILE</b> answers lookups from a local
+ * zone file (see {@link ZoneFileDnsLookup}) instead of the system's DNS
+ * servers.</li>
+ * <li><b>gov.nist.javax.sip.DNS_DEFAULT_TTL</b> seconds to cache answers that
+ * do not carry a TTL. Answers from the system's DNS servers do not. Default
+ * 60.</li>
+ * <li><b>gov.nist.javax.sip.DNS_NEGATIVE_TTL</b> seconds to cache negative
+ * answers and failures. Default 30.</li>
+ * <li><b>gov.nist.javax.sip.DNS_TIMEOUT</b> milliseconds a caller waits for a
+ * lookup that is not cached. Default 5000.</li>
+ * <li><b>gov.nist.javax.sip.DNS_THREADS</b> number of resolver threads.
+ * Default 2.</li>
+ * <li><b>gov.nist.javax.sip.DNS_FAILOVER_TIME</b> seconds an unreachable
+ * target is avoided. Default 30.</li>
+ * </ul>
+ *
+ * @since 2.0
+ */
+public class CachingAddressResolver implements AddressResolverExt {
+
+    private static StackLogger logger = CommonLogger.getLogger(CachingAddressResolver.class);
+
+    private static class CacheEntry {
+        final List<DnsRecord> records;
+
+        final long expires;
+
+        CacheEntry(List<DnsRecord> records, long expires) {
+            this.records = records;
+            this.expires = expires;
+        }
+    }
+
+    private DnsLookup dnsLookup;
+
+    private long defaultTtl = 60 * 1000;
+
+    private long negativeTtl = 30 * 1000;
+
+    private long timeout = 5000;
+
+    private long failoverTime = 30 * 1000;
+
+    private final ThreadPoolExecutor executor;
+
+    private final ConcurrentHashMap<String, CacheEntry> cache = new ConcurrentHashMap<String, CacheEntry>();
+
+    private final ConcurrentHashMap<String, FutureTask<CacheEntry>> pending = new ConcurrentHashMap<String, FutureTask<CacheEntry>>();
+
+    private final ConcurrentHashMap<String, Long> failedTargets = new ConcurrentHashMap<String, Long>();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    public CachingAddressResolver() {
+        this(new JndiDnsLookup());
+    }
+
+    public CachingAddressResolver(DnsLookup dnsLookup) {
+        this.dnsLookup = dnsLookup;
+        this.executor = new ThreadPoolExecutor(2, 2, 60, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                    private final AtomicInteger threadCount = new AtomicInteger();
+
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "DnsResolver-" + threadCount.getAndIncrement());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        this.executor.allowCoreThreadTimeOut(true);
+    }
+
+    public void setStackProperties(Properties properties) {
+        String zoneFile = properties.getProperty("gov.nist.javax.sip.DNS_ZONE_FILE");
+        if (zoneFile != null) {
+            try {
+                this.dnsLookup = new ZoneFileDnsLookup(zoneFile);
+            } catch (IOException e) {
+                logger.logError("Bad configuration value for gov.nist.javax.sip.DNS_ZONE_FILE=" + zoneFile, e);
+            }
+        }
+        defaultTtl = getMillis(properties, "gov.nist.javax.sip.DNS_DEFAULT_TTL", 1000, defaultTtl);
+        negativeTtl = getMillis(properties, "gov.nist.javax.sip.DNS_NEGATIVE_TTL", 1000, negativeTtl);
+        timeout = getMillis(properties, "gov.nist.javax.sip.DNS_TIMEOUT", 1, timeout);
+        failoverTime = getMillis(properties, "gov.nist.javax.sip.DNS_FAILOVER_TIME", 1000, failoverTime);
+        int threads = (int) getMillis(properties, "gov.nist.javax.sip.DNS_THREADS", 1, executor.getMaximumPoolSize());
+        if (threads > 0) {
+            if (threads > executor.getMaximumPoolSize()) {
+                executor.setMaximumPoolSize(threads);
+                executor.setCorePoolSize(threads);
+            } else {
+                executor.setCorePoolSize(threads);
+                executor.setMaximumPoolSize(threads);
+            }
+        }
+    }
+
+    private static long getMillis(Properties properties, String name, long unit, long defaultValue) {
+        String value = properties.getProperty(name);
+        if (value == null)
+            return defaultValue;
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        } catch (NumberFormatException e) {
+            logger.logError("Bad configuration value for " + name + "=" + value, e);
+            return defaultValue;
+        }
+    }
+
+    /*
+     * (non-Javadoc)
+     * @see gov.nist.core.net.AddressResolver#resolveAddress(javax.sip.address.Hop)
+     */
+    public Hop resolveAddress(Hop hop) {
+        String transport = hop.getTransport() == null ? ListeningPoint.UDP : hop.getTransport();
+        if (hop.getPort() != -1)
+            return hop;
+        int defaultPort = MessageProcessor.getDefaultPort(transport);
+        if (isAddressLiteral(hop.getHost()))
+            return new HopImpl(hop.getHost(), defaultPort, transport);
+
+        List<HopImpl> targets = locate(DnsRecord.normalize(hop.getHost()), transport);
+        for (HopImpl target : targets) {
+            if (!isFailed(target))
+                return target;
+        }
+        if (!targets.isEmpty()) {
+            // everything failed recently, try the preferred one again
+            return targets.get(0);
+        }
+        return new HopImpl(hop.getHost(), defaultPort, transport);
+    }
+
+    public InetAddress resolveHost(String host) throws UnknownHostException {
+        if (isAddressLiteral(host))
+            return InetAddress.getByName(host);
+        String name = DnsRecord.normalize(host);
+        List<DnsRecord> records = query(name, DnsRecord.A);
+        if (records.isEmpty())
+            records = query(name, DnsRecord.AAAA);
+        if (records.isEmpty())
+            throw new UnknownHostException(host);
+        return records.get(0).getAddress();
+    }
+
+    public void reportFailure(Hop hop) {
+        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+            logger.logDebug("target unreachable " + hop);
+        failedTargets.put(targetKey(hop.getHost(), hop.getPort()),
+                Long.valueOf(System.currentTimeMillis() + failoverTime));
+    }
+
+    /**
+     * @return the number of lookups answered from the cache, including expired
+     *         entries returned while being refreshed.
+     */
+    public long getCacheHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that were not cached.
+     */
+    public long getCacheMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Discards all cached answers and failed targets.
+     */
+    public void clearCache() {
+        cache.clear();
+        failedTargets.clear();
+    }
+
+    /**
+     * RFC 3263 section 4.2: NAPTR, then SRV, for the transport of the hop.
+     */
+    private List<HopImpl> locate(String host, String transport) {
+        String service = naptrService(transport);
+        List<DnsRecord> srv = Collections.emptyList();
+        if (service != null) {
+            List<DnsRecord> naptr = new ArrayList<DnsRecord>(query(host, DnsRecord.NAPTR));
+            Collections.sort(naptr, new Comparator<DnsRecord>() {
+                public int compare(DnsRecord r1, DnsRecord r2) {
+                    if (r1.getOrder() != r2.getOrder())
+                        return r1.getOrder() < r2.getOrder() ? -1 : 1;
+                    return r1.getPreference() < r2.getPreference() ? -1
+                            : r1.getPreference() == r2.getPreference() ? 0 : 1;
+                }
+            });
+            for (DnsRecord record : naptr) {
+                if ("s".equals(record.getFlags()) && service.equals(record.getService())) {
+                    srv = query(record.getReplacement(), DnsRecord.SRV);
+                    if (!srv.isEmpty())
+                        break;
+                }
+            }
+        }
+        if (srv.isEmpty()) {
+            String prefix = srvPrefix(transport);
+            if (prefix == null)
+                return Collections.emptyList();
+            srv = query(prefix + host, DnsRecord.SRV);
+        }
+        List<HopImpl> targets = new ArrayList<HopImpl>(srv.size());
+        for (DnsRecord record : orderByPriorityAndWeight(srv)) {
+            // a target of "." means the service is not available
+            if (!".".equals(record.getTarget()) && record.getTarget().length() > 0)
+                targets.add(new HopImpl(record.getTarget(), record.getPort(), transport));
+        }
+        return targets;
+    }
+
+    /**
+     * Orders SRV records as described in RFC 2782: by ascending priority and
+     * within a priority by a random selection weighted by the record weights.
+     */
+    static List<DnsRecord> orderByPriorityAndWeight(List<DnsRecord> records) {
+        List<DnsRecord> sorted = new ArrayList<DnsRecord>(records);
+        Collections.sort(sorted, new Comparator<DnsRecord>() {
+            public int compare(DnsRecord r1, DnsRecord r2) {
+                if (r1.getPriority() != r2.getPriority())
+                    return r1.getPriority() < r2.getPriority() ? -1 : 1;
+                // zero weights first, as RFC 2782 asks
+                return (r1.getWeight() == 0 ? 0 : 1) - (r2.getWeight() == 0 ? 0 : 1);
+            }
+        });
+        List<DnsRecord> ordered = new ArrayList<DnsRecord>(sorted.size());
+        int start = 0;
+        while (start < sorted.size()) {
+            int end = start;
+            while (end < sorted.size() && sorted.get(end).getPriority() == sorted.get(start).getPriority())
+                end++;
+            List<DnsRecord> group = new ArrayList<DnsRecord>(sorted.subList(start, end));
+            while (!group.isEmpty()) {
+                int sum = 0;
+                for (DnsRecord record : group)
+                    sum += record.getWeight();
+                int random = sum == 0 ? 0 : ThreadLocalRandom.current().nextInt(sum + 1);
+                int running = 0;
+                for (Iterator<DnsRecord> it = group.iterator(); it.hasNext();) {
+                    DnsRecord record = it.next();
+                    running += record.getWeight();
+                    if (running >= random) {
+                        ordered.add(record);
+                        it.remove();
+                        break;
+                    }
+                }
+            }
+            start = end;
+        }
+        return ordered;
+    }
+
+    private boolean isFailed(HopImpl target) {
+        if (isFailed(target.getHost(), target.getPort()))
+            return true;
+        // The stack reports the address it connected to
+        List<DnsRecord> addresses = new ArrayList<DnsRecord>(query(target.getHost(), DnsRecord.A));
+        addresses.addAll(query(target.getHost(), DnsRecord.AAAA));
+        if (addresses.isEmpty())
+            return false;
+        for (DnsRecord address : addresses) {
+            if (!isFailed(address.getAddress().getHostAddress(), target.getPort()))
+                return false;
+        }
+        return true;
+    }
+
+    private boolean isFailed(String host, int port) {
+        String key = targetKey(host, port);
+        Long until = failedTargets.get(key);
+        if (until == null)
+            return false;
+        if (until.longValue() <= System.currentTimeMillis()) {
+            failedTargets.remove(key, until);
+            return false;
+        }
+        return true;
+    }
+
+    private static String targetKey(String host, int port) {
+        return DnsRecord.normalize(host) + ":" + port;
+    }
+
+    /**
+     * Returns the cached records, looking them up if they are not cached. An
+     * expired entry is returned as is and refreshed in the background.
+     */
+    private List<DnsRecord> query(String name, int type) {
+        String key = type + "/" + name;
+        CacheEntry entry = cache.get(key);
+        if (entry != null) {
+            hits.incrementAndGet();
+            if (entry.expires <= System.currentTimeMillis())
+                refresh(key, name, type);
+            return entry.records;
+        }
+        misses.incrementAndGet();
+        try {
+            return refresh(key, name, type).get(timeout, TimeUnit.MILLISECONDS).records;
+        } catch (TimeoutException ex) {
+            if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+                logger.logDebug("DNS lookup of " + DnsRecord.typeName(type) + " " + name + " timed out");
+        } catch (ExecutionException ex) {
+            logger.logError("DNS lookup of " + DnsRecord.typeName(type) + " " + name + " failed", ex);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        return Collections.emptyList();
+    }
+
+    private FutureTask<CacheEntry> refresh(final String key, final String name, final int type) {
+        FutureTask<CacheEntry> task = pending.get(key);
+        if (task != null)
+            return task;
+        task = new FutureTask<CacheEntry>(new Callable<CacheEntry>() {
+            public CacheEntry call() {
+                try {
+                    return fetch(key, name, type);
+                } finally {
+                    pending.remove(key);
+                }
+            }
+        });
+        FutureTask<CacheEntry> existing = pending.putIfAbsent(key, task);
+        if (existing != null)
+            return existing;
+        executor.execute(task);
+        return task;
+    }
+
+    private CacheEntry fetch(String key, String name, int type) {
+        long now = System.currentTimeMillis();
+        CacheEntry entry;
+        try {
+            List<DnsRecord> records = dnsLookup.lookup(name, type);
+            if (records.isEmpty()) {
+                entry = new CacheEntry(Collections.<DnsRecord> emptyList(), now + negativeTtl);
+            } else {
+                long ttl = Long.MAX_VALUE;
+                for (DnsRecord record : records)
+                    ttl = Math.min(ttl, record.getTtl() >= 0 ? record.getTtl() * 1000 : defaultTtl);
+                entry = new CacheEntry(Collections.unmodifiableList(new ArrayList<DnsRecord>(records)), now + ttl);
+            }
+        } catch (IOException ex) {
+            if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+                logger.logDebug("DNS lookup of " + DnsRecord.typeName(type) + " " + name + " failed: " + ex);
+            // keep serving what we had, if anything
+            CacheEntry stale = cache.get(key);
+            entry = new CacheEntry(stale == null ? Collections.<DnsRecord> emptyList() : stale.records,
+                    now + negativeTtl);
+        }
+        cache.put(key, entry);
+        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+            logger.logDebug("DNS " + DnsRecord.typeName(type) + " " + name + " -> " + entry.records);
+        purgeExpired(now);
+        return entry;
+    }
+
+    private long lastPurge;
+
+    /**
+     * Drops entries that expired a while ago so that names no longer used do
+     * not accumulate.
+     */
+    private void purgeExpired(long now) {
+        if (now - lastPurge < 60 * 1000)
+            return;
+        lastPurge = now;
+        for (Iterator<Map.Entry<String, CacheEntry>> it = cache.entrySet().iterator(); it.hasNext();) {
+            if (it.next().getValue().expires + 10 * 60 * 1000 < now)
+                it.remove();
+        }
+    }
+
+    private static String naptrService(String transport) {
+        if (transport.equalsIgnoreCase(ListeningPoint.UDP))
+            return "SIP+D2U";
+        else if (transport.equalsIgnoreCase(ListeningPoint.TCP))
+            return "SIP+D2T";
+        else if (transport.equalsIgnoreCase(ListeningPoint.TLS))
+            return "SIPS+D2T";
+        else if (transport.equalsIgnoreCase(ListeningPoint.SCTP))
+            return "SIP+D2S";
+        else if (transport.equalsIgnoreCase("WS"))
+            return "SIP+D2W";
+        else if (transport.equalsIgnoreCase("WSS"))
+            return "SIPS+D2W";
+        return null;
+    }
+
+    private static String srvPrefix(String transport) {
+        if (transport.equalsIgnoreCase(ListeningPoint.UDP))
+            return "_sip._udp.";
+        else if (transport.equalsIgnoreCase(ListeningPoint.TCP))
+            return "_sip._tcp.";
+        else if (transport.equalsIgnoreCase(ListeningPoint.TLS))
+            return "_sips._tcp.";
+        else if (transport.equalsIgnoreCase(ListeningPoint.SCTP))
+            return "_sip._sctp.";
+        return null;
+    }
+
+    private static boolean isAddressLiteral(String host) {
+        if (host.indexOf(':') >= 0 || host.startsWith("["))
+            return true;
+        for (int i = 0; i < host.length(); i++) {
+            char c = host.charAt(i);
+            if (c != '.' && (c < '0' || c > '9'))
+                return false;
+        }
+        return host.length() > 0;
+    }
+}
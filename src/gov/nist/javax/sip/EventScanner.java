@@ -26,6 +26,7 @@
 package gov.nist.javax.sip;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import gov.nist.javax.sip.stack.*;
 import gov.nist.javax.sip.message.*;
 import javax.sip.message.*;
@@ -41,6 +42,15 @@ import gov.nist.core.ThreadAuditor;
 
 /**
  * Event Scanner to deliver events to the Listener.
+ * <p>
+ * By default a single thread delivers all the events in the order they were
+ * queued. With more than one dispatch thread (see
+ * gov.nist.javax.sip.EVENT_DISPATCH_THREADS) the events are spread over that
+ * many queues, each served by its own thread. The queue is chosen from the
+ * Call-ID of the event, so the events of a call (and of its dialogs) are still
+ * delivered one at a time and in order while unrelated calls are delivered
+ * concurrently.
+ * </p>
  *
  * @version 1.2 $Revision: 1.47 $ $Date: 2010-12-02 22:04:18 $
  *
@@ -48,19 +58,21 @@ import gov.nist.core.ThreadAuditor;
  *
  *
  */
-public class EventScanner implements Runnable {
+public class EventScanner {
 	
 	private static StackLogger logger = CommonLogger.getLogger(EventScanner.class);
 
-    private boolean isStopped;
+    private volatile boolean isStopped;
 
     private int refCount;
 
-    // SIPquest: Fix for deadlocks
-    private LinkedList pendingEvents;
+    private final Shard[] shards;
 
     private int[] eventMutex = { 0 };
 
+    // moving average of the listener's processRequest time, in nanoseconds
+    private volatile long listenerResponseTime;
+
     private SipStackImpl sipStack;
 
     public void incrementRefcount() {
@@ -70,32 +82,155 @@ public class EventScanner implements Runnable {
     }
 
     public EventScanner(SipStackImpl sipStackImpl) {
-        this.pendingEvents = new LinkedList();
-        Thread myThread = new Thread(this);
-        // This needs to be set to false else the
-        // main thread mysteriously exits.
-        myThread.setDaemon(false);
+        this(sipStackImpl, 1);
+    }
 
+    /**
+     * @param threads number of dispatch threads, each with its own queue
+     */
+    public EventScanner(SipStackImpl sipStackImpl, int threads) {
         this.sipStack = sipStackImpl;
+        this.shards = new Shard[Math.max(1, threads)];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard();
+        }
+        for (int i = 0; i < shards.length; i++) {
+            Thread myThread = new Thread(shards[i]);
+            // This needs to be set to false else the
+            // main thread mysteriously exits.
+            myThread.setDaemon(false);
 
-        myThread.setName("EventScannerThread");
-
-        myThread.start();
+            myThread.setName(shards.length == 1 ? "EventScannerThread" : "EventScannerThread-" + i);
 
+            myThread.start();
+        }
     }
 
     public void addEvent(EventWrapper eventWrapper) {
     	if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
     		logger.logDebug("addEvent " + eventWrapper);
-        synchronized (this.eventMutex) {
+        Shard shard = shards.length == 1 ? shards[0] : shards[getShardIndex(eventWrapper)];
+        synchronized (shard) {
 
-            pendingEvents.add(eventWrapper);
+            shard.pendingEvents.add(eventWrapper);
+            int depth = shard.queueDepth.incrementAndGet();
+            if (depth > shard.maxQueueDepth) {
+                shard.maxQueueDepth = depth;
+            }
 
             // Add the event into the pending events list
 
-            eventMutex.notify();
+            shard.notify();
+        }
+
+    }
+
+    /**
+     * Pick the queue of an event from its Call-ID, events without one go
+     * by transaction or by peer.
+     */
+    private int getShardIndex(EventWrapper eventWrapper) {
+        Object key = getCallId(eventWrapper);
+        if (key == null) {
+            if (eventWrapper.transaction != null) {
+                key = eventWrapper.transaction.getTransactionId();
+            } else if (eventWrapper.sipEvent instanceof IOExceptionEvent) {
+                IOExceptionEvent ioe = (IOExceptionEvent) eventWrapper.sipEvent;
+                key = ioe.getHost() + ":" + ioe.getPort();
+            }
+        }
+        if (key == null) {
+            return 0;
+        }
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % shards.length;
+    }
+
+    private static String getCallId(EventWrapper eventWrapper) {
+        EventObject sipEvent = eventWrapper.sipEvent;
+        Dialog dialog = null;
+        if (sipEvent instanceof RequestEvent) {
+            return ((SIPMessage) ((RequestEvent) sipEvent).getRequest()).getCallId().getCallId();
+        } else if (sipEvent instanceof ResponseEvent) {
+            return ((SIPMessage) ((ResponseEvent) sipEvent).getResponse()).getCallId().getCallId();
+        } else if (sipEvent instanceof DialogTerminatedEvent) {
+            dialog = ((DialogTerminatedEvent) sipEvent).getDialog();
+        } else if (sipEvent instanceof DialogTimeoutEvent) {
+            dialog = ((DialogTimeoutEvent) sipEvent).getDialog();
+        } else if (eventWrapper.transaction instanceof SIPClientTransaction) {
+            return ((SIPClientTransaction) eventWrapper.transaction).getOriginalRequestCallId();
+        } else if (eventWrapper.transaction != null) {
+            SIPRequest request = eventWrapper.transaction.getOriginalRequest();
+            if (request != null && request.getCallId() != null) {
+                return request.getCallId().getCallId();
+            }
+            dialog = eventWrapper.transaction.getDialog();
+        }
+        if (dialog != null && dialog.getCallId() != null) {
+            return dialog.getCallId().getCallId();
         }
+        return null;
+    }
+
+    /**
+     * @return number of dispatch threads, each with its own queue
+     */
+    public int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * @return number of events queued and not yet delivered by a dispatch thread
+     */
+    public int getQueueDepth(int shard) {
+        return shards[shard].queueDepth.get();
+    }
 
+    /**
+     * @return the most events ever waiting in the queue of a dispatch thread
+     */
+    public int getMaxQueueDepth(int shard) {
+        Shard s = shards[shard];
+        synchronized (s) {
+            return s.maxQueueDepth;
+        }
+    }
+
+    /**
+     * @return number of events delivered by a dispatch thread
+     */
+    public long getDeliveredEvents(int shard) {
+        return shards[shard].delivered;
+    }
+
+    /**
+     * @return how long, in milliseconds, the oldest event not yet delivered by
+     *         any dispatch thread has been waiting, 0 if none is waiting
+     */
+    public long getQueueDelay() {
+        long now = System.currentTimeMillis();
+        long delay = 0;
+        for (Shard shard : shards) {
+            long time = shard.deliveringTime;
+            if (time == 0) {
+                synchronized (shard) {
+                    if (!shard.pendingEvents.isEmpty())
+                        time = ((EventWrapper) shard.pendingEvents.getFirst()).time;
+                }
+            }
+            if (time != 0 && now - time > delay)
+                delay = now - time;
+        }
+        return delay;
+    }
+
+    /**
+     * @return a moving average of the time, in milliseconds, the listener takes
+     *         to process a request
+     */
+    public long getListenerResponseTime() {
+        return listenerResponseTime / 1000000;
     }
 
     /**
@@ -111,7 +246,7 @@ public class EventScanner implements Runnable {
 
             if (this.refCount == 0) {
                 isStopped = true;
-                eventMutex.notify();
+                wakeUpShards();
 
             }
         }
@@ -126,11 +261,19 @@ public class EventScanner implements Runnable {
         synchronized (this.eventMutex) {
             this.isStopped = true;
             this.refCount = 0;
-            this.eventMutex.notify();
+            wakeUpShards();
         }
 
     }
 
+    private void wakeUpShards() {
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                shard.notify();
+            }
+        }
+    }
+
     public void deliverEvent(EventWrapper eventWrapper) {
         EventObject sipEvent = eventWrapper.sipEvent;
         if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
@@ -226,8 +369,15 @@ public class EventScanner implements Runnable {
                         logger.logDebug(
                                 "Calling listener " + eventWrapper.transaction);
                     }
-                    if (sipListener != null)
+                    if (sipListener != null) {
+                        long start = System.nanoTime();
                         sipListener.processRequest((RequestEvent) sipEvent);
+                        // Racy but only ever an estimate, weight 1/8 like the TCP RTT estimator
+                        long elapsed = System.nanoTime() - start;
+                        listenerResponseTime += (elapsed - listenerResponseTime) >> 3;
+                        if (sipStack.getStackMetrics() != null)
+                            sipStack.getStackMetrics().dispatchTime(sipListener, elapsed);
+                    }
 
                     if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
                         logger.logDebug(
@@ -293,7 +443,10 @@ public class EventScanner implements Runnable {
                         if (tx != null) {
                             tx.setPassToListener();
                         }
+                        long start = System.nanoTime();
                         sipListener.processResponse((ResponseEvent) sipEvent);
+                        if (sipStack.getStackMetrics() != null)
+                            sipStack.getStackMetrics().dispatchTime(sipListener, System.nanoTime() - start);
                     }
 
                     /*
@@ -457,78 +610,97 @@ public class EventScanner implements Runnable {
 
     /**
      * For the non-re-entrant listener this delivers the events to the listener
-     * from a single queue. If the listener is re-entrant, then the stack just
-     * calls the deliverEvent method above.
+     * from a single queue per dispatch thread. If the listener is re-entrant, then
+     * the stack just calls the deliverEvent method above.
      */
+    private class Shard implements Runnable {
 
-    public void run() {
-        try {
-            // Ask the auditor to monitor this thread
-            ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
-
-            while (true) {
-                EventWrapper eventWrapper = null;
-
-                LinkedList eventsToDeliver;
-                synchronized (this.eventMutex) {
-                    // First, wait for some events to become available.
-                    while (pendingEvents.isEmpty()) {
-                        // There's nothing in the list, check to make sure we
-                        // haven't
-                        // been stopped. If we have, then let the thread die.
-                        if (this.isStopped) {
-                            if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
-                                logger.logDebug(
-                                        "Stopped event scanner!!");
-                            return;
-                        }
+        // SIPquest: Fix for deadlocks
+        private LinkedList pendingEvents = new LinkedList();
 
-                        // We haven't been stopped, and the event list is indeed
-                        // rather empty. Wait for some events to come along.
-                        try {
-                            // Send a heartbeat to the thread auditor
-                            threadHandle.ping();
-
-                            // Wait for events (with a timeout)
-                            eventMutex.wait(threadHandle.getPingIntervalInMillisecs());
-                        } catch (InterruptedException ex) {
-                            // Let the thread die a normal death
-                        	if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
-                        		logger.logDebug("Interrupted!");
-                            return;
+        // events queued and not yet delivered
+        private final AtomicInteger queueDepth = new AtomicInteger();
+
+        private int maxQueueDepth;
+
+        private volatile long delivered;
+
+        // creation time of the event being delivered, 0 when idle
+        private volatile long deliveringTime;
+
+        public void run() {
+            try {
+                // Ask the auditor to monitor this thread
+                ThreadAuditor.ThreadHandle threadHandle = sipStack.getThreadAuditor().addCurrentThread();
+
+                while (true) {
+                    EventWrapper eventWrapper = null;
+
+                    LinkedList eventsToDeliver;
+                    synchronized (this) {
+                        // First, wait for some events to become available.
+                        while (pendingEvents.isEmpty()) {
+                            // There's nothing in the list, check to make sure we
+                            // haven't
+                            // been stopped. If we have, then let the thread die.
+                            if (isStopped) {
+                                if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
+                                    logger.logDebug(
+                                            "Stopped event scanner!!");
+                                return;
+                            }
+
+                            // We haven't been stopped, and the event list is indeed
+                            // rather empty. Wait for some events to come along.
+                            try {
+                                // Send a heartbeat to the thread auditor
+                                threadHandle.ping();
+
+                                // Wait for events (with a timeout)
+                                this.wait(threadHandle.getPingIntervalInMillisecs());
+                            } catch (InterruptedException ex) {
+                                // Let the thread die a normal death
+                            	if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
+                            		logger.logDebug("Interrupted!");
+                                return;
+                            }
                         }
-                    }
 
-                    // There are events in the 'pending events list' that need
-                    // processing. Hold onto the old 'pending Events' list, but
-                    // make a new one for the other methods to operate on. This
-                    // tap-dancing is to avoid deadlocks and also to ensure that
-                    // the list is not modified while we are iterating over it.
-                    eventsToDeliver = pendingEvents;
-                    pendingEvents = new LinkedList();
-                }
-                ListIterator iterator = eventsToDeliver.listIterator();
-                while (iterator.hasNext()) {
-                    eventWrapper = (EventWrapper) iterator.next();
-                    if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-                        logger.logDebug(
-                                "Processing " + eventWrapper + "nevents "
-                                        + eventsToDeliver.size());
+                        // There are events in the 'pending events list' that need
+                        // processing. Hold onto the old 'pending Events' list, but
+                        // make a new one for the other methods to operate on. This
+                        // tap-dancing is to avoid deadlocks and also to ensure that
+                        // the list is not modified while we are iterating over it.
+                        eventsToDeliver = pendingEvents;
+                        pendingEvents = new LinkedList();
                     }
-                    try {
-                        deliverEvent(eventWrapper);
-                    } catch (Exception e) {
-                        if (logger.isLoggingEnabled()) {
-                            logger.logError(
-                                    "Unexpected exception caught while delivering event -- carrying on bravely", e);
+                    ListIterator iterator = eventsToDeliver.listIterator();
+                    while (iterator.hasNext()) {
+                        eventWrapper = (EventWrapper) iterator.next();
+                        if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+                            logger.logDebug(
+                                    "Processing " + eventWrapper + "nevents "
+                                            + eventsToDeliver.size());
+                        }
+                        deliveringTime = eventWrapper.time;
+                        try {
+                            deliverEvent(eventWrapper);
+                        } catch (Exception e) {
+                            if (logger.isLoggingEnabled()) {
+                                logger.logError(
+                                        "Unexpected exception caught while delivering event -- carrying on bravely", e);
+                            }
                         }
+                        delivered++;
+                        queueDepth.decrementAndGet();
+                    }
+                    deliveringTime = 0;
+                } // end While
+            } finally {
+                if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+                    if (!isStopped) {
+                        logger.logFatalError("Event scanner exited abnormally");
                     }
-                }
-            } // end While
-        } finally {
-            if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-                if (!this.isStopped) {
-                    logger.logFatalError("Event scanner exited abnormally");
                 }
             }
         }
@@ -35,10 +35,13 @@ public class EventWrapper {
 
     protected EventObject sipEvent;
     protected SIPTransaction transaction;
+    // when the event was created, for measuring the dispatch delay
+    protected long time;
 
     public EventWrapper(EventObject sipEvent, SIPTransaction transaction) {
         this.sipEvent = sipEvent;
         this.transaction = transaction;
+        this.time = System.currentTimeMillis();
     }
 }
 
@@ -682,6 +682,7 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
     public void sendRequest(Request request) throws SipException {
         if (!sipStack.isAlive())
             throw new SipException("Stack is stopped.");
+        ((SIPRequest) request).invalidateEncodedForm();
 
         // mranga: added check to ensure we are not sending empty (keepalive)
         // message.
@@ -763,6 +764,7 @@ public class SipProviderImpl implements javax.sip.SipProvider, gov.nist.javax.si
         if (!sipStack.isAlive())
             throw new SipException("Stack is stopped");
         SIPResponse sipResponse = (SIPResponse) response;
+        sipResponse.invalidateEncodedForm();
         Via via = sipResponse.getTopmostVia();
         if (via == null)
             throw new SipException("No via header in response!");
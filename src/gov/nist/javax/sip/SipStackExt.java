@@ -6,6 +6,7 @@ import gov.nist.javax.sip.clientauthutils.AuthenticationHelper;
 import gov.nist.javax.sip.clientauthutils.SecureAccountManager;
 import gov.nist.javax.sip.header.extensions.JoinHeader;
 import gov.nist.javax.sip.header.extensions.ReplacesHeader;
+import gov.nist.javax.sip.stack.StackMetrics;
 
 import java.io.IOException;
 import java.net.InetAddress;
@@ -167,4 +168,16 @@ public interface SipStackExt extends SipStack {
                     InetAddress localAddress)
         throws IOException;
 
+    /**
+     * Get the statistics of the stack: message counters per method and status
+     * code, bytes per transport, retransmissions, table sizes, timer queue
+     * depth and parse and listener dispatch latencies.
+     *
+     * @return the metrics of the stack, or null if they are disabled with
+     * gov.nist.javax.sip.METRICS=false.
+     *
+     * @since 2.0
+     */
+    public StackMetrics getStackMetrics();
+
 }
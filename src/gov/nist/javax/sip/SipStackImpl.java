@@ -30,6 +30,7 @@ import gov.nist.core.LogLevels;
 import gov.nist.core.ServerLogger;
 import gov.nist.core.StackLogger;
 import gov.nist.core.net.AddressResolver;
+import gov.nist.core.net.AddressResolverExt;
 import gov.nist.core.net.DefaultSecurityManagerProvider;
 import gov.nist.core.net.NetworkLayer;
 import gov.nist.core.net.SecurityManagerProvider;
@@ -54,6 +55,7 @@ import gov.nist.javax.sip.stack.SIPEventInterceptor;
 import gov.nist.javax.sip.stack.SIPMessageValve;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 import gov.nist.javax.sip.stack.SocketTimeoutAuditor;
+import gov.nist.javax.sip.stack.StackMetricsMBean;
 import gov.nist.javax.sip.stack.timers.DefaultSipTimer;
 import gov.nist.javax.sip.stack.timers.SipTimer;
 
@@ -147,6 +149,21 @@ import javax.sip.message.Request;
  * trace viewer application which is located in the tools/tracesviewer
  * directory. <font color=red> Mail this to us with bug reports. </font></li>
  * 
+ * <li><b>gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE = integer </b><br/>
+ * Write the SERVER_LOG from a background thread. The threads sending and
+ * receiving messages hand the message bytes over to a queue of this many
+ * entries and go on, messages are left out of the trace (and the number left
+ * out noted in it) when the queue is full. Default is 0, the trace is written
+ * by the thread sending or receiving the message.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE = long </b><br/>
+ * Only used with SERVER_LOG_QUEUE_SIZE. Size in bytes at which the SERVER_LOG
+ * is renamed to SERVER_LOG.1 (the previous ones shifting to .2, .3 ...) and a
+ * new file started. Default is 0, the file is never rotated.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.SERVER_LOG_BACKUP_COUNT = integer </b><br/>
+ * Number of rotated SERVER_LOG files kept. Default is 5.</li>
+ * 
  * <li><b>gov.nist.javax.sip.DEBUG_LOG = fileName </b> <b> Use of this property
  * is still supported but deprecated. Please use gov.nist.javax.sip.STACK_LOGGER
  * and gov.nist.javax.sip.SERVER_LOGGER for integration with logging frameworks
@@ -264,6 +281,15 @@ import javax.sip.message.Request;
  * multithreaded machine write your listener to be re-entrant and set this
  * property to be true </b></li>
  * 
+ * <li><b>gov.nist.javax.sip.EVENT_DISPATCH_THREADS = integer </b> <br/>
+ * Only used when the listener is not re-entrant. Number of threads delivering
+ * the events to the listener, each with its own queue. All the events of a
+ * Call-ID go through the same thread so they are delivered one at a time and
+ * in order, while unrelated calls are delivered concurrently. The listener
+ * must accept calls for different Call-IDs from several threads. Default is 1,
+ * the events of all calls are delivered by a single thread; 0 means one
+ * thread per available processor.</li>
+ * 
  * <li><b>gov.nist.javax.sip.MAX_CONNECTIONS = integer </b> <br/>
  * Max number of simultaneous TCP connections handled by stack.</li>
  * 
@@ -344,7 +370,11 @@ import javax.sip.message.Request;
  * getHostByName. Specifying your own address resolver allows you to customize
  * address lookup. The default address resolver is a pass-through address
  * resolver (i.e. just returns the input string without doing a resolution). See
- * gov.nist.javax.sip.DefaultAddressResolver.</li>
+ * gov.nist.javax.sip.DefaultAddressResolver. An RFC 3263 resolver with a DNS
+ * cache is provided by gov.nist.javax.sip.CachingAddressResolver, which is
+ * configured with the gov.nist.javax.sip.DNS_* properties described there.
+ * Resolvers implementing gov.nist.core.net.AddressResolverExt are also used for
+ * the host name lookups of the stack.</li>
  * 
  * <li><b>gov.nist.javax.sip.AUTO_GENERATE_TIMESTAMP= [true| false] </b><br/>
  * (default is false) Automatically generate a getTimeOfDay timestamp for a
@@ -371,6 +401,61 @@ import javax.sip.message.Request;
  * by the SIP RFC spec.
  * </li>
  * 
+ * <li><b>gov.nist.javax.sip.NIO_SELECTOR_THREADS = integer </b> <br/>
+ * Number of selector threads of each NIO TCP, TLS and WebSocket listening point. The connections are
+ * spread over them and each connection always stays on the same thread. Default is 1, 0 means one
+ * thread per available processor.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_UDP_CHANNELS = integer </b> <br/>
+ * Number of channels, each with its own receiving thread, bound with SO_REUSEPORT to the UDP listening points
+ * created by gov.nist.javax.sip.stack.NioUdpMessageProcessorFactory. Messages are parsed on the receiving thread.
+ * Defaults to the number of available processors. A single channel is used where SO_REUSEPORT is not supported.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_UDP_SEND_QUEUE_SIZE = integer </b> <br/>
+ * Most datagrams waiting to be sent by the sending thread of each NIO UDP listening point. The thread
+ * drains everything queued at each wakeup, so bursts of retransmissions go out back to back through a
+ * pooled direct buffer. When the queue is full the datagram is refused with an IOException, as a send
+ * error would be, and the datagrams the thread fails to send are counted in the udp.send.errors stack
+ * metric. Default is 10000, 0 sends every datagram on the caller thread.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.NIO_MAX_QUEUED_BYTES = long </b> <br/>
+ * Most bytes waiting to be written on a single NIO TCP, TLS or WebSocket connection. Messages to a peer
+ * that stopped reading are refused with an IOException once the limit is reached, until half of it has been
+ * written out. Default is 0, no limit, so that sends never fail because of a slow peer unless a limit
+ * such as 1048576 is set.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_HANDSHAKE_THREADS = integer </b> <br/>
+ * Number of threads computing the TLS handshakes of the NIO TLS and secure WebSocket connections, for each
+ * of the two transports. The selector threads hand the expensive steps of a handshake to these threads and
+ * keep serving the established connections, so a storm of reconnections only queues up handshakes. The
+ * handshake time and queue are reported in the stack metrics. Defaults to the number of available processors,
+ * 0 computes the handshakes on the selector threads.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE = integer </b> <br/>
+ * Most TLS sessions kept for resumption by the client and by the server side of the NIO TLS and secure
+ * WebSocket transports. The outbound connections look their session up by peer address and port, so a
+ * reconnection to the same peer resumes its session instead of making a full handshake. The handshakes of the
+ * outbound connections are counted in the tls.session.cache.hits.&lt;transport&gt; and
+ * tls.session.cache.misses.&lt;transport&gt; stack metrics. 0 means no limit, the default is the one of the JDK.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_TIMEOUT = integer </b> <br/>
+ * Seconds a cached TLS session can be resumed for. 0 means no limit, the default is the one of the JDK.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.TLS_SESSION_TICKETS = [true|false] </b> <br/>
+ * Whether the server side hands out session tickets (RFC 5077), letting clients resume their sessions without
+ * the server keeping them. When set, this sets the jdk.tls.server.enableSessionTicketExtension system property
+ * of the JDK (13 or later) unless it is already set. The property applies to the whole JVM and is read by the
+ * JDK once, so it only takes effect if the stack is created before TLS is first used. By default the stack
+ * leaves it alone and the default of the JDK applies.
+ * </li>
+ * 
  * <li><b>gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS = [true|false]</b> <br/>
  * Default is <it>true</it> If set to <it>false</it>, the NIO stack won't use direct buffers.
  * As Direct buffers reside outside of the heap memory, they can lead to unforeseen out of memory exceptions
@@ -378,6 +463,17 @@ import javax.sip.message.Request;
  * monitoring and management.
  * </li>
  * 
+ * <li><b>gov.nist.javax.sip.stack.BUFFER_POOL = [true|false]</b> <br/>
+ * Default is <it>true</it>. The buffers used by the NIO channels and the TLS engine are pooled by size class
+ * and reused instead of being allocated for every read and write. Set to <it>false</it> to allocate a new one each time.
+ * </li>
+ * 
+ * <li><b>gov.nist.javax.sip.stack.BUFFER_LEAK_DETECTION = [true|false]</b> <br/>
+ * Default is <it>false</it>. Debugging aid logging the pooled buffers that were garbage collected without being
+ * given back to the pool, with the place they were allocated from. Pool statistics are available from
+ * gov.nist.javax.sip.stack.ByteBufferFactory.getInstance().
+ * </li>
+ * 
  * <li><b>gov.nist.javax.sip.COMPUTE_CONTENT_LENGTH_FROM_MESSAGE_BODY =
  * [true|false] </b> <br/>
  * Default is <it>false</it> If set to <it>true</it>, when you are creating a
@@ -454,6 +550,11 @@ import javax.sip.message.Request;
  * may have impact on the performance in trivial applications using a single socket
  * for all calls. In most applications it doesn't have performance impact.
  * 
+ * The messages of a Call-ID are processed one at a time and in the order they were
+ * received, without a pool thread ever waiting for another message of the same
+ * Call-ID to complete. Messages that waited longer than
+ * gov.nist.javax.sip.CONGESTION_CONTROL_TIMEOUT for their turn are dropped.
+ * 
  * If the phones/clients use separate TCP sockets for each call this option doesn't
  * have much impact, except the slightly increased memory footprint caused by the
  * thread pool. It is recommended to disable this option in this case by setting it
@@ -498,20 +599,45 @@ import javax.sip.message.Request;
  * 
  * <li><b>gov.nist.javax.sip.MESSAGE_PARSER_FACTORY =  name of the class implementing gov.nist.javax.sip.parser.MessageParserFactory</b>
  * This factory allows pluggable implementations of the MessageParser that will take care of parsing the incoming messages.
- * By example one could plug a lazy parser through this factory.</li>
+ * By example one could plug a lazy parser through this factory.
+ * gov.nist.javax.sip.parser.ByteMsgParserFactory provides a parser working directly on the
+ * received bytes instead of building a String per line.
+ * gov.nist.javax.sip.parser.LazyMsgParserFactory uses the same parser but only parses the headers
+ * the stack needs, the other ones are kept as received and parsed when the application looks them up.
+ * </li>
+ *
+ * <li><b>gov.nist.javax.sip.LAZY_PARSER_EAGER_HEADERS = comma separated list of header names</b>
+ * Headers parsed on reception by gov.nist.javax.sip.parser.LazyMsgParserFactory on top of From, To, Call-ID,
+ * CSeq, Via, Max-Forwards, Content-Length and Content-Type. Defaults to Route, Record-Route, Contact.</li>
  * 
  * <li><b>gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY =  name of the class implementing gov.nist.javax.sip.parser.MessageProcessorFactory</b>
  * This factory allows pluggable implementations of the MessageProcessor that will take care of incoming messages.
- * By example one could plug a NIO Processor through this factory.</li>
+ * By example one could plug a NIO Processor through this factory.
+ * gov.nist.javax.sip.stack.NioMessageProcessorFactory uses NIO for TCP, TLS and WebSockets,
+ * gov.nist.javax.sip.stack.NioUdpMessageProcessorFactory for UDP as well.</li>
  * 
  * <li><b>gov.nist.javax.sip.TIMER_CLASS_NAME =  name of the class implementing gov.nist.javax.sip.stack.timers.SipTimer</b> interface
  * This allows pluggable implementations of the Timer that will take care of scheduling the various SIP Timers.
- * By example one could plug a regular timer, a scheduled thread pool executor.</li>
+ * By example one could plug a regular timer, a scheduled thread pool executor.
+ * gov.nist.javax.sip.stack.timers.HashedWheelSipTimer schedules and cancels tasks in constant time and is meant
+ * for stacks with a very large number of pending transaction and dialog timers. Its tick duration and wheel size are set
+ * through gov.nist.javax.sip.TIMER_WHEEL_TICK_DURATION (milliseconds, default 10) and gov.nist.javax.sip.TIMER_WHEEL_SIZE
+ * (default 512).</li>
  * 
  * <li><b>gov.nist.javax.sip.DELIVER_RETRANSMITTED_ACK_TO_LISTENER=boolean</b> A testing property
  * that allows application to see the ACK for retransmitted 200 OK requests. <b>Note that this is for test
  * purposes only</b></li>
  * 
+ * <li><b>gov.nist.javax.sip.METRICS=boolean</b> Default is <it>true</it>. The stack keeps
+ * counters of the messages sent and received per method and status code, of the bytes per
+ * transport and of retransmissions, latency histograms of message parsing and listener
+ * dispatch, and gauges of the transaction and dialog tables and of the timer queue. They are
+ * read through {@link SipStackExt#getStackMetrics()}. Set to false to turn them off.</li>
+ * 
+ * <li><b>gov.nist.javax.sip.METRICS_JMX=boolean</b> Default is <it>false</it>. If true the
+ * stack metrics are registered with the platform MBean server as
+ * gov.nist.javax.sip:type=StackMetrics,name=&lt;STACK_NAME&gt; while the stack runs.</li>
+ * 
  * * <li><b>gov.nist.javax.sip.AGGRESSIVE_CLEANUP=boolean</b> A property that will cleanup Dialog, and Transaction structures
  * agrressively to improve memroy usage and performance (up to 50% gain). However one needs to be careful in its code
  * on how and when it accesses transaction and dialog data since it cleans up aggressively when transactions changes state
@@ -533,6 +659,10 @@ import javax.sip.message.Request;
  * implementation you can drop messages, send a response statelessly or otherwise transform/pre-process the message before it reaches
  * the next steps of the pipeline. Similarly from processResponse() you can manipulate a response or drop it silently, but dropping
  * responses is not recommended, because the transaction already exists when the request for the response was sent.
+ * Two valves come with the stack: gov.nist.javax.sip.stack.CongestionControlMessageValve rejects new requests above a
+ * fixed number of server transactions, gov.nist.javax.sip.stack.AdaptiveCongestionControlMessageValve rejects part of
+ * the new dialogs with 503 when messages wait too long in the stack queues or the listener is slow (see its javadoc
+ * for the gov.nist.javax.sip.CONGESTION_* properties).
  * </li>
  * 
  * <li><b>gov.nist.javax.sip.SIP_EVENT_INTERCEPTOR</b> Default to null. The class name of your custom interceptor object.
@@ -628,6 +758,12 @@ public class SipStackImpl extends SIPTransactionStack implements
 	// Use this flag with caution.
 	private boolean reEntrantListener;
 
+	// Number of threads delivering events to a non re-entrant listener
+	private int eventDispatchThreads = 1;
+
+	// JMX view of the stack metrics, if registered
+	private StackMetricsMBean stackMetricsMBean;
+
 	SipListener sipListener;
 	TlsSecurityPolicy tlsSecurityPolicy;
 
@@ -677,7 +813,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 	 */
 	private void reInitialize() {
 		super.reInit();
-		this.eventScanner = new EventScanner(this);
+		this.eventScanner = new EventScanner(this, reEntrantListener ? 1 : eventDispatchThreads);
 		this.listeningPoints = new Hashtable<String, ListeningPointImpl>();
 		this.sipProviders = Collections.synchronizedList(new LinkedList<SipProviderImpl>());
 		this.sipListener = null;
@@ -818,6 +954,12 @@ public class SipStackImpl extends SIPTransactionStack implements
         ByteBufferFactory.getInstance().setUseDirect(Boolean.valueOf(
                 configurationProperties.getProperty("gov.nist.javax.sip.stack.USE_DIRECT_BUFFERS",
                         Boolean.TRUE.toString())));
+        ByteBufferFactory.getInstance().setPooled(Boolean.valueOf(
+                configurationProperties.getProperty("gov.nist.javax.sip.stack.BUFFER_POOL",
+                        Boolean.TRUE.toString())));
+        ByteBufferFactory.getInstance().setLeakDetection(Boolean.valueOf(
+                configurationProperties.getProperty("gov.nist.javax.sip.stack.BUFFER_LEAK_DETECTION",
+                        Boolean.FALSE.toString())));
 
 		this.defaultRouter = new DefaultRouter(this, outboundProxy);
 
@@ -1055,6 +1197,10 @@ public class SipStackImpl extends SIPTransactionStack implements
 				Constructor<?> c = clazz.getConstructor(new Class[0]);
 				this.addressResolver = (AddressResolver) c
 						.newInstance(new Object[0]);
+				if (this.addressResolver instanceof AddressResolverExt) {
+					((AddressResolverExt) this.addressResolver)
+							.setStackProperties(configurationProperties);
+				}
 			} catch (Exception e) {
 				throw new PeerUnavailableException(
 						"can't find or instantiate AddressResolver implementation: "
@@ -1247,6 +1393,25 @@ public class SipStackImpl extends SIPTransactionStack implements
 				.getProperty("gov.nist.javax.sip.REENTRANT_LISTENER");
 		this.reEntrantListener = (rel != null && "true".equalsIgnoreCase(rel));
 
+		String dispatchThreads = configurationProperties
+				.getProperty("gov.nist.javax.sip.EVENT_DISPATCH_THREADS");
+		if (dispatchThreads != null) {
+			try {
+				this.eventDispatchThreads = Integer.parseInt(dispatchThreads);
+				if (this.eventDispatchThreads <= 0) {
+					this.eventDispatchThreads = Runtime.getRuntime().availableProcessors();
+				}
+			} catch (NumberFormatException ex) {
+				logger.logError(
+						"Bad configuration value for gov.nist.javax.sip.EVENT_DISPATCH_THREADS=" + dispatchThreads, ex);
+			}
+			if (this.eventDispatchThreads > 1 && !this.reEntrantListener) {
+				// replace the single threaded scanner created by the constructor
+				this.eventScanner.forceStop();
+				this.eventScanner = new EventScanner(this, this.eventDispatchThreads);
+			}
+		}
+
 		// Check if a thread audit interval is specified
 		String interval = configurationProperties
 				.getProperty("gov.nist.javax.sip.THREAD_AUDIT_INTERVAL_IN_MILLISECS");
@@ -1422,6 +1587,95 @@ public class SipStackImpl extends SIPTransactionStack implements
 						"Bad configuration value for gov.nist.javax.sip.NIO_MAX_SOCKET_IDLE_TIME=" + maxIdleTimeString, e);			
 		}
 		
+		String udpChannelsString = configurationProperties.getProperty("gov.nist.javax.sip.NIO_UDP_CHANNELS");
+		if (udpChannelsString != null) {
+			try {
+				super.nioUdpChannels = Integer.parseInt(udpChannelsString);
+				if (super.nioUdpChannels <= 0) {
+					super.nioUdpChannels = Runtime.getRuntime().availableProcessors();
+				}
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.NIO_UDP_CHANNELS=" + udpChannelsString, e);			
+			}
+		}
+
+		String udpSendQueueString = configurationProperties.getProperty("gov.nist.javax.sip.NIO_UDP_SEND_QUEUE_SIZE");
+		if (udpSendQueueString != null) {
+			try {
+				super.nioUdpSendQueueSize = Math.max(0, Integer.parseInt(udpSendQueueString));
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.NIO_UDP_SEND_QUEUE_SIZE=" + udpSendQueueString, e);
+			}
+		}
+		
+		String selectorThreadsString = configurationProperties.getProperty("gov.nist.javax.sip.NIO_SELECTOR_THREADS", "1");
+		try {
+			super.nioSelectorThreads = Integer.parseInt(selectorThreadsString);
+			if (super.nioSelectorThreads <= 0) {
+				super.nioSelectorThreads = Runtime.getRuntime().availableProcessors();
+			}
+		} catch (Exception e) {
+			logger
+				.logError(
+						"Bad configuration value for gov.nist.javax.sip.NIO_SELECTOR_THREADS=" + selectorThreadsString, e);			
+		}
+		
+		String maxQueuedBytesString = configurationProperties.getProperty("gov.nist.javax.sip.NIO_MAX_QUEUED_BYTES");
+		if (maxQueuedBytesString != null) {
+			try {
+				super.nioMaxQueuedBytes = Long.parseLong(maxQueuedBytesString);
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.NIO_MAX_QUEUED_BYTES=" + maxQueuedBytesString, e);			
+			}
+		}
+		
+		String handshakeThreadsString = configurationProperties.getProperty("gov.nist.javax.sip.TLS_HANDSHAKE_THREADS");
+		if (handshakeThreadsString != null) {
+			try {
+				super.tlsHandshakeThreads = Integer.parseInt(handshakeThreadsString);
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.TLS_HANDSHAKE_THREADS=" + handshakeThreadsString, e);			
+			}
+		}
+		
+		String sessionCacheSizeString = configurationProperties.getProperty("gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE");
+		if (sessionCacheSizeString != null) {
+			try {
+				super.tlsSessionCacheSize = Integer.parseInt(sessionCacheSizeString);
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE=" + sessionCacheSizeString, e);
+			}
+		}
+		
+		String sessionTimeoutString = configurationProperties.getProperty("gov.nist.javax.sip.TLS_SESSION_TIMEOUT");
+		if (sessionTimeoutString != null) {
+			try {
+				super.tlsSessionTimeout = Integer.parseInt(sessionTimeoutString);
+			} catch (Exception e) {
+				logger
+					.logError(
+							"Bad configuration value for gov.nist.javax.sip.TLS_SESSION_TIMEOUT=" + sessionTimeoutString, e);
+			}
+		}
+		
+		// an explicit setting of the JVM wins
+		String sessionTicketsString = configurationProperties.getProperty("gov.nist.javax.sip.TLS_SESSION_TICKETS");
+		if (sessionTicketsString != null
+				&& System.getProperty("jdk.tls.server.enableSessionTicketExtension") == null) {
+			System.setProperty("jdk.tls.server.enableSessionTicketExtension",
+					String.valueOf(Boolean.parseBoolean(sessionTicketsString)));
+		}
+		
 		String defaultTimerName = configurationProperties.getProperty("gov.nist.javax.sip.TIMER_CLASS_NAME",DefaultSipTimer.class.getName());
 		try {
 			setTimer((SipTimer)Class.forName(defaultTimerName).newInstance());
@@ -1439,6 +1693,21 @@ public class SipStackImpl extends SIPTransactionStack implements
 				.getProperty("gov.nist.javax.sip.AGGRESSIVE_CLEANUP",
 						Boolean.FALSE.toString()));
 		
+		if (!Boolean.parseBoolean(configurationProperties.getProperty(
+				"gov.nist.javax.sip.METRICS", Boolean.TRUE.toString()))) {
+			super.stackMetrics = null;
+		} else if (Boolean.parseBoolean(configurationProperties.getProperty(
+				"gov.nist.javax.sip.METRICS_JMX", Boolean.FALSE.toString()))) {
+			try {
+				this.stackMetricsMBean = new StackMetricsMBean(super.stackMetrics, stackName);
+				this.stackMetricsMBean.register();
+			} catch (Exception e) {
+				logger.logError(
+						"Bad configuration value for gov.nist.javax.sip.METRICS_JMX", e);
+				this.stackMetricsMBean = null;
+			}
+		}
+
 		String valveClassName = configurationProperties.getProperty("gov.nist.javax.sip.SIP_MESSAGE_VALVE", null);
 		if(valveClassName != null && !valveClassName.equals("")) {
 			try {
@@ -1724,6 +1993,14 @@ public class SipStackImpl extends SIPTransactionStack implements
 		this.stopStack();
 		if(super.sipMessageValve != null) 
 			super.sipMessageValve.destroy();
+		if (this.stackMetricsMBean != null) {
+			try {
+				this.stackMetricsMBean.unregister();
+			} catch (Exception e) {
+				logger.logError("Could not unregister the stack metrics", e);
+			}
+			this.stackMetricsMBean = null;
+		}
 		if(super.sipEventInterceptor != null) 
 			super.sipEventInterceptor.destroy();
 		this.sipProviders = Collections.synchronizedList(new LinkedList<SipProviderImpl>());
@@ -1747,7 +2024,7 @@ public class SipStackImpl extends SIPTransactionStack implements
 	public void start() throws ProviderDoesNotExistException, SipException {
 		// Start a new event scanner if one does not exist.
 		if (this.eventScanner == null) {
-			this.eventScanner = new EventScanner(this);
+			this.eventScanner = new EventScanner(this, reEntrantListener ? 1 : eventDispatchThreads);
 		}
 
 	}
@@ -33,10 +33,11 @@ package gov.nist.javax.sip;
 import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPResponse;
 
-import java.security.MessageDigest;
 import java.util.*;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * A few utilities that are used in various places by the stack. This is used to
@@ -47,20 +48,22 @@ import java.util.concurrent.Executors;
  * @version 1.2 $Revision: 1.24 $ $Date: 2010-10-28 03:20:31 $
  */
 public class Utils implements UtilsExt {
-	
-	private static int digesterPoolsSize = 20;
 
-    private static MessageDigest[] digesterPool = new MessageDigest[digesterPoolsSize];
-
-    private static java.util.Random rand;
+    private static String signature ;
 
-    private static long counter = 0;
+    // Magic cookie and signature that start every branch generated here.
+    private static String branchPrefix;
 
-    private static int callIDCounter;
+    private static Utils instance = new Utils();
 
-    private static String signature ;
+    // Number handed to each thread the first time it generates an identifier.
+    private static final AtomicInteger generatorCounter = new AtomicInteger();
 
-    private static Utils instance = new Utils();
+    private static final ThreadLocal<Generator> generator = new ThreadLocal<Generator>() {
+        protected Generator initialValue() {
+            return new Generator(generatorCounter.incrementAndGet());
+        }
+    };
 
 
     /**
@@ -70,14 +73,49 @@ public class Utils implements UtilsExt {
             '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
 
     static {
-        try {
-        	for(int q=0; q<digesterPoolsSize; q++)
-        		digesterPool[q] = MessageDigest.getInstance("MD5");
-        } catch (Exception ex) {
-            throw new RuntimeException("Could not intialize Digester ", ex);
-        }
-        rand = new java.util.Random(System.nanoTime());
+        Random rand = new Random(System.nanoTime());
         signature = toHexString(Integer.toString(Math.abs( rand.nextInt() % 1000 )).getBytes());
+        branchPrefix = SIPConstants.BRANCH_MAGIC_COOKIE + "-" + signature + "-";
+    }
+
+    /**
+     * Per thread state used to build identifiers without locking. An
+     * identifier is 64 random bits followed by the thread number and a per
+     * thread sequence number, so two identifiers generated in the same JVM
+     * never collide and identifiers from different JVMs differ in the random
+     * half.
+     */
+    private static final class Generator {
+        private final long threadBits;
+
+        private long sequence;
+
+        private final StringBuilder buffer = new StringBuilder(64);
+
+        Generator(int threadNumber) {
+            this.threadBits = ((long) threadNumber) << 40;
+        }
+
+        /**
+         * Append 32 hex digits of unique identifier to the buffer.
+         */
+        StringBuilder appendUniqueId(StringBuilder sb) {
+            appendHex(sb, ThreadLocalRandom.current().nextLong(), 16);
+            // 2^40 identifiers per thread before the sequence wraps
+            appendHex(sb, threadBits ^ (sequence++ & 0xFFFFFFFFFFL), 16);
+            return sb;
+        }
+
+        StringBuilder reset() {
+            buffer.setLength(0);
+            return buffer;
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, long value, int digits) {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            sb.append(toHex[(int) (value >>> shift) & 0x0F]);
+        }
     }
 
 
@@ -148,23 +186,26 @@ public class Utils implements UtilsExt {
         return str.toUpperCase(Locale.ENGLISH);
     }
 
+    /**
+     * Check whether a branch parameter starts with the RFC 3261 magic cookie. The cookie is
+     * not case sensitive; the check is done in place without converting the branch.
+     *
+     * @param branch the branch parameter, may be null.
+     * @return true if the branch can be used as a transaction identifier.
+     */
+    public static boolean isRfc3261Branch(String branch) {
+        return branch != null
+                && branch.regionMatches(true, 0, SIPConstants.BRANCH_MAGIC_COOKIE, 0,
+                        SIPConstants.BRANCH_MAGIC_COOKIE.length());
+    }
+
     /**
      * Generate a call identifier. This is useful when we want to generate a
      * call identifier in advance of generating a message.
      */
     public String generateCallIdentifier(String address) {
-    	long random = rand.nextLong();
-    	int hash = (int) Math.abs(random%digesterPoolsSize);
-    	MessageDigest md = digesterPool[hash];
-    	
-    	synchronized (md) {
-    		String date = Long.toString(System.nanoTime() + System.currentTimeMillis() + callIDCounter++
-    				+ random);
-    		byte cid[] = md.digest(date.getBytes());
-
-    		String cidString = Utils.toHexString(cid);
-    		return cidString + "@" + address;
-    	}
+        Generator g = generator.get();
+        return g.appendUniqueId(g.reset()).append('@').append(address).toString();
     }
 
     /**
@@ -173,14 +214,11 @@ public class Utils implements UtilsExt {
      * be unique within a call.
      *
      * @return a string that can be used as a tag parameter.
-     *
-     * synchronized: needed for access to 'rand', else risk to generate same tag
-     * twice
      */
-    public synchronized String generateTag() {
-
-            return Integer.toHexString(rand.nextInt());
-
+    public String generateTag() {
+        StringBuilder sb = generator.get().reset();
+        appendHex(sb, ThreadLocalRandom.current().nextInt(), 8);
+        return sb.toString();
     }
 
     /**
@@ -191,23 +229,15 @@ public class Utils implements UtilsExt {
      *         used as a branch identifier.
      */
     public String generateBranchId() {
-    	//
-    	long num = rand.nextLong() + Utils.counter++  + System.currentTimeMillis() + System.nanoTime();
-    	int hash = (int) Math.abs(num%digesterPoolsSize);
-    	MessageDigest digester = digesterPool[hash];
-    	synchronized(digester) {
-    		byte bid[] = digester.digest(Long.toString(num).getBytes());
-    		// prepend with a magic cookie to indicate we are bis09 compatible.
-    		return SIPConstants.BRANCH_MAGIC_COOKIE + "-"
-    		+ this.signature + "-" + Utils.toHexString(bid);
-    	}
+        Generator g = generator.get();
+        // prepend with a magic cookie to indicate we are bis09 compatible.
+        return g.appendUniqueId(g.reset().append(branchPrefix)).toString();
     }
 
     public boolean responseBelongsToUs(SIPResponse response) {
         Via topmostVia = response.getTopmostVia();
         String branch = topmostVia.getBranch();
-        return branch != null && branch.startsWith(
-                   SIPConstants.BRANCH_MAGIC_COOKIE + "-" + this.signature);
+        return branch != null && branch.startsWith(branchPrefix);
     }
 
     public static String getSignature() {
@@ -186,6 +186,27 @@ public final class AddressImpl
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (this.addressType == WILD_CARD) {
+            writer.append('*');
+        }
+        else {
+            if (displayName != null) {
+                writer.append(DOUBLE_QUOTE)
+                        .append(displayName)
+                        .append(DOUBLE_QUOTE)
+                        .append(SP);
+            }
+            if (address != null) {
+                if (addressType == NAME_ADDR || displayName != null)
+                    writer.append(LESS_THAN);
+                address.encode(writer);
+                if (addressType == NAME_ADDR || displayName != null)
+                    writer.append(GREATER_THAN);
+            }
+        }
+    }
+
     public AddressImpl() {
         this.addressType = NAME_ADDR;
     }
@@ -70,6 +70,14 @@ public class Authority extends NetObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (userInfo != null) {
+            userInfo.encode(writer);
+            writer.append(AT);
+        }
+        hostPort.encode(writer);
+    }
+
     /** retruns true if the two Objects are equals , false otherwise.
      * @param other Object to test.
      * @return boolean
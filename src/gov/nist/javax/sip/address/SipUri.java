@@ -255,6 +255,20 @@ public class SipUri extends GenericURI implements javax.sip.address.SipURI , Sip
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        writer.append(scheme).append(COLON);
+        if (authority != null)
+            authority.encode(writer);
+        if (!uriParms.isEmpty()) {
+            writer.append(SEMICOLON);
+            uriParms.encode(writer);
+        }
+        if (!qheaders.isEmpty()) {
+            writer.append(QUESTION);
+            qheaders.encode(writer);
+        }
+    }
+
     /** Return a string representation.
     *
     *@return the String representation of this URI.
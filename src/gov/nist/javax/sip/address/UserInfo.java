@@ -32,6 +32,8 @@
  *******************************************************************************/
 package gov.nist.javax.sip.address;
 
+import gov.nist.core.ByteBufferWriter;
+
 /**
  * User information part of a URL.
  *
@@ -115,6 +117,12 @@ public final class UserInfo extends NetObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        writer.append(user);
+        if (password != null)
+            writer.append(COLON).append(password);
+    }
+
     /** Clear the password field.
     */
     public void clearPassword() {
@@ -28,6 +28,7 @@
  ******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.javax.sip.message.SIPRequest;
 
 import javax.sip.InvalidArgumentException;
@@ -116,6 +117,14 @@ public class CSeq extends SIPHeader implements javax.sip.header.CSeqHeader {
         return buffer.append(seqno).append(SP).append(method.toUpperCase());
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        writer.append(seqno).append(SP).append(method.toUpperCase());
+    }
+
     /**
      * Get the method.
      * @return String the method.
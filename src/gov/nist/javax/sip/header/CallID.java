@@ -27,6 +27,7 @@
 * Product of NIST/ITL Advanced Networking Technologies Division (ANTD).        *
 *******************************************************************************/
 package gov.nist.javax.sip.header;
+import gov.nist.core.ByteBufferWriter;
 import javax.sip.header.CallIdHeader;
 import java.text.ParseException;
 
@@ -89,6 +90,15 @@ public class CallID
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        if (callIdentifier != null)
+            callIdentifier.encode(writer);
+    }
+
     /**
      * get the CallId field. This does the same thing as
      * encodeBody
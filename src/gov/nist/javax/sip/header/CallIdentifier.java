@@ -28,6 +28,8 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
+
 /**
  * The call identifer that goes into a callID header and a in-reply-to header.
  *
@@ -96,6 +98,13 @@ public final class CallIdentifier extends SIPObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        writer.append(localId);
+        if (host != null) {
+            writer.append(AT).append(host);
+        }
+    }
+
     /**
      * Compare two call identifiers for equality.
      * @param other Object to set
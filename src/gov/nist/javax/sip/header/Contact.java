@@ -33,6 +33,7 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.core.NameValue;
 import gov.nist.core.NameValueList;
 import gov.nist.javax.sip.address.AddressImpl;
@@ -123,6 +124,29 @@ public final  class Contact
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        if (wildCardFlag) {
+            writer.append('*');
+        }
+        else {
+            if (address.getAddressType() == AddressImpl.NAME_ADDR) {
+                address.encode(writer);
+            } else {
+                writer.append('<');
+                address.encode(writer);
+                writer.append('>');
+            }
+            if (!parameters.isEmpty()) {
+                writer.append(SEMICOLON);
+                parameters.encode(writer);
+            }
+        }
+    }
+
     /** get the Contact list.
      * @return ContactList
      */
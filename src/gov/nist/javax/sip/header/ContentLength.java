@@ -28,6 +28,7 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import javax.sip.*;
 import javax.sip.header.ContentLengthHeader;
 
@@ -137,6 +138,14 @@ public class ContentLength
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        writer.append(contentLength < 0 ? 0 : contentLength);
+    }
+
     /**
      * Pattern matcher ignores content length.
      */
@@ -28,6 +28,7 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.javax.sip.*;
 
 import java.text.ParseException;
@@ -79,6 +80,14 @@ public class Protocol extends SIPObject {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        writer.append(Utils.toUpperCase(protocolName))
+            .append(SLASH)
+            .append(protocolVersion)
+            .append(SLASH)
+            .append(transport.toUpperCase());
+    }
+
     /** get the protocol name
      * @return String
      */
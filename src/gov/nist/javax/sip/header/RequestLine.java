@@ -30,6 +30,7 @@ package gov.nist.javax.sip.header;
 
 import javax.sip.address.URI;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.javax.sip.address.*;
 
 /**
@@ -87,6 +88,17 @@ public class RequestLine extends SIPObject implements SipRequestLine {
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (method != null) {
+            writer.append(method).append(SP);
+        }
+        if (uri != null) {
+            uri.encode(writer);
+            writer.append(SP);
+        }
+        writer.append(sipVersion).append(NEWLINE);
+    }
+
     /* (non-Javadoc)
      * @see gov.nist.javax.sip.header.SipRequestLine#getUri()
      */
@@ -28,6 +28,8 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
+
 /**
  * Root class from which all SIPHeader objects are subclassed.
  *
@@ -117,6 +119,24 @@ public abstract class SIPHeader
     * A.K.A headerValue.
     */
     protected abstract StringBuilder encodeBody(StringBuilder buffer);
+
+    /** Encode the body of this header in the given writer, through its
+    * string encoding unless the header has a byte encoding of its own.
+    */
+    protected void encodeBody(ByteBufferWriter writer) {
+        StringBuilder scratch = writer.scratch();
+        this.encodeBody(scratch);
+        writer.append(scratch);
+    }
+
+    /** Encode this header from its name and the byte encoding of its body,
+    * for the headers that encode their body in a writer.
+    */
+    protected final void encodeHeader(ByteBufferWriter writer) {
+        writer.append(this.headerName).append(COLON).append(SP);
+        this.encodeBody(writer);
+        writer.append(NEWLINE);
+    }
         
 
 //    /** Encode the body of this header in the given buffer.
@@ -28,6 +28,7 @@
  ******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.core.GenericObject;
 import gov.nist.core.Separators;
 import gov.nist.javax.sip.header.ims.PrivacyHeader;
@@ -181,6 +182,26 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        if (hlist.isEmpty()) {
+            writer.append(headerName).append(':').append(Separators.NEWLINE);
+        }
+        else if (this.headerName.equals(SIPHeaderNames.WWW_AUTHENTICATE)
+                || this.headerName.equals(SIPHeaderNames.PROXY_AUTHENTICATE)
+                || this.headerName.equals(SIPHeaderNames.AUTHORIZATION)
+                || this.headerName.equals(SIPHeaderNames.PROXY_AUTHORIZATION)
+                || (prettyEncode &&
+                        (this.headerName.equals(SIPHeaderNames.VIA) || this.headerName.equals(SIPHeaderNames.ROUTE) || this.headerName.equals(SIPHeaderNames.RECORD_ROUTE)))
+                || this.getClass().equals( ExtensionHeaderList.class) ) {
+            ListIterator<HDR> li = hlist.listIterator();
+            while (li.hasNext()) {
+                li.next().encode(writer);
+            }
+        } else {
+            encodeHeader(writer);
+        }
+    }
+
     /**
      * Return a list of encoded strings (one for each sipheader).
      *
@@ -523,6 +544,23 @@ public abstract class SIPHeaderList<HDR extends SIPHeader> extends SIPHeader imp
         return buffer;
     }
 
+    protected void encodeBody(ByteBufferWriter writer) {
+        ListIterator<HDR> iterator = this.listIterator();
+        while (iterator.hasNext()) {
+            SIPHeader sipHeader = (SIPHeader) iterator.next();
+            if ( sipHeader == this ) throw new RuntimeException ("Unexpected circularity in SipHeaderList");
+            int length = writer.length();
+            sipHeader.encodeBody(writer);
+            // nothing is put between the headers with an empty body
+            if (iterator.hasNext() && writer.length() != length) {
+                if (!this.headerName.equals(PrivacyHeader.NAME))
+                    writer.append(Separators.COMMA);
+                else
+                    writer.append(Separators.SEMICOLON);
+            }
+        }
+    }
+
     public boolean addAll(Collection<? extends HDR> collection) {
         return this.hlist.addAll(collection);
     }
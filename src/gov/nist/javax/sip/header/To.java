@@ -28,6 +28,7 @@
  *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.core.HostPort;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.parser.Parser;
@@ -108,6 +109,27 @@ public final class To extends AddressParametersHeader implements
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        if (address != null) {
+            if (address.getAddressType() == AddressImpl.ADDRESS_SPEC) {
+                writer.append(LESS_THAN);
+            }
+            address.encode(writer);
+            if (address.getAddressType() == AddressImpl.ADDRESS_SPEC) {
+                writer.append(GREATER_THAN);
+            }
+
+            if (!parameters.isEmpty()) {
+                writer.append(SEMICOLON);
+                parameters.encode(writer);
+            }
+        }
+    }
+
     /**
      * Conveniance accessor function to get the hostPort field from the address.
      * Warning -- this assumes that the embedded URI is a SipURL.
@@ -28,6 +28,7 @@
 *******************************************************************************/
 package gov.nist.javax.sip.header;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.core.Host;
 import gov.nist.core.HostPort;
 import gov.nist.core.NameValue;
@@ -268,6 +269,23 @@ public class Via
         return buffer;
     }
 
+    public void encode(ByteBufferWriter writer) {
+        encodeHeader(writer);
+    }
+
+    protected void encodeBody(ByteBufferWriter writer) {
+        sentProtocol.encode(writer);
+        writer.append(SP);
+        sentBy.encode(writer);
+        if (!parameters.isEmpty()) {
+            writer.append(SEMICOLON);
+            parameters.encode(writer);
+        }
+        if (comment != null) {
+            writer.append(SP).append(LPAREN).append(comment).append(RPAREN);
+        }
+    }
+
     /**
      * Set the host part of this ViaHeader to the newly supplied <code>host</code>
      * parameter.
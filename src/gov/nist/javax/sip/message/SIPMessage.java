@@ -28,9 +28,9 @@
  ******************************************************************************/
 package gov.nist.javax.sip.message;
 
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.Separators;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.AlertInfo;
 import gov.nist.javax.sip.header.Authorization;
@@ -72,20 +72,25 @@ import gov.nist.javax.sip.header.Warning;
 import gov.nist.javax.sip.parser.HeaderParser;
 import gov.nist.javax.sip.parser.ParserFactory;
 import gov.nist.javax.sip.parser.PipelinedMsgParser;
+import gov.nist.javax.sip.parser.RawHeader;
 import gov.nist.javax.sip.parser.StringMsgParser;
 
 import java.io.UnsupportedEncodingException;
 import java.lang.reflect.Field;
 import java.net.InetAddress;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
 import javax.sip.InvalidArgumentException;
 import javax.sip.SipException;
@@ -148,7 +153,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     protected LinkedList<String> unrecognizedHeaders;
 
     /**
-     * List of parsed headers (in the order they were added)
+     * List of headers (in the order they were added). A header that a lazy parser did not parse
+     * is in it as a LazyHeader entry at the place it was received, which holds the parsed header
+     * once it is looked up.
      */
     protected ConcurrentLinkedQueue<SIPHeader> headers;
 
@@ -180,6 +187,36 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     // Table of headers indexed by name.
     protected Map<String, SIPHeader> headerTable;
 
+    /**
+     * Number of LazyHeader entries in the header list, so that looking up a header does not
+     * go through the list when there are none.
+     */
+    private volatile int lazyHeaderCount;
+
+    private static final AtomicIntegerFieldUpdater<SIPMessage> LAZY_HEADER_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(SIPMessage.class, "lazyHeaderCount");
+
+    /**
+     * Transaction identifier computed from the topmost Via and the CSeq, kept so that matching
+     * a retransmission does not build the identifier again.
+     */
+    private transient TransactionKey transactionKey;
+
+    /**
+     * Encoded form of the message kept by encodeAsBytesCached, so that retransmitting or
+     * sending the message again does not encode it again.
+     */
+    private transient volatile EncodedForm encodedForm;
+
+    /**
+     * Bumped by every change made through the message, an encoded form built before the
+     * last change is not used.
+     */
+    private transient volatile int modificationCount;
+
+    private static final AtomicIntegerFieldUpdater<SIPMessage> MODIFICATION_COUNT =
+            AtomicIntegerFieldUpdater.newUpdater(SIPMessage.class, "modificationCount");
+
     /**
      * The application data pointer. This is un-interpreted by the stack. This is provided as a
      * convenient way of keeping book-keeping data for applications.
@@ -251,7 +288,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public LinkedList<String> getMessageAsEncodedStrings() {
         LinkedList<String> retval = new LinkedList<String>();
-        Iterator<SIPHeader> li = headers.iterator();
+        parseRawHeaders(null);
+        Iterator<SIPHeader> li = new ParsedHeaderIterator();
         while (li.hasNext()) {
             SIPHeader sipHeader = (SIPHeader) li.next();
             if (sipHeader instanceof SIPHeaderList) {
@@ -272,10 +310,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     protected StringBuilder encodeSIPHeaders(StringBuilder encoding) {
 //        StringBuilder encoding = new StringBuilder();
-        Iterator<SIPHeader> it = this.headers.iterator();
-
-        while (it.hasNext()) {
-            SIPHeader siphdr = (SIPHeader) it.next();
+        for (SIPHeader siphdr : headerSnapshot()) {
             if (!(siphdr instanceof ContentLength))
                 siphdr.encode(encoding);
         }
@@ -403,7 +438,10 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (!template.getClass().equals(this.getClass()))
             throw new IllegalArgumentException("Bad class " + template.getClass());
         SIPMessage templateMessage = (SIPMessage) template;
-        Object[] templateHeaders = templateMessage.headers.toArray();
+        templateMessage.parseRawHeaders(null);
+        // headers are merged in place
+        invalidateEncodedForm();
+        Object[] templateHeaders = templateMessage.headerSnapshot();
         for (int i = 0; i < templateHeaders.length; i++) {
             SIPHeader hdr = (SIPHeader) templateHeaders[i];
             String hdrName = hdr.getHeaderName();
@@ -431,10 +469,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public String encode() {
         StringBuilder encoding = new StringBuilder();
-        Iterator<SIPHeader> it = this.headers.iterator();
-
-        while (it.hasNext()) {
-            SIPHeader siphdr = (SIPHeader) it.next();
+        // Headers that were never looked up are written back as received.
+        for (SIPHeader siphdr : headerSnapshot()) {
             if (!(siphdr instanceof ContentLength))
                 siphdr.encode(encoding);
         }
@@ -480,8 +516,26 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *         byte array).
      */
     public byte[] encodeAsBytes(String transport) {
+        ByteBufferWriter writer = ByteBufferWriter.getInstance();
+        try {
+            encode(writer, transport);
+            return writer.toByteArray();
+        } finally {
+            ByteBufferWriter.release(writer);
+        }
+    }
+
+    /**
+     * Encode the message in a writer, as bytes without building a String first. The result
+     * is the same as that of encodeAsBytes.
+     *
+     * @param writer -- where to put the encoded message.
+     * @param transport -- the transport the message is sent over.
+     */
+    public void encode(ByteBufferWriter writer, String transport) {
         if (this instanceof SIPRequest && ((SIPRequest) this).isNullRequest()) {
-            return "\r\n\r\n".getBytes();
+            writer.append("\r\n\r\n");
+            return;
         }
         // JvB: added to fix case where application provides the wrong transport
         // in the topmost Via header
@@ -492,45 +546,32 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             InternalErrorHandler.handleException(e);
         }
 
-        StringBuilder encoding = new StringBuilder();
-        synchronized (this.headers) {
-            Iterator<SIPHeader> it = this.headers.iterator();
-
-            while (it.hasNext()) {
-                SIPHeader siphdr = (SIPHeader) it.next();
-                if (!(siphdr instanceof ContentLength))
-                    siphdr.encode(encoding);
-
+        writer.setCharset("UTF-8");
+        encodeFirstLine(writer);
+        writer.setCharset(getCharset());
+        for (SIPHeader siphdr : headerSnapshot()) {
+            if (!(siphdr instanceof ContentLength))
+                siphdr.encode(writer);
+        }
+        if (unrecognizedHeaders != null) {
+            for (String unrecognized : unrecognizedHeaders) {
+                writer.append(unrecognized);
+                writer.append(NEWLINE);
             }
         }
-        contentLengthHeader.encode(encoding);
-        encoding.append(NEWLINE);
+        contentLengthHeader.encode(writer);
+        writer.append(NEWLINE);
 
-        byte[] retval = null;
         byte[] content = this.getRawContent();
         if (content != null) {
-            // Append the content
-
-            byte[] msgarray = null;
-            try {
-                msgarray = encoding.toString().getBytes( getCharset() );
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-
-            retval = new byte[msgarray.length + content.length];
-            System.arraycopy(msgarray, 0, retval, 0, msgarray.length);
-            System.arraycopy(content, 0, retval, msgarray.length, content.length);
-        } else {
-            // Message content does not exist.
-
-            try {
-                retval = encoding.toString().getBytes( getCharset() );
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
+            writer.append(content);
         }
-        return retval;
+    }
+
+    /**
+     * Encode the first line of the message in a writer, nothing if the message has none.
+     */
+    protected void encodeFirstLine(ByteBufferWriter writer) {
     }
 
     /**
@@ -553,11 +594,17 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         retval.contentLengthHeader = null;
         retval.maxForwardsHeader = null;
         retval.forkId = null;        
+        retval.lazyHeaderCount = 0;
+        retval.encodedForm = null;
         if (this.headers != null) {
             retval.headers = new ConcurrentLinkedQueue<SIPHeader>();
-            for (Iterator<SIPHeader> iter = headers.iterator(); iter.hasNext();) {
-                SIPHeader hdr = (SIPHeader) iter.next();
-                retval.attachHeader((SIPHeader) hdr.clone());
+            for (SIPHeader hdr : headerSnapshot()) {
+                if (hdr instanceof LazyHeader) {
+                    // Raw headers are immutable, the clone can share them.
+                    retval.addRawHeader(((LazyHeader) hdr).rawHeader);
+                } else {
+                    retval.attachHeader((SIPHeader) hdr.clone());
+                }
             }
 
         }
@@ -598,6 +645,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             InternalErrorHandler.handleException(ex);
         }
 
+        parseRawHeaders(null);
         sprint("List of headers : ");
         sprint(headers.toString());
         sprint("messageContent = ");
@@ -718,16 +766,11 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (header == null) {
             throw new NullPointerException("null header");
         }
+        invalidateEncodedForm();
+        // Headers of the same name that were not parsed yet come first.
+        parseRawHeaders(SIPHeaderNamesCache.toLowerCase(header.getName()));
 
-        SIPHeader h;
-
-        if (ListMap.hasList(header) && !SIPHeaderList.class.isAssignableFrom(header.getClass())) {
-            SIPHeaderList<SIPHeader> hdrList = ListMap.getList(header);
-            hdrList.add(header);
-            h = hdrList;
-        } else {
-            h = header;
-        }
+        SIPHeader h = toHeaderList(header);
 
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(h.getName());
         if (replaceFlag) {
@@ -750,8 +793,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (originalHeader != null) {
             Iterator<SIPHeader> li = headers.iterator();
             while (li.hasNext()) {
-                SIPHeader next = (SIPHeader) li.next();
-                if (next.equals(originalHeader)) {
+                SIPHeader next = unwrap(li.next());
+                if (next != null && next.equals(originalHeader)) {
                     li.remove();
                 }
             }
@@ -773,7 +816,14 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             }
         }
 
-        // Direct accessor fields for frequently accessed headers.
+        setAccessor(h);
+
+    }
+
+    /**
+     * Set the direct accessor field for frequently accessed headers.
+     */
+    private void setAccessor(SIPHeader h) {
         if (h instanceof From) {
             this.fromHeader = (From) h;
         } else if (h instanceof ContentLength) {
@@ -787,7 +837,19 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         } else if (h instanceof MaxForwards) {
             this.maxForwardsHeader = (MaxForwards) h;
         }
+    }
 
+    /**
+     * The header in the list that holds the headers of its kind, or the header itself if
+     * there can only be one of its kind.
+     */
+    private static SIPHeader toHeaderList(SIPHeader header) {
+        if (ListMap.hasList(header) && !SIPHeaderList.class.isAssignableFrom(header.getClass())) {
+            SIPHeaderList<SIPHeader> hdrList = ListMap.getList(header);
+            hdrList.add(header);
+            return hdrList;
+        }
+        return header;
     }
 
     /**
@@ -799,7 +861,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public void removeHeader(String headerName, boolean top) {
 
+        invalidateEncodedForm();
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseRawHeaders(headerNameLowerCase);
         SIPHeader toRemove = (SIPHeader) headerTable.get(headerNameLowerCase);
         // nothing to do then we are done.
         if (toRemove == null)
@@ -857,7 +921,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
 
         if (headerName == null)
             throw new NullPointerException("null arg");
+        invalidateEncodedForm();
         String headerNameLowerCase = SIPHeaderNamesCache.toLowerCase(headerName);
+        removeLazyHeaders(headerNameLowerCase);
         SIPHeader removed = (SIPHeader) headerTable.remove(headerNameLowerCase);
         // nothing to do then we are done.
         if (removed == null)
@@ -911,17 +977,22 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         // Have specified a branch Identifier so we can use it to identify
         // the transaction. BranchId is not case sensitive.
         // Branch Id prefix is not case sensitive.
-        if (topVia != null
-                && topVia.getBranch() != null
-                && topVia.getBranch().toUpperCase().startsWith(
-                        SIPConstants.BRANCH_MAGIC_COOKIE_UPPER_CASE)) {
+        String branch = topVia != null ? topVia.getBranch() : null;
+        if (Utils.isRfc3261Branch(branch)) {
             // Bis 09 compatible branch assignment algorithm.
             // implies that the branch id can be used as a transaction
             // identifier.
-            if (this.getCSeq().getMethod().equals(Request.CANCEL))
-                return (topVia.getBranch() + ":" + this.getCSeq().getMethod()).toLowerCase();
+            String method = this.getCSeq().getMethod();
+            TransactionKey key = this.transactionKey;
+            if (key != null && key.matches(topVia, branch, method))
+                return key.transactionId;
+            String transactionId;
+            if (method.equals(Request.CANCEL))
+                transactionId = (branch + ":" + method).toLowerCase();
             else
-                return topVia.getBranch().toLowerCase();
+                transactionId = branch.toLowerCase();
+            this.transactionKey = new TransactionKey(topVia, branch, method, transactionId);
+            return transactionId;
         } else {
             // Old style client so construct the transaction identifier
             // from various fields of the request.
@@ -952,6 +1023,91 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         }
     }
 
+    /**
+     * The RFC 3261 transaction identifier of a message together with the header values it was
+     * computed from. The values are compared by reference, so the key is dropped as soon as the
+     * topmost Via, its branch or the CSeq method is replaced.
+     */
+    private static final class TransactionKey {
+        private final Via via;
+
+        private final String branch;
+
+        private final String method;
+
+        private final String transactionId;
+
+        TransactionKey(Via via, String branch, String method, String transactionId) {
+            this.via = via;
+            this.branch = branch;
+            this.method = method;
+            this.transactionId = transactionId;
+        }
+
+        boolean matches(Via via, String branch, String method) {
+            return this.via == via && this.branch == branch && this.method == method;
+        }
+    }
+
+    /**
+     * Drop the encoded form kept for the message. This is for the stack: changes made through
+     * the message do it already, and the stack does it again when the message is given to it
+     * to send, so headers the application changed in place are encoded again.
+     */
+    public void invalidateEncodedForm() {
+        MODIFICATION_COUNT.incrementAndGet(this);
+        encodedForm = null;
+    }
+
+    /**
+     * Get the encoded form kept for the message, if it was encoded for that transport and
+     * not changed since.
+     *
+     * @param transport -- the transport the message is sent over.
+     * @return the encoded message, shared and not to be modified, or null if there is none.
+     */
+    public byte[] getEncodedForm(String transport) {
+        EncodedForm form = this.encodedForm;
+        if (form != null && form.modificationCount == modificationCount
+                && form.transport.equalsIgnoreCase(transport))
+            return form.bytes;
+        return null;
+    }
+
+    /**
+     * Encode the message as a byte array, reusing the encoded form kept from a previous call
+     * if the message did not change since, and keeping the new one otherwise.
+     *
+     * @param transport -- the transport the message is sent over.
+     * @return the encoded message, shared and not to be modified.
+     */
+    public byte[] encodeAsBytesCached(String transport) {
+        byte[] bytes = getEncodedForm(transport);
+        if (bytes == null) {
+            int count = modificationCount;
+            bytes = encodeAsBytes(transport);
+            // a change made while encoding leaves the new form out
+            if (count == modificationCount)
+                this.encodedForm = new EncodedForm(transport, count, bytes);
+        }
+        return bytes;
+    }
+
+    private static final class EncodedForm {
+
+        private final String transport;
+
+        private final int modificationCount;
+
+        private final byte[] bytes;
+
+        EncodedForm(String transport, int modificationCount, byte[] bytes) {
+            this.transport = transport;
+            this.modificationCount = modificationCount;
+            this.bytes = bytes;
+        }
+    }
+
     /**
      * Override the hashcode method ( see issue # 55 ) Note that if you try to use this method
      * before you assemble a valid request, you will get a constant ( -1 ). Beware of placing any
@@ -978,7 +1134,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return an Iterator for the headers of this message.
      */
     public Iterator<SIPHeader> getHeaders() {
-        return headers.iterator();
+        parseRawHeaders(null);
+        return new ParsedHeaderIterator();
     }
 
     /**
@@ -993,6 +1150,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     protected Header getHeaderLowerCase(String lowerCaseHeaderName) {
         if (lowerCaseHeaderName == null)
             throw new NullPointerException("bad name");
+        parseRawHeaders(lowerCaseHeaderName);
         SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseHeaderName);
         if (sipHeader instanceof SIPHeaderList)
             return (Header) ((SIPHeaderList) sipHeader).getFirst();
@@ -1195,6 +1353,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
         if (callIdHeader == null) {
             this.setHeader(new CallID());
         }
+        invalidateEncodedForm();
         callIdHeader.setCallId(callId);
     }
 
@@ -1418,6 +1577,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param content is the content, as String, array of bytes, or other object.
      */
     private void computeContentLength(Object content) {
+        invalidateEncodedForm();
         int length = 0;
         if (content != null) {
             if (content instanceof String) {
@@ -1444,6 +1604,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * Remove the message content if it exists.
      */
     public void removeContent() {
+        invalidateEncodedForm();
         messageContent = null;
         messageContentBytes = null;
         messageContentObject = null;
@@ -1463,8 +1624,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     public ListIterator<SIPHeader> getHeaders(String headerName) {
         if (headerName == null)
             throw new NullPointerException("null headerName");
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseName = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseRawHeaders(lowerCaseName);
+        SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseName);
         // empty iterator
         if (sipHeader == null)
             return new LinkedList<SIPHeader>().listIterator();
@@ -1484,6 +1646,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     public String getHeaderAsFormattedString(String name) {
         String lowerCaseName = SIPHeaderNamesCache.toLowerCase(name);
+        parseRawHeaders(lowerCaseName);
         if (this.headerTable.containsKey(lowerCaseName)) {
             return this.headerTable.get(lowerCaseName).toString();
         } else {
@@ -1492,6 +1655,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
     }
 
     public SIPHeader getSIPHeaderListLowerCase(String lowerCaseHeaderName) {
+        parseRawHeaders(lowerCaseHeaderName);
         return headerTable.get(lowerCaseHeaderName);
     }
 
@@ -1503,8 +1667,9 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      */
     @SuppressWarnings("unchecked")
     private List<SIPHeader> getHeaderList(String headerName) {
-        SIPHeader sipHeader = (SIPHeader) headerTable.get(SIPHeaderNamesCache
-                .toLowerCase(headerName));
+        String lowerCaseName = SIPHeaderNamesCache.toLowerCase(headerName);
+        parseRawHeaders(lowerCaseName);
+        SIPHeader sipHeader = (SIPHeader) headerTable.get(lowerCaseName);
         if (sipHeader == null)
             return null;
         else if (sipHeader instanceof SIPHeaderList)
@@ -1523,7 +1688,341 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @return true if the header is present in the message
      */
     public boolean hasHeader(String headerName) {
-        return headerTable.containsKey(SIPHeaderNamesCache.toLowerCase(headerName));
+        String lowerCaseName = SIPHeaderNamesCache.toLowerCase(headerName);
+        return headerTable.containsKey(lowerCaseName) || hasLazyHeader(lowerCaseName);
+    }
+
+    /**
+     * A header received from the network and not parsed yet. It is encoded as received until
+     * the first lookup of its name parses it, then it stays in the header list at the place
+     * it was received and holds the parsed header, the first header of its name holding all
+     * the headers of that name.
+     */
+    static final class LazyHeader extends SIPHeader {
+
+        private static final long serialVersionUID = 1L;
+
+        private static final int PENDING = 0;
+
+        private static final int PARSING = 1;
+
+        private static final int PARSED = 2;
+
+        private static final AtomicIntegerFieldUpdater<LazyHeader> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(LazyHeader.class, "state");
+
+        final transient RawHeader rawHeader;
+
+        private volatile int state;
+
+        /**
+         * The parsed header, null if there is nothing in its place. Set before the state
+         * becomes PARSED and not changed after.
+         */
+        private SIPHeader value;
+
+        LazyHeader(RawHeader rawHeader) {
+            this.rawHeader = rawHeader;
+        }
+
+        int getState() {
+            return state;
+        }
+
+        boolean isParsed() {
+            return state == PARSED;
+        }
+
+        /**
+         * Claim the header for parsing, true for the one thread that gets it.
+         */
+        boolean claim() {
+            return STATE.compareAndSet(this, PENDING, PARSING);
+        }
+
+        void setParsed(SIPHeader value) {
+            this.value = value;
+            state = PARSED;
+        }
+
+        /**
+         * Wait for the thread that claimed the header to be done with it.
+         */
+        void awaitParsed() {
+            while (state != PARSED) {
+                Thread.yield();
+            }
+        }
+
+        SIPHeader getParsedHeader() {
+            return value;
+        }
+
+        public String getHeaderName() {
+            return rawHeader.getName();
+        }
+
+        public String getName() {
+            return rawHeader.getName();
+        }
+
+        public StringBuilder encode(StringBuilder buffer) {
+            if (state != PARSED)
+                return buffer.append(rawHeader.toString()).append(NEWLINE);
+            return value == null ? buffer : value.encode(buffer);
+        }
+
+        public void encode(ByteBufferWriter writer) {
+            if (state != PARSED) {
+                rawHeader.encode(writer);
+                writer.append(NEWLINE);
+            } else if (value != null) {
+                value.encode(writer);
+            }
+        }
+
+        protected StringBuilder encodeBody(StringBuilder buffer) {
+            if (state == PARSED)
+                return value == null ? buffer : buffer.append(value.getHeaderValue());
+            String header = rawHeader.toString();
+            return buffer.append(header.substring(header.indexOf(COLON) + 1).trim());
+        }
+
+        public boolean equals(Object other) {
+            return this == other;
+        }
+
+        public int hashCode() {
+            return System.identityHashCode(this);
+        }
+    }
+
+    /**
+     * The header at this place of the header list: the parsed header held by a lazy header
+     * that was parsed, null if it holds none.
+     */
+    private static SIPHeader unwrap(SIPHeader header) {
+        if (header instanceof LazyHeader && ((LazyHeader) header).isParsed())
+            return ((LazyHeader) header).getParsedHeader();
+        return header;
+    }
+
+    /**
+     * Iterates over the header list, giving the parsed headers held by the lazy headers.
+     */
+    private final class ParsedHeaderIterator implements Iterator<SIPHeader> {
+
+        private final Iterator<SIPHeader> it = headers.iterator();
+
+        private SIPHeader next;
+
+        public boolean hasNext() {
+            while (next == null && it.hasNext()) {
+                next = unwrap(it.next());
+            }
+            return next != null;
+        }
+
+        public SIPHeader next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            SIPHeader header = next;
+            next = null;
+            return header;
+        }
+
+        public void remove() {
+            it.remove();
+        }
+    }
+
+    /**
+     * Add a header that will only be parsed when it is accessed. Until then it is encoded as
+     * received.
+     *
+     * @param rawHeader -- the header as received from the network.
+     */
+    public void addRawHeader(RawHeader rawHeader) {
+        invalidateEncodedForm();
+        headers.add(new LazyHeader(rawHeader));
+        LAZY_HEADER_COUNT.incrementAndGet(this);
+    }
+
+    /**
+     * Parse the headers of the given name that were not parsed yet and attach them to the
+     * message. Looking up a header only reads the count of lazy headers when there are none,
+     * and the headers of a name are claimed for parsing with a compare and set, the threads
+     * looking them up at the same time wait for the one that got them.
+     *
+     * @param lowerCaseHeaderName -- lower case name of the headers to parse, null to parse all
+     *        of them.
+     */
+    protected void parseRawHeaders(String lowerCaseHeaderName) {
+        while (lazyHeaderCount != 0) {
+            LazyHeader first = null;
+            for (SIPHeader header : headers) {
+                if (header instanceof LazyHeader) {
+                    LazyHeader lazyHeader = (LazyHeader) header;
+                    if (!lazyHeader.isParsed() && (lowerCaseHeaderName == null
+                            || lazyHeader.rawHeader.hasName(lowerCaseHeaderName))) {
+                        first = lazyHeader;
+                        break;
+                    }
+                }
+            }
+            if (first == null)
+                return;
+            if (first.claim()) {
+                parseLazyHeaders(first);
+            } else {
+                first.awaitParsed();
+            }
+        }
+    }
+
+    /**
+     * Parse the header claimed by the caller and the ones of the same name after it. The first
+     * one holds the parsed header, the others nothing.
+     */
+    private void parseLazyHeaders(LazyHeader first) {
+        String name = SIPHeaderNamesCache.toLowerCase(first.rawHeader.getName());
+        // Claim all of them before any is parsed, a thread that finds one parsed then finds
+        // the others parsed too.
+        List<LazyHeader> claimed = new ArrayList<LazyHeader>(2);
+        claimed.add(first);
+        boolean after = false;
+        for (SIPHeader header : headers) {
+            if (header == first) {
+                after = true;
+            } else if (after && header instanceof LazyHeader) {
+                LazyHeader lazyHeader = (LazyHeader) header;
+                if (lazyHeader.rawHeader.hasName(name) && lazyHeader.claim())
+                    claimed.add(lazyHeader);
+            }
+        }
+        SIPHeader parsed = null;
+        try {
+            SIPHeader attached = headerTable.get(name);
+            for (LazyHeader lazyHeader : claimed) {
+                SIPHeader h;
+                try {
+                    h = toHeaderList(lazyHeader.rawHeader.parse());
+                } catch (Exception ex) {
+                    // Same treatment as a bad optional header found by an eager parser, the
+                    // header parsers may also fail with runtime exceptions.
+                    addUnparsed(lazyHeader.rawHeader.toString());
+                    continue;
+                }
+                SIPHeader existing = attached != null ? attached : parsed;
+                if (existing == null) {
+                    parsed = h;
+                } else if (existing instanceof SIPHeaderList && h instanceof SIPHeaderList) {
+                    concatenate((SIPHeaderList<?>) existing, (SIPHeaderList<?>) h);
+                }
+                // Otherwise a header of this name is already there, keep it.
+            }
+            if (parsed != null) {
+                headerTable.put(SIPHeaderNamesCache.toLowerCase(parsed.getName()), parsed);
+                setAccessor(parsed);
+            }
+            invalidateEncodedForm();
+        } finally {
+            // The others wait for this even when parsing failed.
+            LAZY_HEADER_COUNT.addAndGet(this, -claimed.size());
+            for (LazyHeader lazyHeader : claimed) {
+                lazyHeader.setParsed(lazyHeader == first ? parsed : null);
+            }
+        }
+    }
+
+    private static <H extends SIPHeader> void concatenate(SIPHeaderList<H> list,
+            SIPHeaderList<?> other) {
+        Class<H> type = list.getMyClass();
+        for (SIPHeader header : other) {
+            list.add(type.cast(header));
+        }
+    }
+
+    /**
+     * The headers in the order of the list, the lazy headers that were parsed giving their
+     * parsed header. The lazy headers left were not parsed at one moment while the list was
+     * read, so that none of the headers of a name is both in its place and in the first one.
+     */
+    private SIPHeader[] headerSnapshot() {
+        while (true) {
+            boolean hasLazyHeaders = lazyHeaderCount != 0;
+            SIPHeader[] snapshot = headers.toArray(new SIPHeader[0]);
+            if (hasLazyHeaders && !isSettled(snapshot))
+                continue;
+            int size = 0;
+            for (SIPHeader header : snapshot) {
+                SIPHeader h = unwrap(header);
+                if (h != null)
+                    snapshot[size++] = h;
+            }
+            return size == snapshot.length ? snapshot : Arrays.copyOf(snapshot, size);
+        }
+    }
+
+    /**
+     * True if none of the lazy headers of the snapshot is being parsed and none changed
+     * between two reads of their state. States only move forward, so they all had the
+     * states read at the moment between the two reads.
+     */
+    private static boolean isSettled(SIPHeader[] snapshot) {
+        int[] states = new int[snapshot.length];
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] instanceof LazyHeader) {
+                LazyHeader lazyHeader = (LazyHeader) snapshot[i];
+                states[i] = lazyHeader.getState();
+                if (states[i] == LazyHeader.PARSING) {
+                    lazyHeader.awaitParsed();
+                    return false;
+                }
+            }
+        }
+        for (int i = 0; i < snapshot.length; i++) {
+            if (snapshot[i] instanceof LazyHeader
+                    && ((LazyHeader) snapshot[i]).getState() != states[i])
+                return false;
+        }
+        return true;
+    }
+
+    private boolean hasLazyHeader(String lowerCaseHeaderName) {
+        if (lazyHeaderCount == 0)
+            return false;
+        for (SIPHeader header : headers) {
+            if (header instanceof LazyHeader) {
+                LazyHeader lazyHeader = (LazyHeader) header;
+                if (!lazyHeader.isParsed() && lazyHeader.rawHeader.hasName(lowerCaseHeaderName))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Remove the headers of the given name that were not parsed yet, without parsing them.
+     */
+    private void removeLazyHeaders(String lowerCaseHeaderName) {
+        if (lazyHeaderCount == 0)
+            return;
+        for (SIPHeader header : headers) {
+            if (header instanceof LazyHeader) {
+                LazyHeader lazyHeader = (LazyHeader) header;
+                if (!lazyHeader.rawHeader.hasName(lowerCaseHeaderName))
+                    continue;
+                if (lazyHeader.claim()) {
+                    headers.remove(lazyHeader);
+                    LAZY_HEADER_COUNT.decrementAndGet(this);
+                    lazyHeader.setParsed(null);
+                } else {
+                    // Being parsed, the caller removes the parsed header.
+                    lazyHeader.awaitParsed();
+                }
+            }
+        }
     }
 
     /**
@@ -1560,6 +2059,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param tag -- tag to set in the from header.
      */
     public void setFromTag(String tag) {
+        invalidateEncodedForm();
         try {
             fromHeader.setTag(tag);
         } catch (ParseException e) {
@@ -1572,6 +2072,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param tag -- tag to set.
      */
     public void setToTag(String tag) {
+        invalidateEncodedForm();
         try {
             toHeader.setTag(tag);
         } catch (ParseException e) {
@@ -1608,6 +2109,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             try {
                 if (sipHeader instanceof ContentLength) {
                     ContentLength cl = (ContentLength) sipHeader;
+                    invalidateEncodedForm();
                     contentLengthHeader.setContentLength(cl.getContentLength());
                 }
             } catch (InvalidArgumentException e) {
@@ -1621,6 +2123,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param unparsed -- unparsed header to add to the list.
      */
     public void addUnparsed(String unparsed) {
+        invalidateEncodedForm();
         this.getUnrecognizedHeadersList().add(unparsed);
     }
 
@@ -1637,6 +2140,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             SIPHeader sh = parser.parse();
             this.attachHeader(sh, false);
         } catch (ParseException ex) {
+            invalidateEncodedForm();
             this.getUnrecognizedHeadersList().add(hdrString);
         }
     }
@@ -1657,7 +2161,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *         are present in the message.
      */
     public ListIterator<String> getHeaderNames() {
-        Iterator<SIPHeader> li = this.headers.iterator();
+        parseRawHeaders(null);
+        Iterator<SIPHeader> li = new ParsedHeaderIterator();
         LinkedList<String> retval = new LinkedList<String>();
         while (li.hasNext()) {
             SIPHeader sipHeader = (SIPHeader) li.next();
@@ -1677,6 +2182,8 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
             return false;
         }
         SIPMessage otherMessage = (SIPMessage) other;
+        parseRawHeaders(null);
+        otherMessage.parseRawHeaders(null);
         Collection<SIPHeader> values = this.headerTable.values();
         Iterator<SIPHeader> it = values.iterator();
         if (headerTable.size() != otherMessage.headerTable.size()) {
@@ -1780,6 +2287,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      * @param contentLength -- content length header.
      */
     public void setContentLength(ContentLengthHeader contentLength) {
+        invalidateEncodedForm();
         try {
             this.contentLengthHeader.setContentLength(contentLength.getContentLength());
         } catch (InvalidArgumentException ex) {
@@ -1959,6 +2467,7 @@ public abstract class SIPMessage extends MessageObject implements javax.sip.mess
      *
      */
     public void setNullRequest() {
+        invalidateEncodedForm();
         this.nullRequest = true;
     }
     public String getForkId() {
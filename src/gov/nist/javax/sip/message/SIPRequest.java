@@ -28,7 +28,7 @@
  *******************************************************************************/
 package gov.nist.javax.sip.message;
 
-import gov.nist.core.InternalErrorHandler;
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.javax.sip.address.GenericURI;
 import gov.nist.javax.sip.address.SipUri;
 import gov.nist.javax.sip.header.CSeq;
@@ -41,7 +41,6 @@ import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.header.ViaList;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
-import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.HashSet;
 import java.util.LinkedList;
@@ -211,6 +210,7 @@ public class SIPRequest extends SIPMessage implements javax.sip.message.Request,
      */
 
     public void setRequestLine(RequestLine requestLine) {
+        invalidateEncodedForm();
         this.requestLine = requestLine;
     }
 
@@ -433,6 +433,7 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
         if ( uri == null ) {
             throw new NullPointerException("Null request URI");
         }
+        invalidateEncodedForm();
         if (this.requestLine == null) {
             this.requestLine = new RequestLine();
         }
@@ -449,6 +450,7 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
     public void setMethod(String method) {
         if (method == null)
             throw new IllegalArgumentException("null method");
+        invalidateEncodedForm();
         if (this.requestLine == null) {
             this.requestLine = new RequestLine();
         }
@@ -595,33 +597,19 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
     }
 
     /**
-     * Encode this into a byte array. This is used when the body has been set as a binary array
-     * and you want to encode the body as a byte array for transmission.
-     * 
-     * @return a byte array containing the SIPRequest encoded as a byte array.
+     * Encode this in a writer. This is used when the body has been set as a binary array
+     * and you want to encode the body as bytes for transmission. A request without a request
+     * line encodes to nothing.
      */
-
-    public byte[] encodeAsBytes(String transport) {
-        if (this.isNullRequest()) {
-            // Encoding a null message for keepalive.
-            return "\r\n\r\n".getBytes();
-        } else if ( this.requestLine == null ) {
-            return new byte[0];
+    public void encode(ByteBufferWriter writer, String transport) {
+        if (!this.isNullRequest() && this.requestLine == null) {
+            return;
         }
+        super.encode(writer, transport);
+    }
 
-        byte[] rlbytes = null;
-        if (requestLine != null) {
-            try {
-                rlbytes = requestLine.encode().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-        }
-        byte[] superbytes = super.encodeAsBytes(transport);
-        byte[] retval = new byte[rlbytes.length + superbytes.length];
-        System.arraycopy(rlbytes, 0, retval, 0, rlbytes.length);
-        System.arraycopy(superbytes, 0, retval, rlbytes.length, superbytes.length);
-        return retval;
+    protected void encodeFirstLine(ByteBufferWriter writer) {
+        requestLine.encode(writer);
     }
 
     /**
@@ -703,7 +691,7 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
         // no need to iterate through all headers to create the response since we know which headers
         // we only want to keep and helps the lazy parsing to avoid going through all headers
         for(String headerName : headersToIncludeInResponse) {                	
-        	SIPHeader nextHeader = headerTable.get(headerName);
+        	SIPHeader nextHeader = getSIPHeaderListLowerCase(headerName);
         	if(nextHeader != null) {
         		if(!(nextHeader instanceof RecordRouteList) || (nextHeader instanceof RecordRouteList && mustCopyRR(statusCode))) {
         			try {
@@ -967,6 +955,7 @@ Caused by: java.text.ParseException: Scheme for contact should be sips:sip:proxy
     public void setSIPVersion(String sipVersion) throws ParseException {
         if (sipVersion == null || !sipVersion.equalsIgnoreCase("SIP/2.0"))
             throw new ParseException("sipVersion", 0);
+        invalidateEncodedForm();
         this.requestLine.setSipVersion(sipVersion);
     }
 
@@ -28,7 +28,7 @@
  *******************************************************************************/
 package gov.nist.javax.sip.message;
 
-import gov.nist.core.InternalErrorHandler;
+import gov.nist.core.ByteBufferWriter;
 import gov.nist.javax.sip.header.CSeq;
 import gov.nist.javax.sip.header.CallID;
 import gov.nist.javax.sip.header.From;
@@ -36,7 +36,6 @@ import gov.nist.javax.sip.header.StatusLine;
 import gov.nist.javax.sip.header.To;
 import gov.nist.javax.sip.header.Via;
 
-import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
 import java.util.LinkedList;
 
@@ -293,6 +292,7 @@ public class SIPResponse
       // but in practice up to 699 since the 6xx range is defined as 'final error')
         if (statusCode < 100 || statusCode > 699)
             throw new ParseException("bad status code", 0);
+        invalidateEncodedForm();
         if (this.statusLine == null)
             this.statusLine = new StatusLine();
         this.statusLine.setStatusCode(statusCode);
@@ -320,6 +320,7 @@ public class SIPResponse
     public void setReasonPhrase(String reasonPhrase) {
         if (reasonPhrase == null)
             throw new IllegalArgumentException("Bad reason phrase");
+        invalidateEncodedForm();
         if (this.statusLine == null)
             this.statusLine = new StatusLine();
         this.statusLine.setReasonPhrase(reasonPhrase);
@@ -355,6 +356,7 @@ public class SIPResponse
      *@param sl Status line to set.
      */
     public void setStatusLine(StatusLine sl) {
+        invalidateEncodedForm();
         statusLine = sl;
     }
 
@@ -508,29 +510,11 @@ public class SIPResponse
 
     }
 
-    /** Encode this into a byte array.
-     * This is used when the body has been set as a binary array
-     * and you want to encode the body as a byte array for transmission.
-     *
-     *@return a byte array containing the SIPRequest encoded as a byte
-     *  array.
+    /** Encode the status line in a writer.
      */
-
-    public byte[] encodeAsBytes( String transport ) {
-        byte[] slbytes = null;
-        if (statusLine != null) {
-            try {
-                slbytes = statusLine.encode().getBytes("UTF-8");
-            } catch (UnsupportedEncodingException ex) {
-                InternalErrorHandler.handleException(ex);
-            }
-        }
-        byte[] superbytes = super.encodeAsBytes( transport );
-        byte[] retval = new byte[slbytes.length + superbytes.length];
-        System.arraycopy(slbytes, 0, retval, 0, slbytes.length);
-        System.arraycopy(superbytes, 0, retval, slbytes.length,
-                superbytes.length);
-        return retval;
+    protected void encodeFirstLine(ByteBufferWriter writer) {
+        if (statusLine != null)
+            statusLine.encode(writer);
     }
 
     /**
@@ -547,6 +531,7 @@ public class SIPResponse
     }
 
     public void setSIPVersion(String sipVersion) {
+        invalidateEncodedForm();
         this.statusLine.setSipVersion(sipVersion);
     }
 
@@ -0,0 +1,587 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ *
+ */
+package gov.nist.javax.sip.parser;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.header.ExtensionHeaderImpl;
+import gov.nist.javax.sip.header.NameMap;
+import gov.nist.javax.sip.header.RequestLine;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.SIPHeaderNamesCache;
+import gov.nist.javax.sip.header.StatusLine;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.text.ParseException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.ContentTypeHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.MaxForwardsHeader;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+
+/**
+ * Message parser working directly on the raw bytes received from the network.
+ * <p>
+ * Unlike {@link StringMsgParser}, which builds a String for every line of the
+ * message and concatenates continuation lines, this parser walks the buffer
+ * with offsets. Header names are recognized by comparing bytes against the
+ * names registered with the {@link ParserFactory}, so the only Strings created
+ * per header are the folded header line handed to the matching
+ * {@link HeaderParser} or, for extension headers, the name and the value.
+ * </p>
+ * <p>
+ * When built with a set of eager headers, the parser is lazy : headers that
+ * are not in the set are not parsed at all but attached to the message as
+ * {@link RawHeader} slices of the received buffer. They are parsed the first
+ * time they are looked up and written back verbatim when the message is
+ * encoded without having been touched. A lazy parser keeps references to the
+ * buffer it was given, which must therefore not be reused by the caller.
+ * </p>
+ * <p>
+ * To use it, set <code>gov.nist.javax.sip.MESSAGE_PARSER_FACTORY</code> to
+ * {@link ByteMsgParserFactory} or {@link LazyMsgParserFactory}. No state is
+ * kept between two calls to parseSIPMessage so an instance can be shared
+ * between threads.
+ * </p>
+ *
+ * @see ByteMsgParserFactory
+ * @see LazyMsgParserFactory
+ */
+public class ByteMsgParser extends StringMsgParser {
+
+    private static StackLogger logger = CommonLogger.getLogger(ByteMsgParser.class);
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] SIP_VERSION_BYTES = SIPConstants.SIP_VERSION_STRING.getBytes(UTF8);
+
+    private static final HeaderNameTable headerNames = new HeaderNameTable(ParserFactory.getParserTableNames());
+
+    /**
+     * Headers that are always parsed eagerly by a lazy parser, because the
+     * message keeps direct references to them or because every message going
+     * through the stack needs them (lower case names).
+     */
+    public static final Set<String> MANDATORY_EAGER_HEADERS;
+    static {
+        Set<String> names = new HashSet<String>();
+        names.add(SIPHeaderNamesCache.toLowerCase(FromHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(ToHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(CallIdHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(CSeqHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(ViaHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(MaxForwardsHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(ContentLengthHeader.NAME));
+        names.add(SIPHeaderNamesCache.toLowerCase(ContentTypeHeader.NAME));
+        MANDATORY_EAGER_HEADERS = Collections.unmodifiableSet(names);
+    }
+
+    /** Headers parsed as they are read, null if every header is. */
+    private final HeaderNameTable eagerHeaders;
+
+    /**
+     * Create a parser that parses every header of the message.
+     */
+    public ByteMsgParser() {
+        super();
+        this.eagerHeaders = null;
+    }
+
+    /**
+     * Create a lazy parser.
+     *
+     * @param eagerHeaderNames names of the headers to parse when the message is
+     *            read, in addition to the MANDATORY_EAGER_HEADERS. All the other
+     *            headers are parsed on demand. Compact forms are always parsed
+     *            eagerly.
+     */
+    public ByteMsgParser(Collection<String> eagerHeaderNames) {
+        super();
+        Set<String> names = new HashSet<String>(MANDATORY_EAGER_HEADERS);
+        for (String name : eagerHeaderNames) {
+            names.add(name.trim().toLowerCase());
+        }
+        this.eagerHeaders = new HeaderNameTable(names);
+    }
+
+    /**
+     * @return true if this parser defers the parsing of headers.
+     */
+    public boolean isLazy() {
+        return eagerHeaders != null;
+    }
+
+    /**
+     * Parse a buffer containing a single SIP Message.
+     *
+     * @see MessageParser#parseSIPMessage(byte[], boolean, boolean, ParseExceptionListener)
+     */
+    public SIPMessage parseSIPMessage(byte[] msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
+        if (msgBuffer == null || msgBuffer.length == 0)
+            return null;
+        return parseSIPMessage(msgBuffer, 0, msgBuffer.length, readBody, strict, parseExceptionListener);
+    }
+
+    /**
+     * Parse the remaining bytes of a buffer containing a single SIP Message.
+     * Heap buffers are parsed in place by an eager parser, otherwise the
+     * bytes are copied once. The position of the buffer is not modified.
+     */
+    public SIPMessage parseSIPMessage(ByteBuffer msgBuffer, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
+        if (msgBuffer == null || !msgBuffer.hasRemaining())
+            return null;
+        if (msgBuffer.hasArray() && eagerHeaders == null) {
+            return parseSIPMessage(msgBuffer.array(), msgBuffer.arrayOffset() + msgBuffer.position(),
+                    msgBuffer.remaining(), readBody, strict, parseExceptionListener);
+        }
+        byte[] copy = new byte[msgBuffer.remaining()];
+        msgBuffer.duplicate().get(copy);
+        return parseSIPMessage(copy, 0, copy.length, readBody, strict, parseExceptionListener);
+    }
+
+    /**
+     * Parse the SIP Message held in <code>length</code> bytes of
+     * <code>msgBuffer</code> starting at <code>offset</code>.
+     */
+    public SIPMessage parseSIPMessage(byte[] msgBuffer, int offset, int length, boolean readBody, boolean strict, ParseExceptionListener parseExceptionListener) throws ParseException {
+        final int end = offset + length;
+        int i = offset;
+
+        // Squeeze out any leading control character.
+        while (i < end && msgBuffer[i] < 0x20)
+            i++;
+        if (i == end) {
+            if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+                logger.logDebug("handled only control char so returning null");
+            }
+            return null;
+        }
+
+        HeaderLine line = new HeaderLine(msgBuffer, offset, length);
+
+        // Request or status line.
+        int lineStart = i;
+        i = lineEnd(msgBuffer, i, end);
+        int contentEnd = trimEnd(msgBuffer, lineStart, i);
+        if (contentEnd == lineStart)
+            throw new ParseException("Bad message", 0);
+        SIPMessage message = processFirstLine(msgBuffer, lineStart, contentEnd, parseExceptionListener, line);
+        i = skipEndOfLine(msgBuffer, i, end);
+
+        // Headers. A header spans from the start of its first line to the
+        // end of its last continuation line.
+        int headerStart = -1;
+        int headerEnd = -1;
+        while (i < end) {
+            lineStart = i;
+            i = lineEnd(msgBuffer, i, end);
+            contentEnd = trimEnd(msgBuffer, lineStart, i);
+            i = skipEndOfLine(msgBuffer, i, end);
+
+            if (contentEnd == lineStart) {
+                // Empty line, end of the headers.
+                break;
+            }
+            byte first = msgBuffer[lineStart];
+            if (first == ' ' || first == '\t') {
+                if (headerStart < 0)
+                    throw new ParseException("Bad header continuation.", 0);
+                // This is a continuation of the previous line.
+                headerEnd = contentEnd;
+            } else {
+                if (headerStart >= 0)
+                    processHeader(headerStart, headerEnd, line, message, parseExceptionListener);
+                headerStart = lineStart;
+                headerEnd = contentEnd;
+            }
+        }
+        if (headerStart >= 0)
+            processHeader(headerStart, headerEnd, line, message, parseExceptionListener);
+
+        message.setSize(i - offset);
+
+        // Check for content length header
+        if (readBody && message.getContentLength() != null) {
+            if (message.getContentLength().getContentLength() != 0) {
+                int bodyLength = end - i;
+                byte[] body = new byte[bodyLength];
+                System.arraycopy(msgBuffer, i, body, 0, bodyLength);
+                message.setMessageContent(body, !strict, computeContentLengthFromMessage, message.getContentLength().getContentLength());
+            } else if (!computeContentLengthFromMessage && strict) {
+                if (length < 4 || msgBuffer[end - 4] != '\r' || msgBuffer[end - 3] != '\n'
+                        || msgBuffer[end - 2] != '\r' || msgBuffer[end - 1] != '\n') {
+                    throw new ParseException("Extraneous characters at the end of the message ", i - offset);
+                }
+            }
+        }
+
+        return message;
+    }
+
+    /**
+     * Index of the CR or LF ending the line starting at <code>i</code>, or
+     * <code>end</code> if the line is not terminated.
+     */
+    private static int lineEnd(byte[] buffer, int i, int end) {
+        while (i < end && buffer[i] != '\r' && buffer[i] != '\n')
+            i++;
+        return i;
+    }
+
+    private static int skipEndOfLine(byte[] buffer, int i, int end) {
+        if (i < end && buffer[i] == '\r')
+            i++;
+        if (i < end && buffer[i] == '\n')
+            i++;
+        return i;
+    }
+
+    /**
+     * Same as trimEndOfLine but on a byte range : returns the end of the
+     * range once trailing white spaces and control chars are removed.
+     */
+    private static int trimEnd(byte[] buffer, int start, int end) {
+        while (end > start && buffer[end - 1] <= 0x20 && buffer[end - 1] >= 0)
+            end--;
+        return end;
+    }
+
+    private static boolean startsWith(byte[] buffer, int start, int end, byte[] prefix) {
+        if (end - start < prefix.length)
+            return false;
+        for (int k = 0; k < prefix.length; k++) {
+            if (buffer[start + k] != prefix[k])
+                return false;
+        }
+        return true;
+    }
+
+    private SIPMessage processFirstLine(byte[] buffer, int start, int end,
+            ParseExceptionListener parseExceptionListener, HeaderLine line) throws ParseException {
+        String firstLine = new String(buffer, start, end - start, UTF8);
+        SIPMessage message;
+        if (!startsWith(buffer, start, end, SIP_VERSION_BYTES)) {
+            message = new SIPRequest();
+            try {
+                RequestLine requestLine = new RequestLineParser(firstLine + "\n").parse();
+                ((SIPRequest) message).setRequestLine(requestLine);
+            } catch (ParseException ex) {
+                if (parseExceptionListener != null)
+                    parseExceptionListener.handleException(ex, message,
+                            RequestLine.class, firstLine, line.rawMessage());
+                else
+                    throw ex;
+            }
+        } else {
+            message = new SIPResponse();
+            try {
+                StatusLine sl = new StatusLineParser(firstLine + "\n").parse();
+                ((SIPResponse) message).setStatusLine(sl);
+            } catch (ParseException ex) {
+                if (parseExceptionListener != null)
+                    parseExceptionListener.handleException(ex, message,
+                            StatusLine.class, firstLine, line.rawMessage());
+                else
+                    throw ex;
+            }
+        }
+        return message;
+    }
+
+    private void processHeader(int start, int end, HeaderLine line, SIPMessage message,
+            ParseExceptionListener parseExceptionListener) throws ParseException {
+        if (eagerHeaders != null) {
+            int nameEnd = nameEnd(line.buffer, start, end);
+            if (nameEnd - start > 1 && nameEnd < end
+                    && eagerHeaders.lookup(line.buffer, start, nameEnd) == null) {
+                message.addRawHeader(new RawHeader(line.buffer, start, nameEnd, end));
+                return;
+            }
+        }
+
+        line.load(start, end);
+        if (line.colon < 0 || line.nameEnd == line.nameStart) {
+            // https://java.net/jira/browse/JSIP-456
+            ParseException ex = new ParseException("The header name or value is null", 0);
+            if (parseExceptionListener != null) {
+                parseExceptionListener.handleException(ex, message, null,
+                        line.toString(), null);
+                return;
+            } else {
+                throw ex;
+            }
+        }
+
+        try {
+            message.attachHeader(createHeader(line), false);
+        } catch (ParseException ex) {
+            if (parseExceptionListener != null) {
+                Class<?> headerClass = NameMap.getClassFromName(line.name());
+                if (headerClass == null) {
+                    headerClass = ExtensionHeaderImpl.class;
+                }
+                parseExceptionListener.handleException(ex, message,
+                        headerClass, line.toString(), line.rawMessage());
+            }
+        }
+    }
+
+    /**
+     * Parse a header held in a byte range, continuation lines included.
+     *
+     * @see RawHeader#parse()
+     */
+    static SIPHeader parseHeader(byte[] buffer, int start, int end) throws ParseException {
+        HeaderLine line = new HeaderLine(buffer, start, end - start);
+        line.load(start, end);
+        if (line.colon < 0 || line.nameEnd == line.nameStart)
+            throw new ParseException("The header name or value is null", 0);
+        return createHeader(line);
+    }
+
+    private static SIPHeader createHeader(HeaderLine line) throws ParseException {
+        String lowerCaseName = headerNames.lookup(line.buffer, line.nameStart, line.nameEnd);
+        String name = null;
+        if (lowerCaseName == null) {
+            // Not one of the well known headers, it may still have been
+            // registered at runtime through ParserFactory.addToParserTable
+            name = line.name();
+            lowerCaseName = SIPHeaderNamesCache.toLowerCase(name);
+        }
+        if (name == null || ParserFactory.getParserClass(lowerCaseName) != null) {
+            return ParserFactory.createParser(lowerCaseName, line.toHeaderString()).parse();
+        }
+        // Extension header, no need to go through the lexer.
+        ExtensionHeaderImpl extensionHeader = new ExtensionHeaderImpl(name);
+        extensionHeader.setValue(line.value());
+        return extensionHeader;
+    }
+
+    /**
+     * End of the header name starting at <code>start</code>, trailing white
+     * spaces excluded. Returns <code>end</code> if there is no colon.
+     */
+    static int nameEnd(byte[] buffer, int start, int end) {
+        int k = start;
+        while (k < end && buffer[k] != ':')
+            k++;
+        if (k == end)
+            return end;
+        while (k > start && (buffer[k - 1] == ' ' || buffer[k - 1] == '\t'))
+            k--;
+        return k;
+    }
+
+    /**
+     * The header currently being assembled. Offsets of the name are kept
+     * against the raw buffer, the content of the line (continuations
+     * included) is decoded into a char buffer that grows as needed and is
+     * reused for all the headers of the message.
+     */
+    private static final class HeaderLine {
+        final byte[] buffer;
+        final int messageOffset;
+        final int messageLength;
+        char[] chars = new char[128];
+        int length;
+        int nameStart;
+        int nameEnd;
+        /** index of the colon in chars, -1 if there is none */
+        int colon;
+
+        HeaderLine(byte[] buffer, int messageOffset, int messageLength) {
+            this.buffer = buffer;
+            this.messageOffset = messageOffset;
+            this.messageLength = messageLength;
+        }
+
+        /**
+         * Load the header held in [start, end), unfolding the continuation
+         * lines.
+         */
+        void load(int start, int end) {
+            int i = start;
+            int eol = lineEnd(buffer, i, end);
+            reset(i, trimEnd(buffer, i, eol));
+            i = skipEndOfLine(buffer, eol, end);
+            while (i < end) {
+                eol = lineEnd(buffer, i, end);
+                append(i + 1, trimEnd(buffer, i, eol));
+                i = skipEndOfLine(buffer, eol, end);
+            }
+        }
+
+        private void reset(int start, int end) {
+            length = 0;
+            colon = -1;
+            nameStart = start;
+            nameEnd = nameEnd(buffer, start, end);
+            append(start, end);
+            if (nameEnd < end) {
+                // The name may not be plain ASCII so look for the colon in
+                // the decoded chars rather than reuse the byte offset.
+                int c = 0;
+                while (chars[c] != ':')
+                    c++;
+                colon = c;
+            }
+        }
+
+        private void append(int start, int end) {
+            int count = end - start;
+            ensureCapacity(length + count + 1);
+            for (int k = start; k < end; k++) {
+                byte b = buffer[k];
+                if (b < 0) {
+                    // Not plain ASCII, let the charset do the work for the rest.
+                    String decoded = new String(buffer, k, end - k, UTF8);
+                    ensureCapacity(length + decoded.length() + 1);
+                    decoded.getChars(0, decoded.length(), chars, length);
+                    length += decoded.length();
+                    return;
+                }
+                chars[length++] = (char) b;
+            }
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > chars.length) {
+                char[] newChars = new char[Math.max(capacity, chars.length * 2)];
+                System.arraycopy(chars, 0, newChars, 0, length);
+                chars = newChars;
+            }
+        }
+
+        String name() {
+            return new String(buffer, nameStart, nameEnd - nameStart, UTF8);
+        }
+
+        String value() {
+            int start = colon + 1;
+            int end = length;
+            while (start < end && chars[start] <= 0x20)
+                start++;
+            while (end > start && chars[end - 1] <= 0x20)
+                end--;
+            return new String(chars, start, end - start);
+        }
+
+        /**
+         * The header line terminated by a new line, as expected by the
+         * header parsers.
+         */
+        String toHeaderString() {
+            chars[length] = '\n';
+            return new String(chars, 0, length + 1);
+        }
+
+        String rawMessage() {
+            return new String(buffer, messageOffset, messageLength, UTF8);
+        }
+
+        public String toString() {
+            return new String(chars, 0, length);
+        }
+    }
+
+    /**
+     * Case insensitive lookup of a header name held in a byte range. Returns
+     * the lower case name as registered in the ParserFactory so that it can
+     * be used as a key without building a new String.
+     */
+    static final class HeaderNameTable {
+        private static final int SIZE = 256;
+        private final byte[][][] names = new byte[SIZE][][];
+        private final String[][] values = new String[SIZE][];
+
+        HeaderNameTable(Iterable<String> lowerCaseNames) {
+            Iterator<String> it = lowerCaseNames.iterator();
+            while (it.hasNext()) {
+                String name = it.next();
+                byte[] bytes = name.getBytes(UTF8);
+                for (int k = 0; k < bytes.length; k++) {
+                    bytes[k] |= 0x20;
+                }
+                int slot = hash(bytes, 0, bytes.length);
+                byte[][] bucket = names[slot];
+                String[] bucketValues = values[slot];
+                int size = bucket == null ? 0 : bucket.length;
+                byte[][] newBucket = new byte[size + 1][];
+                String[] newValues = new String[size + 1];
+                if (size > 0) {
+                    System.arraycopy(bucket, 0, newBucket, 0, size);
+                    System.arraycopy(bucketValues, 0, newValues, 0, size);
+                }
+                newBucket[size] = bytes;
+                newValues[size] = name;
+                names[slot] = newBucket;
+                values[slot] = newValues;
+            }
+        }
+
+        private static int hash(byte[] buffer, int start, int end) {
+            int length = end - start;
+            int h = length * 31 + (buffer[start] | 0x20);
+            h = h * 31 + (buffer[end - 1] | 0x20);
+            if (length > 2)
+                h = h * 31 + (buffer[start + length / 2] | 0x20);
+            return h & (SIZE - 1);
+        }
+
+        String lookup(byte[] buffer, int start, int end) {
+            if (end <= start)
+                return null;
+            int slot = hash(buffer, start, end);
+            byte[][] bucket = names[slot];
+            if (bucket == null)
+                return null;
+            int length = end - start;
+            for (int n = 0; n < bucket.length; n++) {
+                byte[] candidate = bucket[n];
+                if (candidate.length != length)
+                    continue;
+                int k = 0;
+                while (k < length && (buffer[start + k] | 0x20) == candidate[k])
+                    k++;
+                if (k == length)
+                    return values[slot][n];
+            }
+            return null;
+        }
+    }
+}
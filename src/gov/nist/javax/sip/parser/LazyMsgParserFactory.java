@@ -0,0 +1,87 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ *
+ */
+package gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.StringTokenizer;
+
+import javax.sip.header.ContactHeader;
+import javax.sip.header.RecordRouteHeader;
+import javax.sip.header.RouteHeader;
+
+/**
+ * Message Parser Factory creating lazy {@link ByteMsgParser}s. Headers that
+ * are not needed by the stack to route and match messages are only parsed
+ * when the application looks them up.
+ * <p>
+ * The headers parsed eagerly on top of
+ * {@link ByteMsgParser#MANDATORY_EAGER_HEADERS} can be set through the
+ * gov.nist.javax.sip.LAZY_PARSER_EAGER_HEADERS stack property (comma
+ * separated list of header names). It defaults to Route, Record-Route and
+ * Contact.
+ * </p>
+ *
+ * @see ByteMsgParser
+ */
+public class LazyMsgParserFactory implements MessageParserFactory {
+
+	public static final String EAGER_HEADERS_PROPERTY = "gov.nist.javax.sip.LAZY_PARSER_EAGER_HEADERS";
+
+	private static final String DEFAULT_EAGER_HEADERS = RouteHeader.NAME + ","
+			+ RecordRouteHeader.NAME + "," + ContactHeader.NAME;
+
+	// The parser keeps no state between messages so all the channels share it
+	private volatile ByteMsgParser messageParser;
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.parser.MessageParserFactory#createMessageParser(gov.nist.javax.sip.stack.SIPTransactionStack)
+	 */
+	public MessageParser createMessageParser(SIPTransactionStack stack) {
+		ByteMsgParser parser = messageParser;
+		if (parser == null) {
+			String property = DEFAULT_EAGER_HEADERS;
+			if (stack instanceof SipStackImpl
+					&& ((SipStackImpl) stack).getConfigurationProperties() != null) {
+				property = ((SipStackImpl) stack).getConfigurationProperties()
+						.getProperty(EAGER_HEADERS_PROPERTY, DEFAULT_EAGER_HEADERS);
+			}
+			List<String> names = new ArrayList<String>();
+			StringTokenizer tokenizer = new StringTokenizer(property, ",");
+			while (tokenizer.hasMoreTokens()) {
+				String name = tokenizer.nextToken().trim();
+				if (name.length() > 0)
+					names.add(name);
+			}
+			parser = new ByteMsgParser(names);
+			messageParser = parser;
+		}
+		return parser;
+	}
+
+}
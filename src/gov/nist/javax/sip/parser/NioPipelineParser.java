@@ -34,21 +34,14 @@ import gov.nist.core.LogWriter;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.stack.ConnectionOrientedMessageChannel;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 import gov.nist.javax.sip.stack.QueuedMessageDispatchBase;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
-import java.util.Queue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
-
-import javax.sip.header.CallIdHeader;
-import javax.sip.header.ContentLengthHeader;
+import java.util.Arrays;
 
 /**
  * This is a FSM that can parse a single stream of messages with they bodies and 
@@ -56,6 +49,12 @@ import javax.sip.header.ContentLengthHeader;
  * message is detected or some DoS trigger terminates it due to excessive amount
  * of bytes per message or line.
  * 
+ * The bytes of the header block of each message are framed as they are, without
+ * being decoded, and only parsed once the whole message is there. When the TCP
+ * post parse thread pool is enabled the parsing itself runs on the pool, in
+ * parallel for the different Call-IDs, each pool thread with its own
+ * message parser.
+ * 
  * Once parsed it will pass the message to the SIPMessageListener
  *
  * @see SIPMessageListener
@@ -65,7 +64,15 @@ public class NioPipelineParser {
 	
 	private static StackLogger logger = CommonLogger.getLogger(NioPipelineParser.class);
 
-	private static final String CRLF = "\r\n";
+	private static final byte[] CRLF = { '\r', '\n' };
+
+	private static final byte[] CONTENT_LENGTH = "content-length".getBytes();
+	private static final byte[] CONTENT_LENGTH_SHORT = "l".getBytes();
+	private static final byte[] CALL_ID = "call-id".getBytes();
+	private static final byte[] CALL_ID_SHORT = "i".getBytes();
+
+	// the message parser of each thread, messages are parsed outside of any lock
+	private static final ThreadLocal<ThreadMessageParser> threadMessageParsers = new ThreadLocal<ThreadMessageParser>();
 
     /**
      * The message listener that is registered with this parser. (The message
@@ -75,153 +82,81 @@ public class NioPipelineParser {
     private int maxMessageSize;
     private int sizeCounter;
     private SIPTransactionStack sipStack;
-    private MessageParser smp = null;
     boolean isRunning = false;
-	boolean currentStreamEnded = false;
-	boolean readingMessageBodyContents = false;
 	boolean readingHeaderLines = true;
-	boolean partialLineRead = false; // if we didn't receive enough bytes for a full line we expect the line to end in the next batch of bytes
-	String partialLine = "";
+	// the line being read, it may span several chunks of bytes
+	private byte[] lineBuffer = new byte[256];
+	private int lineLength = 0;
+	// the header block of the message being read
+	private byte[] headerBuffer = new byte[1024];
+	private int headerLength = 0;
 	String callId;
 	
-	private ConcurrentHashMap<String, CallIDOrderingStructure> messagesOrderingMap = new ConcurrentHashMap<String, CallIDOrderingStructure>();
-	   
-	class CallIDOrderingStructure {
-        private Semaphore semaphore;
-        private Queue<UnparsedMessage> messagesForCallID;
-        
-        public CallIDOrderingStructure() {
-            semaphore = new Semaphore(1, true);
-            messagesForCallID = new ConcurrentLinkedQueue<UnparsedMessage>();
-        }        
+	private static class ThreadMessageParser {
+		final MessageParserFactory factory;
+		final MessageParser parser;
+		ThreadMessageParser(MessageParserFactory factory, MessageParser parser) {
+			this.factory = factory;
+			this.parser = parser;
+		}
+	}
 
-        /**
-         * @return the semaphore
-         */
-        public Semaphore getSemaphore() {
-            return semaphore;
-        }
-       
-        /**
-         * @return the messagesForCallID
-         */
-        public Queue<UnparsedMessage> getMessagesForCallID() {
-            return messagesForCallID;
-        }
-    }
-	
 	public static class UnparsedMessage {
-		String lines;
+		byte[] headers;
 		byte[] body;
-		public UnparsedMessage(String messageLines, byte[] body) {
-			this.lines = messageLines;
+		public UnparsedMessage(byte[] headers, byte[] body) {
+			this.headers = headers;
 			this.body = body;
 		}
 		
 		public String toString() {
-			return super.toString() + "\n" + lines;
+			try {
+				return super.toString() + "\n" + new String(headers, "UTF-8");
+			} catch (UnsupportedEncodingException e) {
+				return super.toString();
+			}
 		}
 	}
 	
     public class Dispatch implements Runnable, QueuedMessageDispatchBase{
-    	CallIDOrderingStructure callIDOrderingStructure;
+    	UnparsedMessage unparsedMessage;
     	String callId;
     	long time;
-    	public Dispatch(CallIDOrderingStructure callIDOrderingStructure, String callId) {
-    		this.callIDOrderingStructure = callIDOrderingStructure;
+    	public Dispatch(UnparsedMessage unparsedMessage, String callId) {
+    		this.unparsedMessage = unparsedMessage;
     		this.callId = callId;
     		time = System.currentTimeMillis();
     	}
-        public void run() {   
-        	
-            // we acquire it in the thread to avoid blocking other messages with a different call id
-            // that could be processed in parallel                                    
-            Semaphore semaphore = callIDOrderingStructure.getSemaphore();
-            final Queue<UnparsedMessage> messagesForCallID = callIDOrderingStructure.getMessagesForCallID();
-            try {                                                                                
-                boolean acquired = semaphore.tryAcquire(30, TimeUnit.SECONDS);
-                if(!acquired) {
-                	if (logger.isLoggingEnabled(StackLogger.TRACE_WARN)) {
-                		logger.logWarning("Semaphore acquisition for callId " + callId + " wasn't successful so don't process message, returning");
-                	}
-                	// https://java.net/jira/browse/JSIP-499 don't process the message if the semaphore wasn't acquired
-                	return;
-                } else {
-	                if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-	                	logger.logDebug("semaphore acquired for message " + callId + " acquired");
-	                }
-                }
-            } catch (InterruptedException e) {
-            	logger.logError("Semaphore acquisition for callId " + callId + " interrupted, couldn't process message, returning", e);
-            	// https://java.net/jira/browse/JSIP-499 don't process the message if the semaphore wasn't acquired
-            	return;
-            }
-            
-            UnparsedMessage unparsedMessage = null;
+        public void run() {
+            // the call id executor runs the messages of a call id one at a time and in order
             SIPMessage parsedSIPMessage = null;
-            boolean messagePolled = false;
             try {
-            	synchronized(smp) {
-            		unparsedMessage = messagesForCallID.peek();
-            		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-            			logger.logDebug( "\nUnparsed message before parser is:\n" + unparsedMessage);
-            		}
-        			parsedSIPMessage = smp.parseSIPMessage(unparsedMessage.lines.getBytes(), false, false, null);        		
-        			if(parsedSIPMessage == null) {
-        				// https://java.net/jira/browse/JSIP-503
-        				if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                			logger.logDebug( "parsed message is null, probably because of end of stream, empty packets or socket closed "
-                					+ "and we got CRLF to terminate cleanly, not processing message");
-                		}
-        			} else if(unparsedMessage.body.length > 0) {
-        				parsedSIPMessage.setMessageContent(unparsedMessage.body);
+        		parsedSIPMessage = parseMessage(unparsedMessage);
+        		if(parsedSIPMessage == null) {
+        			// https://java.net/jira/browse/JSIP-503
+        			if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+        				logger.logDebug( "parsed message is null, probably because of end of stream, empty packets or socket closed "
+        						+ "and we got CRLF to terminate cleanly, not processing message");
         			}
-            	}
+        		} else if(unparsedMessage.body.length > 0) {
+        			parsedSIPMessage.setMessageContent(unparsedMessage.body);
+        		}
             	if(sipStack.sipEventInterceptor != null
             			// https://java.net/jira/browse/JSIP-503
                 		&& parsedSIPMessage != null) {
             		sipStack.sipEventInterceptor.beforeMessage(parsedSIPMessage);
             	}
-
-            	// once acquired we get the first message to process
-            	messagesForCallID.poll();
-            	messagePolled = true;
             	if(parsedSIPMessage != null) { // https://java.net/jira/browse/JSIP-503
             		sipMessageListener.processMessage(parsedSIPMessage);
             	}
             } catch (ParseException e) {
-            	// https://java.net/jira/browse/JSIP-499 move the ParseException here so the finally block 
-            	// is called, the semaphore released and map cleaned up if need be
             	if (logger.isLoggingEnabled(StackLogger.TRACE_WARN)) {
             		logger.logWarning("Problem parsing message " + unparsedMessage);
             	}
     		}catch (Exception e) {
-            	logger.logError("Error occured processing message " + message, e);
+            	logger.logError("Error occured processing message " + unparsedMessage, e);
                 // We do not break the TCP connection because other calls use the same socket here
             } finally {            
-            	if(!messagePolled) {
-            		// https://java.net/jira/browse/JSIP-503 we poll the message only if it 
-            		// wasn't polled in case of some exception by example while parsing or before processing the message
-            		// as in the interceptor can cause the poll not to be called
-            		messagesForCallID.poll(); // move on to the next one
-            	}
-                if(messagesForCallID.size() <= 0) {
-                    messagesOrderingMap.remove(callId);
-                    if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                    	logger.logDebug("CallIDOrderingStructure removed for callId " + callId);
-                    }
-                }
-                if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                	logger.logDebug("releasing semaphore for message " + parsedSIPMessage);
-                }
-                //release the semaphore so that another thread can process another message from the call id queue in the correct order
-                // or a new message from another call id queue
-                semaphore.release(); 
-                if(messagesOrderingMap.isEmpty()) {
-                    synchronized (messagesOrderingMap) {
-                        messagesOrderingMap.notify();
-                    }
-                }
                 if(sipStack.sipEventInterceptor != null
                 		// https://java.net/jira/browse/JSIP-503
                 		&& parsedSIPMessage != null) {
@@ -241,155 +176,222 @@ public class NioPipelineParser {
 		
 	}
 	
-	StringBuffer message = new StringBuffer();
 	byte[] messageBody = null;
 	int contentLength = 0;
 	int contentReadSoFar = 0;
+
+	/**
+	 * Parse a framed message with the message parser of the current thread.
+	 */
+	private SIPMessage parseMessage(UnparsedMessage unparsedMessage) throws ParseException {
+		if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
+			logger.logDebug( "\nUnparsed message before parser is:\n" + unparsedMessage);
+		}
+		MessageParserFactory factory = sipStack.getMessageParserFactory();
+		ThreadMessageParser threadMessageParser = threadMessageParsers.get();
+		if(threadMessageParser == null || threadMessageParser.factory != factory) {
+			threadMessageParser = new ThreadMessageParser(factory, factory.createMessageParser(sipStack));
+			threadMessageParsers.set(threadMessageParser);
+		}
+		long parseStart = System.nanoTime();
+		SIPMessage sipMessage = threadMessageParser.parser.parseSIPMessage(unparsedMessage.headers, false, false, null);
+		if (sipStack.getStackMetrics() != null)
+			sipStack.getStackMetrics().parseTime(System.nanoTime() - parseStart);
+		return sipMessage;
+	}
 	
 	/*
 	 *  This is where we receive the bytes from the stream and we analyze the through message structure.
 	 *  For TCP the key things to identify are message lines for the headers, parse the Content-Length header
 	 *  and then read the message body (aka message content). For TCP the Content-Length must be 100% accurate.
 	 */
-	private void readStream(InputStream inputStream) throws IOException {
+	private void readBytes(byte[] bytes, int offset, int end) throws IOException {
 		boolean isPreviousLineCRLF = false;
-		while(true) { // We read continiously from the bytes we receive and only break where there are no more bytes in the inputStream passed to us
-			if(currentStreamEnded) break; // The stream ends when we have read all bytes in the chunk NIO passed to us
-			else {
-				if(readingHeaderLines) {// We are in state to read header lines right now
-					isPreviousLineCRLF = readMessageSipHeaderLines(inputStream, isPreviousLineCRLF);
-				}
-				if(readingMessageBodyContents) { // We've already read the headers an now we are reading the Contents of the SIP message (which doesn't generally have lines)
-					readMessageBody(inputStream);
+		while(offset < end) { // We read continiously from the bytes we receive and only break where there are no more bytes in the chunk passed to us
+			if(readingHeaderLines) {// We are in state to read header lines right now
+				int lf = indexOf(bytes, offset, end, (byte) '\n');
+				int length = (lf < 0 ? end : lf + 1) - offset;
+				consume(length);
+				appendToLine(bytes, offset, length);
+				offset += length;
+				if(lf < 0) {
+					break; // the line ends in the next chunk
 				}
+				isPreviousLineCRLF = readMessageSipHeaderLine(isPreviousLineCRLF);
+				lineLength = 0;
+			}
+			if(!readingHeaderLines) { // We've already read the headers an now we are reading the Contents of the SIP message (which doesn't generally have lines)
+				offset += readMessageBody(bytes, offset, end);
 			}
 		}
 	}
-	
-	private boolean readMessageSipHeaderLines(InputStream inputStream, boolean isPreviousLineCRLF) throws IOException {
+
+	private static int indexOf(byte[] bytes, int offset, int end, byte b) {
+		for (int i = offset; i < end; i++) {
+			if (bytes[i] == b)
+				return i;
+		}
+		return -1;
+	}
+
+	private void appendToLine(byte[] bytes, int offset, int length) {
+		if(lineLength + length > lineBuffer.length) {
+			lineBuffer = Arrays.copyOf(lineBuffer, Math.max(lineBuffer.length * 2, lineLength + length));
+		}
+		System.arraycopy(bytes, offset, lineBuffer, lineLength, length);
+		lineLength += length;
+	}
+
+	private void appendToHeaders(byte[] bytes, int length) {
+		if(headerLength + length > headerBuffer.length) {
+			headerBuffer = Arrays.copyOf(headerBuffer, Math.max(headerBuffer.length * 2, headerLength + length));
+		}
+		System.arraycopy(bytes, 0, headerBuffer, headerLength, length);
+		headerLength += length;
+	}
+
+	/**
+	 * Handle the complete line held in the line buffer, ending with LF.
+	 */
+	private boolean readMessageSipHeaderLine(boolean isPreviousLineCRLF) throws IOException {
 		boolean crlfReceived = false;
-		String line = readLine(inputStream); // This gives us a full line or if it didn't fit in the byte check it may give us part of the line
-		if(partialLineRead) {
-			partialLine = partialLine + line; // If we are reading partial line again we must concatenate it with the previous partial line to reconstruct the full line
+		// CRLF indicates END of message headers by RFC
+		int crs = 0;
+		while(lineBuffer[crs] == '\r') {
+			crs++;
+		}
+		if(crs == 0 || crs != lineLength - 1) {
+			appendToHeaders(lineBuffer, lineLength); // Collect the line so far in the message buffer (line by line)
+			sniffHeader();
 		} else {
-			line = partialLine + line; // If we reach the end of the line in this chunk we concatenate it with the partial line from the previous buffer to have a full line
-			partialLine = ""; // Reset the partial line so next time we will concatenate empty string instead of the obsolete partial line that we just took care of
-			if(!line.equals(CRLF)) { // CRLF indicates END of message headers by RFC
-				message.append(line); // Collect the line so far in the message buffer (line by line)
-                String lineIgnoreCase = line.toLowerCase();
-                // contribution from Alexander Saveliev compare to lower case as RFC 3261 states (7.3.1 Header Field Format) states that header fields are case-insensitive
-				if(lineIgnoreCase.startsWith(ContentLengthHeader.NAME.toLowerCase())) { // naive Content-Length header parsing to figure out how much bytes of message body must be read after the SIP headers
-					contentLength = Integer.parseInt(line.substring(
-							ContentLengthHeader.NAME.length()+1).trim());
-				} else if(lineIgnoreCase.startsWith(CallIdHeader.NAME.toLowerCase())) { // naive Content-Length header parsing to figure out how much bytes of message body must be read after the SIP headers
-					callId = line.substring(
-							CallIdHeader.NAME.length()+1).trim();
+			if(isPreviousLineCRLF) {
+				// Handling keepalive ping (double CRLF) as defined per RFC 5626 Section 4.4.1
+				// sending pong (single CRLF)
+				if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
+					logger.logDebug("~~~ setting isPreviousLineCRLF=false");
 				}
-			} else {				
-				if(isPreviousLineCRLF) {
-            		// Handling keepalive ping (double CRLF) as defined per RFC 5626 Section 4.4.1
-                	// sending pong (single CRLF)
-                	if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-                        logger.logDebug("KeepAlive Double CRLF received, sending single CRLF as defined per RFC 5626 Section 4.4.1");
-                        logger.logDebug("~~~ setting isPreviousLineCRLF=false");
-                    }
 
-                	crlfReceived = false;
-
-                	try {
-						sipMessageListener.sendSingleCRLF();
-					} catch (Exception e) {						
-						logger.logError("A problem occured while trying to send a single CRLF in response to a double CRLF", e);
-					}                	                	
-            	} else {
-            		crlfReceived = true;
-                	if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-                    	logger.logDebug("Received CRLF");
-                    }
-                	if(sipMessageListener != null && 
-                			sipMessageListener instanceof ConnectionOrientedMessageChannel) {
-                		((ConnectionOrientedMessageChannel)sipMessageListener).cancelPingKeepAliveTimeoutTaskIfStarted();
-                	}
-            	}
-				if(message.length() > 0) { // if we havent read any headers yet we are between messages and ignore CRLFs
-					readingMessageBodyContents = true;
-					readingHeaderLines = false;
-					partialLineRead = false;
-					message.append(CRLF); // the parser needs CRLF at the end, otherwise fails TODO: Is that a bug?
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Content Length parsed is " + contentLength);
-					}
+				crlfReceived = false;
 
-					contentReadSoFar = 0;
-					messageBody = new byte[contentLength];
+				try {
+					sipMessageListener.sendSingleCRLF();
+				} catch (Exception e) {						
+					logger.logError("A problem occured while trying to send a single CRLF in response to a double CRLF", e);
+				}                	                	
+			} else {
+				crlfReceived = true;
+				if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+					logger.logDebug("Received CRLF");
+				}
+				if(sipMessageListener != null && 
+						sipMessageListener instanceof ConnectionOrientedMessageChannel) {
+					((ConnectionOrientedMessageChannel)sipMessageListener).cancelPingKeepAliveTimeoutTaskIfStarted();
 				}
-			}			
+			}
+			if(headerLength > 0) { // if we havent read any headers yet we are between messages and ignore CRLFs
+				readingHeaderLines = false;
+				appendToHeaders(CRLF, CRLF.length); // the parser needs CRLF at the end, otherwise fails
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Content Length parsed is " + contentLength);
+				}
+
+				contentReadSoFar = 0;
+				messageBody = new byte[contentLength];
+			}
 		}
 		return crlfReceived;
 	}
 
-	// This method must be called repeatedly until the inputStream returns -1 or some error conditions is triggered
-	private void readMessageBody(InputStream inputStream) throws IOException {
-		int bytesRead = 0;
-		if(contentLength>0) {
-			bytesRead = readChunk(inputStream, messageBody, contentReadSoFar, contentLength-contentReadSoFar);
-			if(bytesRead == -1) {
-				currentStreamEnded = true;
-				bytesRead = 0; // avoid passing by a -1 for a one-off bug when contentReadSoFar gets wrong
+	/**
+	 * Pick the Content-Length and Call-ID out of a header line, compact forms
+	 * included, to frame the message and order its processing. Header names
+	 * are case-insensitive as RFC 3261 states (7.3.1 Header Field Format).
+	 */
+	private void sniffHeader() {
+		int colon = indexOf(lineBuffer, 0, lineLength, (byte) ':');
+		if(colon < 0) {
+			return;
+		}
+		int nameEnd = colon;
+		while(nameEnd > 0 && (lineBuffer[nameEnd - 1] == ' ' || lineBuffer[nameEnd - 1] == '\t')) {
+			nameEnd--;
+		}
+		if(nameEquals(CONTENT_LENGTH, nameEnd) || nameEquals(CONTENT_LENGTH_SHORT, nameEnd)) {
+			contentLength = Integer.parseInt(value(colon));
+		} else if(nameEquals(CALL_ID, nameEnd) || nameEquals(CALL_ID_SHORT, nameEnd)) {
+			callId = value(colon);
+		}
+	}
+
+	private boolean nameEquals(byte[] lowerCaseName, int nameEnd) {
+		if(nameEnd != lowerCaseName.length) {
+			return false;
+		}
+		for (int i = 0; i < nameEnd; i++) {
+			// ASCII only, setting the 0x20 bit lower cases letters
+			if((lineBuffer[i] | 0x20) != lowerCaseName[i]) {
+				return false;
 			}
 		}
-		contentReadSoFar += bytesRead;
+		return true;
+	}
+
+	private String value(int colon) {
+		try {
+			return new String(lineBuffer, colon + 1, lineLength - colon - 1, "UTF-8").trim();
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Read the body of the message from the bytes between offset and end, and
+	 * dispatch the message once complete.
+	 *
+	 * @return the number of bytes read
+	 */
+	private int readMessageBody(byte[] bytes, int offset, int end) throws IOException {
+		int bytesRead = Math.min(contentLength - contentReadSoFar, end - offset);
+		if(bytesRead > 0) {
+			consume(bytesRead);
+			System.arraycopy(bytes, offset, messageBody, contentReadSoFar, bytesRead);
+			contentReadSoFar += bytesRead;
+		}
 		if(contentReadSoFar == contentLength) { // We have read the full message headers + body
 			sizeCounter = maxMessageSize;
 			readingHeaderLines = true;
-			readingMessageBodyContents = false;
-			final String msgLines = message.toString();
-			message = new StringBuffer();
-			final byte[] msgBodyBytes = messageBody;
-			final int finalContentLength = contentLength;
-			
+			UnparsedMessage unparsedMessage = new UnparsedMessage(Arrays.copyOf(headerBuffer, headerLength), messageBody);
+			final String callId = this.callId;
+			headerLength = 0;
+			messageBody = null;
+			this.contentLength = 0;
+			this.callId = null;
 			
-			if(PostParseExecutorServices.getPostParseExecutor() != null) {
-				final String callId = this.callId;
-				if(callId == null || callId.trim().length() < 1) {
+			KeyedSerialExecutor<String> callIdExecutor = PostParseExecutorServices.getCallIdExecutor();
+			if(callIdExecutor != null) {
+				if(callId == null || callId.length() < 1) {
 					// http://code.google.com/p/jain-sip/issues/detail?id=18
 					// NIO Message with no Call-ID throws NPE
 					throw new IOException("received message with no Call-ID");
 				}
-                // http://dmy999.com/article/34/correct-use-of-concurrenthashmap
-                CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
-                if(orderingStructure == null) {
-                    CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
-                    orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
-                    if(orderingStructure == null) {
-                        orderingStructure = newCallIDOrderingStructure;       
-                        if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                            logger.logDebug("new CallIDOrderingStructure added for message " + message);
-                        }
-                    }
-                }
-                final CallIDOrderingStructure callIDOrderingStructure = orderingStructure;                                 
-                // we add the message to the pending queue of messages to be processed for that call id here 
-                // to avoid blocking other messages with a different call id
-                // that could be processed in parallel
-                callIDOrderingStructure.getMessagesForCallID().offer(new UnparsedMessage(msgLines, msgBodyBytes));                                                                                   
-                
-                PostParseExecutorServices.getPostParseExecutor().execute(new Dispatch(callIDOrderingStructure, callId)); // run in executor thread
+                // messages with the same call id are processed in order, the others
+                // in parallel, without any thread waiting for another
+                callIdExecutor.execute(callId, new Dispatch(unparsedMessage, callId));
 			} else {
 				SIPMessage sipMessage = null;
-				synchronized(smp) {
-					try {
-						sipMessage = smp.parseSIPMessage(msgLines.getBytes(), false, false, null);
-						sipMessage.setMessageContent(msgBodyBytes);
-					} catch (ParseException e) {
-						logger.logError("Parsing problem", e);
+				try {
+					sipMessage = parseMessage(unparsedMessage);
+					if(sipMessage != null) {
+						sipMessage.setMessageContent(unparsedMessage.body);
 					}
+				} catch (ParseException e) {
+					logger.logError("Parsing problem", e);
 				}
-				this.contentLength = 0;
 				processSIPMessage(sipMessage);
 			}
 		}
-
+		return Math.max(bytesRead, 0);
 	}
 
 	public void processSIPMessage(SIPMessage message) {
@@ -401,9 +403,14 @@ public class NioPipelineParser {
 	}
 	
 	public synchronized void addBytes(byte[] bytes)  throws Exception{
-		currentStreamEnded = false;
-		ByteArrayInputStream inputStream = new ByteArrayInputStream(bytes);
-		readStream(inputStream);
+		readBytes(bytes, 0, bytes.length);
+	}
+
+	/**
+	 * Add the bytes of a region of an array, the array is not kept once the call returns.
+	 */
+	public synchronized void addBytes(byte[] bytes, int offset, int length)  throws Exception{
+		readBytes(bytes, offset, offset + length);
 	}
 
 
@@ -431,7 +438,6 @@ public class NioPipelineParser {
              boolean debug, int maxMessageSize) {
         this();
         this.sipStack = sipStack;
-        this.smp = sipStack.getMessageParserFactory().createMessageParser(sipStack);
         this.sipMessageListener = sipMessageListener;
         this.maxMessageSize = maxMessageSize;
         this.sizeCounter = this.maxMessageSize;
@@ -465,73 +471,10 @@ public class NioPipelineParser {
     public void setMessageListener(SIPMessageListener mlistener) {
         sipMessageListener = mlistener;
     }
-    
-	private int readChunk(InputStream inputStream, byte[] where, int offset, int length) throws IOException {
-		int read =  inputStream.read(where, offset, length);
-		sizeCounter -= read;
-		checkLimits();
-		return read;
-	}
-	
-	private int readSingleByte(InputStream inputStream) throws IOException {
-		sizeCounter --;
-		checkLimits();
-		return inputStream.read();
-	}
 	
-	private void checkLimits() {
+	private void consume(int length) {
+		sizeCounter -= length;
 		if(maxMessageSize > 0 && sizeCounter < 0) throw new RuntimeException("Max Message Size Exceeded " + maxMessageSize);
 	}
 
-    /**
-     * read a line of input. Note that we encode the result in UTF-8
-     */
-    private String readLine(InputStream inputStream) throws IOException {
-    	partialLineRead = false;
-        int counter = 0;
-        int increment = 1024;
-        int bufferSize = increment;
-        byte[] lineBuffer = new byte[bufferSize];
-        // handles RFC 5626 CRLF keepalive mechanism
-        byte[] crlfBuffer = new byte[2];
-        int crlfCounter = 0;
-        while (true) {
-            char ch;
-            int i = readSingleByte(inputStream);
-            if (i == -1) {
-                partialLineRead = true;
-                currentStreamEnded = true;
-                break;
-            } else
-                ch = (char) ( i & 0xFF);
-            
-            if (ch != '\r')
-                lineBuffer[counter++] = (byte) (i&0xFF);
-            else if (counter == 0)            	
-            	crlfBuffer[crlfCounter++] = (byte) '\r';
-                       
-            if (ch == '\n') {
-            	if(counter == 1 && crlfCounter > 0) {
-            		crlfBuffer[crlfCounter++] = (byte) '\n';            		
-            	} 
-            	break;            	
-            }
-            
-            if( counter == bufferSize ) {
-                byte[] tempBuffer = new byte[bufferSize + increment];
-                System.arraycopy((Object)lineBuffer,0, (Object)tempBuffer, 0, bufferSize);
-                bufferSize = bufferSize + increment;
-                lineBuffer = tempBuffer;
-                
-            }
-        }
-        if(counter == 1 && crlfCounter > 0) {
-        	return new String(crlfBuffer,0,crlfCounter,"UTF-8");
-        } else {
-        	return new String(lineBuffer,0,counter,"UTF-8");
-        }
-        
-    }
-    
-
-}
\ No newline at end of file
+}
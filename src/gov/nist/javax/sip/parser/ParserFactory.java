@@ -81,7 +81,9 @@ import gov.nist.javax.sip.parser.ims.ServiceRouteParser;
 
 import java.lang.reflect.Constructor;
 import java.text.ParseException;
+import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 
 import javax.sip.header.AcceptEncodingHeader;
@@ -154,239 +156,393 @@ public class ParserFactory {
     private static Map<String,Class<? extends HeaderParser>> parserTable;
     private static Class[] constructorArgs;
     private static ConcurrentHashMap<Class, Constructor> parserConstructorCache;
+    // parsers registered at runtime, these take precedence over the built in ones
+    private static Map<String,Class<? extends HeaderParser>> registeredParsers;
+    // the built in parsers, filled with the parser table and not changed after
+    private static Map<String,ParserCreator<?>> parserCreators;
+
+    /**
+     * Constructs a built in parser directly rather than through reflection.
+     * The type parameter ties the constructor called to the class put in the
+     * parser table.
+     */
+    private abstract static class ParserCreator<P extends HeaderParser> {
+        final Class<P> parserClass;
+
+        ParserCreator(Class<P> parserClass) {
+            this.parserClass = parserClass;
+        }
+
+        abstract P create(String line);
+    }
+
+    private static void put(String lowerCaseHeaderName, ParserCreator<?> creator) {
+        parserTable.put(lowerCaseHeaderName, creator.parserClass);
+        parserCreators.put(lowerCaseHeaderName, creator);
+    }
 
     static {
         parserTable = new ConcurrentHashMap<String,Class<? extends HeaderParser>>(90);
         parserConstructorCache = new ConcurrentHashMap<Class, Constructor>();
+        registeredParsers = new ConcurrentHashMap<String,Class<? extends HeaderParser>>();
+        parserCreators = new HashMap<String,ParserCreator<?>>(128);
         constructorArgs = new Class[1];
         constructorArgs[0] = String.class;
-        parserTable.put(ReplyToHeader.NAME.toLowerCase(), ReplyToParser.class);
-
-        parserTable.put(
-            InReplyToHeader.NAME.toLowerCase(),
-            InReplyToParser.class);
-
-        parserTable.put(
-            AcceptEncodingHeader.NAME.toLowerCase(),
-            AcceptEncodingParser.class);
-
-        parserTable.put(
-            AcceptLanguageHeader.NAME.toLowerCase(),
-            AcceptLanguageParser.class);
-
-        parserTable.put("t", ToParser.class);
-        parserTable.put(ToHeader.NAME.toLowerCase(), ToParser.class);
-
-        parserTable.put(FromHeader.NAME.toLowerCase(), FromParser.class);
-        parserTable.put("f", FromParser.class);
-
-        parserTable.put(CSeqHeader.NAME.toLowerCase(), CSeqParser.class);
-
-        parserTable.put(ViaHeader.NAME.toLowerCase(), ViaParser.class);
-        parserTable.put("v", ViaParser.class);
-
-        parserTable.put(ContactHeader.NAME.toLowerCase(), ContactParser.class);
-        parserTable.put("m", ContactParser.class);
-
-        parserTable.put(
-            ContentTypeHeader.NAME.toLowerCase(),
-            ContentTypeParser.class);
-        parserTable.put("c", ContentTypeParser.class);
-
-        parserTable.put(
-            ContentLengthHeader.NAME.toLowerCase(),
-            ContentLengthParser.class);
-        parserTable.put("l", ContentLengthParser.class);
-
-        parserTable.put(
-            AuthorizationHeader.NAME.toLowerCase(),
-            AuthorizationParser.class);
-
-        parserTable.put(
-            WWWAuthenticateHeader.NAME.toLowerCase(),
-            WWWAuthenticateParser.class);
-
-        parserTable.put(CallIdHeader.NAME.toLowerCase(), CallIDParser.class);
-        parserTable.put("i", CallIDParser.class);
-
-        parserTable.put(RouteHeader.NAME.toLowerCase(), RouteParser.class);
-
-        parserTable.put(
-            RecordRouteHeader.NAME.toLowerCase(),
-            RecordRouteParser.class);
-
-        parserTable.put(DateHeader.NAME.toLowerCase(), DateParser.class);
-
-        parserTable.put(
-            ProxyAuthorizationHeader.NAME.toLowerCase(),
-            ProxyAuthorizationParser.class);
-
-        parserTable.put(
-            ProxyAuthenticateHeader.NAME.toLowerCase(),
-            ProxyAuthenticateParser.class);
-
-        parserTable.put(
-            RetryAfterHeader.NAME.toLowerCase(),
-            RetryAfterParser.class);
-
-        parserTable.put(RequireHeader.NAME.toLowerCase(), RequireParser.class);
-
-        parserTable.put(
-            ProxyRequireHeader.NAME.toLowerCase(),
-            ProxyRequireParser.class);
-
-        parserTable.put(
-            TimeStampHeader.NAME.toLowerCase(),
-            TimeStampParser.class);
-
-        parserTable.put(
-            UnsupportedHeader.NAME.toLowerCase(),
-            UnsupportedParser.class);
-
-        parserTable.put(
-            UserAgentHeader.NAME.toLowerCase(),
-            UserAgentParser.class);
-
-        parserTable.put(
-            SupportedHeader.NAME.toLowerCase(),
-            SupportedParser.class);
+        put(ReplyToHeader.NAME.toLowerCase(), new ParserCreator<ReplyToParser>(ReplyToParser.class) {
+            ReplyToParser create(String line) { return new ReplyToParser(line); }
+        });
+
+        put(InReplyToHeader.NAME.toLowerCase(), new ParserCreator<InReplyToParser>(InReplyToParser.class) {
+            InReplyToParser create(String line) { return new InReplyToParser(line); }
+        });
+
+        put(AcceptEncodingHeader.NAME.toLowerCase(), new ParserCreator<AcceptEncodingParser>(AcceptEncodingParser.class) {
+            AcceptEncodingParser create(String line) { return new AcceptEncodingParser(line); }
+        });
+
+        put(AcceptLanguageHeader.NAME.toLowerCase(), new ParserCreator<AcceptLanguageParser>(AcceptLanguageParser.class) {
+            AcceptLanguageParser create(String line) { return new AcceptLanguageParser(line); }
+        });
+
+        put("t", new ParserCreator<ToParser>(ToParser.class) {
+            ToParser create(String line) { return new ToParser(line); }
+        });
+        put(ToHeader.NAME.toLowerCase(), new ParserCreator<ToParser>(ToParser.class) {
+            ToParser create(String line) { return new ToParser(line); }
+        });
+
+        put(FromHeader.NAME.toLowerCase(), new ParserCreator<FromParser>(FromParser.class) {
+            FromParser create(String line) { return new FromParser(line); }
+        });
+        put("f", new ParserCreator<FromParser>(FromParser.class) {
+            FromParser create(String line) { return new FromParser(line); }
+        });
+
+        put(CSeqHeader.NAME.toLowerCase(), new ParserCreator<CSeqParser>(CSeqParser.class) {
+            CSeqParser create(String line) { return new CSeqParser(line); }
+        });
+
+        put(ViaHeader.NAME.toLowerCase(), new ParserCreator<ViaParser>(ViaParser.class) {
+            ViaParser create(String line) { return new ViaParser(line); }
+        });
+        put("v", new ParserCreator<ViaParser>(ViaParser.class) {
+            ViaParser create(String line) { return new ViaParser(line); }
+        });
+
+        put(ContactHeader.NAME.toLowerCase(), new ParserCreator<ContactParser>(ContactParser.class) {
+            ContactParser create(String line) { return new ContactParser(line); }
+        });
+        put("m", new ParserCreator<ContactParser>(ContactParser.class) {
+            ContactParser create(String line) { return new ContactParser(line); }
+        });
+
+        put(ContentTypeHeader.NAME.toLowerCase(), new ParserCreator<ContentTypeParser>(ContentTypeParser.class) {
+            ContentTypeParser create(String line) { return new ContentTypeParser(line); }
+        });
+        put("c", new ParserCreator<ContentTypeParser>(ContentTypeParser.class) {
+            ContentTypeParser create(String line) { return new ContentTypeParser(line); }
+        });
+
+        put(ContentLengthHeader.NAME.toLowerCase(), new ParserCreator<ContentLengthParser>(ContentLengthParser.class) {
+            ContentLengthParser create(String line) { return new ContentLengthParser(line); }
+        });
+        put("l", new ParserCreator<ContentLengthParser>(ContentLengthParser.class) {
+            ContentLengthParser create(String line) { return new ContentLengthParser(line); }
+        });
+
+        put(AuthorizationHeader.NAME.toLowerCase(), new ParserCreator<AuthorizationParser>(AuthorizationParser.class) {
+            AuthorizationParser create(String line) { return new AuthorizationParser(line); }
+        });
+
+        put(WWWAuthenticateHeader.NAME.toLowerCase(), new ParserCreator<WWWAuthenticateParser>(WWWAuthenticateParser.class) {
+            WWWAuthenticateParser create(String line) { return new WWWAuthenticateParser(line); }
+        });
+
+        put(CallIdHeader.NAME.toLowerCase(), new ParserCreator<CallIDParser>(CallIDParser.class) {
+            CallIDParser create(String line) { return new CallIDParser(line); }
+        });
+        put("i", new ParserCreator<CallIDParser>(CallIDParser.class) {
+            CallIDParser create(String line) { return new CallIDParser(line); }
+        });
+
+        put(RouteHeader.NAME.toLowerCase(), new ParserCreator<RouteParser>(RouteParser.class) {
+            RouteParser create(String line) { return new RouteParser(line); }
+        });
+
+        put(RecordRouteHeader.NAME.toLowerCase(), new ParserCreator<RecordRouteParser>(RecordRouteParser.class) {
+            RecordRouteParser create(String line) { return new RecordRouteParser(line); }
+        });
+
+        put(DateHeader.NAME.toLowerCase(), new ParserCreator<DateParser>(DateParser.class) {
+            DateParser create(String line) { return new DateParser(line); }
+        });
+
+        put(ProxyAuthorizationHeader.NAME.toLowerCase(), new ParserCreator<ProxyAuthorizationParser>(ProxyAuthorizationParser.class) {
+            ProxyAuthorizationParser create(String line) { return new ProxyAuthorizationParser(line); }
+        });
+
+        put(ProxyAuthenticateHeader.NAME.toLowerCase(), new ParserCreator<ProxyAuthenticateParser>(ProxyAuthenticateParser.class) {
+            ProxyAuthenticateParser create(String line) { return new ProxyAuthenticateParser(line); }
+        });
+
+        put(RetryAfterHeader.NAME.toLowerCase(), new ParserCreator<RetryAfterParser>(RetryAfterParser.class) {
+            RetryAfterParser create(String line) { return new RetryAfterParser(line); }
+        });
+
+        put(RequireHeader.NAME.toLowerCase(), new ParserCreator<RequireParser>(RequireParser.class) {
+            RequireParser create(String line) { return new RequireParser(line); }
+        });
+
+        put(ProxyRequireHeader.NAME.toLowerCase(), new ParserCreator<ProxyRequireParser>(ProxyRequireParser.class) {
+            ProxyRequireParser create(String line) { return new ProxyRequireParser(line); }
+        });
+
+        put(TimeStampHeader.NAME.toLowerCase(), new ParserCreator<TimeStampParser>(TimeStampParser.class) {
+            TimeStampParser create(String line) { return new TimeStampParser(line); }
+        });
+
+        put(UnsupportedHeader.NAME.toLowerCase(), new ParserCreator<UnsupportedParser>(UnsupportedParser.class) {
+            UnsupportedParser create(String line) { return new UnsupportedParser(line); }
+        });
+
+        put(UserAgentHeader.NAME.toLowerCase(), new ParserCreator<UserAgentParser>(UserAgentParser.class) {
+            UserAgentParser create(String line) { return new UserAgentParser(line); }
+        });
+
+        put(SupportedHeader.NAME.toLowerCase(), new ParserCreator<SupportedParser>(SupportedParser.class) {
+            SupportedParser create(String line) { return new SupportedParser(line); }
+        });
         // bug fix by Steve Crosley
-        parserTable.put("k", SupportedParser.class);
-
-        parserTable.put(ServerHeader.NAME.toLowerCase(), ServerParser.class);
-
-        parserTable.put(SubjectHeader.NAME.toLowerCase(), SubjectParser.class);
-        parserTable.put( "s", SubjectParser.class); // JvB: added
-
-        parserTable.put(
-            SubscriptionStateHeader.NAME.toLowerCase(),
-            SubscriptionStateParser.class);
-
-        parserTable.put(
-            MaxForwardsHeader.NAME.toLowerCase(),
-            MaxForwardsParser.class);
-
-        parserTable.put(
-            MimeVersionHeader.NAME.toLowerCase(),
-            MimeVersionParser.class);
-
-        parserTable.put(
-            MinExpiresHeader.NAME.toLowerCase(),
-            MinExpiresParser.class);
-
-        parserTable.put(
-            OrganizationHeader.NAME.toLowerCase(),
-            OrganizationParser.class);
-
-        parserTable.put(
-            PriorityHeader.NAME.toLowerCase(),
-            PriorityParser.class);
-
-        parserTable.put(RAckHeader.NAME.toLowerCase(), RAckParser.class);
-
-        parserTable.put(RSeqHeader.NAME.toLowerCase(), RSeqParser.class);
-
-        parserTable.put(ReasonHeader.NAME.toLowerCase(), ReasonParser.class);
-
-        parserTable.put(WarningHeader.NAME.toLowerCase(), WarningParser.class);
-
-        parserTable.put(ExpiresHeader.NAME.toLowerCase(), ExpiresParser.class);
-
-        parserTable.put(EventHeader.NAME.toLowerCase(), EventParser.class);
-        parserTable.put("o", EventParser.class);
-
-        parserTable.put(
-            ErrorInfoHeader.NAME.toLowerCase(),
-            ErrorInfoParser.class);
-
-        parserTable.put(
-            ContentLanguageHeader.NAME.toLowerCase(),
-            ContentLanguageParser.class);
-
-        parserTable.put(
-            ContentEncodingHeader.NAME.toLowerCase(),
-            ContentEncodingParser.class);
-        parserTable.put("e", ContentEncodingParser.class);
-
-        parserTable.put(
-            ContentDispositionHeader.NAME.toLowerCase(),
-            ContentDispositionParser.class);
-
-        parserTable.put(
-            CallInfoHeader.NAME.toLowerCase(),
-            CallInfoParser.class);
-
-        parserTable.put(
-            AuthenticationInfoHeader.NAME.toLowerCase(),
-            AuthenticationInfoParser.class);
-
-        parserTable.put(AllowHeader.NAME.toLowerCase(), AllowParser.class);
-
-        parserTable.put(
-            AllowEventsHeader.NAME.toLowerCase(),
-            AllowEventsParser.class);
-        parserTable.put("u", AllowEventsParser.class);
-
-        parserTable.put(
-            AlertInfoHeader.NAME.toLowerCase(),
-            AlertInfoParser.class);
-
-        parserTable.put(AcceptHeader.NAME.toLowerCase(), AcceptParser.class);
-
-        parserTable.put(ReferToHeader.NAME.toLowerCase(), ReferToParser.class);
+        put("k", new ParserCreator<SupportedParser>(SupportedParser.class) {
+            SupportedParser create(String line) { return new SupportedParser(line); }
+        });
+
+        put(ServerHeader.NAME.toLowerCase(), new ParserCreator<ServerParser>(ServerParser.class) {
+            ServerParser create(String line) { return new ServerParser(line); }
+        });
+
+        put(SubjectHeader.NAME.toLowerCase(), new ParserCreator<SubjectParser>(SubjectParser.class) {
+            SubjectParser create(String line) { return new SubjectParser(line); }
+        });
+        put("s", new ParserCreator<SubjectParser>(SubjectParser.class) {
+            SubjectParser create(String line) { return new SubjectParser(line); }
+        }); // JvB: added
+
+        put(SubscriptionStateHeader.NAME.toLowerCase(), new ParserCreator<SubscriptionStateParser>(SubscriptionStateParser.class) {
+            SubscriptionStateParser create(String line) { return new SubscriptionStateParser(line); }
+        });
+
+        put(MaxForwardsHeader.NAME.toLowerCase(), new ParserCreator<MaxForwardsParser>(MaxForwardsParser.class) {
+            MaxForwardsParser create(String line) { return new MaxForwardsParser(line); }
+        });
+
+        put(MimeVersionHeader.NAME.toLowerCase(), new ParserCreator<MimeVersionParser>(MimeVersionParser.class) {
+            MimeVersionParser create(String line) { return new MimeVersionParser(line); }
+        });
+
+        put(MinExpiresHeader.NAME.toLowerCase(), new ParserCreator<MinExpiresParser>(MinExpiresParser.class) {
+            MinExpiresParser create(String line) { return new MinExpiresParser(line); }
+        });
+
+        put(OrganizationHeader.NAME.toLowerCase(), new ParserCreator<OrganizationParser>(OrganizationParser.class) {
+            OrganizationParser create(String line) { return new OrganizationParser(line); }
+        });
+
+        put(PriorityHeader.NAME.toLowerCase(), new ParserCreator<PriorityParser>(PriorityParser.class) {
+            PriorityParser create(String line) { return new PriorityParser(line); }
+        });
+
+        put(RAckHeader.NAME.toLowerCase(), new ParserCreator<RAckParser>(RAckParser.class) {
+            RAckParser create(String line) { return new RAckParser(line); }
+        });
+
+        put(RSeqHeader.NAME.toLowerCase(), new ParserCreator<RSeqParser>(RSeqParser.class) {
+            RSeqParser create(String line) { return new RSeqParser(line); }
+        });
+
+        put(ReasonHeader.NAME.toLowerCase(), new ParserCreator<ReasonParser>(ReasonParser.class) {
+            ReasonParser create(String line) { return new ReasonParser(line); }
+        });
+
+        put(WarningHeader.NAME.toLowerCase(), new ParserCreator<WarningParser>(WarningParser.class) {
+            WarningParser create(String line) { return new WarningParser(line); }
+        });
+
+        put(ExpiresHeader.NAME.toLowerCase(), new ParserCreator<ExpiresParser>(ExpiresParser.class) {
+            ExpiresParser create(String line) { return new ExpiresParser(line); }
+        });
+
+        put(EventHeader.NAME.toLowerCase(), new ParserCreator<EventParser>(EventParser.class) {
+            EventParser create(String line) { return new EventParser(line); }
+        });
+        put("o", new ParserCreator<EventParser>(EventParser.class) {
+            EventParser create(String line) { return new EventParser(line); }
+        });
+
+        put(ErrorInfoHeader.NAME.toLowerCase(), new ParserCreator<ErrorInfoParser>(ErrorInfoParser.class) {
+            ErrorInfoParser create(String line) { return new ErrorInfoParser(line); }
+        });
+
+        put(ContentLanguageHeader.NAME.toLowerCase(), new ParserCreator<ContentLanguageParser>(ContentLanguageParser.class) {
+            ContentLanguageParser create(String line) { return new ContentLanguageParser(line); }
+        });
+
+        put(ContentEncodingHeader.NAME.toLowerCase(), new ParserCreator<ContentEncodingParser>(ContentEncodingParser.class) {
+            ContentEncodingParser create(String line) { return new ContentEncodingParser(line); }
+        });
+        put("e", new ParserCreator<ContentEncodingParser>(ContentEncodingParser.class) {
+            ContentEncodingParser create(String line) { return new ContentEncodingParser(line); }
+        });
+
+        put(ContentDispositionHeader.NAME.toLowerCase(), new ParserCreator<ContentDispositionParser>(ContentDispositionParser.class) {
+            ContentDispositionParser create(String line) { return new ContentDispositionParser(line); }
+        });
+
+        put(CallInfoHeader.NAME.toLowerCase(), new ParserCreator<CallInfoParser>(CallInfoParser.class) {
+            CallInfoParser create(String line) { return new CallInfoParser(line); }
+        });
+
+        put(AuthenticationInfoHeader.NAME.toLowerCase(), new ParserCreator<AuthenticationInfoParser>(AuthenticationInfoParser.class) {
+            AuthenticationInfoParser create(String line) { return new AuthenticationInfoParser(line); }
+        });
+
+        put(AllowHeader.NAME.toLowerCase(), new ParserCreator<AllowParser>(AllowParser.class) {
+            AllowParser create(String line) { return new AllowParser(line); }
+        });
+
+        put(AllowEventsHeader.NAME.toLowerCase(), new ParserCreator<AllowEventsParser>(AllowEventsParser.class) {
+            AllowEventsParser create(String line) { return new AllowEventsParser(line); }
+        });
+        put("u", new ParserCreator<AllowEventsParser>(AllowEventsParser.class) {
+            AllowEventsParser create(String line) { return new AllowEventsParser(line); }
+        });
+
+        put(AlertInfoHeader.NAME.toLowerCase(), new ParserCreator<AlertInfoParser>(AlertInfoParser.class) {
+            AlertInfoParser create(String line) { return new AlertInfoParser(line); }
+        });
+
+        put(AcceptHeader.NAME.toLowerCase(), new ParserCreator<AcceptParser>(AcceptParser.class) {
+            AcceptParser create(String line) { return new AcceptParser(line); }
+        });
+
+        put(ReferToHeader.NAME.toLowerCase(), new ParserCreator<ReferToParser>(ReferToParser.class) {
+            ReferToParser create(String line) { return new ReferToParser(line); }
+        });
         // Was missing (bug noticed by Steve Crossley)
-        parserTable.put("r", ReferToParser.class);
+        put("r", new ParserCreator<ReferToParser>(ReferToParser.class) {
+            ReferToParser create(String line) { return new ReferToParser(line); }
+        });
 
         // JvB: added to support RFC3903 PUBLISH
-        parserTable.put(SIPETagHeader.NAME.toLowerCase(), SIPETagParser.class);
-        parserTable.put(SIPIfMatchHeader.NAME.toLowerCase(), SIPIfMatchParser.class);
+        put(SIPETagHeader.NAME.toLowerCase(), new ParserCreator<SIPETagParser>(SIPETagParser.class) {
+            SIPETagParser create(String line) { return new SIPETagParser(line); }
+        });
+        put(SIPIfMatchHeader.NAME.toLowerCase(), new ParserCreator<SIPIfMatchParser>(SIPIfMatchParser.class) {
+            SIPIfMatchParser create(String line) { return new SIPIfMatchParser(line); }
+        });
 
         //IMS headers
-        parserTable.put(PAccessNetworkInfoHeader.NAME.toLowerCase(), PAccessNetworkInfoParser.class);
-        parserTable.put(PAssertedIdentityHeader.NAME.toLowerCase(), PAssertedIdentityParser.class);
-        parserTable.put(PPreferredIdentityHeader.NAME.toLowerCase(), PPreferredIdentityParser.class);
-        parserTable.put(PChargingVectorHeader.NAME.toLowerCase(), PChargingVectorParser.class);
-        parserTable.put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), PChargingFunctionAddressesParser.class);
-        parserTable.put(PMediaAuthorizationHeader.NAME.toLowerCase(), PMediaAuthorizationParser.class);
-        parserTable.put(PathHeader.NAME.toLowerCase(), PathParser.class);
-        parserTable.put(PrivacyHeader.NAME.toLowerCase(), PrivacyParser.class);
-        parserTable.put(ServiceRouteHeader.NAME.toLowerCase(), ServiceRouteParser.class);
-        parserTable.put(PVisitedNetworkIDHeader.NAME.toLowerCase(), PVisitedNetworkIDParser.class);
+        put(PAccessNetworkInfoHeader.NAME.toLowerCase(), new ParserCreator<PAccessNetworkInfoParser>(PAccessNetworkInfoParser.class) {
+            PAccessNetworkInfoParser create(String line) { return new PAccessNetworkInfoParser(line); }
+        });
+        put(PAssertedIdentityHeader.NAME.toLowerCase(), new ParserCreator<PAssertedIdentityParser>(PAssertedIdentityParser.class) {
+            PAssertedIdentityParser create(String line) { return new PAssertedIdentityParser(line); }
+        });
+        put(PPreferredIdentityHeader.NAME.toLowerCase(), new ParserCreator<PPreferredIdentityParser>(PPreferredIdentityParser.class) {
+            PPreferredIdentityParser create(String line) { return new PPreferredIdentityParser(line); }
+        });
+        put(PChargingVectorHeader.NAME.toLowerCase(), new ParserCreator<PChargingVectorParser>(PChargingVectorParser.class) {
+            PChargingVectorParser create(String line) { return new PChargingVectorParser(line); }
+        });
+        put(PChargingFunctionAddressesHeader.NAME.toLowerCase(), new ParserCreator<PChargingFunctionAddressesParser>(PChargingFunctionAddressesParser.class) {
+            PChargingFunctionAddressesParser create(String line) { return new PChargingFunctionAddressesParser(line); }
+        });
+        put(PMediaAuthorizationHeader.NAME.toLowerCase(), new ParserCreator<PMediaAuthorizationParser>(PMediaAuthorizationParser.class) {
+            PMediaAuthorizationParser create(String line) { return new PMediaAuthorizationParser(line); }
+        });
+        put(PathHeader.NAME.toLowerCase(), new ParserCreator<PathParser>(PathParser.class) {
+            PathParser create(String line) { return new PathParser(line); }
+        });
+        put(PrivacyHeader.NAME.toLowerCase(), new ParserCreator<PrivacyParser>(PrivacyParser.class) {
+            PrivacyParser create(String line) { return new PrivacyParser(line); }
+        });
+        put(ServiceRouteHeader.NAME.toLowerCase(), new ParserCreator<ServiceRouteParser>(ServiceRouteParser.class) {
+            ServiceRouteParser create(String line) { return new ServiceRouteParser(line); }
+        });
+        put(PVisitedNetworkIDHeader.NAME.toLowerCase(), new ParserCreator<PVisitedNetworkIDParser>(PVisitedNetworkIDParser.class) {
+            PVisitedNetworkIDParser create(String line) { return new PVisitedNetworkIDParser(line); }
+        });
         
         // added for more P-header extensions for IMS :
-        parserTable.put(PServedUserHeader.NAME.toLowerCase(), PServedUserParser.class);
-        parserTable.put(PPreferredServiceHeader.NAME.toLowerCase(), PPreferredServiceParser.class);
-        parserTable.put(PAssertedServiceHeader.NAME.toLowerCase(), PAssertedServiceParser.class);
-        parserTable.put(PProfileKeyHeader.NAME.toLowerCase(), PProfileKeyParser.class);
-        parserTable.put(PUserDatabaseHeader.NAME.toLowerCase(), PUserDatabaseParser.class);
+        put(PServedUserHeader.NAME.toLowerCase(), new ParserCreator<PServedUserParser>(PServedUserParser.class) {
+            PServedUserParser create(String line) { return new PServedUserParser(line); }
+        });
+        put(PPreferredServiceHeader.NAME.toLowerCase(), new ParserCreator<PPreferredServiceParser>(PPreferredServiceParser.class) {
+            PPreferredServiceParser create(String line) { return new PPreferredServiceParser(line); }
+        });
+        put(PAssertedServiceHeader.NAME.toLowerCase(), new ParserCreator<PAssertedServiceParser>(PAssertedServiceParser.class) {
+            PAssertedServiceParser create(String line) { return new PAssertedServiceParser(line); }
+        });
+        put(PProfileKeyHeader.NAME.toLowerCase(), new ParserCreator<PProfileKeyParser>(PProfileKeyParser.class) {
+            PProfileKeyParser create(String line) { return new PProfileKeyParser(line); }
+        });
+        put(PUserDatabaseHeader.NAME.toLowerCase(), new ParserCreator<PUserDatabaseParser>(PUserDatabaseParser.class) {
+            PUserDatabaseParser create(String line) { return new PUserDatabaseParser(line); }
+        });
         
 
-        parserTable.put(PAssociatedURIHeader.NAME.toLowerCase(), PAssociatedURIParser.class);
-        parserTable.put(PCalledPartyIDHeader.NAME.toLowerCase(), PCalledPartyIDParser.class);
+        put(PAssociatedURIHeader.NAME.toLowerCase(), new ParserCreator<PAssociatedURIParser>(PAssociatedURIParser.class) {
+            PAssociatedURIParser create(String line) { return new PAssociatedURIParser(line); }
+        });
+        put(PCalledPartyIDHeader.NAME.toLowerCase(), new ParserCreator<PCalledPartyIDParser>(PCalledPartyIDParser.class) {
+            PCalledPartyIDParser create(String line) { return new PCalledPartyIDParser(line); }
+        });
 
-        parserTable.put(SecurityServerHeader.NAME.toLowerCase(), SecurityServerParser.class);
-        parserTable.put(SecurityClientHeader.NAME.toLowerCase(), SecurityClientParser.class);
-        parserTable.put(SecurityVerifyHeader.NAME.toLowerCase(), SecurityVerifyParser.class);
+        put(SecurityServerHeader.NAME.toLowerCase(), new ParserCreator<SecurityServerParser>(SecurityServerParser.class) {
+            SecurityServerParser create(String line) { return new SecurityServerParser(line); }
+        });
+        put(SecurityClientHeader.NAME.toLowerCase(), new ParserCreator<SecurityClientParser>(SecurityClientParser.class) {
+            SecurityClientParser create(String line) { return new SecurityClientParser(line); }
+        });
+        put(SecurityVerifyHeader.NAME.toLowerCase(), new ParserCreator<SecurityVerifyParser>(SecurityVerifyParser.class) {
+            SecurityVerifyParser create(String line) { return new SecurityVerifyParser(line); }
+        });
 
 
         // Per RFC 3892 (pmusgrave)
-        parserTable.put(ReferredBy.NAME.toLowerCase(), ReferredByParser.class);
-        parserTable.put("b", ReferToParser.class);
+        put(ReferredBy.NAME.toLowerCase(), new ParserCreator<ReferredByParser>(ReferredByParser.class) {
+            ReferredByParser create(String line) { return new ReferredByParser(line); }
+        });
+        put("b", new ParserCreator<ReferToParser>(ReferToParser.class) {
+            ReferToParser create(String line) { return new ReferToParser(line); }
+        });
 
         // Per RFC4028 Session Timers (pmusgrave)
-        parserTable.put(SessionExpires.NAME.toLowerCase(), SessionExpiresParser.class);
-        parserTable.put("x", SessionExpiresParser.class);
-        parserTable.put(MinSE.NAME.toLowerCase(), MinSEParser.class);
+        put(SessionExpires.NAME.toLowerCase(), new ParserCreator<SessionExpiresParser>(SessionExpiresParser.class) {
+            SessionExpiresParser create(String line) { return new SessionExpiresParser(line); }
+        });
+        put("x", new ParserCreator<SessionExpiresParser>(SessionExpiresParser.class) {
+            SessionExpiresParser create(String line) { return new SessionExpiresParser(line); }
+        });
+        put(MinSE.NAME.toLowerCase(), new ParserCreator<MinSEParser>(MinSEParser.class) {
+            MinSEParser create(String line) { return new MinSEParser(line); }
+        });
         // (RFC4028 does not give a short form header for MinSE)
 
         // Per RFC3891 (pmusgrave)
-        parserTable.put(Replaces.NAME.toLowerCase(), ReplacesParser.class);
+        put(Replaces.NAME.toLowerCase(), new ParserCreator<ReplacesParser>(ReplacesParser.class) {
+            ReplacesParser create(String line) { return new ReplacesParser(line); }
+        });
 
         // Per RFC3911 (jean deruelle)
-        parserTable.put(Join.NAME.toLowerCase(), JoinParser.class);
+        put(Join.NAME.toLowerCase(), new ParserCreator<JoinParser>(JoinParser.class) {
+            JoinParser create(String line) { return new JoinParser(line); }
+        });
         
         //http://tools.ietf.org/html/draft-worley-references-05
-        parserTable.put(References.NAME.toLowerCase(), ReferencesParser.class);
+        put(References.NAME.toLowerCase(), new ParserCreator<ReferencesParser>(ReferencesParser.class) {
+            ReferencesParser create(String line) { return new ReferencesParser(line); }
+        });
         
     }
 
@@ -394,6 +550,7 @@ public class ParserFactory {
     * This method is added to support parser extensibility.
     */
     public static void addToParserTable(String headerName, Class<? extends HeaderParser> parserClass) {
+       registeredParsers.put(headerName.toLowerCase(), parserClass);
        parserTable.put(headerName.toLowerCase(), parserClass);
     }
 
@@ -407,30 +564,77 @@ public class ParserFactory {
         if (headerName == null || headerValue == null)
             throw new ParseException("The header name or value is null", 0);
 
-        Class parserClass = (Class) parserTable.get(SIPHeaderNamesCache.toLowerCase(headerName));
-        if (parserClass != null) {
-            try {
-                Constructor cons = (Constructor) parserConstructorCache.get(parserClass);
-                if (cons == null) {
-                    cons = parserClass.getConstructor(constructorArgs);
-                    parserConstructorCache.putIfAbsent(parserClass, cons);
-                }
-                Object[] args = new Object[1];
-                args[0] = line;
-                HeaderParser retval = (HeaderParser) cons.newInstance(args);
-                return retval;
-
-            } catch (Exception ex) {
-                InternalErrorHandler.handleException(ex);
-                return null; // to placate the compiler.
-            }
-
+        HeaderParser parser = createParser(SIPHeaderNamesCache.toLowerCase(headerName), line);
+        if (parser != null) {
+            return parser;
         } else {
             // Just generate a generic SIPHeader. We define
             // parsers only for the above.
             return new HeaderParser(line);
         }
     }
+
+    /**
+     * Create the parser for a lower case header name and its header line
+     * ("name: value\n"), or return null if the header is not known to the
+     * factory and should be treated as an extension header. Parsers
+     * registered through addToParserTable are instantiated reflectively, the
+     * built in ones are constructed directly.
+     */
+    static HeaderParser createParser(String lowerCaseHeaderName, String line) {
+        if (!registeredParsers.isEmpty()) {
+            Class<? extends HeaderParser> parserClass = registeredParsers.get(lowerCaseHeaderName);
+            if (parserClass != null)
+                return createParser(parserClass, line);
+        }
+        return createBuiltInParser(lowerCaseHeaderName, line);
+    }
+
+    /**
+     * Construct one of the built in parsers without going through reflection.
+     */
+    private static HeaderParser createBuiltInParser(String lowerCaseHeaderName, String line) {
+        ParserCreator<?> creator = parserCreators.get(lowerCaseHeaderName);
+        return creator == null ? null : creator.create(line);
+    }
+
+    /**
+     * Get the parser class registered for a lower case header name, or null if
+     * the header is not known to the factory and should be treated as an
+     * extension header.
+     */
+    static Class<? extends HeaderParser> getParserClass(String lowerCaseHeaderName) {
+        return parserTable.get(lowerCaseHeaderName);
+    }
+
+    /**
+     * Get the lower case names of all the headers registered with the factory.
+     */
+    static Set<String> getParserTableNames() {
+        return parserTable.keySet();
+    }
+
+    /**
+     * Instantiate a registered parser class for the given header line
+     * ("name: value\n").
+     */
+    static HeaderParser createParser(Class<? extends HeaderParser> parserClass, String line) {
+        try {
+            Constructor cons = (Constructor) parserConstructorCache.get(parserClass);
+            if (cons == null) {
+                cons = parserClass.getConstructor(constructorArgs);
+                parserConstructorCache.putIfAbsent(parserClass, cons);
+            }
+            Object[] args = new Object[1];
+            args[0] = line;
+            HeaderParser retval = (HeaderParser) cons.newInstance(args);
+            return retval;
+
+        } catch (Exception ex) {
+            InternalErrorHandler.handleException(ex);
+            return null; // to placate the compiler.
+        }
+    }
 }
 /*
  * $Log: not supported by cvs2svn $
@@ -45,6 +45,7 @@ import gov.nist.javax.sip.header.ContentLength;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.stack.BlockingQueueDispatchAuditor;
 import gov.nist.javax.sip.stack.ConnectionOrientedMessageChannel;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
 import gov.nist.javax.sip.stack.QueuedMessageDispatchBase;
 import gov.nist.javax.sip.stack.SIPTransactionStack;
 
@@ -52,16 +53,13 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.UnsupportedEncodingException;
 import java.text.ParseException;
-import java.util.Queue;
 import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * This implements a pipelined message parser suitable for use with a stream -
@@ -98,7 +96,8 @@ public final class PipelinedMsgParser implements Runnable {
     private int sizeCounter;
     private SIPTransactionStack sipStack;
     private MessageParser smp = null;
-    private ConcurrentHashMap<String, CallIDOrderingStructure> messagesOrderingMap = new ConcurrentHashMap<String, CallIDOrderingStructure>();
+    // messages handed to the call id executor and not processed yet
+    private final AtomicInteger messagesInFlight = new AtomicInteger();
     boolean isRunning = false;
     
     /**
@@ -254,58 +253,27 @@ public final class PipelinedMsgParser implements Runnable {
         
     }
     
-    public class Dispatch implements Runnable, QueuedMessageDispatchBase{
-    	CallIDOrderingStructure callIDOrderingStructure;
+    public class Dispatch implements KeyedSerialExecutor.DroppableTask, QueuedMessageDispatchBase{
+    	SIPMessage message;
     	String callId;
     	long time;
-    	public Dispatch(CallIDOrderingStructure callIDOrderingStructure, String callId) {
-    		this.callIDOrderingStructure = callIDOrderingStructure;
+    	public Dispatch(SIPMessage message, String callId) {
+    		this.message = message;
     		this.callId = callId;
     		time = System.currentTimeMillis();
     	}
         public void run() {   
-        	
-            // we acquire it in the thread to avoid blocking other messages with a different call id
-            // that could be processed in parallel                                    
-            Semaphore semaphore = callIDOrderingStructure.getSemaphore();
-            final Queue<SIPMessage> messagesForCallID = callIDOrderingStructure.getMessagesForCallID();
+            // the call id executor runs the messages of a call id one at a time and in order
             if(sipStack.sipEventInterceptor != null) {
-            	sipStack.sipEventInterceptor.beforeMessage(messagesForCallID.peek());
+            	sipStack.sipEventInterceptor.beforeMessage(message);
             }
-            try {                                                                                
-                semaphore.acquire();                                        
-            } catch (InterruptedException e) {
-                logger.logError("Semaphore acquisition for callId " + callId + " interrupted", e);
-            }
-            // once acquired we get the first message to process
-            SIPMessage message = messagesForCallID.poll();
-            if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-            	logger.logDebug("semaphore acquired for message " + message);
-            }
-            
             try {
                 sipMessageListener.processMessage(message);
             } catch (Exception e) {
             	logger.logError("Error occured processing message", e);    
                 // We do not break the TCP connection because other calls use the same socket here
             } finally {                                        
-                if(messagesForCallID.size() <= 0) {
-                    messagesOrderingMap.remove(callId);
-                    if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                    	logger.logDebug("CallIDOrderingStructure removed for message " + callId);
-                    }
-                }
-                if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                	logger.logDebug("releasing semaphore for message " + message);
-                }
-                //release the semaphore so that another thread can process another message from the call id queue in the correct order
-                // or a new message from another call id queue
-                semaphore.release(); 
-                if(messagesOrderingMap.isEmpty()) {
-                    synchronized (messagesOrderingMap) {
-                        messagesOrderingMap.notify();
-                    }
-                }
+                done();
                 if(sipStack.sipEventInterceptor != null) {
                 	sipStack.sipEventInterceptor.afterMessage(message);
                 }
@@ -313,6 +281,19 @@ public final class PipelinedMsgParser implements Runnable {
             if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
             	logger.logDebug("dispatch task done on " + message + " threadname " + mythread.getName());
             }
+        }
+        /**
+         * The message expired in its queue or the pool is stopping, the reader must not wait for it.
+         */
+        public void dropped() {
+            done();
+        }
+        private void done() {
+            if(messagesInFlight.decrementAndGet() == 0) {
+                synchronized (messagesInFlight) {
+                    messagesInFlight.notify();
+                }
+            }
         }
 		public long getReceptionTime() {
 			return time;
@@ -389,14 +370,15 @@ public final class PipelinedMsgParser implements Runnable {
                     	// or we are leaking because the thread is waiting forever
                     	if(PostParseExecutorServices.getPostParseExecutor() != null && isRunning){
                     		if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-                                logger.logDebug("waiting for messagesOrderingMap " + this + " threadname " + mythread.getName());
-                            synchronized (messagesOrderingMap) {
+                                logger.logDebug("waiting for messagesInFlight " + this + " threadname " + mythread.getName());
+                            synchronized (messagesInFlight) {
                                 try {
-                                    messagesOrderingMap.wait(64000);
+                                    if(messagesInFlight.get() > 0)
+                                        messagesInFlight.wait(64000);
                                 } catch (InterruptedException e) {}                                
                             }  
                             if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-                                logger.logDebug("got notified for messagesOrderingMap " + this + " threadname " + mythread.getName());                            
+                                logger.logDebug("got notified for messagesInFlight " + this + " threadname " + mythread.getName());                            
                         }
                         this.rawInputStream.stopTimer();
                         if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -429,14 +411,15 @@ public final class PipelinedMsgParser implements Runnable {
                     	// or we are leaking because the thread is waiting forever
                     	if(PostParseExecutorServices.getPostParseExecutor() != null && isRunning){
                     		if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-                                logger.logDebug("waiting for messagesOrderingMap " + this + " threadname " + mythread.getName());
-                            synchronized (messagesOrderingMap) {
+                                logger.logDebug("waiting for messagesInFlight " + this + " threadname " + mythread.getName());
+                            synchronized (messagesInFlight) {
                                 try {
-                                    messagesOrderingMap.wait(64000);
+                                    if(messagesInFlight.get() > 0)
+                                        messagesInFlight.wait(64000);
                                 } catch (InterruptedException e) {}                                
                             }  
                             if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-                                logger.logDebug("got notified for messagesOrderingMap " + this + " threadname " + mythread.getName());                            
+                                logger.logDebug("got notified for messagesInFlight " + this + " threadname " + mythread.getName());                            
                         }
                         this.rawInputStream.stopTimer();
                         if (logger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
@@ -466,11 +449,14 @@ public final class PipelinedMsgParser implements Runnable {
 					} catch (UnsupportedEncodingException e) {
 						// logging required ??
 					}
+                    long parseStart = System.nanoTime();
                     if(inputBufferBytes != null) {
                     	sipMessage = smp.parseSIPMessage(inputBufferBytes, false, false, sipMessageListener);
                     } else {
                     	sipMessage = smp.parseSIPMessage(inputBuffer.toString().getBytes(), false, false, sipMessageListener);
                     }
+                    if (sipStack.getStackMetrics() != null)
+                        sipStack.getStackMetrics().parseTime(System.nanoTime() - parseStart);
                     if (sipMessage == null) {
                         this.rawInputStream.stopTimer();
                         continue;
@@ -540,7 +526,8 @@ public final class PipelinedMsgParser implements Runnable {
                 // return error from there.
                 if (sipMessageListener != null) {
                     try {
-                        if(PostParseExecutorServices.getPostParseExecutor() == null) {
+                        KeyedSerialExecutor<String> callIdExecutor = PostParseExecutorServices.getCallIdExecutor();
+                        if(callIdExecutor == null) {
                         	
                             /**
                              * If gov.nist.javax.sip.TCP_POST_PARSING_THREAD_POOL_SIZE is disabled
@@ -562,25 +549,10 @@ public final class PipelinedMsgParser implements Runnable {
                             // so we lock and queue of messages per Call Id
                             
                             final String callId = sipMessage.getCallId().getCallId();
-                            // http://dmy999.com/article/34/correct-use-of-concurrenthashmap
-                            CallIDOrderingStructure orderingStructure = messagesOrderingMap.get(callId);
-                            if(orderingStructure == null) {
-                                CallIDOrderingStructure newCallIDOrderingStructure = new CallIDOrderingStructure();
-                                orderingStructure = messagesOrderingMap.putIfAbsent(callId, newCallIDOrderingStructure);
-                                if(orderingStructure == null) {
-                                    orderingStructure = newCallIDOrderingStructure;       
-                                    if (stackLogger.isLoggingEnabled(StackLogger.TRACE_DEBUG)) {
-                                        stackLogger.logDebug("new CallIDOrderingStructure added for message " + sipMessage);
-                                    }
-                                }
-                            }
-                            final CallIDOrderingStructure callIDOrderingStructure = orderingStructure;                                 
-                            // we add the message to the pending queue of messages to be processed for that call id here 
-                            // to avoid blocking other messages with a different call id
-                            // that could be processed in parallel
-                            callIDOrderingStructure.getMessagesForCallID().offer(sipMessage);                                                                                   
-                            
-                            PostParseExecutorServices.getPostParseExecutor().execute(new Dispatch(callIDOrderingStructure, callId)); // run in executor thread
+                            // messages with a different call id are processed in parallel
+                            // without any thread waiting for another
+                            messagesInFlight.incrementAndGet();
+                            callIdExecutor.execute(callId, new Dispatch(sipMessage, callId));
                         }
                     } catch (Exception ex) {
                         // fatal error in processing - close the
@@ -591,7 +563,7 @@ public final class PipelinedMsgParser implements Runnable {
             }
         } finally {
             try {
-                cleanMessageOrderingMap();
+                notifyReaderThread();
                 if(!inputStream.isClosed()) {
             		inputStream.close();
             	}
@@ -601,35 +573,6 @@ public final class PipelinedMsgParser implements Runnable {
         }
     }
 
-    /**
-     * Data structure to make sure ordering of Messages is guaranteed under TCP when the post parsing thread pool is used
-     * @author jean.deruelle@gmail.com
-     *
-     */
-    class CallIDOrderingStructure {
-        private Semaphore semaphore;
-        private Queue<SIPMessage> messagesForCallID;
-        
-        public CallIDOrderingStructure() {
-            semaphore = new Semaphore(1, true);
-            messagesForCallID = new ConcurrentLinkedQueue<SIPMessage>();
-        }        
-
-        /**
-         * @return the semaphore
-         */
-        public Semaphore getSemaphore() {
-            return semaphore;
-        }
-       
-        /**
-         * @return the messagesForCallID
-         */
-        public Queue<SIPMessage> getMessagesForCallID() {
-            return messagesForCallID;
-        }
-    }
-
     public void close() {
         isRunning = false;
     	if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
@@ -642,7 +585,7 @@ public final class PipelinedMsgParser implements Runnable {
             // Ignore.
         }                
         if(PostParseExecutorServices.getPostParseExecutor() != null){
-        	cleanMessageOrderingMap();
+        	notifyReaderThread();
         	synchronized (mythread) {
             	mythread.notifyAll();
             	//interrupting because there is a race condition on the messagesOrderingMap.wait() that
@@ -652,18 +595,13 @@ public final class PipelinedMsgParser implements Runnable {
         }         
     }
     
-    private void cleanMessageOrderingMap() {        
-    	// not needed and can cause NPE on close if race condition
-//    	for (CallIDOrderingStructure callIDOrderingStructure: messagesOrderingMap.values()) {
-//			callIDOrderingStructure.getSemaphore().release();
-//			callIDOrderingStructure.getMessagesForCallID().clear();
-//		}
-        messagesOrderingMap.clear();
-        synchronized (messagesOrderingMap) {
-            messagesOrderingMap.notifyAll();
+    private void notifyReaderThread() {        
+        // the messages already handed to the call id executor still get processed
+        synchronized (messagesInFlight) {
+            messagesInFlight.notifyAll();
         }
     	if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-            logger.logDebug("cleaned the messagesOrderingMap " + this + " threadname " + mythread.getName());
+            logger.logDebug("notified the reader waiting for messagesInFlight " + this + " threadname " + mythread.getName());
     }
 }
 /*
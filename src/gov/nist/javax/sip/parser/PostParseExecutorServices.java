@@ -1,6 +1,7 @@
 package gov.nist.javax.sip.parser;
 
-import gov.nist.javax.sip.stack.BlockingQueueDispatchAuditor;
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
+import gov.nist.javax.sip.stack.QueuedMessageDispatchBase;
 
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
@@ -10,7 +11,10 @@ import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 public class PostParseExecutorServices {
+	// tasks a Call-ID runs before it lets the other Call-IDs have the thread
+	private static final int CALL_ID_THROUGHPUT = 16;
 	private static ExecutorService postParseExecutor = null;
+	private static KeyedSerialExecutor<String> callIdExecutor = null;
     
     public static class NamedThreadFactory implements ThreadFactory {
     	static long threadNumber = 0;
@@ -23,29 +27,22 @@ public class PostParseExecutorServices {
     }
  
     public static BlockingQueue<Runnable> staticQueue;
-    public static BlockingQueueDispatchAuditor staticQueueAuditor;
     public static void setPostParseExcutorSize(int threads, int queueTimeout){
     	if(postParseExecutor != null) {
     		postParseExecutor.shutdownNow();
     	}
-    	if(staticQueueAuditor != null) {
-    		try {
-    			staticQueueAuditor.stop();
-    		} catch (Exception e) {
-
-    		}
-    	}
     	if(threads<=0) {
     		postParseExecutor = null;
+    		callIdExecutor = null;
     	} else {
     		staticQueue = new LinkedBlockingQueue<Runnable>();
     		postParseExecutor = new ThreadPoolExecutor(threads, threads,
     				0, TimeUnit.SECONDS, staticQueue,
     				new NamedThreadFactory());
-
-    		staticQueueAuditor = new BlockingQueueDispatchAuditor(staticQueue);
-    		staticQueueAuditor.setTimeout(queueTimeout);
-    		staticQueueAuditor.start(2000);
+    		// messages that waited too long are dropped by the mailboxes, a queue
+    		// auditor removing a mailbox from the pool queue would stall its Call-ID
+    		callIdExecutor = new KeyedSerialExecutor<String>(postParseExecutor,
+    				CALL_ID_THROUGHPUT, queueTimeout);
     	}
 
     }
@@ -53,17 +50,35 @@ public class PostParseExecutorServices {
     public static ExecutorService getPostParseExecutor() {
     	return postParseExecutor;
     }
+
+    /**
+     * @return the executor that runs the messages of a Call-ID in order on the
+     * post parse thread pool, null if there is no pool
+     */
+    public static KeyedSerialExecutor<String> getCallIdExecutor() {
+    	return callIdExecutor;
+    }
+
+    /**
+     * @return how long, in milliseconds, the oldest message waiting for a
+     * post parse thread has been queued
+     */
+    public static long getQueueDelay() {
+    	BlockingQueue<Runnable> queue = staticQueue;
+    	if(postParseExecutor == null || queue == null) {
+    		return 0;
+    	}
+    	Runnable oldest = queue.peek();
+    	if(oldest instanceof QueuedMessageDispatchBase) {
+    		return System.currentTimeMillis() - ((QueuedMessageDispatchBase) oldest).getReceptionTime();
+    	}
+    	return 0;
+    }
     public static void shutdownThreadpool() {
     	if(postParseExecutor != null) {
     		postParseExecutor.shutdown();
     		postParseExecutor = null;
+    		callIdExecutor = null;
         }
-    	if(staticQueueAuditor != null) {
-    		try {
-    			staticQueueAuditor.stop();
-    		} catch (Exception e) {
-
-    		}
-    	}
     }
 }
@@ -0,0 +1,119 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement.
+ *
+ */
+package gov.nist.javax.sip.parser;
+
+import gov.nist.core.ByteBufferWriter;
+import gov.nist.javax.sip.header.SIPHeader;
+
+import java.nio.charset.Charset;
+import java.text.ParseException;
+
+/**
+ * A header that has not been parsed yet, kept as a slice of the buffer the
+ * message was received in. The slice covers the header line and its
+ * continuation lines, without the final end of line. Instances are immutable
+ * and are created by a lazy {@link ByteMsgParser}.
+ *
+ * @see gov.nist.javax.sip.message.SIPMessage#addRawHeader(RawHeader)
+ */
+public final class RawHeader {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] buffer;
+    private final int start;
+    private final int nameEnd;
+    private final int end;
+
+    RawHeader(byte[] buffer, int start, int nameEnd, int end) {
+        this.buffer = buffer;
+        this.start = start;
+        this.nameEnd = nameEnd;
+        this.end = end;
+    }
+
+    /**
+     * Case insensitive comparison of the name of the header, without
+     * building a String.
+     *
+     * @param lowerCaseName the lower case name of the header to compare to.
+     */
+    public boolean hasName(String lowerCaseName) {
+        int length = nameEnd - start;
+        if (lowerCaseName.length() != length)
+            return false;
+        for (int k = 0; k < length; k++) {
+            if ((buffer[start + k] | 0x20) != (lowerCaseName.charAt(k) | 0x20))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return the name of the header as received.
+     */
+    public String getName() {
+        return new String(buffer, start, nameEnd - start, UTF8);
+    }
+
+    /**
+     * Parse the header.
+     *
+     * @throws ParseException if the header is malformed.
+     */
+    public SIPHeader parse() throws ParseException {
+        return ByteMsgParser.parseHeader(buffer, start, end);
+    }
+
+    /**
+     * @return the number of bytes of the header as received.
+     */
+    public int length() {
+        return end - start;
+    }
+
+    /**
+     * Copy the header as received to <code>dest</code>.
+     *
+     * @return the offset following the copied bytes.
+     */
+    public int getBytes(byte[] dest, int offset) {
+        System.arraycopy(buffer, start, dest, offset, end - start);
+        return offset + end - start;
+    }
+
+    /**
+     * Copy the header as received to a writer.
+     */
+    public void encode(ByteBufferWriter writer) {
+        writer.append(buffer, start, end - start);
+    }
+
+    /**
+     * @return the header as received, without the end of line.
+     */
+    public String toString() {
+        return new String(buffer, start, end - start, UTF8);
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.io.IOException;
+import java.util.Properties;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.LogLevels;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.EventScanner;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.header.RetryAfter;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.PostParseExecutorServices;
+
+import javax.sip.SipStack;
+import javax.sip.message.Response;
+
+/**
+ * A congestion control valve that sheds load when messages actually wait too
+ * long inside the stack, rather than when a table reaches a fixed size.
+ * 
+ * The valve samples how long the oldest message has been waiting in the UDP
+ * message queues, in the TCP post parse executor queue and in the event
+ * dispatch queues, and how long the listener takes to process a request. Like
+ * CoDel it looks at the smallest queuing delay seen during an interval: a
+ * queue that never drains below the target delay during a whole interval is a
+ * standing queue, whereas a short burst is not. At the end of each interval
+ * the share of new dialog creating requests that is admitted goes down by half
+ * when the stack is overloaded, and up by a tenth otherwise (AIMD). Requests
+ * that are not admitted are answered with 503 Service Unavailable and a
+ * Retry-After header. In-dialog requests and requests that do not create a
+ * dialog are always let through.
+ * 
+ * To enable this in your application you must specify this property:
+ * gov.nist.javax.sip.SIP_MESSAGE_VALVE=gov.nist.javax.sip.stack.AdaptiveCongestionControlMessageValve
+ * 
+ * The following properties tune it:
+ * <ul>
+ * <li>gov.nist.javax.sip.CONGESTION_TARGET_DELAY: acceptable queuing delay in
+ * milliseconds, default 50.</li>
+ * <li>gov.nist.javax.sip.CONGESTION_INTERVAL: control interval in
+ * milliseconds, default 100.</li>
+ * <li>gov.nist.javax.sip.CONGESTION_LISTENER_TARGET: acceptable average time
+ * for the listener to process a request in milliseconds, default 200.</li>
+ * <li>gov.nist.javax.sip.CONGESTION_RETRY_AFTER: seconds sent in the
+ * Retry-After header, default 5.</li>
+ * </ul>
+ * 
+ * The state of the controller is available from the getters of this class.
+ */
+public class AdaptiveCongestionControlMessageValve implements SIPMessageValve {
+	private static StackLogger logger = CommonLogger.getLogger(AdaptiveCongestionControlMessageValve.class);
+
+	// Never shut the door completely so that recovery is noticed
+	private static final double MIN_ADMIT_RATIO = 0.05;
+	private static final double DECREASE_FACTOR = 0.5;
+	private static final double INCREASE_STEP = 0.1;
+
+	protected SipStackImpl sipStack;
+	protected long targetDelay = 50;
+	protected long interval = 100;
+	protected long listenerTarget = 200;
+	protected int retryAfter = 5;
+
+	private volatile double admitRatio = 1.0;
+	private volatile long queueDelay;
+	private volatile long listenerResponseTime;
+	private volatile boolean congested;
+	private volatile long nextSample;
+	// guarded by this
+	private long intervalStart;
+	private long minDelay = Long.MAX_VALUE;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+
+	public boolean processRequest(SIPRequest request,
+			MessageChannel messageChannel) {
+		sample(currentTimeMillis());
+
+		// Only new dialogs are shed, everything else completes work already accepted
+		if(request.getToTag() != null || !SIPTransactionStack.isDialogCreated(request.getMethod())) {
+			return true;
+		}
+		double ratio = admitRatio;
+		if(ratio >= 1.0 || ThreadLocalRandom.current().nextDouble() < ratio) {
+			admitted.incrementAndGet();
+			return true;
+		}
+		rejected.incrementAndGet();
+		SIPResponse response = request.createResponse(Response.SERVICE_UNAVAILABLE);
+		try {
+			RetryAfter retryAfterHeader = new RetryAfter();
+			retryAfterHeader.setRetryAfter(retryAfter);
+			response.setHeader(retryAfterHeader);
+			messageChannel.sendMessage(response);
+		} catch (IOException e) {
+			logger.logError("Failed to send congestion control error response" + response, e);
+		} catch (Exception e) {
+			logger.logError("Failed to create congestion control error response" + response, e);
+		}
+		return false; // Do not pass this request to the pipeline
+	}
+
+	/**
+	 * Measure the delays a few times per interval and run the controller at the
+	 * end of each interval.
+	 */
+	private void sample(long now) {
+		if(now < nextSample) {
+			return;
+		}
+		synchronized(this) {
+			if(now < nextSample) {
+				return;
+			}
+			nextSample = now + Math.max(1, interval / 4);
+			long delay = measureQueueDelay();
+			queueDelay = delay;
+			listenerResponseTime = measureListenerResponseTime();
+			if(delay < minDelay) {
+				minDelay = delay;
+			}
+			long elapsed = now - intervalStart;
+			if(elapsed < interval) {
+				return;
+			}
+			boolean overloaded = minDelay > targetDelay || listenerResponseTime > listenerTarget;
+			double ratio = admitRatio;
+			if(overloaded) {
+				ratio = Math.max(MIN_ADMIT_RATIO, ratio * DECREASE_FACTOR);
+			} else {
+				// Grow by one step per interval elapsed, there may have been no traffic to sample
+				ratio = Math.min(1.0, ratio + INCREASE_STEP * Math.min(10, elapsed / interval));
+			}
+			admitRatio = ratio;
+			if(overloaded != congested && logger.isLoggingEnabled(LogLevels.TRACE_WARN)) {
+				logger.logWarning((overloaded ? "Congestion detected" : "Congestion cleared")
+						+ ": queue delay " + minDelay + " ms, listener response time "
+						+ listenerResponseTime + " ms, admitting " + (int) (ratio * 100) + "% of new dialogs");
+			}
+			congested = overloaded;
+			intervalStart = now;
+			minDelay = Long.MAX_VALUE;
+		}
+	}
+
+	/**
+	 * @return the age in milliseconds of the oldest message waiting in any
+	 * queue of the stack
+	 */
+	protected long measureQueueDelay() {
+		long delay = PostParseExecutorServices.getQueueDelay();
+		for(MessageProcessor messageProcessor : sipStack.getMessageProcessors()) {
+			if(messageProcessor instanceof UDPMessageProcessor) {
+				delay = Math.max(delay, ((UDPMessageProcessor) messageProcessor).getQueueDelay());
+			}
+		}
+		EventScanner eventScanner = sipStack.getEventScanner();
+		if(eventScanner != null) {
+			delay = Math.max(delay, eventScanner.getQueueDelay());
+		}
+		return delay;
+	}
+
+	/**
+	 * @return the average time in milliseconds the listener takes to process
+	 * a request
+	 */
+	protected long measureListenerResponseTime() {
+		EventScanner eventScanner = sipStack.getEventScanner();
+		return eventScanner == null ? 0 : eventScanner.getListenerResponseTime();
+	}
+
+	/**
+	 * @return the time in milliseconds the intervals are measured with
+	 */
+	protected long currentTimeMillis() {
+		return System.currentTimeMillis();
+	}
+
+	public boolean processResponse(Response response,
+			MessageChannel messageChannel) {
+		return true;
+	}
+
+	/**
+	 * @return the share of new dialog creating requests currently admitted,
+	 * between 0.05 and 1
+	 */
+	public double getAdmitRatio() {
+		return admitRatio;
+	}
+
+	/**
+	 * @return whether the last interval ended with the stack overloaded
+	 */
+	public boolean isCongested() {
+		return congested;
+	}
+
+	/**
+	 * @return the queuing delay in milliseconds measured last
+	 */
+	public long getQueueDelay() {
+		return queueDelay;
+	}
+
+	/**
+	 * @return the average listener response time in milliseconds measured last
+	 */
+	public long getListenerResponseTime() {
+		return listenerResponseTime;
+	}
+
+	/**
+	 * @return number of dialog creating requests let through
+	 */
+	public long getAdmittedRequests() {
+		return admitted.get();
+	}
+
+	/**
+	 * @return number of dialog creating requests answered with 503
+	 */
+	public long getRejectedRequests() {
+		return rejected.get();
+	}
+
+	public void destroy() {
+		logger.logInfo("Destroying the adaptive congestion control valve " + this);
+	}
+
+	public void init(SipStack stack) {
+		sipStack = (SipStackImpl) stack;
+		logger.logInfo("Initializing adaptive congestion control valve");
+		Properties properties = sipStack.getConfigurationProperties();
+		targetDelay = getLong(properties, "gov.nist.javax.sip.CONGESTION_TARGET_DELAY", targetDelay);
+		interval = Math.max(1, getLong(properties, "gov.nist.javax.sip.CONGESTION_INTERVAL", interval));
+		listenerTarget = getLong(properties, "gov.nist.javax.sip.CONGESTION_LISTENER_TARGET", listenerTarget);
+		retryAfter = (int) getLong(properties, "gov.nist.javax.sip.CONGESTION_RETRY_AFTER", retryAfter);
+		intervalStart = currentTimeMillis();
+	}
+
+	private static long getLong(Properties properties, String name, long defaultValue) {
+		String value = properties.getProperty(name);
+		if(value == null) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(value.trim());
+		} catch (NumberFormatException e) {
+			logger.logError("Bad configuration value for " + name + "=" + value, e);
+			return defaultValue;
+		}
+	}
+}
@@ -29,12 +29,40 @@ import gov.nist.core.CommonLogger;
 import gov.nist.core.LogWriter;
 import gov.nist.core.StackLogger;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Contributed by Alexander Saveliev, Avistar Communications for Issue http://java.net/jira/browse/JSIP-430
  * Allows to choose between direct vs non direct buffers
- * 
+ * <p>
+ * Buffers are pooled by size class (powers of two from 512 bytes to 64KB). A
+ * buffer handed back with {@link #release(ByteBuffer)} is kept in a small cache
+ * of the releasing thread, then in a shared pool, and reused by the next
+ * allocation of the same class, so the NIO channels and the TLS engine don't
+ * allocate (often direct) buffers for every read and write. The returned
+ * buffers may be bigger than requested. A buffer that is never released is
+ * simply garbage collected. Larger requests are not pooled.
+ * </p>
+ * <p>
+ * The factory keeps a weak record of each buffer it pooled, so that a buffer
+ * it didn't allocate or that was already released is refused by
+ * {@link #release(ByteBuffer)} instead of being handed out to two owners.
+ * </p>
+ * <p>
+ * When leak detection is enabled the factory remembers where each pooled
+ * buffer was allocated and logs the buffers that got garbage collected without
+ * being released, as well as the refused releases.
+ * </p>
  */
 public class ByteBufferFactory {
 
@@ -42,8 +70,45 @@ public class ByteBufferFactory {
 
     private static ByteBufferFactory instance = new ByteBufferFactory();
 
+    private static final int MIN_SIZE_SHIFT = 9;
+    private static final int MAX_SIZE_SHIFT = 16;
+    private static final int SIZE_CLASSES = MAX_SIZE_SHIFT - MIN_SIZE_SHIFT + 1;
+    // buffers kept per size class in each thread and in the shared pool
+    private static final int THREAD_CACHE_SIZE = 8;
+    private static final int SHARED_POOL_SIZE = 256;
+
     private boolean useDirect = true;
 
+    private volatile boolean pooled = true;
+
+    private volatile boolean leakDetection = false;
+
+    private final SizeClass[] directClasses = new SizeClass[SIZE_CLASSES];
+    private final SizeClass[] heapClasses = new SizeClass[SIZE_CLASSES];
+
+    private final ThreadLocal<ThreadCache> threadCache = new ThreadLocal<ThreadCache>() {
+        @Override
+        protected ThreadCache initialValue() {
+            return new ThreadCache();
+        }
+    };
+
+    private final AtomicLong allocations = new AtomicLong();
+    private final AtomicLong reuses = new AtomicLong();
+    private final AtomicLong releases = new AtomicLong();
+    private final AtomicLong leaks = new AtomicLong();
+
+    // the buffers of the pool that were not garbage collected yet, by identity hash code
+    private final ConcurrentMap<Integer, Owner[]> owners = new ConcurrentHashMap<Integer, Owner[]>();
+    private final ReferenceQueue<ByteBuffer> collectedBuffers = new ReferenceQueue<ByteBuffer>();
+
+    public ByteBufferFactory() {
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            directClasses[i] = new SizeClass(i, 1 << (i + MIN_SIZE_SHIFT));
+            heapClasses[i] = new SizeClass(SIZE_CLASSES + i, 1 << (i + MIN_SIZE_SHIFT));
+        }
+    }
+
     public static ByteBufferFactory getInstance() {
         return instance;
     }
@@ -51,19 +116,334 @@ public class ByteBufferFactory {
     public ByteBuffer allocateDirect(int capacity) {
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
             logger.logTrace("Allocating direct buffer " + capacity);
-        return useDirect ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        return acquire(capacity, useDirect);
     }
 
     public ByteBuffer allocate(int capacity) {
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
             logger.logTrace("Allocating buffer " + capacity);
-        return ByteBuffer.allocate(capacity);
+        return acquire(capacity, false);
+    }
+
+    /**
+     * Give a buffer obtained from this factory back to the pool. The buffer
+     * must not be used by the caller afterwards. Buffers that don't come from
+     * the pool or that were already released are ignored.
+     *
+     * @param buffer the buffer to release, may be null.
+     */
+    public void release(ByteBuffer buffer) {
+        if (buffer == null || !pooled) {
+            return;
+        }
+        int index = sizeClassIndex(buffer.capacity());
+        if (index < 0 || (1 << (index + MIN_SIZE_SHIFT)) != buffer.capacity()) {
+            // not a pooled size
+            return;
+        }
+        Owner owner = owner(buffer);
+        if (owner == null || !owner.released.compareAndSet(false, true)) {
+            if (leakDetection) {
+                logger.logError("Released a buffer that was not allocated by the pool or was already released "
+                        + buffer, new IllegalStateException());
+            } else if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                logger.logDebug("Ignoring the release of a buffer that is not in use from the pool " + buffer);
+            }
+            return;
+        }
+        owner.allocationSite = null;
+        releases.incrementAndGet();
+        buffer.clear();
+        owner.buffer = buffer;
+        SizeClass sizeClass = buffer.isDirect() ? directClasses[index] : heapClasses[index];
+        if (!threadCache.get().offer(sizeClass, owner)) {
+            sizeClass.offer(owner);
+        }
+    }
+
+    private ByteBuffer acquire(int capacity, boolean direct) {
+        int index = pooled ? sizeClassIndex(capacity) : -1;
+        if (index < 0) {
+            allocations.incrementAndGet();
+            return direct ? ByteBuffer.allocateDirect(capacity) : ByteBuffer.allocate(capacity);
+        }
+        SizeClass sizeClass = direct ? directClasses[index] : heapClasses[index];
+        Owner owner = threadCache.get().poll(sizeClass);
+        if (owner == null) {
+            owner = sizeClass.poll();
+        }
+        ByteBuffer buffer;
+        if (owner == null) {
+            allocations.incrementAndGet();
+            buffer = direct ? ByteBuffer.allocateDirect(sizeClass.size) : ByteBuffer.allocate(sizeClass.size);
+            // forget the buffers that were garbage collected before recording a new one
+            reportLeaks();
+            owner = new Owner(buffer, collectedBuffers);
+            register(owner);
+        } else {
+            reuses.incrementAndGet();
+            buffer = owner.buffer;
+            // from now on only the caller keeps it alive
+            owner.buffer = null;
+            owner.released.set(false);
+        }
+        if (leakDetection) {
+            owner.allocationSite = new Exception("Buffer allocated here");
+        }
+        return buffer;
+    }
+
+    private static int sizeClassIndex(int capacity) {
+        if (capacity > (1 << MAX_SIZE_SHIFT)) {
+            return -1;
+        }
+        int shift = MIN_SIZE_SHIFT;
+        while ((1 << shift) < capacity) {
+            shift++;
+        }
+        return shift - MIN_SIZE_SHIFT;
+    }
+
+    private Owner owner(ByteBuffer buffer) {
+        Owner[] candidates = owners.get(Integer.valueOf(System.identityHashCode(buffer)));
+        if (candidates != null) {
+            for (Owner owner : candidates) {
+                if (owner.get() == buffer) {
+                    return owner;
+                }
+            }
+        }
+        return null;
+    }
+
+    private void register(Owner owner) {
+        while (true) {
+            Owner[] current = owners.putIfAbsent(owner.key, new Owner[] {owner});
+            if (current == null) {
+                return;
+            }
+            // another live buffer with the same identity hash code
+            Owner[] updated = Arrays.copyOf(current, current.length + 1);
+            updated[current.length] = owner;
+            if (owners.replace(owner.key, current, updated)) {
+                return;
+            }
+        }
+    }
+
+    private void unregister(Owner owner) {
+        while (true) {
+            Owner[] current = owners.get(owner.key);
+            if (current == null) {
+                return;
+            }
+            int i = 0;
+            while (i < current.length && current[i] != owner) {
+                i++;
+            }
+            if (i == current.length) {
+                return;
+            }
+            if (current.length == 1) {
+                if (owners.remove(owner.key, current)) {
+                    return;
+                }
+            } else {
+                Owner[] updated = new Owner[current.length - 1];
+                System.arraycopy(current, 0, updated, 0, i);
+                System.arraycopy(current, i + 1, updated, i, updated.length - i);
+                if (owners.replace(owner.key, current, updated)) {
+                    return;
+                }
+            }
+        }
     }
 
+    /**
+     * Forget the buffers that were garbage collected, and count those that
+     * were still in use as leaks.
+     */
+    private void reportLeaks() {
+        Owner owner;
+        while ((owner = (Owner) collectedBuffers.poll()) != null) {
+            unregister(owner);
+            Exception allocationSite = owner.allocationSite;
+            if (!owner.released.get() && allocationSite != null) {
+                leaks.incrementAndGet();
+                logger.logWarning("A pooled buffer of " + owner.capacity
+                        + " bytes was garbage collected without being released");
+                logger.logException(allocationSite);
+            }
+        }
+    }
 
     public void setUseDirect(boolean useDirect) {
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
             logger.logTrace("Direct buffers are " + (useDirect ? "enabled" : "disabled"));
         this.useDirect = useDirect;
     }
+
+    /**
+     * Enable or disable the pooling of buffers. Disabled, every allocation
+     * creates a new buffer.
+     */
+    public void setPooled(boolean pooled) {
+        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+            logger.logTrace("Buffer pooling is " + (pooled ? "enabled" : "disabled"));
+        this.pooled = pooled;
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Enable or disable the detection of pooled buffers that are never
+     * released. This costs a stack trace per allocation and is meant for
+     * debugging.
+     */
+    public void setLeakDetection(boolean leakDetection) {
+        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+            logger.logTrace("Buffer leak detection is " + (leakDetection ? "enabled" : "disabled"));
+        this.leakDetection = leakDetection;
+    }
+
+    public boolean isLeakDetection() {
+        return leakDetection;
+    }
+
+    /**
+     * @return the number of buffers that had to be created.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return the number of allocations served from the pool.
+     */
+    public long getReuseCount() {
+        return reuses.get();
+    }
+
+    /**
+     * @return the number of buffers given back to the pool.
+     */
+    public long getReleaseCount() {
+        return releases.get();
+    }
+
+    /**
+     * @return the number of pooled buffers found garbage collected without
+     *         having been released, when leak detection is enabled.
+     */
+    public long getLeakCount() {
+        reportLeaks();
+        return leaks.get();
+    }
+
+    /**
+     * @return the number of buffers currently held by the shared pool, not
+     *         counting the per thread caches.
+     */
+    public int getPooledBufferCount() {
+        int count = 0;
+        for (int i = 0; i < SIZE_CLASSES; i++) {
+            count += directClasses[i].count.get() + heapClasses[i].count.get();
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return "ByteBufferFactory[allocations=" + getAllocationCount() + ", reuses=" + getReuseCount()
+                + ", releases=" + getReleaseCount() + ", leaks=" + getLeakCount()
+                + ", pooled=" + getPooledBufferCount() + "]";
+    }
+
+    private static final class SizeClass {
+        // index in the thread caches
+        final int id;
+        final int size;
+        final Queue<Owner> buffers = new ConcurrentLinkedQueue<Owner>();
+        final AtomicInteger count = new AtomicInteger();
+
+        SizeClass(int id, int size) {
+            this.id = id;
+            this.size = size;
+        }
+
+        Owner poll() {
+            Owner owner = buffers.poll();
+            if (owner != null) {
+                count.decrementAndGet();
+            }
+            return owner;
+        }
+
+        void offer(Owner owner) {
+            // beyond the limit the buffer is left to the garbage collector
+            if (count.incrementAndGet() <= SHARED_POOL_SIZE) {
+                buffers.offer(owner);
+            } else {
+                count.decrementAndGet();
+                owner.buffer = null;
+            }
+        }
+    }
+
+    /**
+     * Buffers released by a thread, reused first by the same thread without
+     * any synchronization.
+     */
+    private static final class ThreadCache {
+        final Owner[][] stacks = new Owner[2 * SIZE_CLASSES][];
+        final int[] sizes = new int[2 * SIZE_CLASSES];
+
+        Owner poll(SizeClass sizeClass) {
+            int id = sizeClass.id;
+            if (sizes[id] == 0) {
+                return null;
+            }
+            Owner[] stack = stacks[id];
+            Owner owner = stack[--sizes[id]];
+            stack[sizes[id]] = null;
+            return owner;
+        }
+
+        boolean offer(SizeClass sizeClass, Owner owner) {
+            int id = sizeClass.id;
+            Owner[] stack = stacks[id];
+            if (stack == null) {
+                stack = new Owner[THREAD_CACHE_SIZE];
+                stacks[id] = stack;
+            }
+            if (sizes[id] == stack.length) {
+                return false;
+            }
+            stack[sizes[id]++] = owner;
+            return true;
+        }
+    }
+
+    /**
+     * Record of a buffer created by the pool. It only holds the buffer while
+     * the buffer is in the pool, once handed out the buffer can be garbage
+     * collected if its user drops it.
+     */
+    private static final class Owner extends WeakReference<ByteBuffer> {
+        final Integer key;
+        final int capacity;
+        final AtomicBoolean released = new AtomicBoolean();
+        // set while the buffer waits in the pool
+        ByteBuffer buffer;
+        // only recorded when leak detection is enabled
+        volatile Exception allocationSite;
+
+        Owner(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+            super(buffer, queue);
+            this.key = Integer.valueOf(System.identityHashCode(buffer));
+            this.capacity = buffer.capacity();
+        }
+    }
 }
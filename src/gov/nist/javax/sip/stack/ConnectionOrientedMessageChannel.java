@@ -208,7 +208,7 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
 
         }
 
-        byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+        byte[] msg = encodeMessage(sipMessage);
 
         long time = System.currentTimeMillis();
         
@@ -235,6 +235,7 @@ public abstract class ConnectionOrientedMessageChannel extends MessageChannel im
         // JvB: also retry for responses, if the connection is gone we should
         // try to reconnect
         this.sendMessage(msg, sipMessage instanceof SIPRequest);
+        countMessageSent(sipMessage, msg.length);
 
         // message was sent without any exception so let's set set port and
         // address before we feed it to the logger
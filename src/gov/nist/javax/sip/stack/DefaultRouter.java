@@ -34,6 +34,7 @@ import gov.nist.javax.sip.header.*;
 import gov.nist.javax.sip.*;
 import gov.nist.core.*;
 import gov.nist.core.net.AddressResolver;
+import gov.nist.core.net.AddressResolverExt;
 
 import javax.sip.*;
 import java.util.Iterator;
@@ -307,6 +308,9 @@ public class DefaultRouter implements Router {
         int port;
         if (sipUri.getPort() != -1) {
             port = sipUri.getPort();
+        } else if (this.sipStack.getAddressResolver() instanceof AddressResolverExt) {
+            // leave it to the resolver, the port decides whether SRV applies
+            port = -1;
         } else {
             if (transport.equalsIgnoreCase(SIPConstants.TLS))
                 port = 5061;
@@ -0,0 +1,295 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.LatencyHistogram;
+import gov.nist.core.LogLevels;
+import gov.nist.core.StackLogger;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs tasks on a shared thread pool while keeping the tasks submitted with
+ * the same key, typically a Call-ID, in order and one at a time.
+ * 
+ * Every key that has tasks pending gets a mailbox. A mailbox is handed to the
+ * pool only when it goes from empty to non empty, and the pool thread running
+ * it takes its tasks one after the other, so no thread ever waits for another
+ * task of the same key to complete. To be fair to the other keys a mailbox
+ * gives its thread back after a number of tasks and goes to the end of the
+ * pool queue. Empty mailboxes are dropped.
+ * 
+ * Tasks that waited longer than the timeout before their turn are dropped,
+ * the way the queue auditor of the pool dropped stale messages. So are the
+ * tasks the pool refuses because it is shutting down. A task implementing
+ * {@link DroppableTask} is told when that happens.
+ * 
+ * @param <K> the type of the keys
+ * @since 2.0
+ */
+public class KeyedSerialExecutor<K> {
+	private static StackLogger logger = CommonLogger.getLogger(KeyedSerialExecutor.class);
+
+	private final Executor executor;
+	private final int throughput;
+	private final long timeout;
+	private final ConcurrentHashMap<K, Mailbox> mailboxes = new ConcurrentHashMap<K, Mailbox>();
+
+	private final AtomicInteger maxDepth = new AtomicInteger();
+	private final AtomicLong executed = new AtomicLong();
+	private final AtomicLong expired = new AtomicLong();
+	private final AtomicLong yields = new AtomicLong();
+	private final LatencyHistogram depth = new LatencyHistogram();
+	private final LatencyHistogram waitTime = new LatencyHistogram();
+
+	/**
+	 * @param executor the pool the mailboxes run on
+	 * @param throughput how many tasks a mailbox runs before it gives its
+	 *            thread to another one
+	 * @param timeout how long in milliseconds a task may wait for its turn, 0
+	 *            to wait for ever
+	 */
+	public KeyedSerialExecutor(Executor executor, int throughput, long timeout) {
+		this.executor = executor;
+		this.throughput = Math.max(1, throughput);
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Run a task after all the tasks submitted before with the same key.
+	 */
+	public void execute(K key, Runnable task) {
+		Task entry = new Task(task);
+		while (true) {
+			Mailbox mailbox = mailboxes.get(key);
+			if (mailbox == null) {
+				Mailbox newMailbox = new Mailbox(key);
+				mailbox = mailboxes.putIfAbsent(key, newMailbox);
+				if (mailbox == null)
+					mailbox = newMailbox;
+			}
+			if (mailbox.offer(entry))
+				return;
+			// the mailbox was emptied and dropped in the meantime
+			mailboxes.remove(key, mailbox);
+		}
+	}
+
+	/**
+	 * @return the number of keys with tasks pending or running.
+	 */
+	public int getMailboxCount() {
+		return mailboxes.size();
+	}
+
+	/**
+	 * @return the number of tasks pending or running for a key.
+	 */
+	public int getDepth(K key) {
+		Mailbox mailbox = mailboxes.get(key);
+		return mailbox == null ? 0 : Math.max(0, mailbox.pending.get());
+	}
+
+	/**
+	 * @return the most tasks ever pending for a single key.
+	 */
+	public int getMaxDepth() {
+		return maxDepth.get();
+	}
+
+	/**
+	 * @return the distribution of the number of tasks pending for the key of
+	 *         a task when it is submitted, that task included.
+	 */
+	public LatencyHistogram getDepthHistogram() {
+		return depth;
+	}
+
+	/**
+	 * @return the distribution of the time in microseconds tasks waited
+	 *         before they ran.
+	 */
+	public LatencyHistogram getWaitTimeHistogram() {
+		return waitTime;
+	}
+
+	public long getExecutedTasks() {
+		return executed.get();
+	}
+
+	public long getExpiredTasks() {
+		return expired.get();
+	}
+
+	/**
+	 * @return how many times a mailbox with tasks left gave its thread back so
+	 *         that other keys get their turn.
+	 */
+	public long getYields() {
+		return yields.get();
+	}
+
+	private void recordDepth(int pending) {
+		depth.record(pending);
+		int max = maxDepth.get();
+		while (pending > max && !maxDepth.compareAndSet(max, pending)) {
+			max = maxDepth.get();
+		}
+	}
+
+	/**
+	 * A task that must know when it is dropped instead of run, for example to
+	 * release what was reserved for it.
+	 */
+	public interface DroppableTask extends Runnable {
+		void dropped();
+	}
+
+	private void drop(Task task) {
+		if (task.runnable instanceof DroppableTask) {
+			try {
+				((DroppableTask) task.runnable).dropped();
+			} catch (Throwable ex) {
+				logger.logError("Error dropping a task", ex);
+			}
+		}
+	}
+
+	private static class Task {
+		final Runnable runnable;
+		final long time = System.nanoTime();
+
+		Task(Runnable runnable) {
+			this.runnable = runnable;
+		}
+	}
+
+	/**
+	 * The tasks of one key. The count of pending tasks is what serializes
+	 * them: whoever takes it from 0 to 1 schedules the mailbox, and the
+	 * mailbox runs until it brings it back to 0. A count of -1 marks a
+	 * mailbox that was dropped and takes no more tasks.
+	 * 
+	 * A task is counted before it is queued, so a mailbox is never dropped
+	 * with a task counted elsewhere on its way in. The mailbox may find a
+	 * counted task not queued yet, it waits for it then.
+	 */
+	class Mailbox implements Runnable, QueuedMessageDispatchBase {
+		final K key;
+		final Queue<Task> tasks = new ConcurrentLinkedQueue<Task>();
+		final AtomicInteger pending = new AtomicInteger();
+		volatile long scheduled;
+
+		Mailbox(K key) {
+			this.key = key;
+		}
+
+		boolean offer(Task task) {
+			int count;
+			do {
+				count = pending.get();
+				if (count < 0)
+					return false;
+			} while (!pending.compareAndSet(count, count + 1));
+			tasks.offer(task);
+			recordDepth(count + 1);
+			if (count == 0)
+				schedule();
+			return true;
+		}
+
+		/**
+		 * @return the next counted task, waiting for the submitter still
+		 *         queuing it
+		 */
+		private Task take() {
+			Task task;
+			while ((task = tasks.poll()) == null) {
+				Thread.yield();
+			}
+			return task;
+		}
+
+		private void schedule() {
+			scheduled = System.currentTimeMillis();
+			try {
+				executor.execute(this);
+			} catch (RejectedExecutionException ex) {
+				// the pool is shutting down, the tasks are lost with it
+				if (logger.isLoggingEnabled(LogLevels.TRACE_WARN))
+					logger.logWarning("Pool rejected the tasks for " + key);
+				int count = pending.getAndSet(-1);
+				mailboxes.remove(key, this);
+				for (int i = 0; i < count; i++) {
+					drop(take());
+				}
+			}
+		}
+
+		public void run() {
+			for (int count = 1;; count++) {
+				Task task = take();
+				long waited = (System.nanoTime() - task.time) / 1000;
+				if (timeout > 0 && waited > timeout * 1000) {
+					expired.incrementAndGet();
+					if (logger.isLoggingEnabled(LogLevels.TRACE_WARN))
+						logger.logWarning("Dropping a task for " + key + " that waited " + waited / 1000 + " ms");
+					drop(task);
+				} else {
+					waitTime.record(waited);
+					try {
+						task.runnable.run();
+					} catch (Throwable ex) {
+						logger.logError("Error running a task for " + key, ex);
+					}
+					executed.incrementAndGet();
+				}
+				if (pending.decrementAndGet() == 0) {
+					// whoever adds the next task schedules the mailbox again
+					if (pending.compareAndSet(0, -1))
+						mailboxes.remove(key, this);
+					return;
+				}
+				if (count >= throughput) {
+					yields.incrementAndGet();
+					schedule();
+					return;
+				}
+			}
+		}
+
+		public long getReceptionTime() {
+			return scheduled;
+		}
+	}
+}
@@ -35,6 +35,7 @@ import gov.nist.core.HostPort;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.LogWriter;
 import gov.nist.core.ServerLogger;
+import gov.nist.core.ServerLoggerExt;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.address.AddressImpl;
 import gov.nist.javax.sip.header.ContentLength;
@@ -209,7 +210,8 @@ public abstract class MessageChannel {
      */
     public void sendMessage(final SIPMessage sipMessage, Hop hop) throws IOException {
         long time = System.currentTimeMillis();
-        InetAddress hopAddr = InetAddress.getByName(hop.getHost());
+        InetAddress hopAddr = getSIPStack().getInetAddress(hop.getHost());
+        byte[] msg = null;
 
         try {
 
@@ -242,9 +244,10 @@ public abstract class MessageChannel {
 
                 }
             }
-            byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+            msg = encodeMessage(sipMessage);
 
             this.sendMessage(msg, hopAddr, hop.getPort(), sipMessage instanceof SIPRequest);
+            countMessageSent(sipMessage, msg.length);
 
             // we successfully sent the message without an exception so let's
             // now set port and address
@@ -263,7 +266,7 @@ public abstract class MessageChannel {
         } finally {
 
             if (this.logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
-                logMessage(sipMessage, hopAddr, hop.getPort(), time);
+                logMessage(sipMessage, msg, hopAddr, hop.getPort(), time);
         }
     }
 
@@ -277,8 +280,9 @@ public abstract class MessageChannel {
     public void sendMessage(SIPMessage sipMessage, InetAddress receiverAddress, int receiverPort)
             throws IOException {
         long time = System.currentTimeMillis();
-        byte[] bytes = sipMessage.encodeAsBytes(this.getTransport());
+        byte[] bytes = encodeMessage(sipMessage);
         sendMessage(bytes, receiverAddress, receiverPort, sipMessage instanceof SIPRequest);
+        countMessageSent(sipMessage, bytes.length);
 
         // we successfully sent the message without an exception so let's
         // set port and address before we feed it to the logger.
@@ -288,7 +292,37 @@ public abstract class MessageChannel {
         sipMessage.setLocalAddress(this.getMessageProcessor().getIpAddress());
 
         //ready to log
-        logMessage(sipMessage, receiverAddress, receiverPort, time);
+        logMessage(sipMessage, bytes, receiverAddress, receiverPort, time);
+    }
+
+    /**
+     * Account for a message sent on this channel in the stack metrics.
+     *
+     * @param sipMessage the message sent.
+     * @param length the length of its encoding.
+     */
+    protected void countMessageSent(SIPMessage sipMessage, int length) {
+        StackMetrics stackMetrics = getSIPStack().getStackMetrics();
+        if (stackMetrics != null)
+            stackMetrics.messageSent(sipMessage, getTransport(), length);
+    }
+
+    /**
+     * Encode a message for this channel, reusing the encoded form kept by the
+     * message when it was already sent unchanged, as for retransmissions.
+     *
+     * @param sipMessage the message to send.
+     * @return its encoding for the transport of this channel.
+     */
+    protected byte[] encodeMessage(SIPMessage sipMessage) {
+        String transport = getTransport();
+        byte[] bytes = sipMessage.getEncodedForm(transport);
+        StackMetrics stackMetrics = getSIPStack().getStackMetrics();
+        if (stackMetrics != null)
+            stackMetrics.encodingCacheLookup(bytes != null);
+        if (bytes == null)
+            bytes = sipMessage.encodeAsBytesCached(transport);
+        return bytes;
     }
 
     /**
@@ -298,7 +332,7 @@ public abstract class MessageChannel {
         String sourceAddress = getPeerAddress();
         String rawIpSourceAddress = null;
         try {
-            InetAddress sourceInetAddress = InetAddress.getByName(sourceAddress);
+            InetAddress sourceInetAddress = getSIPStack().getInetAddress(sourceAddress);
             rawIpSourceAddress = sourceInetAddress.getHostAddress();
         } catch (Exception ex) {
             InternalErrorHandler.handleException(ex);
@@ -397,6 +431,33 @@ public abstract class MessageChannel {
                 address.getHostAddress().toString() + ":" + port, true, time);
     }
 
+    /**
+     * Log a message sent to an address and port via the default interface, from the bytes put
+     * on the wire when the trace logger takes them.
+     *
+     * @param sipMessage is the message to log, may be null if the bytes are given.
+     * @param encoded is the encoded message, null if it isn't at hand.
+     * @param address is the inet address to which the message is sent.
+     * @param port is the port to which the message is directed.
+     */
+    public void logMessage(SIPMessage sipMessage, byte[] encoded, InetAddress address, int port, long time) {
+        if (!logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES))
+            return;
+
+        ServerLogger serverLogger = getSIPStack().serverLogger;
+        if (encoded == null || !(serverLogger instanceof ServerLoggerExt)) {
+            if (sipMessage != null)
+                logMessage(sipMessage, address, port, time);
+            return;
+        }
+        // Default port.
+        if (port == -1)
+            port = 5060;
+        ((ServerLoggerExt) serverLogger).logMessage(encoded, sipMessage,
+                this.getHost() + ":" + this.getPort(), address.getHostAddress() + ":" + port,
+                null, true, time);
+    }
+
     /**
      * Log a response received at this message channel. This is used for processing incoming
      * responses to a client transaction.
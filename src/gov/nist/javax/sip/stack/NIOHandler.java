@@ -34,11 +34,13 @@ import gov.nist.core.LogWriter;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.SipStackImpl;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketAddress;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
 import java.nio.channels.SocketChannel;
 import java.util.Enumeration;
 import java.util.HashSet;
@@ -140,19 +142,25 @@ public class NIOHandler {
     }
 
     /**
-     * A private function to write things out. This needs to be synchronized as
-     * writes can occur from multiple threads. We write in chunks to allow the
-     * other side to synchronize for large sized writes.
+     * A private function to write things out. Writes can occur from multiple
+     * threads, the bytes are queued without locking on the write queue of the
+     * channel owning the socket and written by its selector thread.
      */
-    private void writeChunks(SocketChannel channel, byte[] bytes, int length) {
-        // Chunk size is 16K - this hack is for large
-        // writes over slow connections.
-        synchronized (channel) {
-            // outputStream.write(bytes,0,length);
-        	byte[] buff = new byte[length];
-        	System.arraycopy(bytes, 0, buff, 0, length);
-        	messageProcessor.send(channel, bytes);
-        }
+    private void writeChunks(SocketChannel channel, ByteBuffer[] buffers, NioTcpMessageChannel messageChannel) throws IOException {
+    	// a reopened socket is not yet mapped, it belongs to the channel sending on it
+    	NioTcpMessageChannel owner = NioTcpMessageChannel.getMessageChannel(channel);
+    	messageProcessor.send(channel, buffers, owner != null ? owner : messageChannel);
+    }
+
+    private static String toString(ByteBuffer[] buffers) throws IOException {
+    	ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    	for (ByteBuffer buffer : buffers) {
+    		ByteBuffer data = buffer.duplicate();
+    		while (data.hasRemaining()) {
+    			bytes.write(data.get());
+    		}
+    	}
+    	return bytes.toString("UTF-8");
     }
 
 
@@ -175,10 +183,27 @@ public class NIOHandler {
             InetAddress receiverAddress, int contactPort, String transport,
             byte[] bytes, boolean isClient, NioTcpMessageChannel messageChannel)
             throws IOException {
+        return sendBytes(senderAddress, receiverAddress, contactPort, transport,
+                new ByteBuffer[] {ByteBuffer.wrap(bytes)}, isClient, messageChannel);
+    }
+
+    /**
+     * Send a message made of several buffers, they are written in order with a
+     * gathering write, without being copied together.
+     *
+     * @see #sendBytes(InetAddress, InetAddress, int, String, byte[], boolean, NioTcpMessageChannel)
+     */
+    public SocketChannel sendBytes(InetAddress senderAddress,
+            InetAddress receiverAddress, int contactPort, String transport,
+            ByteBuffer[] buffers, boolean isClient, NioTcpMessageChannel messageChannel)
+            throws IOException {
         int retry_count = 0;
         int max_retry = isClient ? 2 : 1;
         // Server uses TCP transport. TCP client sockets are cached
-        int length = bytes.length;
+        int length = 0;
+        for (ByteBuffer buffer : buffers) {
+            length += buffer.remaining();
+        }
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
             logger.logDebug(
                     "sendBytes " + transport + " inAddr "
@@ -233,12 +258,12 @@ public class NIOHandler {
         				//		receiverAddress, contactPort, senderAddress); TODO: sender address needed
         			} catch (SocketException e) { // We must catch the socket timeout exceptions here, any SocketException not just ConnectException
         				logger.logError("Problem connecting " +
-        						receiverAddress + " " + contactPort + " " + senderAddress + " for message " + (messageChannel.isSecure()?"<<<ENCRYPTED MESSAGE>>>":new String(bytes, "UTF-8")));
+        						receiverAddress + " " + contactPort + " " + senderAddress + " for message " + (messageChannel.isSecure()?"<<<ENCRYPTED MESSAGE>>>":toString(buffers)));
         				// new connection is bad.
         				// remove from our table the socket and its semaphore
         				removeSocket(key);
         				throw new SocketException(e.getClass() + " " + e.getMessage() + " " + e.getCause() + " Problem connecting " +
-        						receiverAddress + " " + contactPort + " " + senderAddress + " for message " + new String(bytes, "UTF-8"));
+        						receiverAddress + " " + contactPort + " " + senderAddress + " for message " + toString(buffers));
         			}
         			putSocket(key, clientSock);
         			break;
@@ -282,7 +307,7 @@ public class NIOHandler {
         	 * and send the response to.
         	 */
         	if (!isClient) {
-        		receiverAddress = InetAddress.getByName(messageChannel
+        		receiverAddress = sipStack.getInetAddress(messageChannel
         				.peerAddressAdvertisedInHeaders);
         		contactPort = messageChannel.peerPortAdvertisedInHeaders;
         		if (contactPort <= 0)
@@ -320,7 +345,7 @@ public class NIOHandler {
         			if(newSocket && messageChannel instanceof NioTlsMessageChannel) {
         				//We dont write data when using TLS, the new socket needs to handshake first
         			} else {
-        				writeChunks(clientSock, bytes, length);
+        				writeChunks(clientSock, buffers, messageChannel);
         			}
         		}
 
@@ -57,6 +57,8 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 	protected SocketChannel socketChannel;
 	protected long lastActivityTimeStamp;
 	NioPipelineParser nioParser = null;
+	// outbound data of the current socket, replaced when the channel moves to another socket
+	private volatile NioWriteQueue writeQueue;
 
 	public static NioTcpMessageChannel create(
 			NioTcpMessageProcessor nioTcpMessageProcessor,
@@ -88,17 +90,18 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 	public void readChannel() {
 		logger.logDebug("NioTcpMessageChannel::readChannel");
 		int bufferSize = 4096;
-		byte[] msg = new byte[bufferSize];
+		byte[] msg;
 		this.isRunning = true;
+		// pooled, read by the selector thread and given back right away
+		ByteBuffer byteBuffer = ByteBufferFactory.getInstance().allocateDirect(bufferSize);
 		try {
-			ByteBuffer byteBuffer  = ByteBuffer.wrap(msg);
+			byteBuffer.limit(bufferSize);
 			int nbytes = this.socketChannel.read(byteBuffer);
 			byteBuffer.flip();
 			msg = new byte[byteBuffer.remaining()];
 			byteBuffer.get(msg);
 			boolean streamError = nbytes == -1;
 			nbytes = msg.length;
-			byteBuffer.clear();
 			if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 				logger.logDebug("Read " + nbytes + " from socketChannel");
 			}
@@ -114,9 +117,7 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 			
 			// Otherwise just add the bytes to queue
 			
-			byte[] bytes = new byte[nbytes];
-			System.arraycopy(msg, 0, bytes, 0, nbytes);
-			addBytes(bytes);
+			addBytes(msg);
 			lastActivityTimeStamp = System.currentTimeMillis();
 
 		} catch (Exception ex) { // https://java.net/jira/browse/JSIP-464 make sure to close connections on all exceptions to avoid the stack to hang
@@ -141,7 +142,9 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 				if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
 					logger.logDebug("Exception closing the socket " + ex1);
 			}
-		} 
+		} finally {
+			ByteBufferFactory.getInstance().release(byteBuffer);
+		}
 //		catch (Exception ex) {
 //			InternalErrorHandler.handleException(ex, logger);
 //		}
@@ -217,6 +220,48 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		return socketChannel;
 	}
 
+	/**
+	 * Get the queue of the data waiting to be written on the socket, the socket may
+	 * not yet be the one of the channel when the connection was just reopened.
+	 */
+	NioWriteQueue getWriteQueue(SocketChannel socket) {
+		NioWriteQueue queue = writeQueue;
+		if (queue == null || queue.getSocketChannel() != socket) {
+			synchronized (this) {
+				queue = writeQueue;
+				if (queue == null || queue.getSocketChannel() != socket) {
+					queue = new NioWriteQueue(socket, sipStack.nioMaxQueuedBytes);
+					writeQueue = queue;
+				}
+			}
+		}
+		return queue;
+	}
+
+	void clearWriteQueue() {
+		NioWriteQueue queue = writeQueue;
+		if (queue != null) {
+			queue.clear();
+		}
+	}
+
+	/**
+	 * @return number of bytes waiting to be written to the peer
+	 */
+	public long getQueuedWriteBytes() {
+		NioWriteQueue queue = writeQueue;
+		return queue == null ? 0 : queue.getQueuedBytes();
+	}
+
+	/**
+	 * @return true if the peer stopped reading and messages are being refused, see
+	 * gov.nist.javax.sip.NIO_MAX_QUEUED_BYTES
+	 */
+	public boolean isWriteBlocked() {
+		NioWriteQueue queue = writeQueue;
+		return queue != null && queue.isBlocked();
+	}
+
 	@Override
 	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
 		try {
@@ -314,6 +359,42 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 			logger.logError("receiverAddress = " + receiverAddress);
 			throw new IllegalArgumentException("Null argument");
 		}
+		sendTCPMessage(new ByteBuffer[] {ByteBuffer.wrap(message)}, message, receiverAddress, receiverPort, retry);
+	}
+
+	/**
+	 * Send a message made of several buffers, such as a frame header and its payload,
+	 * with a gathering write instead of copying them into one array first.
+	 * 
+	 * @param buffers
+	 *            the data to send, in order.
+	 * @param receiverAddress
+	 *            Address to send it to.
+	 * @param receiverPort
+	 *            Receiver port.
+	 * @throws IOException
+	 *             If there is a problem connecting or sending.
+	 */
+	protected void sendTCPMessage(ByteBuffer[] buffers, InetAddress receiverAddress,
+			int receiverPort, boolean retry) throws IOException {
+		if (buffers == null || receiverAddress == null) {
+			logger.logError("receiverAddress = " + receiverAddress);
+			throw new IllegalArgumentException("Null argument");
+		}
+		sendTCPMessage(buffers, null, receiverAddress, receiverPort, retry);
+	}
+
+	// message is the content of the buffers if the caller has it at hand, it is only needed for a new socket
+	private void sendTCPMessage(ByteBuffer[] buffers, byte[] message, InetAddress receiverAddress,
+			int receiverPort, boolean retry) throws IOException {
+		ByteBuffer[] content = null;
+		if (message == null) {
+			// the buffers are consumed by the selector thread
+			content = new ByteBuffer[buffers.length];
+			for (int i = 0; i < buffers.length; i++) {
+				content[i] = buffers[i].duplicate();
+			}
+		}
 		lastActivityTimeStamp = System.currentTimeMillis();
 
 		if (peerPortAdvertisedInHeaders <= 0) {
@@ -337,7 +418,7 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 		
 		SocketChannel sock = nioHandler.sendBytes(this.messageProcessor
 					.getIpAddress(), receiverAddress, receiverPort, "TCP",
-					message, retry, this);
+					buffers, retry, this);
 
 		if (sock != socketChannel && sock != null) {
 			if (socketChannel != null) {
@@ -360,6 +441,17 @@ public class NioTcpMessageChannel extends ConnectionOrientedMessageChannel {
 				socketChannel = sock;
 				putMessageChannel(socketChannel, this);
 				
+				if (message == null) {
+					int length = 0;
+					for (ByteBuffer buffer : content) {
+						length += buffer.remaining();
+					}
+					message = new byte[length];
+					ByteBuffer copy = ByteBuffer.wrap(message);
+					for (ByteBuffer buffer : content) {
+						copy.put(buffer);
+					}
+				}
 				onNewSocket(message);
 			}
 			
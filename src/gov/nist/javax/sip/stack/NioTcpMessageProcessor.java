@@ -46,21 +46,22 @@ import java.util.*;
  */
 public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     
+    // Selector of the reactor accepting the connections
     protected Selector selector ;
     private static StackLogger logger = CommonLogger.getLogger(NioTcpMessageProcessor.class);
+    // Thread of the reactor accepting the connections
     protected Thread selectorThread;
     protected NIOHandler nioHandler;
 
     protected ServerSocketChannel channel;
 
-    // Cache the change request here, the selector thread will read it when it wakes up and execute the request
-    private final List<ChangeRequest> changeRequests = new LinkedList<ChangeRequest> ();
-
-    // Data send over a socket is cached here before hand, the selector thread will take it later for physical send
-    private final Map<SocketChannel, List<ByteBuffer>> pendingData =
-    		new WeakHashMap<SocketChannel, List<ByteBuffer>>();
+    // Each reactor has its own selector and thread, a socket always stays on the same reactor
+    protected ProcessorTask[] processorTasks;
 
     
+    // selector cycles a write waits for its socket to be registered before it is given up
+    private static final int MAX_CHANGE_RETRIES = 100;
+
     public static class ChangeRequest {
     	public static final int REGISTER = 1;
     	public static final int CHANGEOPS = 2;
@@ -68,12 +69,21 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     	public SocketChannel socket;
     	public int type;
     	public int ops;
+    	// attached to the selection key, the selector thread drains it when the socket is writable
+    	public NioWriteQueue writeQueue;
+    	// selector cycles this change waited for the socket to be registered
+    	int retries;
 
     	public ChangeRequest(SocketChannel socket, int type, int ops) {
     		this.socket = socket;
     		this.type = type;
     		this.ops = ops;
     	}
+
+    	public ChangeRequest(SocketChannel socket, int type, int ops, NioWriteQueue writeQueue) {
+    		this(socket, type, ops);
+    		this.writeQueue = writeQueue;
+    	}
     	
     	public String toString() {
     		return socket + " type = " + type + " ops = " + ops;
@@ -99,10 +109,8 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
         	logger.logDebug("Blocking set to false now " + address);
       
-        synchronized(this.changeRequests) {
-        	changeRequests.add(new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ));
-        }
-        selector.wakeup();
+        getProcessorTask(socketChannel).addChangeRequest(
+        		new ChangeRequest(socketChannel, ChangeRequest.REGISTER, SelectionKey.OP_READ));
         return socketChannel;
     }
 
@@ -110,31 +118,90 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     	return initiateConnection(address, timeout);
     }
         
-    public void send(SocketChannel socket, byte[] data)  {
-    	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-    		logger.logDebug("Sending data " + data.length + " bytes on socket " + socket);
-    	
-    	synchronized (this.changeRequests) {
-    		this.changeRequests.add(new ChangeRequest(socket, ChangeRequest.CHANGEOPS, SelectionKey.OP_WRITE));
-
-    		synchronized (this.pendingData) {
-    			List<ByteBuffer> queue = this.pendingData.get(socket);
-    			if (queue == null) {
-    				queue = new ArrayList<ByteBuffer>();
-    				this.pendingData.put(socket, queue);
-    			}
-    			queue.add(ByteBuffer.wrap(data));
-    		}
+    /**
+     * Queue data on the write queue the channel keeps for the socket, the selector thread
+     * of the socket writes it out.
+     *
+     * @throws IOException if the peer is not reading and the write queue is full
+     */
+    public void send(SocketChannel socket, byte[] data, NioTcpMessageChannel messageChannel) throws IOException {
+    	getProcessorTask(socket).send(socket, new ByteBuffer[] {ByteBuffer.wrap(data)}, messageChannel);
+    }
+
+    /**
+     * Queue a message made of several buffers, they are written in order with a gathering write.
+     *
+     * @throws IOException if the peer is not reading and the write queue is full
+     */
+    public void send(SocketChannel socket, ByteBuffer[] data, NioTcpMessageChannel messageChannel) throws IOException {
+    	getProcessorTask(socket).send(socket, data, messageChannel);
+    }
+
+    /**
+     * Get the reactor a socket is registered with. The choice only depends on the socket so
+     * all the operations on a connection happen on the same selector thread.
+     */
+    protected ProcessorTask getProcessorTask(SocketChannel socket) {
+    	ProcessorTask[] tasks = processorTasks;
+    	if (tasks.length == 1) {
+    		return tasks[0];
     	}
-    	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-    		logger.logDebug("Waking up selector thread");
-    	this.selector.wakeup();
+    	return tasks[(System.identityHashCode(socket) & 0x7fffffff) % tasks.length];
     }
     
-    // This will be our selector thread, only one thread for all sockets. If you want to understand the overall design decisions read this first http://rox-xmlrpc.sourceforge.net/niotut/
+    // This will be our selector thread, there is one per reactor and each of them serves its share of the sockets.
+    // If you want to understand the overall design decisions read this first http://rox-xmlrpc.sourceforge.net/niotut/
     class ProcessorTask implements Runnable {
 
-        public ProcessorTask() {
+        protected final Selector selector;
+
+        // Cache the change request here, the selector thread will read it when it wakes up and execute the request
+        private final List<ChangeRequest> changeRequests = new LinkedList<ChangeRequest> ();
+
+        public ProcessorTask() throws IOException {
+        	selector = Selector.open();
+        }
+
+        /**
+         * Drop the data queued for a socket whose write interest can't be set and close the
+         * connection, so that the queue isn't left waiting for a flush that never comes.
+         */
+        private void failWriteQueue(ChangeRequest change) {
+        	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+        		logger.logDebug("Can't write on socket " + change.socket + ", dropping " + change.writeQueue.getQueuedBytes() + " queued bytes");
+        	change.writeQueue.clear();
+        	NioTcpMessageChannel nioTcpMessageChannel = NioTcpMessageChannel.getMessageChannel(change.socket);
+        	if (nioTcpMessageChannel != null) {
+        		nioTcpMessageChannel.close();
+        	} else {
+        		try {
+        			change.socket.close();
+        		} catch (IOException e) {
+        			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+        				logger.logDebug("Exception closing the socket " + e);
+        		}
+        	}
+        }
+
+        public void addChangeRequest(ChangeRequest change) {
+        	synchronized (changeRequests) {
+        		changeRequests.add(change);
+        	}
+        	selector.wakeup();
+        }
+
+        public void send(SocketChannel socket, ByteBuffer[] data, NioTcpMessageChannel messageChannel) throws IOException {
+        	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+        		logger.logDebug("Sending data " + data.length + " buffers on socket " + socket);
+
+        	NioWriteQueue writeQueue = messageChannel.getWriteQueue(socket);
+        	// only the first message of a burst wakes up the selector, the others join the pending write
+        	if (writeQueue.offer(data)) {
+        		if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+        			logger.logDebug("Waking up selector thread");
+        		addChangeRequest(new ChangeRequest(socket, ChangeRequest.CHANGEOPS,
+        				SelectionKey.OP_READ | SelectionKey.OP_WRITE, writeQueue));
+        	}
         }
         
         public void read(SelectionKey selectionKey) {
@@ -147,8 +214,6 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
             	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
             		logger.logDebug("Dead socketChannel" + socketChannel + " socket " + socketChannel.socket().getInetAddress() + ":"+socketChannel.socket().getPort());
             	selectionKey.cancel();
-            	// https://java.net/jira/browse/JSIP-475 remove the socket from the hashmap
-            	pendingData.remove(socketChannel);
             	return;
             }
             
@@ -158,56 +223,37 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         
         public void write(SelectionKey selectionKey) {
           	SocketChannel socketChannel = (SocketChannel) selectionKey.channel();
-
-          	final NioTcpMessageChannel nioTcpMessageChannel = NioTcpMessageChannel.getMessageChannel(socketChannel);
+          	NioWriteQueue writeQueue = (NioWriteQueue) selectionKey.attachment();
             if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-            	logger.logDebug("Need to write something on nioTcpMessageChannel " + nioTcpMessageChannel + " socket " + socketChannel);
-            if(nioTcpMessageChannel == null) {
+            	logger.logDebug("Need to write something on socket " + socketChannel + " queued bytes " + (writeQueue == null ? 0 : writeQueue.getQueuedBytes()));
+            if(writeQueue == null) {
+            	selectionKey.interestOps(SelectionKey.OP_READ);
+            	return;
+            }
+
+            boolean done;
+            try {
+            	done = writeQueue.flush();
+            } catch (IOException e) {
             	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-            		logger.logDebug("Dead socketChannel" + socketChannel + " socket " + socketChannel.socket().getInetAddress() + ":"+socketChannel.socket().getPort());
-            	selectionKey.cancel();
-            	// https://java.net/jira/browse/JSIP-475 remove the socket from the hashmap
-            	pendingData.remove(socketChannel);
+            		logger.logDebug("Dead socketChannel" + socketChannel + " socket " + socketChannel.socket().getInetAddress() + ":"+socketChannel.socket().getPort() + " : error message " + e.getMessage());
+            	// Shall we perform a retry mechanism in case the remote host connection was closed due to a TCP RST ?
+            	// https://java.net/jira/browse/JSIP-475 in the meanwhile drop the data
+            	writeQueue.clear();
+            	final NioTcpMessageChannel nioTcpMessageChannel = NioTcpMessageChannel.getMessageChannel(socketChannel);
+            	if (nioTcpMessageChannel != null) {
+            		nioTcpMessageChannel.close();
+            	} else {
+            		selectionKey.cancel();
+            	}
             	return;
             }
-          	
-        	synchronized (pendingData) {
-        		List<ByteBuffer> queue = pendingData.get(socketChannel);
-        		if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-        			logger.logDebug("Queued items for writing " + queue.size());
-        		while (!queue.isEmpty()) {
-        			ByteBuffer buf = queue.get(0);
-        			
-        			try {
-						socketChannel.write(buf);
-					} catch (IOException e) {
-						if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-		            		logger.logDebug("Dead socketChannel" + socketChannel + " socket " + socketChannel.socket().getInetAddress() + ":"+socketChannel.socket().getPort() + " : error message " + e.getMessage());
-						nioTcpMessageChannel.close();
-						// Shall we perform a retry mechanism in case the remote host connection was closed due to a TCP RST ?
-						// https://java.net/jira/browse/JSIP-475 in the meanwhile remove the data from the hashmap
-						queue.remove(0); 
-						pendingData.remove(socketChannel);
-						return;
-					}
-
-        			int remain = buf.remaining();
-        			
-        			if (remain > 0) {
-        				// ... or the socket's buffer fills up
-        				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-        					logger.logDebug("Socket buffer filled and more is remaining" + queue.size() + " remain = " + remain);
-        				break;
-        			}
-        			queue.remove(0);
-        		}
 
-        		if (queue.isEmpty()) {
-        			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-        				logger.logDebug("We wrote away all data. Setting READ interest. Queue is emtpy now size =" + queue.size());
-        			selectionKey.interestOps(SelectionKey.OP_READ);
-        		}
-        	}
+            if (done) {
+            	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
+            		logger.logDebug("We wrote away all data. Setting READ interest.");
+            	selectionKey.interestOps(SelectionKey.OP_READ);
+            }
         	if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
         		logger.logDebug("Done writing");
         }
@@ -251,9 +297,15 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         	 
         	 createMessageChannel(NioTcpMessageProcessor.this, client);
         	 
+        	 ProcessorTask processorTask = getProcessorTask(client);
         	 if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
-        		 logger.logDebug("Adding to selector " + client);
-        	 client.register(selector, SelectionKey.OP_READ);
+        		 logger.logDebug("Adding to selector " + processorTask.selector + " " + client);
+        	 if(processorTask == this) {
+        		 client.register(selector, SelectionKey.OP_READ);
+        	 } else {
+        		 // the other reactor registers it from its own thread
+        		 processorTask.addChangeRequest(new ChangeRequest(client, ChangeRequest.REGISTER, SelectionKey.OP_READ));
+        	 }
         	 
         }
         @Override
@@ -262,6 +314,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         		if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
         			logger.logDebug("Selector thread cycle begin...");
         		}
+        		List<ChangeRequest> retries = null;
         		synchronized(changeRequests) {
         			for (ChangeRequest change: changeRequests) {
         				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG))
@@ -270,7 +323,20 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         					switch(change.type) {
         					case ChangeRequest.CHANGEOPS:
         						SelectionKey key = change.socket.keyFor(selector);
-        						if(key == null || !key.isValid()) continue;
+        						if(key == null && change.writeQueue != null && change.socket.isOpen()
+        								&& change.retries++ < MAX_CHANGE_RETRIES) {
+        							// not registered with this selector yet, try again on the next cycle
+        							if(retries == null) retries = new ArrayList<ChangeRequest>();
+        							retries.add(change);
+        							continue;
+        						}
+        						if(key == null || !key.isValid()) {
+        							if(change.writeQueue != null) failWriteQueue(change);
+        							continue;
+        						}
+        						if(change.writeQueue != null) {
+        							key.attach(change.writeQueue);
+        						}
         						key.interestOps(change.ops);
         						if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
         							logger.logDebug("Change opts " + change + " selector = " + selector + " key = " + key + " blocking=" + change.socket.isBlocking());
@@ -294,6 +360,10 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
         				}
         			}
     				changeRequests.clear(); 
+    				if(retries != null) {
+    					changeRequests.addAll(retries);
+    					selector.wakeup();
+    				}
         		}
         		try {
         			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
@@ -343,17 +413,20 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
                                     logger.logDebug("Accept " + selectionKey);
                                 }
                                 accept(selectionKey);
-                            } else if (selectionKey.isReadable()) {
-                                if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-                                    logger.logDebug("Read " + selectionKey);
+                            } else if (selectionKey.isReadable() || selectionKey.isWritable()) {
+                                // a connection keeps reading while its writes are pending
+                                if (selectionKey.isReadable()) {
+                                    if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                                        logger.logDebug("Read " + selectionKey);
+                                    }
+                                    read(selectionKey);
                                 }
-                                read(selectionKey);
-                                
-                            } else if (selectionKey.isWritable()) {
-                                if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-                                    logger.logDebug("Write " + selectionKey);
+                                if (selectionKey.isValid() && selectionKey.isWritable()) {
+                                    if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                                        logger.logDebug("Write " + selectionKey);
+                                    }
+                                    write(selectionKey);
                                 }
-                                write(selectionKey);
                             } else if (selectionKey.isConnectable()) {
                                 if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                                     logger.logDebug("Connect " + selectionKey);
@@ -449,7 +522,7 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     	if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
             logger.logDebug(Thread.currentThread() + " removing " + ((NioTcpMessageChannel)messageChannel).getSocketChannel() + " from processor " + getIpAddress()+ ":" + getPort() + "/" + getTransport());
         }
-    	pendingData.remove(((NioTcpMessageChannel)messageChannel).getSocketChannel());
+    	((NioTcpMessageChannel)messageChannel).clearWriteQueue();
     	super.remove(messageChannel);
     }
     
@@ -467,18 +540,30 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
 
     @Override
     public void start() throws IOException {
-        selector = Selector.open();
+        int selectorThreads = Math.max(1, sipStack.nioSelectorThreads);
+        ProcessorTask[] tasks = new ProcessorTask[selectorThreads];
+        for (int i = 0; i < selectorThreads; i++) {
+            tasks[i] = createProcessorTask();
+        }
+        processorTasks = tasks;
+        selector = tasks[0].selector;
         channel = ServerSocketChannel.open();
         channel.configureBlocking(false);
         InetSocketAddress isa  = new InetSocketAddress(super.getIpAddress(), super.getPort());
         channel.socket().bind(isa);
         channel.register(selector, SelectionKey.OP_ACCEPT);
-        selectorThread = new Thread(createProcessorTask());
-        selectorThread.start();
-        selectorThread.setName("NioSelector-" + getTransport() + '-' + getIpAddress().getHostAddress() + '/' + getPort());
+        String name = "NioSelector-" + getTransport() + '-' + getIpAddress().getHostAddress() + '/' + getPort();
+        for (int i = 0; i < selectorThreads; i++) {
+            Thread thread = new Thread(tasks[i]);
+            thread.start();
+            thread.setName(selectorThreads == 1 ? name : name + '-' + i);
+            if (i == 0) {
+                selectorThread = thread;
+            }
+        }
     }
     
-    protected ProcessorTask createProcessorTask() {
+    protected ProcessorTask createProcessorTask() throws IOException {
     	return new ProcessorTask();
     }
 
@@ -486,8 +571,10 @@ public class NioTcpMessageProcessor extends ConnectionOrientedMessageProcessor {
     public void stop() {
     	try {
     		nioHandler.stop();
-    		if(selector.isOpen()) {
-    			selector.close();
+    		for (ProcessorTask processorTask : processorTasks) {
+    			if(processorTask.selector.isOpen()) {
+    				processorTask.selector.close();
+    			}
     		}
     	} catch (Exception ex) {
     		logger.logError("Problem closing channel " , ex);
@@ -43,7 +43,8 @@ public interface NioTlsChannelInterface {
 	 */
 	void sendEncryptedData(byte[] msg) throws IOException ;
 	/**
-	 * Initialize the buffer again.
+	 * Initialize the buffer again. The SSLStateMachine hands the buffers it gets from
+	 * these methods back to the ByteBufferFactory once it is done with them.
 	 * @return
 	 */
 	ByteBuffer prepareAppDataBuffer();
@@ -35,6 +35,7 @@ import gov.nist.javax.sip.stack.SSLStateMachine.MessageSendCallback;
 import javax.net.ssl.HandshakeCompletedListener;
 import javax.net.ssl.SSLSession;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLSocket;
 
 import java.io.FileNotFoundException;
@@ -87,7 +88,12 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
         SSLContext ctx = clientMode ?
                 ((NioTlsMessageProcessor)messageProcessor).sslClientCtx :
                 ((NioTlsMessageProcessor)messageProcessor).sslServerCtx;
-		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
+		// the outbound engines are keyed by the peer so that a session cached for it is resumed
+		SSLEngine sslEngine = clientMode && peerAddress != null ?
+				ctx.createSSLEngine(peerAddress.getHostAddress(), peerPort) :
+				ctx.createSSLEngine();
+		sslStateMachine = new SSLStateMachine(sslEngine, this);
+		sslStateMachine.setHandshakeExecutor(sipStack.getTlsHandshakeExecutor(getTransport()));
 
         sslStateMachine.sslEngine.setUseClientMode(clientMode);
         String auth = ((SipStackImpl)super.sipStack).
@@ -224,6 +230,14 @@ public class NioTlsMessageChannel extends NioTcpMessageChannel implements NioTls
 		return "TLS";
 	}
 
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+		if(sslStateMachine != null) {
+			sslStateMachine.close();
+		}
+	}
+
 	@Override
 	public void onNewSocket(byte[] message) {
 		super.onNewSocket(message);
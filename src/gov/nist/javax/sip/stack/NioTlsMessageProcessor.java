@@ -32,6 +32,7 @@ import gov.nist.core.LogWriter;
 import gov.nist.core.StackLogger;
 
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
@@ -174,6 +175,32 @@ public class NioTlsMessageProcessor extends NioTcpMessageProcessor{
                      null);
 
         }
+        configureSessionCaches(sipStack, sslServerCtx, sslClientCtx);
+    }
+
+    /**
+     * Apply the session cache size and lifetime of the stack to the contexts. The client
+     * contexts keep the sessions by peer host and port, a new connection to the same peer
+     * resumes the session instead of making a full handshake.
+     */
+    static void configureSessionCaches(SIPTransactionStack sipStack, SSLContext serverCtx, SSLContext clientCtx) {
+        SSLSessionContext[] sessionContexts = {
+                serverCtx.getServerSessionContext(), clientCtx.getClientSessionContext() };
+        for (SSLSessionContext sessionContext : sessionContexts) {
+            if (sessionContext == null) {
+                continue;
+            }
+            if (sipStack.tlsSessionCacheSize >= 0) {
+                sessionContext.setSessionCacheSize(sipStack.tlsSessionCacheSize);
+            }
+            if (sipStack.tlsSessionTimeout >= 0) {
+                sessionContext.setSessionTimeout(sipStack.tlsSessionTimeout);
+            }
+        }
+        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+            logger.logDebug("TLS session cache size " + sipStack.tlsSessionCacheSize
+                    + " timeout " + sipStack.tlsSessionTimeout);
+        }
     }
 
 }
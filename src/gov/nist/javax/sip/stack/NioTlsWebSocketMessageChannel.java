@@ -35,6 +35,7 @@ import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.stack.SSLStateMachine.MessageSendCallback;
 
 import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLContext;
 import javax.sip.address.SipURI;
 
@@ -87,7 +88,12 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
         SSLContext ctx = clientMode ?
         		((NioTlsWebSocketMessageProcessor)messageProcessor).sslClientCtx:
                 ((NioTlsWebSocketMessageProcessor)messageProcessor).sslServerCtx;
-		sslStateMachine = new SSLStateMachine(ctx.createSSLEngine(), this);
+		// the outbound engines are keyed by the peer so that a session cached for it is resumed
+		SSLEngine sslEngine = clientMode && peerAddress != null ?
+				ctx.createSSLEngine(peerAddress.getHostAddress(), peerPort) :
+				ctx.createSSLEngine();
+		sslStateMachine = new SSLStateMachine(sslEngine, this);
+		sslStateMachine.setHandshakeExecutor(sipStack.getTlsHandshakeExecutor(getTransport()));
 
         sslStateMachine.sslEngine.setUseClientMode(clientMode);
         String auth = ((SipStackImpl)super.sipStack).
@@ -123,7 +129,7 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 	protected void sendMessage(final byte[] msg, final boolean isClient) throws IOException {
 		checkSocketState();
 
-		ByteBuffer b = ByteBuffer.wrap(NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(msg, client));
+		ByteBuffer[] b = WebSocketCodec.encodeFrame(msg, client);
 		try {
 			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax), new MessageSendCallback() {
 
@@ -156,7 +162,7 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 			final int receiverPort, final boolean retry) throws IOException {
 		checkSocketState();
 		
-		ByteBuffer b = ByteBuffer.wrap(NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(message, client));
+		ByteBuffer[] b = WebSocketCodec.encodeFrame(message, client);
 		try {
 			sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax), new MessageSendCallback() {
 				
@@ -202,8 +208,7 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 									receiverAddress, receiverPort, false);
 
 							byte[] wsM = sipMessage.toString().getBytes();
-							byte[] wsMessage = NioWebSocketMessageChannel.wrapBufferIntoWebSocketFrame(wsM, client);
-							ByteBuffer b = ByteBuffer.wrap(wsMessage);
+							ByteBuffer[] b = WebSocketCodec.encodeFrame(wsM, client);
 							try {
 								sslStateMachine.wrap(b, ByteBufferFactory.getInstance().allocateDirect(netBufferMax), new MessageSendCallback() {
 
@@ -225,7 +230,7 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 
 		} else {
 			// https://java.net/jira/browse/JSIP-497 fix transport for WSS
-			final byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+			final byte[] msg = encodeMessage(sipMessage);
 			sendMessage(msg, this.client);
 		}
     }
@@ -317,6 +322,14 @@ public class NioTlsWebSocketMessageChannel extends NioWebSocketMessageChannel im
 		return this.messageProcessor.transport;
 	}
 
+	@Override
+	protected void close(boolean removeSocket, boolean stopKeepAliveTask) {
+		super.close(removeSocket, stopKeepAliveTask);
+		if(sslStateMachine != null) {
+			sslStateMachine.close();
+		}
+	}
+
 	@Override
 	public void onNewSocket(byte[] message) {
 		super.onNewSocket(message);
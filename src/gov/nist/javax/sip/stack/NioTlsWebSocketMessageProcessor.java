@@ -178,6 +178,7 @@ public class NioTlsWebSocketMessageProcessor extends NioWebSocketMessageProcesso
                      null);
 
         }
+        NioTlsMessageProcessor.configureSessionCaches(sipStack, sslServerCtx, sslClientCtx);
     }
 
 }
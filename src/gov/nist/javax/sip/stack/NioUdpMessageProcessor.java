@@ -0,0 +1,420 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.LogWriter;
+import gov.nist.core.StackLogger;
+import gov.nist.core.StripedCounter;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.DatagramPacket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.LinkedList;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * NIO implementation for UDP. Several DatagramChannels are bound to the
+ * listening point with SO_REUSEPORT so the kernel spreads the datagrams over
+ * them, each one having its own thread that receives into a direct buffer and
+ * parses the message itself instead of handing it to a shared queue. The
+ * kernel hashes the source address and port to pick the channel so the
+ * messages of a given peer are still processed in order.
+ * <p>
+ * The number of channels is set with gov.nist.javax.sip.NIO_UDP_CHANNELS. When
+ * the JVM or the OS doesn't support SO_REUSEPORT a single channel is used.
+ * </p>
+ * <p>
+ * Outgoing datagrams are put on a queue drained by a sending thread, which
+ * sends everything queued at each wakeup through a pooled direct buffer so
+ * that bursts of retransmissions don't each pay for a copy into a temporary
+ * native buffer on the timer thread. The size of the queue is set with
+ * gov.nist.javax.sip.NIO_UDP_SEND_QUEUE_SIZE. A datagram that doesn't fit in
+ * the queue is refused with an IOException rather than sent ahead of the
+ * queued ones, and the datagrams the sending thread fails to send, or that are
+ * still queued when the processor stops, are counted in the udp.send.errors
+ * stack metric.
+ * </p>
+ */
+public class NioUdpMessageProcessor extends UDPMessageProcessor {
+
+    private static StackLogger logger = CommonLogger.getLogger(NioUdpMessageProcessor.class);
+
+    // StandardSocketOptions.SO_REUSEPORT only exists from Java 9
+    private static final SocketOption<Boolean> SO_REUSEPORT = getReusePortOption();
+
+    protected final DatagramChannel[] channels;
+
+    private final Sender sender;
+
+    private final AtomicLong sendErrors = new AtomicLong();
+
+    private final StripedCounter sendErrorCounter;
+
+    public NioUdpMessageProcessor(InetAddress ipAddress,
+            SIPTransactionStack sipStack, int port) throws IOException {
+        this(ipAddress, sipStack, port, openChannels(ipAddress, port, sipStack.nioUdpChannels));
+    }
+
+    private NioUdpMessageProcessor(InetAddress ipAddress,
+            SIPTransactionStack sipStack, int port, DatagramChannel[] channels) throws IOException {
+        super(ipAddress, sipStack, channels[0].socket().getLocalPort(), channels[0].socket());
+        this.channels = channels;
+        this.sender = sipStack.nioUdpSendQueueSize > 0
+                ? new Sender(channels[0], sipStack.nioUdpSendQueueSize) : null;
+        this.sendErrorCounter = sipStack.getStackMetrics() != null
+                ? sipStack.getStackMetrics().counter("udp.send.errors") : null;
+        for (DatagramChannel channel : channels) {
+            if (channel.socket() != sock) {
+                channel.socket().setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
+                channel.socket().setSendBufferSize(sipStack.getSendUdpBufferSize());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static SocketOption<Boolean> getReusePortOption() {
+        try {
+            Field field = StandardSocketOptions.class.getField("SO_REUSEPORT");
+            return (SocketOption<Boolean>) field.get(null);
+        } catch (Exception ex) {
+            return null;
+        }
+    }
+
+    private static DatagramChannel[] openChannels(InetAddress ipAddress, int port, int count)
+            throws IOException {
+        DatagramChannel first = openChannel(ipAddress, port, count > 1);
+        if (count > 1 && !first.supportedOptions().contains(SO_REUSEPORT)) {
+            logger.logWarning("SO_REUSEPORT is not supported, using a single UDP channel on "
+                    + ipAddress.getHostAddress() + "/" + port);
+            count = 1;
+        }
+        DatagramChannel[] channels = new DatagramChannel[Math.max(1, count)];
+        channels[0] = first;
+        // an ephemeral port is shared by all the channels once the first one picked it
+        int boundPort = first.socket().getLocalPort();
+        try {
+            for (int i = 1; i < channels.length; i++) {
+                channels[i] = openChannel(ipAddress, boundPort, true);
+            }
+        } catch (IOException ex) {
+            for (DatagramChannel channel : channels) {
+                if (channel != null) {
+                    channel.close();
+                }
+            }
+            throw ex;
+        }
+        return channels;
+    }
+
+    private static DatagramChannel openChannel(InetAddress ipAddress, int port, boolean reusePort)
+            throws IOException {
+        DatagramChannel channel = DatagramChannel.open();
+        try {
+            if (reusePort && SO_REUSEPORT != null
+                    && channel.supportedOptions().contains(SO_REUSEPORT)) {
+                channel.setOption(SO_REUSEPORT, Boolean.TRUE);
+            }
+            channel.bind(new InetSocketAddress(ipAddress, port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+        return channel;
+    }
+
+    /**
+     * Start one receiving thread per channel.
+     */
+    @Override
+    public void start() throws IOException {
+        this.isRunning = true;
+        this.messageChannels = new LinkedList<MessageChannel>();
+        for (int i = 0; i < channels.length; i++) {
+            UDPMessageChannel messageChannel = new UDPMessageChannel(sipStack, this);
+            this.messageChannels.add(messageChannel);
+            Thread thread = new Thread(new Receiver(channels[i], messageChannel));
+            thread.setDaemon(true);
+            thread.setName("MessageProcessorThread-UDP-" + getIpAddress().getHostAddress() + '/' + getPort() + '-' + i);
+            thread.setPriority(sipStack.getThreadPriority());
+            thread.start();
+        }
+        if (sender != null) {
+            sender.start();
+        }
+    }
+
+    @Override
+    public void stop() {
+        super.stop();
+        if (sender != null) {
+            sender.stop();
+        }
+        for (DatagramChannel channel : channels) {
+            try {
+                channel.close();
+            } catch (IOException ex) {
+                logger.logError("Problem closing channel ", ex);
+            }
+        }
+    }
+
+    /**
+     * Number of channels bound to the listening point.
+     */
+    public int getChannelCount() {
+        return channels.length;
+    }
+
+    /**
+     * Queue the datagram for the sending thread, or send it right away if the
+     * queue is disabled or not running.
+     *
+     * @throws IOException if the send queue is full
+     */
+    @Override
+    protected void sendDatagram(byte[] msg, InetAddress address, int port) throws IOException {
+        InetSocketAddress target = new InetSocketAddress(address, port);
+        if (sender == null || !sender.isRunning()) {
+            channels[0].send(ByteBuffer.wrap(msg), target);
+        } else if (!sender.offer(msg, target)) {
+            // sending it now would pass the datagrams already queued
+            throw new IOException("UDP send queue full, dropping datagram to " + target);
+        }
+    }
+
+    /**
+     * Number of datagrams waiting for the sending thread.
+     */
+    public int getSendQueueSize() {
+        return sender == null ? 0 : sender.size.get();
+    }
+
+    /**
+     * Number of datagrams the sending thread failed to send or dropped when
+     * the processor stopped.
+     */
+    public long getSendErrors() {
+        return sendErrors.get();
+    }
+
+    private void sendFailed() {
+        sendErrors.incrementAndGet();
+        if (sendErrorCounter != null) {
+            sendErrorCounter.increment();
+        }
+    }
+
+    private static class Datagram {
+        final byte[] bytes;
+        final InetSocketAddress target;
+
+        Datagram(byte[] bytes, InetSocketAddress target) {
+            this.bytes = bytes;
+            this.target = target;
+        }
+    }
+
+    private class Sender implements Runnable {
+        private final DatagramChannel channel;
+        private final int capacity;
+        private final Queue<Datagram> queue = new ConcurrentLinkedQueue<Datagram>();
+        final AtomicInteger size = new AtomicInteger();
+        private volatile boolean running;
+        // set while the thread is parked or about to be, so offer knows to wake it up
+        private volatile boolean waiting;
+        private Thread thread;
+
+        Sender(DatagramChannel channel, int capacity) {
+            this.channel = channel;
+            this.capacity = capacity;
+        }
+
+        void start() {
+            running = true;
+            thread = new Thread(this);
+            thread.setDaemon(true);
+            thread.setName("MessageProcessorSenderThread-UDP-" + getIpAddress().getHostAddress() + '/' + getPort());
+            thread.setPriority(sipStack.getThreadPriority());
+            thread.start();
+        }
+
+        void stop() {
+            running = false;
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            }
+        }
+
+        boolean isRunning() {
+            return running;
+        }
+
+        boolean offer(byte[] bytes, InetSocketAddress target) {
+            if (size.incrementAndGet() > capacity) {
+                size.decrementAndGet();
+                return false;
+            }
+            queue.offer(new Datagram(bytes, target));
+            if (!running) {
+                // raced with stop, the thread may already be done draining
+                drain();
+            } else if (waiting) {
+                LockSupport.unpark(thread);
+            }
+            return true;
+        }
+
+        /**
+         * Drop the datagrams left in the queue once stopped, counting them as
+         * send errors so the queue size and the metrics stay accurate.
+         */
+        private void drain() {
+            int dropped = 0;
+            while (queue.poll() != null) {
+                size.decrementAndGet();
+                sendFailed();
+                dropped++;
+            }
+            if (dropped > 0 && logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                logger.logDebug("UDP sender stopped, dropped " + dropped + " queued datagrams");
+            }
+        }
+
+        public void run() {
+            while (running) {
+                Datagram datagram = queue.poll();
+                if (datagram == null) {
+                    waiting = true;
+                    // recheck so that an offer racing with the poll above isn't missed
+                    if (queue.isEmpty() && running) {
+                        LockSupport.park(this);
+                    }
+                    waiting = false;
+                    continue;
+                }
+                size.decrementAndGet();
+                send(datagram);
+            }
+            drain();
+        }
+
+        private void send(Datagram datagram) {
+            ByteBuffer buffer = ByteBufferFactory.getInstance().allocateDirect(datagram.bytes.length);
+            try {
+                buffer.clear();
+                buffer.put(datagram.bytes);
+                buffer.flip();
+                channel.send(buffer, datagram.target);
+            } catch (ClosedChannelException ex) {
+                if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                    logger.logDebug("Channel closed, dropping datagram to " + datagram.target);
+                }
+                sendFailed();
+            } catch (IOException ex) {
+                logger.logError("Error sending UDP datagram to " + datagram.target, ex);
+                sendFailed();
+            } finally {
+                ByteBufferFactory.getInstance().release(buffer);
+            }
+        }
+    }
+
+    private class Receiver implements Runnable {
+        private final DatagramChannel channel;
+        private final UDPMessageChannel messageChannel;
+        // reused for every datagram received on the channel
+        private final ByteBuffer buffer;
+        // handed to the message channel, which is done with it once processIncomingDataPacket returns
+        private final DatagramPacket packet = new DatagramPacket(new byte[0], 0);
+
+        Receiver(DatagramChannel channel, UDPMessageChannel messageChannel) {
+            this.channel = channel;
+            this.messageChannel = messageChannel;
+            this.buffer = ByteBufferFactory.getInstance().allocateDirect(maxMessageSize);
+        }
+
+        public void run() {
+            try {
+                receive();
+            } finally {
+                ByteBufferFactory.getInstance().release(buffer);
+            }
+        }
+
+        private void receive() {
+            while (isRunning) {
+                try {
+                    buffer.clear();
+                    // the pooled buffer may be bigger than asked for
+                    buffer.limit(maxMessageSize);
+                    InetSocketAddress sender = (InetSocketAddress) channel.receive(buffer);
+                    if (sender == null) {
+                        continue;
+                    }
+                    buffer.flip();
+                    // the parsed message keeps the bytes of the headers it didn't parse, so
+                    // they can't live in a buffer reused for the next datagram
+                    byte[] bytes = new byte[buffer.remaining()];
+                    buffer.get(bytes);
+                    packet.setData(bytes);
+                    packet.setSocketAddress(sender);
+                } catch (ClosedChannelException ex) {
+                    if (!isRunning) {
+                        if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                            logger.logDebug("NioUdpMessageProcessor: Stopping");
+                        }
+                        return;
+                    }
+                    reportSockeException(ex);
+                    return;
+                } catch (Exception ex) {
+                    reportSockeException(ex);
+                    continue;
+                }
+                // Parse and process on this thread, no queueing
+                try {
+                    messageChannel.processIncomingDataPacket(packet);
+                } catch (Throwable e) {
+                    logger.logError("Error while processing incoming UDP packet", e);
+                }
+            }
+        }
+    }
+}
@@ -34,7 +34,6 @@ import gov.nist.javax.sip.header.RecordRoute;
 import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.net.InetAddress;
 import java.nio.ByteBuffer;
@@ -54,7 +53,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 	private static StackLogger logger = CommonLogger
 			.getLogger(NioWebSocketMessageChannel.class);
 	
-	private WebSocketCodec codec = new WebSocketCodec(true, true);
+	private WebSocketCodec codec;
 	
 	volatile boolean readingHttp = true;
 	String httpInput = "";
@@ -82,6 +81,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 
 		messageProcessor = nioTcpMessageProcessor;
 		myClientInputStream = socketChannel.socket().getInputStream();
+		this.codec = new WebSocketCodec(true, true, nioTcpMessageProcessor.getSIPStack().getMaxMessageSize());
 	}
 	
 	@Override
@@ -125,8 +125,8 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 
 	public void sendWrapped(byte message[], InetAddress receiverAddress,
 			int receiverPort, boolean retry) throws IOException {
-		message = wrapBufferIntoWebSocketFrame(message, client);
-		super.sendTCPMessage(message, receiverAddress, receiverPort, retry);
+		// the frame header and the message go out together in one gathering write
+		super.sendTCPMessage(WebSocketCodec.encodeFrame(message, client), receiverAddress, receiverPort, retry);
 	}
 	
 	@Override
@@ -170,7 +170,7 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 			NioTcpMessageProcessor nioTcpMessageProcessor) throws IOException {
 		super(inetAddress, port, sipStack, nioTcpMessageProcessor);
 		client = true;
-		this.codec = new WebSocketCodec(false, true);
+		this.codec = new WebSocketCodec(false, true, sipStack.getMaxMessageSize());
 	}
 	
 	@Override
@@ -201,10 +201,11 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 			if(remaining != null) addBytes(remaining);
 			return;
 		} else if(!readingHttp) {
-			ByteArrayInputStream bios = new ByteArrayInputStream(bytes);
-			byte[] decodedMsg = null;
+			// the frames are unmasked in the read bytes and their payload handed to the parser from there
+			ByteBuffer input = ByteBuffer.wrap(bytes);
+			ByteBuffer decodedMsg = null;
 			do {
-				decodedMsg = codec.decode(bios);
+				decodedMsg = codec.decode(input);
 				
 				// Chrome waits for us to close the socket when it sends a close opcode https://code.google.com/p/chromium/issues/detail?id=388243#c15
 				if(codec.isCloseOpcodeReceived()) {
@@ -218,8 +219,10 @@ public class NioWebSocketMessageChannel extends NioTcpMessageChannel{
 				if(decodedMsg == null) {
 					return; // the codec can't parse a full websocket frame, we will try again when have more data
 				}
-				nioParser.addBytes(decodedMsg);
-				logger.logDebug("Nio websocket bytes were added " + decodedMsg.length);
+				nioParser.addBytes(decodedMsg.array(), decodedMsg.arrayOffset() + decodedMsg.position(), decodedMsg.remaining());
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Nio websocket bytes were added " + decodedMsg.remaining());
+				}
 			} while (decodedMsg != null);
 			
 		}
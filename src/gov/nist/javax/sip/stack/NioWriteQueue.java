@@ -0,0 +1,241 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.LogWriter;
+import gov.nist.core.StackLogger;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Outbound data of one NIO connection. Any thread can queue data without
+ * taking a lock, the selector thread of the socket drains the queue with
+ * gathering writes so a burst of messages to the same peer goes out in as few
+ * system calls as possible.
+ * <p>
+ * Only the thread that moves the queue from idle to busy gets true from
+ * {@link #offer(ByteBuffer)} and has to ask the selector for write interest,
+ * later messages are picked up by the pending write.
+ * </p>
+ * <p>
+ * A message can be queued as several buffers, a frame header and its payload
+ * for instance, they are written one after the other without being copied
+ * together and without data of other messages in between.
+ * </p>
+ * <p>
+ * When the peer stops reading the queue grows up to the configured limit,
+ * further messages are refused with an IOException and the queue reports
+ * itself as blocked until half of the limit has been written out.
+ * </p>
+ *
+ * @see SIPTransactionStack#nioMaxQueuedBytes
+ */
+public class NioWriteQueue {
+    private static StackLogger logger = CommonLogger.getLogger(NioWriteQueue.class);
+
+    // Most buffers handed to a single gathering write
+    static final int MAX_GATHER = 64;
+
+    private final SocketChannel socketChannel;
+
+    private final long maxQueuedBytes;
+
+    private final ConcurrentLinkedQueue<ByteBuffer[]> messages = new ConcurrentLinkedQueue<ByteBuffer[]>();
+
+    private final AtomicLong queuedBytes = new AtomicLong();
+
+    // true from the moment write interest is requested until the queue is found empty
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    private volatile boolean blocked;
+
+    // only used by the thread draining the queue
+    private final ByteBuffer[] batch = new ByteBuffer[MAX_GATHER];
+
+    private volatile long writes;
+
+    /**
+     * @param socketChannel the connection the data is written to
+     * @param maxQueuedBytes most bytes waiting to be written, 0 or less for no limit
+     */
+    public NioWriteQueue(SocketChannel socketChannel, long maxQueuedBytes) {
+        this.socketChannel = socketChannel;
+        this.maxQueuedBytes = maxQueuedBytes;
+    }
+
+    public SocketChannel getSocketChannel() {
+        return socketChannel;
+    }
+
+    /**
+     * Queue data for the connection.
+     *
+     * @return true if the caller has to register write interest for the socket
+     * @throws IOException if the peer doesn't read fast enough and the queue is full
+     */
+    public boolean offer(ByteBuffer buffer) throws IOException {
+        return offer(new ByteBuffer[] {buffer});
+    }
+
+    /**
+     * Queue a message made of several buffers, written in order.
+     *
+     * @return true if the caller has to register write interest for the socket
+     * @throws IOException if the peer doesn't read fast enough and the queue is full
+     */
+    public boolean offer(ByteBuffer[] message) throws IOException {
+        if (message.length > MAX_GATHER) {
+            throw new IllegalArgumentException("Too many buffers " + message.length);
+        }
+        int length = 0;
+        for (ByteBuffer buffer : message) {
+            length += buffer.remaining();
+        }
+        long queued = queuedBytes.addAndGet(length);
+        // a message bigger than the limit still goes through an empty queue
+        if (maxQueuedBytes > 0 && queued > maxQueuedBytes && queued != length) {
+            queuedBytes.addAndGet(-length);
+            if (!blocked) {
+                blocked = true;
+                if (logger.isLoggingEnabled(LogWriter.TRACE_WARN)) {
+                    logger.logWarning("Peer of " + socketChannel + " is not reading, "
+                            + (queued - length) + " bytes waiting to be written");
+                }
+            }
+            throw new IOException("Write queue full, " + (queued - length)
+                    + " bytes waiting to be written on " + socketChannel);
+        }
+        messages.offer(message);
+        return scheduled.compareAndSet(false, true);
+    }
+
+    /**
+     * Write as much queued data as the socket takes. Called by one thread at a time.
+     *
+     * @return true if the queue is empty, false if the socket buffer is full
+     */
+    public boolean flush() throws IOException {
+        ByteBuffer[] batch = this.batch;
+        while (true) {
+            int count = 0;
+            int messageCount = 0;
+            // there is a single consumer so the head of the queue stays in place
+            Iterator<ByteBuffer[]> it = messages.iterator();
+            while (it.hasNext()) {
+                ByteBuffer[] message = it.next();
+                if (count + message.length > batch.length) {
+                    break;
+                }
+                for (ByteBuffer buffer : message) {
+                    batch[count++] = buffer;
+                }
+                messageCount++;
+            }
+            if (count == 0) {
+                scheduled.set(false);
+                // data queued after the last look is ours again unless somebody rescheduled
+                if (messages.isEmpty() || !scheduled.compareAndSet(false, true)) {
+                    return true;
+                }
+                continue;
+            }
+            long written;
+            try {
+                written = socketChannel.write(batch, 0, count);
+            } finally {
+                writes++;
+            }
+            long queued = queuedBytes.addAndGet(-written);
+            if (blocked && queued <= maxQueuedBytes / 2) {
+                blocked = false;
+                if (logger.isLoggingEnabled(LogWriter.TRACE_INFO)) {
+                    logger.logInfo("Peer of " + socketChannel + " is reading again");
+                }
+            }
+            boolean full = false;
+            for (int i = 0; i < count; i++) {
+                full |= batch[i].hasRemaining();
+                batch[i] = null;
+            }
+            // the data goes out in order, the messages written completely are at the head
+            for (int i = 0; i < messageCount && isWritten(messages.peek()); i++) {
+                messages.poll();
+            }
+            if (full) {
+                if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                    logger.logDebug("Socket buffer filled, " + queued + " bytes remaining for " + socketChannel);
+                }
+                return false;
+            }
+        }
+    }
+
+    private static boolean isWritten(ByteBuffer[] message) {
+        for (ByteBuffer buffer : message) {
+            if (buffer.hasRemaining()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop the queued data, the connection is gone.
+     */
+    public void clear() {
+        messages.clear();
+        queuedBytes.set(0);
+        blocked = false;
+        // the next message schedules a flush again
+        scheduled.set(false);
+    }
+
+    public long getQueuedBytes() {
+        return queuedBytes.get();
+    }
+
+    /**
+     * @return true if data was refused because the peer is not reading, until the
+     * queue drains to half of its limit
+     */
+    public boolean isBlocked() {
+        return blocked;
+    }
+
+    /**
+     * @return number of gathering writes issued on the socket
+     */
+    public long getWriteCount() {
+        return writes;
+    }
+}
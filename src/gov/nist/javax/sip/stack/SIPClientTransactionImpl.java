@@ -30,7 +30,6 @@ import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.LogWriter;
 import gov.nist.core.NameValueList;
 import gov.nist.core.StackLogger;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.SipStackImpl;
 import gov.nist.javax.sip.Utils;
@@ -350,12 +349,8 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
     // Flags whether the select message is part of this transaction
     boolean transactionMatches;
     String messageBranch = topMostViaHeader.getBranch();
-    boolean rfc3261Compliant = getBranch() != null
-                               && messageBranch != null
-                               && getBranch().toLowerCase()
-                                             .startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)
-                               && messageBranch.toLowerCase()
-                                               .startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE);
+    boolean rfc3261Compliant = Utils.isRfc3261Branch(getBranch())
+                               && Utils.isRfc3261Branch(messageBranch);
 
     transactionMatches = false;
     if (TransactionState._COMPLETED == this.getInternalState()) {
@@ -984,6 +979,8 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
       logger.logDebug("sendRequest() " + sipRequest);
     }
 
+    // the application may have changed headers in place since it was encoded
+    sipRequest.invalidateEncodedForm();
     try {
       sipRequest.checkHeaders();
     } catch (ParseException ex) {
@@ -1098,8 +1095,9 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
         // responsibility.
 
         if (lastRequest != null) {
-          if (sipStack.generateTimeStampHeader
-              && lastRequest.getHeader(TimeStampHeader.NAME) != null)
+          boolean timeStamped = sipStack.generateTimeStampHeader
+              && lastRequest.getHeader(TimeStampHeader.NAME) != null;
+          if (timeStamped)
           {
             long milisec = System.currentTimeMillis();
             TimeStamp timeStamp = new TimeStamp();
@@ -1110,7 +1108,13 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
             }
             lastRequest.setHeader(timeStamp);
           }
-          super.sendMessage(lastRequest);
+          if (sipStack.getStackMetrics() != null)
+            sipStack.getStackMetrics().retransmission();
+          if (!timeStamped && getMessageChannel() instanceof UDPMessageChannel) {
+            resendLastRequestAsBytes();
+          } else {
+            super.sendMessage(lastRequest);
+          }
           if (this.notifyOnRetransmit) {
             TimeoutEvent txTimeout = new TimeoutEvent(this.getSipProvider(),
                                                       this,
@@ -1175,6 +1179,11 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
     if (TransactionState._COMPLETED != this.getInternalState()
         && TransactionState._TERMINATED != this.getInternalState())
     {
+      if (TransactionState._CALLING == this.getInternalState()
+          || TransactionState._TRYING == this.getInternalState()) {
+        // Nothing came back, let the address resolver try another server next time
+        sipStack.reportUnreachableTarget(getPeerAddress(), getPeerPort(), getTransport());
+      }
       raiseErrorEvent(SIPTransactionErrorEvent.TIMEOUT_ERROR);
       // Got a timeout error on a cancel.
       if (this.getMethod().equalsIgnoreCase(Request.CANCEL)) {
@@ -1415,6 +1424,24 @@ public class SIPClientTransactionImpl extends SIPTransactionImpl implements SIPC
     super.setState(newState);
   }
 
+  /**
+   * Retransmit the last request over UDP from its encoded form, so that a burst
+   * of retransmissions doesn't encode the request again each time.
+   */
+  private void resendLastRequestAsBytes() throws IOException {
+    MessageChannel channel = getMessageChannel();
+    byte[] bytes = channel.encodeMessage(lastRequest);
+    if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+      logger.logDebug("resend last request " + lastRequest.getFirstLine());
+    }
+    channel.sendMessage(bytes, getPeerInetAddress(), getPeerPort(), false);
+    StackMetrics stackMetrics = sipStack.getStackMetrics();
+    if (stackMetrics != null)
+      stackMetrics.bytesSent(channel.getTransport(), bytes.length);
+    channel.logMessage(lastRequest, bytes, getPeerInetAddress(), getPeerPort(),
+                       System.currentTimeMillis());
+  }
+
   /**
    * Start the timer task.
    */
@@ -357,7 +357,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
                 throw new SipException(
                         "No listening point for this provider registered at "
                                 + hop);
-            InetAddress inetAddress = InetAddress.getByName(hop.getHost());
+            InetAddress inetAddress = sipStack.getInetAddress(hop.getHost());
             MessageChannel messageChannel = lp.getMessageProcessor()
                     .createMessageChannel(inetAddress, hop.getPort());
                         messageChannel.sendMessage(ackRequest);
@@ -2307,6 +2307,7 @@ public class SIPDialog implements javax.sip.Dialog, DialogExt {
      * @see javax.sip.Dialog#sendAck(javax.sip.message.Request)
      */
     public void sendAck(Request request) throws SipException {
+        ((SIPRequest) request).invalidateEncodedForm();
         this.sendAck(request, true);
     }
 
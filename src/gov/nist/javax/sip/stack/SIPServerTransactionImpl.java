@@ -30,8 +30,8 @@ import gov.nist.core.HostPort;
 import gov.nist.core.InternalErrorHandler;
 import gov.nist.core.LogWriter;
 import gov.nist.core.ServerLogger;
+import gov.nist.core.ServerLoggerExt;
 import gov.nist.core.StackLogger;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.header.Expires;
@@ -494,7 +494,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
                 }
 
             }
-            lastResponseAsBytes = transactionResponse.encodeAsBytes(this.getTransport());
+            lastResponseAsBytes = transactionResponse.encodeAsBytesCached(this.getTransport());
             lastResponse = null;
         } finally {
             this.startTransactionTimer();
@@ -572,8 +572,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
 
                     // If the branch parameter exists but
                     // does not start with the magic cookie,
-                    if (!messageBranch.toLowerCase().startsWith(
-                            SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)) {
+                    if (!Utils.isRfc3261Branch(messageBranch)) {
 
                         // Flags this as old
                         // (RFC2543-compatible) client
@@ -1157,6 +1156,9 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
     @Override
     public void resendLastResponseAsBytes() throws IOException {
 
+        StackMetrics stackMetrics = sipStack.getStackMetrics();
+        if (stackMetrics != null)
+            stackMetrics.retransmission();
         if(lastResponse != null) {
             if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                 logger.logDebug("resend last response " + lastResponse);
@@ -1172,7 +1174,11 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
             }
 
             if(isReliable()) {
-                if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
+                if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)
+                        && sipStack.serverLogger instanceof ServerLoggerExt) {
+                    // the logger takes the bytes, no need to parse them again
+                    getMessageChannel().logMessage(null, lastResponseAsBytes, this.getPeerInetAddress(), this.getPeerPort(), System.currentTimeMillis());
+                } else if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
                     // Issue 343 : we have to log the retransmission
                     try {
                         SIPResponse lastReparsedResponse = (SIPResponse) sipStack.getMessageParserFactory().createMessageParser(sipStack).parseSIPMessage(lastResponseAsBytes, true, false, null);
@@ -1194,6 +1200,8 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
                     }
                 }
                 getMessageChannel().sendMessage(lastResponseAsBytes, this.getPeerInetAddress(), this.getPeerPort(), false);
+                if (stackMetrics != null)
+                    stackMetrics.bytesSent(getMessageChannel().getTransport(), lastResponseAsBytes.length);
             } else {
                 Hop hop = sipStack.addressResolver.resolveAddress(new HopImpl(lastResponseHost, lastResponsePort,
                         lastResponseTransport));
@@ -1202,7 +1210,10 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
                         .createRawMessageChannel(this.getSipProvider().getListeningPoint(
                                 hop.getTransport()).getIPAddress(), this.getPort(), hop);
                 if (messageChannel != null) {
-                    if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
+                    if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)
+                            && sipStack.serverLogger instanceof ServerLoggerExt) {
+                        messageChannel.logMessage(null, lastResponseAsBytes, messageChannel.getPeerInetAddress(), messageChannel.getPeerPort(), System.currentTimeMillis());
+                    } else if (logger.isLoggingEnabled(ServerLogger.TRACE_MESSAGES)) {
                         // Issue 343 : we have to log the retransmission
                         try {
                             SIPResponse lastReparsedResponse = (SIPResponse) sipStack.getMessageParserFactory().createMessageParser(sipStack).parseSIPMessage(lastResponseAsBytes, true, false, null);
@@ -1219,7 +1230,9 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
                             }
                         }
                     }
-                    messageChannel.sendMessage(lastResponseAsBytes, InetAddress.getByName(hop.getHost()), hop.getPort(), false);
+                    messageChannel.sendMessage(lastResponseAsBytes, sipStack.getInetAddress(hop.getHost()), hop.getPort(), false);
+                    if (stackMetrics != null)
+                        stackMetrics.bytesSent(messageChannel.getTransport(), lastResponseAsBytes.length);
                 } else {
                     throw new IOException("Could not create a message channel for " + hop + " with source IP:Port "+
                             this.getSipProvider().getListeningPoint(
@@ -1338,6 +1351,8 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
         if (response == null)
             throw new NullPointerException("null response");
 
+        // the application may have changed headers in place since it was encoded
+        sipResponse.invalidateEncodedForm();
         try {
             sipResponse.checkHeaders();
         } catch (ParseException ex) {
@@ -2057,7 +2072,7 @@ public class SIPServerTransactionImpl extends SIPTransactionImpl implements SIPS
                 }
             }
             if(lastResponse != null) {
-                lastResponseAsBytes = lastResponse.encodeAsBytes(this.getTransport());
+                lastResponseAsBytes = lastResponse.encodeAsBytesCached(this.getTransport());
                 lastResponse = null;
             }
             pendingReliableResponseAsBytes = null;
@@ -31,9 +31,9 @@ import gov.nist.core.LogLevels;
 import gov.nist.core.LogWriter;
 import gov.nist.core.ServerLogger;
 import gov.nist.core.StackLogger;
-import gov.nist.javax.sip.SIPConstants;
 import gov.nist.javax.sip.SipProviderImpl;
 import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.Utils;
 import gov.nist.javax.sip.address.AddressFactoryImpl;
 import gov.nist.javax.sip.header.Via;
 import gov.nist.javax.sip.message.SIPMessage;
@@ -1082,7 +1082,7 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
 
                 // If the branch parameter exists but
                 // does not start with the magic cookie,
-                if (!messageBranch.toLowerCase().startsWith(SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)) {
+                if (!Utils.isRfc3261Branch(messageBranch)) {
 
                     // Flags this as old
                     // (RFC2543-compatible) client
@@ -1230,6 +1230,7 @@ public abstract class SIPTransactionImpl implements SIPTransaction {
         String host = getPeerAddress();
         int port = getPeerPort();
         String transport = getTransport();
+        sipStack.reportUnreachableTarget(host, port, transport);
         IOExceptionEvent exceptionEvent = new IOExceptionEvent(this, host,
                 port, transport);
         getSipProvider().handleEvent(exceptionEvent, this);
@@ -27,6 +27,7 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.core.*;
 import gov.nist.core.net.AddressResolver;
+import gov.nist.core.net.AddressResolverExt;
 import gov.nist.core.net.DefaultNetworkLayer;
 import gov.nist.core.net.NetworkLayer;
 import gov.nist.core.net.SecurityManagerProvider;
@@ -39,6 +40,9 @@ import gov.nist.javax.sip.message.SIPMessage;
 import gov.nist.javax.sip.message.SIPRequest;
 import gov.nist.javax.sip.message.SIPResponse;
 import gov.nist.javax.sip.parser.MessageParserFactory;
+import gov.nist.javax.sip.parser.PostParseExecutorServices;
+import gov.nist.javax.sip.stack.timers.HashedWheelSipTimer;
+import gov.nist.javax.sip.stack.timers.ScheduledExecutorSipTimer;
 import gov.nist.javax.sip.stack.timers.SipTimer;
 
 import javax.sip.*;
@@ -146,6 +150,16 @@ public abstract class SIPTransactionStack implements
 
     private AtomicInteger activeClientTransactionCount = new AtomicInteger(0);
 
+    // Monitor used only by threads waiting for room in the client tx table,
+    // so that adding and removing transactions never locks the table itself.
+    private final Object clientTransactionTableRoom = new Object();
+
+    private final AtomicInteger clientTransactionTableWaiters = new AtomicInteger(0);
+
+    // Concurrency level hint for the transaction and dialog tables.
+    private static final int TABLE_CONCURRENCY_LEVEL = Math.max(16, 4 * Runtime
+            .getRuntime().availableProcessors());
+
     // Hashtable for server transactions.
     protected ConcurrentHashMap<String, SIPServerTransaction> serverTransactionTable;
 
@@ -298,6 +312,9 @@ public abstract class SIPTransactionStack implements
 
     protected AddressResolver addressResolver;
 
+    // Statistics of the stack, null when disabled.
+    protected StackMetrics stackMetrics;
+
     // Max time that the listener is allowed to take to respond to a
     // request. Default is "infinity". This property allows
     // containers to defend against buggy clients (that do not
@@ -386,6 +403,29 @@ public abstract class SIPTransactionStack implements
     
     public long nioSocketMaxIdleTime;
 
+    // number of selector threads of each NIO connection oriented message processor
+    public int nioSelectorThreads = 1;
+
+    // number of channels bound to each NIO UDP listening point
+    public int nioUdpChannels = Runtime.getRuntime().availableProcessors();
+
+    // most datagrams waiting for the sending thread of a NIO UDP listening point, 0 to send on the caller thread
+    public int nioUdpSendQueueSize = 10000;
+
+    // most bytes queued for writing on a NIO connection before sends to it fail, 0 for no limit
+    public long nioMaxQueuedBytes = 0;
+
+    // most TLS handshakes of each transport computed at the same time, 0 to compute them on the selector threads
+    public int tlsHandshakeThreads = Runtime.getRuntime().availableProcessors();
+
+    // most TLS sessions kept for resumption by each TLS context, -1 for the JDK default, 0 for no limit
+    public int tlsSessionCacheSize = -1;
+
+    // seconds a cached TLS session can be resumed for, -1 for the JDK default, 0 for no limit
+    public int tlsSessionTimeout = -1;
+
+    private final Map<String, TlsHandshakeExecutor> tlsHandshakeExecutors = new HashMap<String, TlsHandshakeExecutor>();
+
     protected boolean aggressiveCleanup = false;
 
     public SIPMessageValve sipMessageValve;
@@ -554,12 +594,12 @@ public abstract class SIPTransactionStack implements
         // Create the transaction collections
 
         // Dialog dable.
-        this.dialogTable = new ConcurrentHashMap<String, SIPDialog>();
-        this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
+        this.dialogTable = newTable();
+        this.earlyDialogTable = newTable();
         this.serverDialogMergeTestTable = new ConcurrentHashMap<String, SIPDialog>();
 
-        clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
-        serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
+        clientTransactionTable = newTable();
+        serverTransactionTable = newTable();
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
@@ -571,6 +611,108 @@ public abstract class SIPTransactionStack implements
 
 
         this.forkedClientTransactionTable = new ConcurrentHashMap<String,SIPClientTransaction>();
+
+        this.stackMetrics = createStackMetrics();
+    }
+
+    /**
+     * Create the statistics of the stack with gauges for the sizes of the
+     * transaction and dialog tables and the depth of the timer queue.
+     */
+    private StackMetrics createStackMetrics() {
+        StackMetrics metrics = new StackMetrics();
+        metrics.registerGauge("transactions.server", new StackMetrics.Gauge() {
+            public long getValue() {
+                return serverTransactionTable.size();
+            }
+        });
+        metrics.registerGauge("transactions.client", new StackMetrics.Gauge() {
+            public long getValue() {
+                return clientTransactionTable.size();
+            }
+        });
+        metrics.registerGauge("dialogs", new StackMetrics.Gauge() {
+            public long getValue() {
+                return dialogTable.size();
+            }
+        });
+        metrics.registerGauge("dialogs.early", new StackMetrics.Gauge() {
+            public long getValue() {
+                return earlyDialogTable.size();
+            }
+        });
+        metrics.registerGauge("timer.pending", new StackMetrics.Gauge() {
+            public long getValue() {
+                SipTimer sipTimer = timer;
+                if (sipTimer instanceof HashedWheelSipTimer)
+                    return ((HashedWheelSipTimer) sipTimer).getPendingTaskCount();
+                if (sipTimer instanceof ScheduledExecutorSipTimer)
+                    return ((ScheduledExecutorSipTimer) sipTimer).getPendingTaskCount();
+                return -1;
+            }
+        });
+        registerCallIdExecutorGauges(metrics);
+        return metrics;
+    }
+
+    /**
+     * Gauges for the executor that runs the TCP messages of each Call-ID in
+     * order, all 0 when there is no post parse thread pool.
+     */
+    private static void registerCallIdExecutorGauges(StackMetrics metrics) {
+        metrics.registerGauge("callid.mailboxes", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getMailboxCount();
+            }
+        });
+        metrics.registerGauge("callid.mailbox.depth.max", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getMaxDepth();
+            }
+        });
+        metrics.registerGauge("callid.mailbox.depth.p99", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getDepthHistogram().getPercentile(99);
+            }
+        });
+        metrics.registerGauge("callid.wait.time.us.p99", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getWaitTimeHistogram().getPercentile(99);
+            }
+        });
+        metrics.registerGauge("callid.yields", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getYields();
+            }
+        });
+        metrics.registerGauge("callid.tasks.expired", new StackMetrics.Gauge() {
+            public long getValue() {
+                KeyedSerialExecutor<String> executor = PostParseExecutorServices.getCallIdExecutor();
+                return executor == null ? 0 : executor.getExpiredTasks();
+            }
+        });
+    }
+
+    /**
+     * Get the statistics of the stack.
+     *
+     * @return the metrics, or null if they are disabled.
+     */
+    public StackMetrics getStackMetrics() {
+        return stackMetrics;
+    }
+
+    /**
+     * Create one of the transaction or dialog tables.
+     */
+    private static <V> ConcurrentHashMap<String, V> newTable() {
+        return new ConcurrentHashMap<String, V>(256, 0.75f,
+                TABLE_CONCURRENCY_LEVEL);
     }
 
     /**
@@ -585,13 +727,13 @@ public abstract class SIPTransactionStack implements
         // Handle IO for this process.
         this.ioHandler = new IOHandler(this);
         pendingTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
-        clientTransactionTable = new ConcurrentHashMap<String, SIPClientTransaction>();
-        serverTransactionTable = new ConcurrentHashMap<String, SIPServerTransaction>();
+        clientTransactionTable = newTable();
+        serverTransactionTable = newTable();
         retransmissionAlertTransactions = new ConcurrentHashMap<String, SIPServerTransaction>();
         mergeTable = new ConcurrentHashMap<String, SIPServerTransaction>();
         // Dialog dable.
-        this.dialogTable = new ConcurrentHashMap<String, SIPDialog>();
-        this.earlyDialogTable = new ConcurrentHashMap<String, SIPDialog>();
+        this.dialogTable = newTable();
+        this.earlyDialogTable = newTable();
         this.serverDialogMergeTestTable = new ConcurrentHashMap<String, SIPDialog>();
         this.terminatedServerTransactionsPendingAck = new ConcurrentHashMap<String,SIPServerTransaction>();
         this.forkedClientTransactionTable = new ConcurrentHashMap<String,SIPClientTransaction>();
@@ -756,34 +898,66 @@ public abstract class SIPTransactionStack implements
      */
     public SIPDialog putDialog(SIPDialog dialog) {
         String dialogId = dialog.getDialogId();
-        if (dialogTable.containsKey(dialogId)) {
+        SIPDialog existing = dialogTable.get(dialogId);
+        if (existing == null) {
+            dialog.setStack(this);
+            existing = putIfAbsent(dialogTable, dialogId, dialog);
+        }
+        if (existing != null) {
             if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                 logger
                         .logDebug("putDialog: dialog already exists" + dialogId
-                                + " in table = " + dialogTable.get(dialogId));
+                                + " in table = " + existing);
             }
-            return dialogTable.get(dialogId);
+            return existing;
         }
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
             logger.logDebug("putDialog dialogId=" + dialogId
                     + " dialog = " + dialog);
         }
-        dialog.setStack(this);
         if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG))
             logger.logStackTrace();
-        dialogTable.put(dialogId, dialog);
         putMergeDialog(dialog);
         
         return dialog;
     }
 
     /**
-     * Create a dialog and add this transaction to it.
-     *
-     * @param transaction
-     *            -- tx to add to the dialog.
-     * @return the newly created Dialog.
+     * Atomic put-if-absent on a dialog table. The tables are concurrent maps
+     * unless the application replaced them through setDialogTable.
      */
+    private static SIPDialog putIfAbsent(Map<String, SIPDialog> table,
+            String dialogId, SIPDialog dialog) {
+        if (table instanceof ConcurrentMap) {
+            return ((ConcurrentMap<String, SIPDialog>) table).putIfAbsent(
+                    dialogId, dialog);
+        }
+        synchronized (table) {
+            SIPDialog existing = table.get(dialogId);
+            if (existing == null) {
+                table.put(dialogId, dialog);
+            }
+            return existing;
+        }
+    }
+
+    /**
+     * Atomic remove of a dialog table entry only if it maps to the given
+     * dialog.
+     */
+    private static void remove(Map<String, SIPDialog> table, String dialogId,
+            SIPDialog dialog) {
+        if (table instanceof ConcurrentMap) {
+            ((ConcurrentMap<String, SIPDialog>) table).remove(dialogId, dialog);
+        } else {
+            synchronized (table) {
+                if (table.get(dialogId) == dialog) {
+                    table.remove(dialogId);
+                }
+            }
+        }
+    }
+
     /**
      * Create a dialog and add this transaction to it.
      *
@@ -801,8 +975,8 @@ public abstract class SIPTransactionStack implements
             if (logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
                 logger.logDebug("createDialog dialogId=" + dialogId);
             }
-            if (this.earlyDialogTable.get(dialogId) != null) {
-                SIPDialog dialog = this.earlyDialogTable.get(dialogId);
+            SIPDialog dialog = this.earlyDialogTable.get(dialogId);
+            if (dialog != null) {
                 if (dialog.getState() == null
                         || dialog.getState() == DialogState.EARLY) {
                     retval = dialog;
@@ -929,11 +1103,7 @@ public abstract class SIPTransactionStack implements
             // the same as the one
             // specified
 
-            Object old = this.dialogTable.get(id);
-
-            if (old == dialog) {
-                this.dialogTable.remove(id);
-            }
+            remove(this.dialogTable, id, dialog);
 
             // We now deliver DTE even when the dialog is not originally present
             // in the Dialog
@@ -1478,6 +1648,9 @@ public abstract class SIPTransactionStack implements
 
         requestReceived.setMessageChannel(requestMessageChannel);
 
+        if (stackMetrics != null)
+            stackMetrics.messageReceived(requestReceived, requestMessageChannel.getTransport());
+
         if(sipMessageValve != null) {
         	// https://java.net/jira/browse/JSIP-511
         	// catching all exceptions so it doesn't make JAIN SIP to fail
@@ -1511,8 +1684,7 @@ public abstract class SIPTransactionStack implements
 
             // Loop through all server transactions
             currentTransaction = null;
-            if (!key.toLowerCase().startsWith(
-                    SIPConstants.BRANCH_MAGIC_COOKIE_LOWER_CASE)) {
+            if (!Utils.isRfc3261Branch(key)) {
                 Iterator<SIPServerTransaction> transactionIterator = serverTransactionTable.values().iterator();
                 while (transactionIterator.hasNext()
                         && currentTransaction == null) {
@@ -1616,6 +1788,9 @@ public abstract class SIPTransactionStack implements
         // Transaction to handle this request
         SIPClientTransaction currentTransaction;
 
+        if (stackMetrics != null)
+            stackMetrics.messageReceived(responseReceived, responseMessageChannel.getTransport());
+
         if(sipMessageValve != null) {
         	// https://java.net/jira/browse/JSIP-511
         	// catching all exceptions so it doesn't make JAIN SIP to fail
@@ -1736,8 +1911,7 @@ public abstract class SIPTransactionStack implements
         // Create a new client transaction around the
         // superclass' message channel
         // Create the host/port of the target hop
-        Host targetHost = new Host();
-        targetHost.setHostname(nextHop.getHost());
+        Host targetHost = createTargetHost(nextHop);
         HostPort targetHostPort = new HostPort();
         targetHostPort.setHost(targetHost);
         targetHostPort.setPort(nextHop.getPort());
@@ -1951,8 +2125,17 @@ public abstract class SIPTransactionStack implements
             if (!this.unlimitedClientTransactionTableSize) {
                 if (this.activeClientTransactionCount.get() > clientTransactionTableHiwaterMark) {
                     try {
-                        synchronized (this.clientTransactionTable) {
-                            this.clientTransactionTable.wait();
+                        synchronized (this.clientTransactionTableRoom) {
+                            this.clientTransactionTableWaiters.incrementAndGet();
+                            try {
+                                // re-check now that the waiter is visible to
+                                // decrementActiveClientTransactionCount
+                                if (this.activeClientTransactionCount.get() > clientTransactionTableHiwaterMark) {
+                                    this.clientTransactionTableRoom.wait();
+                                }
+                            } finally {
+                                this.clientTransactionTableWaiters.decrementAndGet();
+                            }
                             this.activeClientTransactionCount.incrementAndGet();
                         }
 
@@ -2002,10 +2185,11 @@ public abstract class SIPTransactionStack implements
     protected void decrementActiveClientTransactionCount() {
 
         if (this.activeClientTransactionCount.decrementAndGet() <= this.clientTransactionTableLowaterMark
-                && !this.unlimitedClientTransactionTableSize) {
-            synchronized (this.clientTransactionTable) {
+                && !this.unlimitedClientTransactionTableSize
+                && this.clientTransactionTableWaiters.get() > 0) {
+            synchronized (this.clientTransactionTableRoom) {
 
-                clientTransactionTable.notify();
+                clientTransactionTableRoom.notify();
 
             }
         }
@@ -2046,7 +2230,7 @@ public abstract class SIPTransactionStack implements
      * @param transactionErrorEvent
      *            Error event.
      */
-    public synchronized void transactionErrorEvent(
+    public void transactionErrorEvent(
             SIPTransactionErrorEvent transactionErrorEvent) {
         SIPTransaction transaction = (SIPTransaction) transactionErrorEvent
                 .getSource();
@@ -2071,7 +2255,7 @@ public abstract class SIPTransactionStack implements
      * gov.nist.javax.sip.stack.SIPDialogEventListener#dialogErrorEvent(gov.
      * nist.javax.sip.stack.SIPDialogErrorEvent)
      */
-    public synchronized void dialogErrorEvent(
+    public void dialogErrorEvent(
             SIPDialogErrorEvent dialogErrorEvent) {
         SIPDialog sipDialog = (SIPDialog) dialogErrorEvent.getSource();
         SipListener sipListener = ((SipStackImpl)this).getSipListener();
@@ -2098,8 +2282,8 @@ public abstract class SIPTransactionStack implements
         synchronized (this) {
             this.notifyAll();
         }
-        synchronized (this.clientTransactionTable) {
-            clientTransactionTable.notifyAll();
+        synchronized (this.clientTransactionTableRoom) {
+            clientTransactionTableRoom.notifyAll();
         }
         
         if(selfRoutingThreadpoolExecutor != null && selfRoutingThreadpoolExecutor instanceof ExecutorService) {
@@ -2114,6 +2298,12 @@ public abstract class SIPTransactionStack implements
             removeMessageProcessor(processorList[processorIndex]);
         }
         closeAllSockets();
+        synchronized (tlsHandshakeExecutors) {
+            for (TlsHandshakeExecutor executor : tlsHandshakeExecutors.values()) {
+                executor.shutdown();
+            }
+            tlsHandshakeExecutors.clear();
+        }
         // Let the processing complete.
 
         if (this.timer != null)
@@ -2130,6 +2320,23 @@ public abstract class SIPTransactionStack implements
 
     }
     
+    /**
+     * Get the executor running the TLS handshakes of the connections of a transport,
+     * created the first time it is needed.
+     *
+     * @param transport TLS or WSS
+     */
+    public TlsHandshakeExecutor getTlsHandshakeExecutor(String transport) {
+        synchronized (tlsHandshakeExecutors) {
+            TlsHandshakeExecutor executor = tlsHandshakeExecutors.get(transport);
+            if (executor == null) {
+                executor = new TlsHandshakeExecutor(transport, tlsHandshakeThreads, stackMetrics);
+                tlsHandshakeExecutors.put(transport, executor);
+            }
+            return executor;
+        }
+    }
+
     public void closeAllSockets() {
     	this.ioHandler.closeAll();
     	for(MessageProcessor p : messageProcessors) {
@@ -2496,8 +2703,7 @@ public abstract class SIPTransactionStack implements
         MessageChannel newChannel;
 
         // Create the host/port of the target hop
-        targetHost = new Host();
-        targetHost.setHostname(nextHop.getHost());
+        targetHost = createTargetHost(nextHop);
         targetHostPort = new HostPort();
         targetHostPort.setHost(targetHost);
         targetHostPort.setPort(nextHop.getPort());
@@ -2588,6 +2794,45 @@ public abstract class SIPTransactionStack implements
         this.addressResolver = addressResolver;
     }
 
+    /**
+     * Look up the address of a host. Goes through the address resolver when it
+     * implements AddressResolverExt, so that the lookup can be cached.
+     *
+     * @param host
+     *            -- host name or IP address literal.
+     * @return the address of the host.
+     * @throws UnknownHostException
+     *             if the host cannot be resolved.
+     */
+    public InetAddress getInetAddress(String host) throws UnknownHostException {
+        if (addressResolver instanceof AddressResolverExt)
+            return ((AddressResolverExt) addressResolver).resolveHost(host);
+        return InetAddress.getByName(host);
+    }
+
+    /**
+     * Tell the address resolver that a target did not answer or could not be
+     * connected to, so that it can fail over to another one.
+     */
+    public void reportUnreachableTarget(String host, int port, String transport) {
+        if (addressResolver instanceof AddressResolverExt && host != null)
+            ((AddressResolverExt) addressResolver).reportFailure(new HopImpl(host, port, transport));
+    }
+
+    /**
+     * Host of a hop for creating a message channel. When the address resolver
+     * does the lookups, the host name is replaced by the address it resolves
+     * to, otherwise the channel looks it up.
+     */
+    private Host createTargetHost(Hop nextHop) throws UnknownHostException {
+        Host targetHost = new Host();
+        if (addressResolver instanceof AddressResolverExt)
+            targetHost.setHostAddress(getInetAddress(nextHop.getHost()).getHostAddress());
+        else
+            targetHost.setHostname(nextHop.getHost());
+        return targetHost;
+    }
+
     /**
      * Set the logger factory.
      *
@@ -2652,10 +2897,7 @@ public abstract class SIPTransactionStack implements
         // Make a shallow copy of the dialog list.
         // This copy will remain intact as leaked dialogs are removed by the
         // stack.
-        LinkedList dialogs;
-        synchronized (dialogTable) {
-            dialogs = new LinkedList(dialogTable.values());
-        }
+        LinkedList dialogs = new LinkedList(dialogTable.values());
 
         // Iterate through the dialogDialog, get the callID of each dialog and
         // check if it's in the
@@ -31,8 +31,13 @@ import gov.nist.core.StackLogger;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Queue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.net.ssl.SSLEngine;
 import javax.net.ssl.SSLEngineResult;
@@ -40,6 +45,7 @@ import javax.net.ssl.SSLEngineResult.HandshakeStatus;
 import javax.net.ssl.SSLEngineResult.Status;
 import javax.net.ssl.SSLException;
 import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
 
 /**
  * This is a helper state machine that negotiates the SSL connection automatically
@@ -50,6 +56,13 @@ import javax.net.ssl.SSLPeerUnverifiedException;
  * and only supply them when they are ready to the original TCP channel once they are
  * decrypted.
  * 
+ * The delegated tasks of the handshake, the expensive part, are run by the handshake
+ * executor of the transport. The engine is left alone until they are done, the data
+ * arriving meanwhile is kept and the handshake resumes on the executor thread.
+ * 
+ * The start of a TLS record cut by the end of a read is kept in a pooled buffer sized
+ * for it, which goes back to the pool once the record is complete or the connection closed.
+ * 
  * @author vladimirralev
  *
  */
@@ -63,24 +76,101 @@ public class SSLStateMachine {
 			new LinkedList<MessageSendItem>();
 	protected NioTlsChannelInterface channel;
 	protected ByteBuffer tlsRecordBuffer;
+	private ByteBuffer retiredRecordBuffer;
 	private Object unwrapLock = new Object();
 	private Object wrapLock = new Object();
 
+	// smallest buffer kept for a partial record, most SIP messages fit
+	private static final int MIN_RECORD_BUFFER_SIZE = 4096;
+
+	private TlsHandshakeExecutor handshakeExecutor;
+	// batches of delegated tasks running on the handshake executor
+	private final AtomicInteger delegatedTasksRunning = new AtomicInteger();
+	// when the first record of the handshake was seen, 0 before and -1 once measured
+	private volatile long handshakeStartTime;
+	// wall clock time of the start, to tell a resumed session from a new one
+	private volatile long handshakeStartMillis;
+	private volatile boolean closed;
+
 	public SSLStateMachine(SSLEngine sslEngine, NioTlsChannelInterface channel) {
 		this.sslEngine = sslEngine;
 		this.channel = channel;
 	}
 
+	/**
+	 * Use the given executor for the delegated tasks of the handshake and for its metrics,
+	 * without one the tasks run on the calling thread.
+	 */
+	public void setHandshakeExecutor(TlsHandshakeExecutor handshakeExecutor) {
+		this.handshakeExecutor = handshakeExecutor;
+	}
+
+	/**
+	 * Give back the buffer of a partial record, the connection is closed.
+	 */
+	public void close() {
+		closed = true;
+		synchronized (unwrapLock) {
+			if(tlsRecordBuffer != null) {
+				ByteBufferFactory.getInstance().release(tlsRecordBuffer);
+				tlsRecordBuffer = null;
+			}
+		}
+	}
+
+	private void handshakeStarted() {
+		if(handshakeStartTime == 0) {
+			handshakeStartMillis = System.currentTimeMillis();
+			handshakeStartTime = System.nanoTime();
+		}
+	}
+
+	private void handshakeFinished() {
+		long start = handshakeStartTime;
+		if(start > 0) {
+			handshakeStartTime = -1;
+			TlsHandshakeExecutor executor = handshakeExecutor;
+			if(executor != null) {
+				executor.handshakeCompleted(System.nanoTime() - start);
+				if(sslEngine.getUseClientMode()) {
+					// a resumed session keeps the creation time of the handshake that made it
+					SSLSession session = sslEngine.getSession();
+					executor.sessionCacheLookup(session.getCreationTime() < handshakeStartMillis);
+				}
+			}
+		}
+	}
+
 	public void wrapRemaining() throws IOException {
-		wrap(null, channel.prepareEncryptedDataBuffer(), null);
+		wrap((ByteBuffer[]) null, channel.prepareEncryptedDataBuffer(), null);
 	}
 	public void wrap(ByteBuffer src, ByteBuffer dst, 
 			MessageSendCallback callback) throws IOException {
+		wrap(src == null ? null : new ByteBuffer[] {src}, dst, callback);
+	}
+
+	/**
+	 * Encrypt a message made of several buffers, such as a frame header and its payload,
+	 * the engine gathers them into the TLS records without copying them together first.
+	 */
+	public void wrap(ByteBuffer[] src, ByteBuffer dst, 
+			MessageSendCallback callback) throws IOException {
+		try {
+			wrapWithLock(src, dst, callback);
+		} finally {
+			// the encrypted bytes have been copied out, the buffer can go back to the pool
+			ByteBufferFactory.getInstance().release(dst);
+		}
+	}
+
+	private void wrapWithLock(ByteBuffer[] src, ByteBuffer dst, 
+			MessageSendCallback callback) throws IOException {
 		synchronized (wrapLock) {
+			handshakeStarted();
 
 
 			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-				logger.logDebug("Wrapping " + src + ", buffers size " + pendingOutboundBuffers.size());
+				logger.logDebug("Wrapping " + (src == null ? null : Arrays.toString(src)) + ", buffers size " + pendingOutboundBuffers.size());
 			}
 
 			// Null src means we just have no ne data but still want to push any previously queued data
@@ -103,7 +193,7 @@ public class SSLStateMachine {
 						logger.logDebug("Wrap result " + result + " buffers size " + pendingOutboundBuffers.size());
 					}
 				} finally {
-					if(!currentBuffer.message.hasRemaining()) {
+					if(!currentBuffer.hasRemaining()) {
 						pendingOutboundBuffers.remove();
 						if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 							logger.logDebug("REMOVED item from encryption queue because it has no more data, all is done, buffers size now is "
@@ -111,7 +201,7 @@ public class SSLStateMachine {
 						}
 					}
 				}
-				int remaining = currentBuffer.message.remaining();
+				int remaining = currentBuffer.remaining();
 
 				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 					logger.logDebug("Remaining " + remaining +  " queue size is " + pendingOutboundBuffers.size());
@@ -133,7 +223,7 @@ public class SSLStateMachine {
 				} else {
 					switch (result.getHandshakeStatus()) {
 					case NEED_WRAP:
-						if (currentBuffer.message.hasRemaining()) {
+						if (currentBuffer.hasRemaining()) {
 							break;
 						} else {
 							break loop;
@@ -141,9 +231,13 @@ public class SSLStateMachine {
 					case NEED_UNWRAP:
 						break loop;
 					case NEED_TASK:
-						runDelegatedTasks(result);
+						if(!runDelegatedTasks(result)) {
+							// the queued data is wrapped once the tasks are done
+							break loop;
+						}
 						break;
 					case FINISHED:
+						handshakeFinished();
 						// Added for https://java.net/jira/browse/JSIP-483 
 						if(channel instanceof NioTlsMessageChannel) {
 							((NioTlsMessageChannel)channel).setHandshakeCompleted(true);
@@ -199,6 +293,7 @@ public class SSLStateMachine {
 
 				switch (result.getHandshakeStatus()) {
 				case FINISHED:
+					handshakeFinished();
 					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 						logger.logDebug("Handshake complete!");
 					}
@@ -223,7 +318,9 @@ public class SSLStateMachine {
 					}
 					break;
 				case NEED_TASK:
-					runDelegatedTasks(result);
+					if(!runDelegatedTasks(result)) {
+						return;
+					}
 					break;
 				}
 
@@ -235,7 +332,7 @@ public class SSLStateMachine {
 
 			throw e;
 		} finally {
-
+			ByteBufferFactory.getInstance().release(encryptedDataBuffer);
 		}
 	}
 
@@ -245,10 +342,12 @@ public class SSLStateMachine {
 	}
 
 	private void startBuffer(ByteBuffer src) {
-		if(tlsRecordBuffer == null) {
+		if(tlsRecordBuffer == null && src.hasRemaining()) {
 
-			// Begin buffering, if there is already a buffer the normalization will take of adding the bytes
-			tlsRecordBuffer = ByteBufferFactory.getInstance().allocateDirect(33270); // max record size in other implementations
+			// Begin buffering, if there is already a buffer the normalization will take of adding the bytes.
+			// The buffer is sized for what we have and grows if the rest of the record is bigger.
+			tlsRecordBuffer = ByteBufferFactory.getInstance().allocateDirect(
+					Math.max(src.remaining(), MIN_RECORD_BUFFER_SIZE));
 
 			// Append the current buffer
 			tlsRecordBuffer.put(src);
@@ -261,7 +360,27 @@ public class SSLStateMachine {
 			}
 		}
 	}
+	/**
+	 * Keep the data the engine can't take now in the record buffer.
+	 */
+	private void keepInput(ByteBuffer src) {
+		if(tlsRecordBuffer == null) {
+			startBuffer(src);
+		} else if(src != tlsRecordBuffer) {
+			normalizeTlsRecordBuffer(src);
+		}
+	}
+
 	private void clearBuffer() {
+		if(tlsRecordBuffer != null) {
+			// a record buffer retired earlier in this unwrap was copied into the
+			// current one before the loop went on, nobody reads it any more
+			if(retiredRecordBuffer != null) {
+				ByteBufferFactory.getInstance().release(retiredRecordBuffer);
+			}
+			// the caller may still be reading it, it is released at the end of the unwrap
+			retiredRecordBuffer = tlsRecordBuffer;
+		}
 		tlsRecordBuffer = null;
 		if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 			logger.logDebug("Buffer cleared");
@@ -280,6 +399,15 @@ public class SSLStateMachine {
 			tlsRecordBuffer.position(tlsRecordBuffer.limit());
 			tlsRecordBuffer.limit(tlsRecordBuffer.capacity());
 
+			if(tlsRecordBuffer.remaining() < src.remaining()) {
+				ByteBuffer larger = ByteBufferFactory.getInstance().allocateDirect(
+						Math.max(2 * tlsRecordBuffer.capacity(), tlsRecordBuffer.position() + src.remaining()));
+				tlsRecordBuffer.flip();
+				larger.put(tlsRecordBuffer);
+				ByteBufferFactory.getInstance().release(tlsRecordBuffer);
+				tlsRecordBuffer = larger;
+			}
+
 			// Append data
 			tlsRecordBuffer.put(src);
 
@@ -290,151 +418,191 @@ public class SSLStateMachine {
 	}
 	private void unwrap(ByteBuffer src, ByteBuffer dst) throws Exception {
 		synchronized (unwrapLock) {
+			ByteBuffer[] output = new ByteBuffer[] {dst};
+			try {
+				handshakeStarted();
+				if(delegatedTasksRunning.get() > 0) {
+					// the engine waits for its tasks, keep the data until the handshake resumes
+					keepInput(src);
+					return;
+				}
+				unwrap(src, output);
+				if(!pendingOutboundBuffers.isEmpty()
+						&& sslEngine.getHandshakeStatus() == HandshakeStatus.NOT_HANDSHAKING) {
+					// the handshake ended with our last handshake message, send what was queued meanwhile
+					wrapRemaining();
+				}
+			} finally {
+				ByteBufferFactory.getInstance().release(output[0]);
+				if(retiredRecordBuffer != null) {
+					ByteBufferFactory.getInstance().release(retiredRecordBuffer);
+					retiredRecordBuffer = null;
+				}
+			}
+		}
+	}
 
+	// output[0] is the current output buffer, replaced when it is too small
+	private void unwrap(ByteBuffer src, ByteBuffer[] output) throws Exception {
+		ByteBuffer dst = output[0];
 
-			loop:while(true) {
-				src = normalizeTlsRecordBuffer(src);
+
+		loop:while(true) {
+			src = normalizeTlsRecordBuffer(src);
+			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+				logger.logDebug("Unwrap src " + src + " dst " 
+						+ dst);
+			}
+			SSLEngineResult result = null;
+			try {
+				result = sslEngine.unwrap(src, dst);
+			} catch (Exception e) {
+				// https://java.net/jira/browse/JSIP-464 
+				// Make sure to throw the exception so the result variable is not null below which makes the stack hang
 				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-					logger.logDebug("Unwrap src " + src + " dst " 
-							+ dst);
+					logger.logDebug("An Exception occured while trying to unwrap the message " + e);
 				}
-				SSLEngineResult result = null;
-				try {
-					result = sslEngine.unwrap(src, dst);
-				} catch (Exception e) {
-					// https://java.net/jira/browse/JSIP-464 
-					// Make sure to throw the exception so the result variable is not null below which makes the stack hang
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("An Exception occured while trying to unwrap the message " + e);
-					}
-					throw e;
+				throw e;
+			}
+			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+				logger.logDebug("Unwrap result " + result + " buffers size " 
+						+ pendingOutboundBuffers.size() + " src=" + src + " dst=" + dst);
+			}
+
+			if(result.getStatus().equals(Status.BUFFER_UNDERFLOW)) {
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Buffer underflow, wait for the next inbound chunk of data to feed the SSL engine");
 				}
+				startBuffer(src);
+				break;
+			} else {
+				clearBuffer();
+			}
+			if(result.getStatus().equals(Status.BUFFER_OVERFLOW)) {
 				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-					logger.logDebug("Unwrap result " + result + " buffers size " 
-							+ pendingOutboundBuffers.size() + " src=" + src + " dst=" + dst);
+					logger.logDebug("Buffer overflow , must prepare the buffer again."
+							+ " outNetBuffer remaining: " +  dst.remaining()
+							+ " outNetBuffer postion: " +  dst.position()
+							+ " Packet buffer size: " + sslEngine.getSession().getPacketBufferSize()
+							+ " new buffer size: " + sslEngine.getSession().getPacketBufferSize() + dst.position());
 				}
-
-				if(result.getStatus().equals(Status.BUFFER_UNDERFLOW)) {
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Buffer underflow, wait for the next inbound chunk of data to feed the SSL engine");
-					}
-					startBuffer(src);
+				ByteBuffer newBuf = channel.prepareAppDataBuffer(sslEngine.getSession().getPacketBufferSize() + dst.position());
+				dst.flip();
+				newBuf.put(dst);
+				ByteBufferFactory.getInstance().release(dst);
+				dst = newBuf;
+				output[0] = dst;
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug(" new outNetBuffer remaining: " +  dst.remaining()
+							+ " new outNetBuffer postion: " +  dst.position());
+				}
+				continue;
+			}
+			if(result.getStatus().equals(Status.CLOSED)) {
+				break;
+			}
+			if(result.bytesProduced()>0) {
+				// There is actual application data in this chunk
+				dst.flip();
+				byte[] a = new byte[dst.remaining()];
+				dst.get(a);
+				// take it and feed the plain text to out chunk-by-chunk parser
+				channel.addPlaintextBytes(a);
+			}
+			switch(result.getHandshakeStatus()) {
+			case NEED_UNWRAP:
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Unwrap has remaining: " + src.hasRemaining() + " buffer " + src);
+				}
+				if(src.hasRemaining()) {
 					break;
 				} else {
-					clearBuffer();
+					break loop;
 				}
-				if(result.getStatus().equals(Status.BUFFER_OVERFLOW)) {
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Buffer overflow , must prepare the buffer again."
-								+ " outNetBuffer remaining: " +  dst.remaining()
-								+ " outNetBuffer postion: " +  dst.position()
-								+ " Packet buffer size: " + sslEngine.getSession().getPacketBufferSize()
-								+ " new buffer size: " + sslEngine.getSession().getPacketBufferSize() + dst.position());
-					}
-					ByteBuffer newBuf = channel.prepareAppDataBuffer(sslEngine.getSession().getPacketBufferSize() + dst.position());
-					dst.flip();
-					newBuf.put(dst);
-					dst = newBuf;
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug(" new outNetBuffer remaining: " +  dst.remaining()
-								+ " new outNetBuffer postion: " +  dst.position());
-					}
-					continue;
+			case NEED_WRAP:
+				wrapNonAppData();
+				if(delegatedTasksRunning.get() > 0) {
+					keepInput(src);
+					break loop;
 				}
-				if(result.getStatus().equals(Status.CLOSED)) {
-					break;
+				break;
+			case NEED_TASK:
+				if(!runDelegatedTasks(result)) {
+					keepInput(src);
+					break loop;
 				}
-				if(result.bytesProduced()>0) {
-					// There is actual application data in this chunk
-					dst.flip();
-					byte[] a = new byte[dst.remaining()];
-					dst.get(a);
-					// take it and feed the plain text to out chunk-by-chunk parser
-					channel.addPlaintextBytes(a);
+				break;
+			case FINISHED:
+				handshakeFinished();
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Handshaking just finnished, but has remaining. Will try to wrap the queues app items.");
 				}
-				switch(result.getHandshakeStatus()) {
-				case NEED_UNWRAP:
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Unwrap has remaining: " + src.hasRemaining() + " buffer " + src);
-					}
-					if(src.hasRemaining()) {
-						break;
-					} else {
-						break loop;
-					}
-				case NEED_WRAP:
-					wrapNonAppData();
-					break;
-				case NEED_TASK:
-					runDelegatedTasks(result);
+				wrapRemaining();
+				if(src.hasRemaining()) {
 					break;
-				case FINISHED:
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Handshaking just finnished, but has remaining. Will try to wrap the queues app items.");
+				} else {
+					if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+						this.logger.logDebug(
+								"Handshake passed");
 					}
-					wrapRemaining();
-					if(src.hasRemaining()) {
-						break;
-					} else {
-						if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-							this.logger.logDebug(
-									"Handshake passed");
-						}
-						// Added for https://java.net/jira/browse/JSIP-483 
-						// allow application to enforce policy by validating the
-						// certificate
-						if(channel instanceof NioTlsMessageChannel) {
-							((NioTlsMessageChannel)channel).setHandshakeCompleted(true);
-							if(sslEngine.getSession() != null) {
-								if(!ClientAuthType.Disabled.equals(channel.getSIPStack().getClientAuth()) && !ClientAuthType.DisabledAll.equals(channel.getSIPStack().getClientAuth())) {
-									// https://java.net/jira/browse/JSIP-483 Don't try to get the PeerCertificates if the client auth is Disabled or DisabledAll as they won't be available
-									try {
-										((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setPeerCertificates(sslEngine.getSession().getPeerCertificates());
-									} catch (SSLPeerUnverifiedException e) {
-										// no op if -Dgov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE=Disabled is used, no peer certificates will be available
-										if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-											logger.logDebug("sslEngine.getSession().getPeerCertificates() are not available, which is normal if running with gov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE=Disabled");
-										}
+					// Added for https://java.net/jira/browse/JSIP-483 
+					// allow application to enforce policy by validating the
+					// certificate
+					if(channel instanceof NioTlsMessageChannel) {
+						((NioTlsMessageChannel)channel).setHandshakeCompleted(true);
+						if(sslEngine.getSession() != null) {
+							if(!ClientAuthType.Disabled.equals(channel.getSIPStack().getClientAuth()) && !ClientAuthType.DisabledAll.equals(channel.getSIPStack().getClientAuth())) {
+								// https://java.net/jira/browse/JSIP-483 Don't try to get the PeerCertificates if the client auth is Disabled or DisabledAll as they won't be available
+								try {
+									((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setPeerCertificates(sslEngine.getSession().getPeerCertificates());
+								} catch (SSLPeerUnverifiedException e) {
+									// no op if -Dgov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE=Disabled is used, no peer certificates will be available
+									if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+										logger.logDebug("sslEngine.getSession().getPeerCertificates() are not available, which is normal if running with gov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE=Disabled");
 									}
 								}
-								((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setLocalCertificates(sslEngine.getSession().getLocalCertificates());
-								((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setCipherSuite(sslEngine.getSession().getCipherSuite());
-							}
-							try {
-								channel.getSIPStack()
-								.getTlsSecurityPolicy()
-								.enforceTlsPolicy(
-										channel
-										.getEncapsulatedClientTransaction());
-							} catch (SecurityException ex) {
-								throw new IOException(ex.getMessage());
 							}
+							((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setLocalCertificates(sslEngine.getSession().getLocalCertificates());
+							((NioTlsMessageChannel)channel).getHandshakeCompletedListener().setCipherSuite(sslEngine.getSession().getCipherSuite());
+						}
+						try {
+							channel.getSIPStack()
+							.getTlsSecurityPolicy()
+							.enforceTlsPolicy(
+									channel
+									.getEncapsulatedClientTransaction());
+						} catch (SecurityException ex) {
+							throw new IOException(ex.getMessage());
+						}
 
-							if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-								this.logger.logDebug(
-										"TLS Security policy passed");
-							}
+						if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+							this.logger.logDebug(
+									"TLS Security policy passed");
 						}
-						break loop;
-					}
-				case NOT_HANDSHAKING:
-					wrapRemaining();
-					if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
-						logger.logDebug("Not handshaking, but has remaining: " + src.hasRemaining() + " buffer " + src);
-					}
-					if(src.hasRemaining()) {
-						break;
-					} else {
-						break loop;
 					}
-				default:
+					break loop;
+				}
+			case NOT_HANDSHAKING:
+				wrapRemaining();
+				if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+					logger.logDebug("Not handshaking, but has remaining: " + src.hasRemaining() + " buffer " + src);
+				}
+				if(src.hasRemaining()) {
 					break;
+				} else {
+					break loop;
 				}
+			default:
+				break;
 			}
 		}
 	}
 
-	private void runDelegatedTasks(SSLEngineResult result) throws IOException {
+	/**
+	 * @return true if the tasks are done, false if they run on the handshake executor
+	 * and the engine must be left alone until the handshake resumes
+	 */
+	private boolean runDelegatedTasks(SSLEngineResult result) throws IOException {
 		if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
 			logger.logDebug("Running delegated task for " + result);
 		}
@@ -444,9 +612,40 @@ public class SSLStateMachine {
 		 *  Call them every time they have NEED_TASK otherwise the sslEngine won't make progress
 		 */
 		if (result.getHandshakeStatus() == HandshakeStatus.NEED_TASK) {
-			Runnable runnable;
-			while ((runnable = sslEngine.getDelegatedTask()) != null) {
-				runnable.run();
+			TlsHandshakeExecutor executor = handshakeExecutor;
+			final List<Runnable> tasks = new ArrayList<Runnable>();
+			if (executor != null && !executor.isInline()) {
+				// counted before the tasks are taken so that a thread finding none
+				// knows they are running, each finishing job resumes the handshake
+				// unless another one is still running
+				delegatedTasksRunning.incrementAndGet();
+				collectDelegatedTasks(tasks);
+				try {
+					executor.execute(new Runnable() {
+						public void run() {
+							int running;
+							try {
+								for (Runnable task : tasks) {
+									task.run();
+								}
+							} finally {
+								running = delegatedTasksRunning.decrementAndGet();
+							}
+							if (running == 0) {
+								resumeHandshake();
+							}
+						}
+					});
+					return false;
+				} catch (RejectedExecutionException e) {
+					// the stack is stopping
+					delegatedTasksRunning.decrementAndGet();
+				}
+			} else {
+				collectDelegatedTasks(tasks);
+			}
+			for (Runnable task : tasks) {
+				task.run();
 			}
 			HandshakeStatus hsStatus = sslEngine.getHandshakeStatus();
 			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
@@ -457,6 +656,40 @@ public class SSLStateMachine {
 						"handshake shouldn't need additional tasks");
 			}
 		}
+		return true;
+	}
+
+	private void collectDelegatedTasks(List<Runnable> tasks) {
+		Runnable runnable;
+		while ((runnable = sslEngine.getDelegatedTask()) != null) {
+			tasks.add(runnable);
+		}
+	}
+
+	/**
+	 * Continue the handshake once the delegated tasks are done, with the data that
+	 * arrived meanwhile and the messages queued meanwhile.
+	 */
+	private void resumeHandshake() {
+		if(closed) {
+			return;
+		}
+		try {
+			synchronized (unwrapLock) {
+				if(sslEngine.getHandshakeStatus() == HandshakeStatus.NEED_WRAP) {
+					wrapNonAppData();
+				}
+			}
+			unwrap(EMPTY_BUFFER);
+			wrapRemaining();
+		} catch (Exception e) {
+			if(logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+				logger.logDebug("TLS handshake failed, closing " + channel + " " + e);
+			}
+			if(channel instanceof MessageChannel) {
+				((MessageChannel) channel).close();
+			}
+		}
 	}
 
 	public void sendSSLMetadata(byte[] msg) throws IOException {
@@ -477,21 +710,37 @@ public class SSLStateMachine {
 	 */
 	public static class MessageSendItem {
 
-		private ByteBuffer message;
+		private ByteBuffer[] message;
 		private MessageSendCallback callback;
 
 		public MessageSendItem(ByteBuffer buffer, MessageSendCallback callback) {
-			this.message = buffer;
+			this(new ByteBuffer[] {buffer}, callback);
+		}
+
+		public MessageSendItem(ByteBuffer[] buffers, MessageSendCallback callback) {
+			this.message = buffers;
 			this.callback = callback;
 		}
 
+		boolean hasRemaining() {
+			return remaining() > 0;
+		}
+
+		int remaining() {
+			int remaining = 0;
+			for (ByteBuffer buffer : message) {
+				remaining += buffer.remaining();
+			}
+			return remaining;
+		}
+
 		public MessageSendCallback getCallBack() {
 			return callback;
 		}
 
 		public String toString() {
 			return MessageSendItem.class.getSimpleName() + " [" 
-					+ message + ", " + callback + "]";
+					+ Arrays.toString(message) + ", " + callback + "]";
 		}
 
 	}
@@ -31,7 +31,7 @@ package gov.nist.javax.sip.stack;
 
 import gov.nist.core.CommonLogger;
 import gov.nist.core.LogWriter;
-import gov.nist.core.ServerLogger;
+import gov.nist.core.ServerLoggerExt;
 import gov.nist.core.StackLogger;
 import gov.nist.javax.sip.LogRecord;
 import gov.nist.javax.sip.header.CallID;
@@ -41,6 +41,9 @@ import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.io.UnsupportedEncodingException;
+import java.text.ParseException;
 import java.util.Properties;
 
 import javax.sip.SipStack;
@@ -50,6 +53,13 @@ import javax.sip.header.TimeStampHeader;
  * Log file wrapper class. Log messages into the message trace file and also write the log into
  * the debug file if needed. This class keeps an XML formatted trace around for later access via
  * RMI. The trace can be viewed with a trace viewer (see tools.traceviewerapp).
+ * <p>
+ * When gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE is set the trace is written
+ * asynchronously: the sending and receiving threads only hand the message
+ * bytes over to a bounded queue and a background thread formats and writes
+ * them, see {@link ServerLogWriter}. Messages are dropped rather than slowing
+ * down the stack when the queue is full.
+ * </p>
  *
  * @version 1.2 $Revision: 1.42 $ $Date: 2010-12-15 11:43:02 $
  *
@@ -57,7 +67,7 @@ import javax.sip.header.TimeStampHeader;
  *
  *
  */
-public class ServerLog implements ServerLogger {
+public class ServerLog implements ServerLoggerExt {
 
     private boolean logContent;
 
@@ -86,6 +96,29 @@ public class ServerLog implements ServerLogger {
 
     private Properties configurationProperties;
 
+    /**
+     * Background writer of the trace, null when the trace is written synchronously.
+     */
+    private ServerLogWriter asyncWriter;
+
+    /**
+     * A message waiting to be written by the background writer. Only what is
+     * cheap to get is taken from the message, the rest is worked out from the
+     * encoded message by the writer.
+     */
+    static class TraceEntry {
+        // encoded message, a byte[] or a String, or text written as is when from is null
+        Object content;
+        String from;
+        String to;
+        String status;
+        boolean sender;
+        long time;
+        String callId;
+        String tid;
+        long timestampVal;
+    }
+
     public ServerLog() {
         // Debug log file. Whatever gets logged by us also makes its way into debug log.
     }
@@ -128,7 +161,33 @@ public class ServerLog implements ServerLogger {
                 }
             }
         }
-        checkLogFile();
+        int queueSize = 0;
+        String queueSizeString = configurationProperties.getProperty("gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE");
+        if (queueSizeString != null) {
+            try {
+                queueSize = Integer.parseInt(queueSizeString);
+            } catch (NumberFormatException ex) {
+                System.out.println("ServerLog: WARNING Bad integer " + queueSizeString);
+            }
+        }
+        if (queueSize > 0 && logFileName != null && traceLevel >= TRACE_MESSAGES) {
+            long maxFileSize = 0;
+            int backupCount = 5;
+            try {
+                maxFileSize = Long.parseLong(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE", "0"));
+                backupCount = Integer.parseInt(configurationProperties.getProperty(
+                        "gov.nist.javax.sip.SERVER_LOG_BACKUP_COUNT", "5"));
+            } catch (NumberFormatException ex) {
+                System.out.println("ServerLog: WARNING Bad integer " + ex.getMessage());
+            }
+            boolean overwrite = Boolean.valueOf(
+                    configurationProperties.getProperty("gov.nist.javax.sip.SERVER_LOG_OVERWRITE"));
+            asyncWriter = new ServerLogWriter(this, logFileName, queueSize, maxFileSize, backupCount,
+                    !overwrite);
+        } else {
+            checkLogFile();
+        }
 
     }
 
@@ -145,6 +204,10 @@ public class ServerLog implements ServerLogger {
     protected int traceLevel = TRACE_MESSAGES;
 
     public synchronized void closeLogFile() {
+        if (asyncWriter != null) {
+            asyncWriter.stop();
+            asyncWriter = null;
+        }
         if (printWriter != null) {
             printWriter.close();
             printWriter = null;
@@ -173,26 +236,13 @@ public class ServerLog implements ServerLogger {
                 FileWriter fw = new FileWriter(logFileName, !overwrite);
 
                 printWriter = new PrintWriter(fw, true);
-                printWriter.println("<!-- "
-                        + "Use the  Trace Viewer in src/tools/tracesviewer to"
-                        + " view this  trace  \n"
-                        + "Here are the stack configuration properties \n"
-                        + "javax.sip.IP_ADDRESS= "
-                        + configurationProperties.getProperty("javax.sip.IP_ADDRESS") + "\n"
-                        + "javax.sip.STACK_NAME= "
-                        + configurationProperties.getProperty("javax.sip.STACK_NAME") + "\n"
-                        + "javax.sip.ROUTER_PATH= "
-                        + configurationProperties.getProperty("javax.sip.ROUTER_PATH") + "\n"
-                        + "javax.sip.OUTBOUND_PROXY= "
-                        + configurationProperties.getProperty("javax.sip.OUTBOUND_PROXY") + "\n"
-                        + "-->");
-                printWriter.println("<description\n logDescription=\"" + description
-                        + "\"\n name=\""
-                        + configurationProperties.getProperty("javax.sip.STACK_NAME")
-                        + "\"\n auxInfo=\"" + auxInfo + "\"/>\n ");
+                StringBuilder header = new StringBuilder();
+                appendHeader(header);
+                printWriter.print(header);
+                printWriter.flush();
                 if (auxInfo != null) {
 
-                    if (sipStack.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                    if (stackLogger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                         stackLogger
                                 .logDebug("Here are the stack configuration properties \n"
                                         + "javax.sip.IP_ADDRESS= "
@@ -232,7 +282,7 @@ public class ServerLog implements ServerLogger {
                     }
                 } else {
 
-                    if (sipStack.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                    if (stackLogger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                         stackLogger.logDebug("Here are the stack configuration properties \n"
                                 + configurationProperties + "\n");
                         stackLogger.logDebug(" ]]>");
@@ -249,6 +299,29 @@ public class ServerLog implements ServerLogger {
         }
     }
 
+    /**
+     * Write the description of the stack found at the beginning of each trace file.
+     */
+    void appendHeader(StringBuilder header) {
+        header.append("<!-- "
+                + "Use the  Trace Viewer in src/tools/tracesviewer to"
+                + " view this  trace  \n"
+                + "Here are the stack configuration properties \n"
+                + "javax.sip.IP_ADDRESS= "
+                + configurationProperties.getProperty("javax.sip.IP_ADDRESS") + "\n"
+                + "javax.sip.STACK_NAME= "
+                + configurationProperties.getProperty("javax.sip.STACK_NAME") + "\n"
+                + "javax.sip.ROUTER_PATH= "
+                + configurationProperties.getProperty("javax.sip.ROUTER_PATH") + "\n"
+                + "javax.sip.OUTBOUND_PROXY= "
+                + configurationProperties.getProperty("javax.sip.OUTBOUND_PROXY") + "\n"
+                + "-->\n");
+        header.append("<description\n logDescription=\"" + description
+                + "\"\n name=\""
+                + configurationProperties.getProperty("javax.sip.STACK_NAME")
+                + "\"\n auxInfo=\"" + auxInfo + "\"/>\n \n");
+    }
+
     /**
      * Global check for whether to log or not. To minimize the time return false here.
      *
@@ -287,7 +360,7 @@ public class ServerLog implements ServerLogger {
         if (printWriter != null) {
             printWriter.println(logInfo);
         }
-        if (sipStack.isLoggingEnabled()) {
+        if (stackLogger.isLoggingEnabled(LogWriter.TRACE_INFO)) {
             stackLogger.logInfo(logInfo);
 
         }
@@ -313,6 +386,10 @@ public class ServerLog implements ServerLogger {
      * @param time is the time to associate with the message.
      */
     public void logMessage(SIPMessage message, String from, String to, boolean sender, long time) {
+        if (asyncWriter != null) {
+            queueMessage(null, message, from, to, null, sender, time);
+            return;
+        }
         checkLogFile();
         if (message.getFirstLine() == null)
             return;
@@ -340,6 +417,10 @@ public class ServerLog implements ServerLogger {
      */
     public void logMessage(SIPMessage message, String from, String to, String status,
             boolean sender, long time) {
+        if (asyncWriter != null) {
+            queueMessage(null, message, from, to, status, sender, time);
+            return;
+        }
         checkLogFile();
         CallID cid = (CallID) message.getCallId();
         String callId = null;
@@ -353,6 +434,131 @@ public class ServerLog implements ServerLogger {
         logMessage(encoded, from, to, sender, callId, firstLine, status, tid, time, tsval);
     }
 
+    /**
+     * Log a message from the bytes sent or received by a channel. The message is not encoded
+     * again when the trace is written asynchronously.
+     *
+     * @see ServerLoggerExt#logMessage(byte[], SIPMessage, String, String, String, boolean, long)
+     */
+    public void logMessage(byte[] encoded, SIPMessage message, String from, String to,
+            String status, boolean sender, long time) {
+        if (asyncWriter != null) {
+            queueMessage(encoded, message, from, to, status, sender, time);
+            return;
+        }
+        if (message == null) {
+            message = parse(encoded);
+            if (message == null)
+                return;
+        }
+        logMessage(message, from, to, status, sender, time);
+    }
+
+    private void queueMessage(byte[] encoded, SIPMessage message, String from, String to,
+            String status, boolean sender, long time) {
+        TraceEntry entry = new TraceEntry();
+        if (encoded != null) {
+            entry.content = encoded;
+        } else {
+            if (message.getFirstLine() == null)
+                return;
+            // received messages are not kept in their encoded form
+            entry.content = logContent ? message.encode()
+                    : message.encodeMessage(new StringBuilder()).toString();
+        }
+        if (message != null) {
+            CallID cid = (CallID) message.getCallId();
+            entry.callId = cid == null ? null : cid.getCallId();
+            entry.tid = message.getTransactionId();
+            TimeStampHeader tsHdr = (TimeStampHeader) message.getHeader(TimeStampHeader.NAME);
+            entry.timestampVal = tsHdr == null ? 0 : tsHdr.getTime();
+        }
+        entry.from = from;
+        entry.to = to;
+        entry.status = status;
+        entry.sender = sender;
+        entry.time = time;
+        asyncWriter.offer(entry);
+    }
+
+    /**
+     * Turn a queued entry into its trace record, called by the background writer.
+     *
+     * @return the record, null if there is nothing to write
+     */
+    String format(TraceEntry entry) throws UnsupportedEncodingException {
+        if (entry.from == null) {
+            return (String) entry.content;
+        }
+        String text;
+        if (entry.content instanceof byte[]) {
+            byte[] encoded = (byte[]) entry.content;
+            if (entry.tid == null) {
+                // only the bytes were given, get the rest from the message
+                SIPMessage message = parse(encoded);
+                if (message == null)
+                    return null;
+                CallID cid = (CallID) message.getCallId();
+                entry.callId = cid == null ? null : cid.getCallId();
+                entry.tid = message.getTransactionId();
+                TimeStampHeader tsHdr = (TimeStampHeader) message.getHeader(TimeStampHeader.NAME);
+                entry.timestampVal = tsHdr == null ? 0 : tsHdr.getTime();
+            }
+            int length = encoded.length;
+            if (!logContent) {
+                length = getHeadersLength(encoded);
+            }
+            text = new String(encoded, 0, length, "UTF-8");
+        } else {
+            text = (String) entry.content;
+        }
+        int eol = text.indexOf('\n');
+        String firstLine = (eol < 0 ? text : text.substring(0, eol)).trim();
+        LogRecord log = this.sipStack.logRecordFactory.createLogRecord(text, entry.from, entry.to,
+                entry.time, entry.sender, firstLine, entry.tid, entry.callId, entry.timestampVal);
+        if (log == null)
+            return null;
+        String logInfo = log.toString();
+        if (stackLogger.isLoggingEnabled(LogWriter.TRACE_INFO)) {
+            stackLogger.logInfo(logInfo);
+        }
+        return logInfo;
+    }
+
+    /**
+     * Length of the start line and headers of an encoded message, including the empty line.
+     */
+    private static int getHeadersLength(byte[] encoded) {
+        for (int i = 0; i + 3 < encoded.length; i++) {
+            if (encoded[i] == '\r' && encoded[i + 1] == '\n' && encoded[i + 2] == '\r'
+                    && encoded[i + 3] == '\n') {
+                return i + 4;
+            }
+        }
+        return encoded.length;
+    }
+
+    private SIPMessage parse(byte[] encoded) {
+        try {
+            return sipStack.getMessageParserFactory().createMessageParser(sipStack)
+                    .parseSIPMessage(encoded, true, false, null);
+        } catch (ParseException ex) {
+            if (stackLogger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
+                stackLogger.logDebug("couldn't parse message to log " + ex.getMessage());
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return number of messages left out of the trace because the queue of the background
+     *         writer was full, always 0 when the trace is written synchronously
+     */
+    public long getDroppedMessageCount() {
+        ServerLogWriter writer = asyncWriter;
+        return writer == null ? 0 : writer.getDroppedCount();
+    }
+
     /**
      * Log a message into the log directory. Time stamp associated with the message is the current
      * time.
@@ -376,8 +582,17 @@ public class ServerLog implements ServerLogger {
 
     public void logException(Exception ex) {
         if (traceLevel >= TRACE_EXCEPTION) {
-            checkLogFile();
             ex.printStackTrace();
+            ServerLogWriter writer = asyncWriter;
+            if (writer != null) {
+                StringWriter trace = new StringWriter();
+                ex.printStackTrace(new PrintWriter(trace));
+                TraceEntry entry = new TraceEntry();
+                entry.content = trace.toString();
+                writer.offer(entry);
+                return;
+            }
+            checkLogFile();
             if (printWriter != null)
                 ex.printStackTrace(printWriter);
 
@@ -0,0 +1,260 @@
+/*
+ * Conditions Of Use
+ *
+ * This software was developed by employees of the National Institute of
+ * Standards and Technology (NIST), an agency of the Federal Government.
+ * Pursuant to title 15 Untied States Code Section 105, works of NIST
+ * employees are not subject to copyright protection in the United States
+ * and are considered to be in the public domain.  As a result, a formal
+ * license is not needed to use the software.
+ *
+ * This software is provided by NIST as a service and is expressly
+ * provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+ * OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+ * AND DATA ACCURACY.  NIST does not warrant or make any representations
+ * regarding the use of the software or the results thereof, including but
+ * not limited to the correctness, accuracy, reliability or usefulness of
+ * the software.
+ *
+ * Permission to use this software is contingent upon your acceptance
+ * of the terms of this agreement
+ *
+ * .
+ *
+ */
+package gov.nist.javax.sip.stack;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Background writer of the message trace. The threads sending and receiving
+ * messages put trace entries in a bounded ring buffer without locking and
+ * return right away, a single thread formats them and writes them in batches
+ * to the trace file, rotating it when it gets too big. Entries are dropped
+ * when the ring buffer is full, the number of dropped entries is counted and
+ * noted in the trace.
+ *
+ * @see ServerLog
+ */
+class ServerLogWriter implements Runnable {
+
+    // how long the writer sleeps when there is nothing to write
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private final ServerLog serverLog;
+
+    private final File file;
+
+    private final long maxFileSize;
+
+    private final int backupCount;
+
+    private boolean append;
+
+    private final AtomicReferenceArray<ServerLog.TraceEntry> ring;
+
+    private final int mask;
+
+    // next slot handed to a producer
+    private final AtomicLong tail = new AtomicLong();
+
+    // next slot read by the writer, the slots before it are free
+    private volatile long head;
+
+    private final AtomicLong dropped = new AtomicLong();
+
+    private long reportedDrops;
+
+    private final AtomicLong written = new AtomicLong();
+
+    private PrintWriter out;
+
+    private long fileSize;
+
+    private volatile boolean stopped;
+
+    private final Thread thread;
+
+    /**
+     * @param capacity size of the ring buffer, rounded up to a power of two
+     * @param maxFileSize size at which the file is rotated, 0 or less to never rotate
+     * @param backupCount number of rotated files kept next to the trace file
+     * @param append append to an existing trace file rather than overwriting it
+     */
+    ServerLogWriter(ServerLog serverLog, String fileName, int capacity, long maxFileSize,
+            int backupCount, boolean append) {
+        this.serverLog = serverLog;
+        this.file = new File(fileName);
+        this.maxFileSize = maxFileSize;
+        this.backupCount = backupCount;
+        this.append = append;
+        int size = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        this.ring = new AtomicReferenceArray<ServerLog.TraceEntry>(size);
+        this.mask = size - 1;
+        this.thread = new Thread(this, "ServerLogWriter-" + file.getName());
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Queue an entry for the writer.
+     *
+     * @return false if the ring buffer is full and the entry was dropped
+     */
+    boolean offer(ServerLog.TraceEntry entry) {
+        long t;
+        do {
+            t = tail.get();
+            if (t - head > mask || stopped) {
+                dropped.incrementAndGet();
+                return false;
+            }
+        } while (!tail.compareAndSet(t, t + 1));
+        ring.set((int) t & mask, entry);
+        return true;
+    }
+
+    long getDroppedCount() {
+        return dropped.get();
+    }
+
+    long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Write what is queued, close the file and let the thread die.
+     */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(5000);
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    public void run() {
+        try {
+            while (true) {
+                int count = drain();
+                if (count == 0) {
+                    if (dropped.get() != reportedDrops) {
+                        try {
+                            write(null);
+                        } catch (Exception ex) {
+                            serverLog.stackLogger.logError("Could not write the message trace", ex);
+                        }
+                    }
+                    if (out != null) {
+                        out.flush();
+                    }
+                    if (stopped && tail.get() == head) {
+                        break;
+                    }
+                    LockSupport.parkNanos(IDLE_NANOS);
+                }
+            }
+        } finally {
+            if (out != null) {
+                out.close();
+                out = null;
+            }
+        }
+    }
+
+    private int drain() {
+        long h = head;
+        int count = 0;
+        // batch at most a ring worth of entries between two flushes
+        while (count <= mask) {
+            int index = (int) h & mask;
+            ServerLog.TraceEntry entry = ring.get(index);
+            if (entry == null) {
+                // empty, or claimed by a producer that hasn't stored its entry yet
+                break;
+            }
+            ring.lazySet(index, null);
+            head = ++h;
+            count++;
+            try {
+                String text = serverLog.format(entry);
+                if (text != null) {
+                    write(text);
+                }
+            } catch (Exception ex) {
+                serverLog.stackLogger.logError("Could not write the message trace", ex);
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Write a trace record, and first the number of records dropped since the last write.
+     *
+     * @param text the record, null to only note the dropped records
+     */
+    private void write(String text) throws IOException {
+        if (out == null) {
+            open();
+        }
+        long drops = dropped.get();
+        if (drops != reportedDrops) {
+            String note = "<!-- " + (drops - reportedDrops) + " messages dropped from the trace -->";
+            out.println(note);
+            fileSize += note.length() + 1;
+            reportedDrops = drops;
+        }
+        if (text == null) {
+            return;
+        }
+        out.println(text);
+        fileSize += text.length() + 1;
+        written.incrementAndGet();
+        if (maxFileSize > 0 && fileSize >= maxFileSize) {
+            rotate();
+        }
+    }
+
+    private void open() throws IOException {
+        out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(
+                new FileOutputStream(file, append), "UTF-8"), 64 * 1024));
+        fileSize = append ? file.length() : 0;
+        // the next files start empty
+        append = false;
+        StringBuilder header = new StringBuilder();
+        serverLog.appendHeader(header);
+        out.print(header);
+        fileSize += header.length();
+    }
+
+    /**
+     * trace -> trace.1 -> trace.2 ... the oldest one is deleted.
+     */
+    private void rotate() {
+        out.close();
+        out = null;
+        if (backupCount > 0) {
+            String name = file.getPath();
+            new File(name + "." + backupCount).delete();
+            for (int i = backupCount - 1; i > 0; i--) {
+                File backup = new File(name + "." + i);
+                if (backup.exists()) {
+                    backup.renameTo(new File(name + "." + (i + 1)));
+                }
+            }
+            file.renameTo(new File(name + ".1"));
+        }
+    }
+}
@@ -0,0 +1,295 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.core.StripedCounter;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import javax.sip.message.Request;
+
+/**
+ * Registry of the statistics collected by the stack: messages received and
+ * sent per method and status code, bytes per transport, retransmissions,
+ * parse and dispatch latencies, plus gauges such as table sizes that are read
+ * when a snapshot is taken. Counters are striped and histograms lock free, so
+ * recording is cheap on the message path.
+ *
+ * Components can add their own counters, histograms and gauges by name.
+ * {@link #snapshot()} returns all values under dotted names, histograms being
+ * expanded into count, mean, p50, p90, p99 and max entries.
+ *
+ * @see gov.nist.javax.sip.SipStackExt#getStackMetrics()
+ * @since 2.0
+ */
+public class StackMetrics {
+
+    /**
+     * A value read when a snapshot is taken.
+     */
+    public interface Gauge {
+        public long getValue();
+    }
+
+    private final ConcurrentMap<String, StripedCounter> counters = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final ConcurrentMap<String, LatencyHistogram> histograms = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final ConcurrentMap<String, Gauge> gauges = new ConcurrentHashMap<String, Gauge>();
+
+    /**
+     * The methods counted on their own, any other method is counted under
+     * {@link #OTHER_METHOD} so that peers cannot grow the maps.
+     */
+    private static final String[] METHODS = { Request.ACK, Request.BYE, Request.CANCEL, Request.INFO,
+            Request.INVITE, Request.MESSAGE, Request.NOTIFY, Request.OPTIONS, Request.PRACK, Request.PUBLISH,
+            Request.REFER, Request.REGISTER, Request.SUBSCRIBE, Request.UPDATE };
+
+    private static final String OTHER_METHOD = "other";
+
+    // per method, to avoid building names on the message path, filled once
+    private final Map<String, StripedCounter> requestsReceived = methodCounters();
+
+    private final Map<String, StripedCounter> requestsSent = methodCounters();
+
+    private final AtomicReferenceArray<StripedCounter> responsesReceived = new AtomicReferenceArray<StripedCounter>(700);
+
+    private final AtomicReferenceArray<StripedCounter> responsesSent = new AtomicReferenceArray<StripedCounter>(700);
+
+    private final ConcurrentMap<String, StripedCounter> bytesReceived = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final ConcurrentMap<String, StripedCounter> bytesSent = new ConcurrentHashMap<String, StripedCounter>();
+
+    private final ConcurrentMap<String, LatencyHistogram> dispatchTimes = new ConcurrentHashMap<String, LatencyHistogram>();
+
+    private final StripedCounter retransmissions = counter("retransmissions");
+
+    private final LatencyHistogram parseTime = histogram("parse.time.us");
+
+    private final StripedCounter encodingCacheHits = counter("encoding.cache.hits");
+
+    private final StripedCounter encodingCacheMisses = counter("encoding.cache.misses");
+
+    /**
+     * @return the counter of that name, created if needed.
+     */
+    public StripedCounter counter(String name) {
+        return get(counters, name);
+    }
+
+    /**
+     * @return the histogram of that name, created if needed.
+     */
+    public LatencyHistogram histogram(String name) {
+        LatencyHistogram histogram = histograms.get(name);
+        if (histogram == null) {
+            histogram = new LatencyHistogram();
+            LatencyHistogram existing = histograms.putIfAbsent(name, histogram);
+            if (existing != null)
+                histogram = existing;
+        }
+        return histogram;
+    }
+
+    public void registerGauge(String name, Gauge gauge) {
+        gauges.put(name, gauge);
+    }
+
+    public void unregisterGauge(String name) {
+        gauges.remove(name);
+    }
+
+    private StripedCounter get(ConcurrentMap<String, StripedCounter> map, String name) {
+        StripedCounter counter = map.get(name);
+        if (counter == null) {
+            counter = new StripedCounter();
+            StripedCounter existing = map.putIfAbsent(name, counter);
+            if (existing != null)
+                counter = existing;
+        }
+        return counter;
+    }
+
+    private static Map<String, StripedCounter> methodCounters() {
+        Map<String, StripedCounter> map = new HashMap<String, StripedCounter>();
+        for (String method : METHODS)
+            map.put(method, new StripedCounter());
+        map.put(OTHER_METHOD, new StripedCounter());
+        return map;
+    }
+
+    private static StripedCounter methodCounter(Map<String, StripedCounter> map, String method) {
+        StripedCounter counter = map.get(method);
+        return counter != null ? counter : map.get(OTHER_METHOD);
+    }
+
+    private static StripedCounter get(AtomicReferenceArray<StripedCounter> array, int statusCode) {
+        int index = statusCode >= 0 && statusCode < array.length() ? statusCode : 0;
+        StripedCounter counter = array.get(index);
+        if (counter == null) {
+            array.compareAndSet(index, null, new StripedCounter());
+            counter = array.get(index);
+        }
+        return counter;
+    }
+
+    /**
+     * Count a message received on a transport.
+     */
+    public void messageReceived(SIPMessage message, String transport) {
+        if (message instanceof SIPRequest) {
+            methodCounter(requestsReceived, ((SIPRequest) message).getMethod()).increment();
+        } else if (message instanceof SIPResponse) {
+            get(responsesReceived, ((SIPResponse) message).getStatusCode()).increment();
+        }
+        // the parsed size covers the headers only
+        if (message.getSize() > 0) {
+            int length = message.getSize();
+            if (message.getContentLength() != null)
+                length += message.getContentLength().getContentLength();
+            get(bytesReceived, transport.toUpperCase()).add(length);
+        }
+    }
+
+    /**
+     * Count a message sent on a transport.
+     */
+    public void messageSent(SIPMessage message, String transport, int length) {
+        if (message instanceof SIPRequest) {
+            // the null request of a keepalive has no method, only its bytes count
+            String method = ((SIPRequest) message).getMethod();
+            if (method != null)
+                methodCounter(requestsSent, method).increment();
+        } else if (message instanceof SIPResponse) {
+            get(responsesSent, ((SIPResponse) message).getStatusCode()).increment();
+        }
+        bytesSent(transport, length);
+    }
+
+    /**
+     * Count bytes sent without a message object, such as a retransmission of
+     * an encoded response.
+     */
+    public void bytesSent(String transport, int length) {
+        get(bytesSent, transport.toUpperCase()).add(length);
+    }
+
+    public void retransmission() {
+        retransmissions.increment();
+    }
+
+    /**
+     * Count a lookup of the encoded form of a message about to be sent.
+     */
+    public void encodingCacheLookup(boolean hit) {
+        if (hit)
+            encodingCacheHits.increment();
+        else
+            encodingCacheMisses.increment();
+    }
+
+    public void parseTime(long nanos) {
+        parseTime.record(nanos / 1000);
+    }
+
+    /**
+     * Record the time a listener took to process an event.
+     */
+    public void dispatchTime(Object listener, long nanos) {
+        String name = listener.getClass().getName();
+        LatencyHistogram histogram = dispatchTimes.get(name);
+        if (histogram == null) {
+            histogram = histogram("dispatch.time.us." + name);
+            dispatchTimes.putIfAbsent(name, histogram);
+        }
+        histogram.record(nanos / 1000);
+    }
+
+    /**
+     * @return one value of a snapshot, 0 if there is none of that name.
+     */
+    public long getValue(String name) {
+        Long value = snapshot().get(name);
+        return value == null ? 0 : value.longValue();
+    }
+
+    /**
+     * @return a consistent enough copy of all the statistics, sorted by name.
+     */
+    public SortedMap<String, Long> snapshot() {
+        SortedMap<String, Long> snapshot = new TreeMap<String, Long>();
+        for (Map.Entry<String, StripedCounter> entry : requestsReceived.entrySet())
+            if (entry.getValue().get() != 0)
+                snapshot.put("messages.received.request." + entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, StripedCounter> entry : requestsSent.entrySet())
+            if (entry.getValue().get() != 0)
+                snapshot.put("messages.sent.request." + entry.getKey(), entry.getValue().get());
+        for (int i = 0; i < responsesReceived.length(); i++) {
+            StripedCounter counter = responsesReceived.get(i);
+            if (counter != null)
+                snapshot.put("messages.received.response." + i, counter.get());
+            counter = responsesSent.get(i);
+            if (counter != null)
+                snapshot.put("messages.sent.response." + i, counter.get());
+        }
+        for (Map.Entry<String, StripedCounter> entry : bytesReceived.entrySet())
+            snapshot.put("bytes.received." + entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, StripedCounter> entry : bytesSent.entrySet())
+            snapshot.put("bytes.sent." + entry.getKey(), entry.getValue().get());
+        for (Map.Entry<String, StripedCounter> entry : counters.entrySet())
+            snapshot.put(entry.getKey(), entry.getValue().get());
+        long lookups = encodingCacheHits.get() + encodingCacheMisses.get();
+        snapshot.put("encoding.cache.hit.percent", lookups == 0 ? 0 : encodingCacheHits.get() * 100 / lookups);
+        for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+            LatencyHistogram histogram = entry.getValue();
+            String name = entry.getKey();
+            snapshot.put(name + ".count", histogram.getCount());
+            snapshot.put(name + ".mean", histogram.getMean());
+            snapshot.put(name + ".p50", histogram.getPercentile(50));
+            snapshot.put(name + ".p90", histogram.getPercentile(90));
+            snapshot.put(name + ".p99", histogram.getPercentile(99));
+            snapshot.put(name + ".max", histogram.getMax());
+        }
+        for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+            try {
+                snapshot.put(entry.getKey(), entry.getValue().getValue());
+            } catch (RuntimeException ex) {
+                // a gauge of a component being torn down, leave it out
+            }
+        }
+        return snapshot;
+    }
+}
@@ -0,0 +1,129 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip.stack;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+
+import javax.management.Attribute;
+import javax.management.AttributeList;
+import javax.management.AttributeNotFoundException;
+import javax.management.DynamicMBean;
+import javax.management.JMException;
+import javax.management.MBeanAttributeInfo;
+import javax.management.MBeanException;
+import javax.management.MBeanInfo;
+import javax.management.MBeanOperationInfo;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.management.ReflectionException;
+
+/**
+ * Exposes the {@link StackMetrics} of a stack as read-only JMX attributes, one
+ * per snapshot entry, under
+ * <code>gov.nist.javax.sip:type=StackMetrics,name=&lt;stack name&gt;</code>.
+ * The attribute list follows the snapshot, so counters created after
+ * registration show up as well.
+ *
+ * @since 2.0
+ */
+public class StackMetricsMBean implements DynamicMBean {
+
+    private final StackMetrics metrics;
+
+    private final ObjectName objectName;
+
+    public StackMetricsMBean(StackMetrics metrics, String stackName) throws JMException {
+        this.metrics = metrics;
+        this.objectName = new ObjectName("gov.nist.javax.sip:type=StackMetrics,name="
+                + ObjectName.quote(stackName == null ? "" : stackName));
+    }
+
+    public ObjectName getObjectName() {
+        return objectName;
+    }
+
+    /**
+     * Register with the platform MBean server, replacing a previous
+     * registration under the same name.
+     */
+    public void register() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+        server.registerMBean(this, objectName);
+    }
+
+    public void unregister() throws JMException {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        if (server.isRegistered(objectName))
+            server.unregisterMBean(objectName);
+    }
+
+    public Object getAttribute(String attribute) throws AttributeNotFoundException {
+        Long value = metrics.snapshot().get(attribute);
+        if (value == null)
+            throw new AttributeNotFoundException(attribute);
+        return value;
+    }
+
+    public AttributeList getAttributes(String[] attributes) {
+        SortedMap<String, Long> snapshot = metrics.snapshot();
+        AttributeList list = new AttributeList();
+        for (String attribute : attributes) {
+            Long value = snapshot.get(attribute);
+            if (value != null)
+                list.add(new Attribute(attribute, value));
+        }
+        return list;
+    }
+
+    public MBeanInfo getMBeanInfo() {
+        List<MBeanAttributeInfo> attributes = new ArrayList<MBeanAttributeInfo>();
+        for (Map.Entry<String, Long> entry : metrics.snapshot().entrySet()) {
+            attributes.add(new MBeanAttributeInfo(entry.getKey(), "long", entry.getKey(), true, false, false));
+        }
+        return new MBeanInfo(getClass().getName(), "SIP stack metrics",
+                attributes.toArray(new MBeanAttributeInfo[attributes.size()]), null,
+                new MBeanOperationInfo[0], null);
+    }
+
+    public Object invoke(String actionName, Object[] params, String[] signature)
+            throws MBeanException, ReflectionException {
+        throw new ReflectionException(new NoSuchMethodException(actionName));
+    }
+
+    public void setAttribute(Attribute attribute) throws AttributeNotFoundException {
+        throw new AttributeNotFoundException("Read only attribute " + attribute.getName());
+    }
+
+    public AttributeList setAttributes(AttributeList attributes) {
+        return new AttributeList();
+    }
+}
@@ -252,7 +252,7 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
                             + " key = " + key + " retrying on peerPortAdvertisedInHeaders "
                             + peerPortAdvertisedInHeaders);
                 }
-        		InetAddress address = InetAddress.getByName(peerAddressAdvertisedInHeaders);
+        		InetAddress address = sipStack.getInetAddress(peerAddressAdvertisedInHeaders);
                 sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                 		address, this.peerPortAdvertisedInHeaders, this.peerProtocol, msg, isClient, this);        		
         		this.peerPort = this.peerPortAdvertisedInHeaders;
@@ -369,7 +369,7 @@ public class TCPMessageChannel extends ConnectionOrientedMessageChannel {
                             + " receiverPort = " + receiverPort + " key = " + key
                             + " retrying on peerPortAdvertisedInHeaders " + peerPortAdvertisedInHeaders);
                 }
-        		InetAddress address = InetAddress.getByName(peerAddressAdvertisedInHeaders);
+        		InetAddress address = sipStack.getInetAddress(peerAddressAdvertisedInHeaders);
                 sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                     address, this.peerPortAdvertisedInHeaders, "TCP", message, retry, this);
         		this.peerPort = this.peerPortAdvertisedInHeaders;
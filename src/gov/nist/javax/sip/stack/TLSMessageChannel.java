@@ -248,7 +248,7 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
         if(sock == null) { // http://java.net/jira/browse/JSIP-362 If we couldn't connect to the host, try the advertised host:port as failsafe
         	if(peerAddressAdvertisedInHeaders  != null && peerPortAdvertisedInHeaders > 0) { 
                 logger.logWarning("Couldn't connect to peerAddress = " + peerAddress + " peerPort = " + peerPort + " key = " + key +  " retrying on peerPortAdvertisedInHeaders " + peerPortAdvertisedInHeaders);
-                InetAddress address = InetAddress.getByName(peerAddressAdvertisedInHeaders);
+                InetAddress address = sipStack.getInetAddress(peerAddressAdvertisedInHeaders);
                 sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
                     address, this.peerPortAdvertisedInHeaders, this.peerProtocol, msg, retry, this);        		
         		this.peerPort = this.peerPortAdvertisedInHeaders;
@@ -357,7 +357,7 @@ public class TLSMessageChannel extends ConnectionOrientedMessageChannel {
         if(sock == null) { // http://java.net/jira/browse/JSIP-362 If we couldn't connect to the host, try the advertised host:port as failsafe
         	if(peerAddressAdvertisedInHeaders  != null && peerPortAdvertisedInHeaders > 0) {
         		logger.logWarning("Couldn't connect to receiverAddress = " + receiverAddress + " receiverPort = " + receiverPort + " key = " + key +  " retrying on peerPortAdvertisedInHeaders " + peerPortAdvertisedInHeaders);
-        		InetAddress address = InetAddress.getByName(peerAddressAdvertisedInHeaders);
+        		InetAddress address = sipStack.getInetAddress(peerAddressAdvertisedInHeaders);
             	sock = this.sipStack.ioHandler.sendBytes(this.messageProcessor.getIpAddress(),
             			address, this.peerPortAdvertisedInHeaders, "TLS", message, retry, this);
         		this.peerPort = this.peerPortAdvertisedInHeaders;
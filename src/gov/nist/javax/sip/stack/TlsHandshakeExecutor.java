@@ -0,0 +1,175 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip.stack;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.core.StripedCounter;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the delegated tasks of the TLS handshakes of one transport, the key
+ * exchange and the certificate checks, away from the selector threads. The
+ * number of threads bounds how many handshakes are computed at the same time,
+ * the others wait in the queue while the selector threads keep serving the
+ * established connections. The threads stop when there is no handshake to run.
+ * <p>
+ * With no threads the tasks run on the thread that found them, as before.
+ * </p>
+ * <p>
+ * The handshake time and the queue are reported in the stack metrics as
+ * tls.handshake.time.us.&lt;transport&gt;, tls.handshake.queue.&lt;transport&gt;
+ * and tls.handshake.active.&lt;transport&gt;. The handshakes of the outbound
+ * connections that resumed a cached session are counted in
+ * tls.session.cache.hits.&lt;transport&gt;, the others in
+ * tls.session.cache.misses.&lt;transport&gt;.
+ * </p>
+ *
+ * @see SIPTransactionStack#tlsHandshakeThreads
+ */
+public class TlsHandshakeExecutor implements Executor {
+
+    private final ThreadPoolExecutor executor;
+
+    private final LatencyHistogram handshakeTime;
+
+    private final StripedCounter sessionCacheHits;
+
+    private final StripedCounter sessionCacheMisses;
+
+    /**
+     * @param transport TLS or WSS
+     * @param threads most handshakes computed at the same time, 0 to run them inline
+     * @param metrics where the handshake time and the queue are reported, may be null
+     */
+    public TlsHandshakeExecutor(final String transport, int threads, StackMetrics metrics) {
+        if (threads > 0) {
+            executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                        private final AtomicInteger count = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "TlsHandshake-" + transport + "-" + count.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            executor.allowCoreThreadTimeOut(true);
+        } else {
+            executor = null;
+        }
+        if (metrics != null) {
+            handshakeTime = metrics.histogram("tls.handshake.time.us." + transport);
+            sessionCacheHits = metrics.counter("tls.session.cache.hits." + transport);
+            sessionCacheMisses = metrics.counter("tls.session.cache.misses." + transport);
+            metrics.registerGauge("tls.handshake.queue." + transport, new StackMetrics.Gauge() {
+                public long getValue() {
+                    return getQueueDepth();
+                }
+            });
+            metrics.registerGauge("tls.handshake.active." + transport, new StackMetrics.Gauge() {
+                public long getValue() {
+                    return getActiveCount();
+                }
+            });
+        } else {
+            handshakeTime = new LatencyHistogram();
+            sessionCacheHits = new StripedCounter();
+            sessionCacheMisses = new StripedCounter();
+        }
+    }
+
+    /**
+     * @return true if the tasks are run by the caller
+     */
+    public boolean isInline() {
+        return executor == null;
+    }
+
+    public void execute(Runnable task) {
+        if (executor == null) {
+            task.run();
+        } else {
+            executor.execute(task);
+        }
+    }
+
+    /**
+     * Record the time a handshake took, from its first record to its end.
+     */
+    public void handshakeCompleted(long nanos) {
+        handshakeTime.record(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * Count a handshake of an outbound connection, which resumed a cached session or
+     * made a new one.
+     */
+    public void sessionCacheLookup(boolean hit) {
+        if (hit) {
+            sessionCacheHits.increment();
+        } else {
+            sessionCacheMisses.increment();
+        }
+    }
+
+    public long getSessionCacheHits() {
+        return sessionCacheHits.get();
+    }
+
+    public long getSessionCacheMisses() {
+        return sessionCacheMisses.get();
+    }
+
+    public LatencyHistogram getHandshakeTimeHistogram() {
+        return handshakeTime;
+    }
+
+    /**
+     * @return number of handshakes waiting for a thread
+     */
+    public int getQueueDepth() {
+        return executor == null ? 0 : executor.getQueue().size();
+    }
+
+    /**
+     * @return number of handshakes being computed
+     */
+    public int getActiveCount() {
+        return executor == null ? 0 : executor.getActiveCount();
+    }
+
+    public void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+        }
+    }
+}
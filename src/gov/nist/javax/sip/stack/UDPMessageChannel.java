@@ -198,6 +198,25 @@ public class UDPMessageChannel extends MessageChannel implements
 
     }
 
+    /**
+     * Constructor for a channel processing the datagrams received by a thread
+     * of the message processor. No thread is started.
+     *
+     * @param stack
+     *            is the shared SIPStack structure
+     * @param messageProcessor
+     *            is the creating message processor.
+     */
+    protected UDPMessageChannel(SIPTransactionStack stack,
+            UDPMessageProcessor messageProcessor) {
+        super.messageProcessor = messageProcessor;
+        this.sipStack = stack;
+        myParser = sipStack.getMessageParserFactory().createMessageParser(
+                sipStack);
+        this.myAddress = messageProcessor.getIpAddress().getHostAddress();
+        this.myPort = messageProcessor.getPort();
+    }
+
     /**
      * Constructor. We create one of these in order to process an incoming
      * message.
@@ -332,14 +351,20 @@ public class UDPMessageChannel extends MessageChannel implements
      * @param packet
      *            is the incoming datagram packet.
      */
-    private void processIncomingDataPacket(DatagramPacket packet)
+    void processIncomingDataPacket(DatagramPacket packet)
             throws Exception {
         this.peerAddress = packet.getAddress();
         int packetLength = packet.getLength();
         // Read bytes and put it in a eueue.
         byte[] bytes = packet.getData();
-        byte[] msgBytes = new byte[packetLength];
-        System.arraycopy(bytes, 0, msgBytes, 0, packetLength);
+        byte[] msgBytes;
+        if (packet.getOffset() == 0 && bytes.length == packetLength) {
+            // already a copy made for this message
+            msgBytes = bytes;
+        } else {
+            msgBytes = new byte[packetLength];
+            System.arraycopy(bytes, packet.getOffset(), msgBytes, 0, packetLength);
+        }
 
         // Do debug logging.
         if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
@@ -353,7 +378,10 @@ public class UDPMessageChannel extends MessageChannel implements
         SIPMessage sipMessage = null;
         try {
             this.receptionTime = System.currentTimeMillis();
+            long parseStart = System.nanoTime();
             sipMessage = myParser.parseSIPMessage(msgBytes, true, false, this);
+            if (sipStack.getStackMetrics() != null)
+                sipStack.getStackMetrics().parseTime(System.nanoTime() - parseStart);
             /*@see Issue 292 */
             if (sipMessage instanceof SIPRequest) {
                 String sipVersion = ((SIPRequest)sipMessage).getRequestLine().getSipVersion();
@@ -741,10 +769,11 @@ public class UDPMessageChannel extends MessageChannel implements
                 }
             }
 
-            byte[] msg = sipMessage.encodeAsBytes(this.getTransport());
+            byte[] msg = encodeMessage(sipMessage);
 
             sendMessage(msg, peerAddress, peerPort, peerProtocol,
                     sipMessage instanceof SIPRequest);
+            countMessageSent(sipMessage, msg.length);
 
             // we didn't run into problems while sending so let's set ports and
             // addresses before feeding the message to the loggers.
@@ -807,18 +836,14 @@ public class UDPMessageChannel extends MessageChannel implements
             }
 
         }
-        DatagramPacket reply = new DatagramPacket(msg, msg.length, peerAddress,
-                peerPort);
         try {
-            DatagramSocket sock;
-            boolean created = false;
-
             if (sipStack.udpFlag) {
                 // Use the socket from the message processor (for firewall
                 // support use the same socket as the message processor
                 // socket -- feature request # 18 from java.net). This also
                 // makes the whole thing run faster!
-                sock = ((UDPMessageProcessor) messageProcessor).sock;
+                ((UDPMessageProcessor) messageProcessor).sendDatagram(msg,
+                        peerAddress, peerPort);
 
                 // Bind the socket to the stack address in case there
                 // are multiple interfaces on the machine (feature reqeust
@@ -826,12 +851,11 @@ public class UDPMessageChannel extends MessageChannel implements
                 // sock = new DatagramSocket(0,sipStack.stackInetAddress);
             } else {
                 // bind to any interface and port.
-                sock = new DatagramSocket();
-                created = true;
-            }
-            sock.send(reply);
-            if (created)
+                DatagramSocket sock = new DatagramSocket();
+                sock.send(new DatagramPacket(msg, msg.length, peerAddress,
+                        peerPort));
                 sock.close();
+            }
         } catch (IOException ex) {
             throw ex;
         } catch (Exception ex) {
@@ -872,26 +896,22 @@ public class UDPMessageChannel extends MessageChannel implements
             }
         }
         if (peerProtocol.compareToIgnoreCase("UDP") == 0) {
-            DatagramPacket reply = new DatagramPacket(msg, msg.length,
-                    peerAddress, peerPort);
-
             try {
-                DatagramSocket sock;
-                if (sipStack.udpFlag) {
-                    sock = ((UDPMessageProcessor) messageProcessor).sock;
-
-                } else {
-                    // bind to any interface and port.
-                    sock = sipStack.getNetworkLayer().createDatagramSocket();
-                }
                 if (logger.isLoggingEnabled(LogWriter.TRACE_DEBUG)) {
                     this.logger.logDebug(
                             "sendMessage " + peerAddress.getHostAddress() + "/"
                                     + peerPort + "\n" + new String(msg));
                 }
-                sock.send(reply);
-                if (!sipStack.udpFlag)
+                if (sipStack.udpFlag) {
+                    ((UDPMessageProcessor) messageProcessor).sendDatagram(msg,
+                            peerAddress, peerPort);
+                } else {
+                    // bind to any interface and port.
+                    DatagramSocket sock = sipStack.getNetworkLayer().createDatagramSocket();
+                    sock.send(new DatagramPacket(msg, msg.length,
+                            peerAddress, peerPort));
                     sock.close();
+                }
             } catch (IOException ex) {
                 throw ex;
             } catch (Exception ex) {
@@ -91,7 +91,7 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     /**
      * A list of message channels that we have started.
      */
-    protected LinkedList messageChannels;
+    protected LinkedList<MessageChannel> messageChannels;
 
     /**
      * Max # of udp message channels
@@ -110,7 +110,7 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     
     private static final int LOWAT=2500;
 
-    private int maxMessageSize = SipStackImpl.MAX_DATAGRAM_SIZE;
+    protected int maxMessageSize = SipStackImpl.MAX_DATAGRAM_SIZE;
     private int exceptionsReportedCounter;
     private static final int MAX_EXCEPTIONS_TO_REPORT = 10;
     
@@ -122,6 +122,19 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
      */
     protected UDPMessageProcessor(InetAddress ipAddress,
             SIPTransactionStack sipStack, int port) throws IOException {
+        this(ipAddress, sipStack, port, null);
+    }
+
+    /**
+     * Constructor for subclasses that open the socket themselves.
+     *
+     * @param sipStack
+     *            pointer to the stack.
+     * @param socket
+     *            bound socket to use, null to create one with the network layer.
+     */
+    protected UDPMessageProcessor(InetAddress ipAddress,
+            SIPTransactionStack sipStack, int port, DatagramSocket socket) throws IOException {
         super(ipAddress, port, "udp",sipStack);
 
         this.sipStack = sipStack;
@@ -140,8 +153,12 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
 
         this.port = port;
         try {
-            this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
-                    ipAddress);
+            if (socket == null) {
+                this.sock = sipStack.getNetworkLayer().createDatagramSocket(port,
+                        ipAddress);
+            } else {
+                this.sock = socket;
+            }
             // Create a new datagram socket.
             sock.setReceiveBufferSize(sipStack.getReceiveUdpBufferSize());
             sock.setSendBufferSize(sipStack.getSendUdpBufferSize());
@@ -200,7 +217,7 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
      */
     public void run() {
         // Check for running flag.
-        this.messageChannels = new LinkedList();
+        this.messageChannels = new LinkedList<MessageChannel>();
         // start all our messageChannels (unless the thread pool size is
         // infinity.
         if (sipStack.threadPoolSize != -1) {
@@ -266,7 +283,7 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
         }
     }
     
-    private void reportSockeException(Exception e) {
+    protected void reportSockeException(Exception e) {
 		if( exceptionsReportedCounter < MAX_EXCEPTIONS_TO_REPORT ) {
 			exceptionsReportedCounter++;
 	    	boolean lastBeforeFloodingChecker = exceptionsReportedCounter == MAX_EXCEPTIONS_TO_REPORT;
@@ -299,6 +316,18 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
 		}
     }
 
+    /**
+     * Send a datagram from the socket of the listening point.
+     *
+     * @param msg the bytes to send.
+     * @param address the address to send them to.
+     * @param port the port to send them to.
+     * @throws IOException if the datagram could not be sent.
+     */
+    protected void sendDatagram(byte[] msg, InetAddress address, int port) throws IOException {
+        sock.send(new DatagramPacket(msg, msg.length, address, port));
+    }
+
     /**
      * Shut down the message processor. Close the socket for recieving incoming
      * messages.
@@ -310,9 +339,11 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     	} else {
     		sock.close(); 
     	}
-    	// closing the channels
-    	for (Object messageChannel : messageChannels) {
-    		((MessageChannel)messageChannel).close();
+    	// closing the channels, the thread creates them so there are none if it didn't run yet
+    	if (messageChannels != null) {
+    		for (MessageChannel messageChannel : messageChannels) {
+    			messageChannel.close();
+    		}
     	}
     	if(sipStack.stackCongenstionControlTimeout > 0 && congestionAuditor != null) {
     		this.congestionAuditor.stop();
@@ -379,4 +410,13 @@ public class UDPMessageProcessor extends MessageProcessor implements Runnable {
     	return !messageQueue.isEmpty();
     }
 
+    /**
+     * Return how long, in milliseconds, the oldest datagram waiting for a
+     * worker thread has been queued.
+     */
+    public long getQueueDelay() {
+        DatagramQueuedMessageDispatch oldest = messageQueue.peek();
+        return oldest == null ? 0 : System.currentTimeMillis() - oldest.getReceptionTime();
+    }
+
 }
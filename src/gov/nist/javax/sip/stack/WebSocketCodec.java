@@ -25,9 +25,9 @@
  */
 package gov.nist.javax.sip.stack;
 
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
 import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import gov.nist.core.CommonLogger;
 import gov.nist.core.LogLevels;
@@ -37,6 +37,16 @@ import gov.nist.core.StackLogger;
  * 
  * Decodes a web socket frame from wire protocol version 8 format. This code was originally based on <a
  * href="https://github.com/joewalnes/webbit">webbit</a>.
+ * <p>
+ * Frames are decoded in place: a frame that arrived whole is unmasked inside the buffer given to
+ * {@link #decode(ByteBuffer)} and its payload is handed out as a slice of that buffer. Only the
+ * start of a frame that is cut by the end of a read is copied aside, the copy growing with the
+ * bytes received until the rest of the frame arrives.
+ * </p>
+ * <p>
+ * Outbound frames are a small header buffer followed by the payload as it is, see
+ * {@link #encodeFrame(byte[], boolean)}, so the channel can write both with one gathering write.
+ * </p>
  *
  * @author vladimirralev
  *
@@ -53,7 +63,12 @@ public class WebSocketCodec {
 	private static final byte OPCODE_PING = 0x9;
 	private static final byte OPCODE_PONG = 0xA;
 
-	private static final byte[] trivialMask = new byte[] {1,1,1,1};
+	// 2 bytes, 8 bytes of extended length and 4 bytes of mask
+	private static final int MAX_HEADER_LENGTH = 14;
+
+	private static final int TRIVIAL_MASK = 0x01010101;
+
+	private static final ByteBuffer EMPTY_BUFFER = ByteBuffer.allocate(0);
 
 	// Websocket metadata
 	private int fragmentedFramesCount;
@@ -61,72 +76,132 @@ public class WebSocketCodec {
 	private int frameRsv;
 	private int frameOpcode;
 	private long framePayloadLength;
-	private byte[] maskingKey = new byte[4];
+	private boolean frameMasked;
+	private int maskingKey;
+	private int frameHeaderLength;
 	private final boolean allowExtensions;
 	private final boolean maskedPayload;
+	private final int maxPayloadLength;
 	private boolean closeOpcodeReceived;
 
-	
-	// THe payload inside the websocket frame starts at this index
-	private int payloadStartIndex = -1;
+	// Start of a frame that did not arrive in one read, in write mode
+	private ByteBuffer pending = ByteBuffer.allocate(0);
 
-	// Buffering incomplete and overflowing frames
-	private byte[] decodeBuffer = new byte[2048];
-	private int writeIndex = 0;
-	private int readIndex;
-	
-	// Total webscoket frame (metadata + payload)
-	private long totalPacketLength = -1;
+	// Bytes at the start of the pending buffer handed out by the last decode, dropped by the next one
+	private int pendingConsumed;
 
 
 	public WebSocketCodec(boolean maskedPayload, boolean allowExtensions) {
+		this(maskedPayload, allowExtensions, 0);
+	}
+
+	/**
+	 * @param maxPayloadLength largest payload accepted in a frame, 0 for no limit. A frame
+	 * declaring a larger one is refused from its header, before anything is buffered for it.
+	 */
+	public WebSocketCodec(boolean maskedPayload, boolean allowExtensions, int maxPayloadLength) {
 
 		this.maskedPayload = maskedPayload;
 		this.allowExtensions = allowExtensions;
+		this.maxPayloadLength = maxPayloadLength;
 	}
-	private byte readNextByte() {
-		if(readIndex >= writeIndex) {
-			throw new IllegalStateException();
+
+	/**
+	 * Decode the next frame from the data read from the network. The position of the input moves
+	 * past what was taken from it, the caller calls again until null is returned to get all the
+	 * frames of a read. The input doesn't have to be kept once null is returned.
+	 * 
+	 * @param input data read from the network
+	 * @return the unmasked payload of the next complete frame, valid until the next call, or null
+	 * if more data is needed
+	 */
+	public ByteBuffer decode(ByteBuffer input) {
+		if(pendingConsumed > 0) {
+			pending.flip();
+			pending.position(pendingConsumed);
+			pending.compact();
+			pendingConsumed = 0;
 		}
-		return this.decodeBuffer[readIndex++];
-	}
 
-	public byte[] decode(InputStream is)
-			throws Exception {
-		do {
-			// Attempt to resize the decode buffer when it's approaching capacity
-			int bytesLeft = decodeBuffer.length - writeIndex;
-			int availToRead = is.available();
-			if(availToRead > bytesLeft - 1) {
-				int newSize = Math.max(2*decodeBuffer.length, 4*availToRead);
+		if(pending.position() == 0) {
+			// The usual case, the frame is decoded where it is
+			long frameLength = readHeader(input, input.position(), input.limit());
+			if(frameLength >= 0 && input.remaining() >= frameLength) {
+				int start = input.position();
+				input.position(start + (int) frameLength);
+				return payload(input, start, (int) frameLength);
+			}
+			if(!input.hasRemaining()) {
+				return null;
+			}
+			if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+				logger.logDebug("Incomplete frame, keeping " + input.remaining() + " bytes of " + frameLength);
+			}
+			append(input, input.remaining());
+			return null;
+		}
+
+		// A frame that started in an earlier read, take from the input just what completes it
+		long frameLength = readHeader(pending, 0, pending.position());
+		if(frameLength < 0) {
+			append(input, Math.min(input.remaining(), MAX_HEADER_LENGTH - pending.position()));
+			frameLength = readHeader(pending, 0, pending.position());
+			if(frameLength < 0) {
+				return null;
+			}
+		}
+		if(pending.position() < frameLength) {
+			append(input, (int) Math.min(input.remaining(), frameLength - pending.position()));
+			if(pending.position() < frameLength) {
 				if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-					logger.logDebug("Increasing buffer size from " + decodeBuffer.length + 
-							" avail " + availToRead + " newSize " + newSize);
+					logger.logDebug("Abort decode. Have " + pending.position() + " and totalPacketLength is " + frameLength);
 				}
-				byte[] resizeBuffer = new byte[newSize];
-				System.arraycopy(this.decodeBuffer, 0, resizeBuffer, 0, writeIndex);
-				this.decodeBuffer = resizeBuffer;
+				return null; // wait for more data
 			}
+		}
+		pendingConsumed = (int) frameLength;
+		return payload(pending, 0, (int) frameLength);
+	}
 
-			int bytesRead = is.read(decodeBuffer, writeIndex, bytesLeft);
-			if(bytesRead < 0) bytesRead = 0;
-
-			// Update the count in the buffer
-			writeIndex += bytesRead;
-		} while(is.available()>0);
+	/**
+	 * Decode the next frame from a stream, the data available from the stream is buffered
+	 * until there is a complete frame.
+	 * 
+	 * @return a copy of the unmasked payload or null if more data is needed
+	 */
+	public byte[] decode(InputStream is)
+			throws Exception {
+		int available;
+		while((available = is.available()) > 0) {
+			reserve(pending.position() + available);
+			int bytesRead = is.read(pending.array(), pending.arrayOffset() + pending.position(), available);
+			if(bytesRead <= 0) break;
+			pending.position(pending.position() + bytesRead);
+		}
+		ByteBuffer payload = decode(EMPTY_BUFFER);
+		if(payload == null) {
+			return null;
+		}
+		byte[] plainTextBytes = new byte[payload.remaining()];
+		payload.get(plainTextBytes);
+		return plainTextBytes;
+	}
 
-		// Start over from scratch. If the frame is big this may be repeated a few times O(logN) and doesn't affect performance
-		readIndex = 0;
-		
+	/**
+	 * Read the frame header found between start and end of the buffer.
+	 * 
+	 * @return the length of the whole frame, -1 if the header itself is not complete
+	 */
+	private long readHeader(ByteBuffer buffer, int start, int end) {
+		if(buffer.order() != ByteOrder.BIG_ENDIAN) {
+			buffer = buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		}
 		// All TCP slow-start algorithms will be cut off right here without further analysis
-		if(writeIndex<4) {
-			if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-				logger.logDebug("Abort decode. Write index is at " + writeIndex);
-			}
-			return null;
+		if(end - start < 2) {
+			return -1;
 		}
 
-		byte b = readNextByte();
+		byte b = buffer.get(start);
 		frameFinalFlag = (b & 0x80) != 0;
 		frameRsv = (b & 0x70) >> 4;
 		frameOpcode = b & 0x0F;
@@ -135,120 +210,142 @@ public class WebSocketCodec {
 			logger.logDebug("Decoding WebSocket Frame opCode=" + frameOpcode);
 		}
 		
-		
 		if(frameOpcode == 8) {
 			//https://code.google.com/p/chromium/issues/detail?id=388243#c15
 			this.closeOpcodeReceived = true;
 		}
 
-
 		// MASK, PAYLOAD LEN 1
-		b = readNextByte();
-		boolean frameMasked = (b & 0x80) != 0;
+		b = buffer.get(start + 1);
+		frameMasked = (b & 0x80) != 0;
 		int framePayloadLen1 = b & 0x7F;
 
 		if (frameRsv != 0 && !allowExtensions) {
 			protocolViolation("RSV != 0 and no extension negotiated, RSV:" + frameRsv);
-			return null;
 		}
 
 		if (maskedPayload && !frameMasked) {
 			protocolViolation("unmasked client to server frame");
-			return null;
 		}
 
 		protocolChecks();
 
-		try {
-			// Read frame payload length
-			if (framePayloadLen1 == 126) {
-				int byte1 = 0xff & readNextByte();
-				int byte2 = 0xff & readNextByte();
-				int value = (byte1<<8) | byte2;
-				framePayloadLength = value;
-			} else if (framePayloadLen1 == 127) {
-				long value = 0;
-				for(int q=0;q<8;q++) {
-					byte nextByte = readNextByte();
-					long valuePart = ((long)(0xff&nextByte));
-					valuePart <<= (7-q)*8;
-					value |= valuePart;
-				}
-				framePayloadLength = value;
-
-				if (framePayloadLength < 65536) {
-					protocolViolation("invalid data frame length (not using minimal length encoding): " + framePayloadLength);
-					return null;
-				}
-				
-			} else {
-				framePayloadLength = framePayloadLen1;
+		int index = start + 2;
+		// Read frame payload length
+		if (framePayloadLen1 == 126) {
+			if(end - index < 2) return -1;
+			framePayloadLength = buffer.getShort(index) & 0xFFFF;
+			index += 2;
+		} else if (framePayloadLen1 == 127) {
+			if(end - index < 8) return -1;
+			framePayloadLength = buffer.getLong(index);
+			index += 8;
+
+			if (framePayloadLength < 0 || framePayloadLength > Integer.MAX_VALUE - MAX_HEADER_LENGTH) {
+				protocolViolation("Unsupported payload size: " + framePayloadLength);
 			}
-			
-			if(framePayloadLength < 0) {
-				protocolViolation("Negative payload size: " + framePayloadLength);
-			}
-
-			if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-				logger.logDebug("Decoding WebSocket Frame length=" + framePayloadLength);
-			}
-
-			// Analyze the mask
-			if (frameMasked) {
-				for(int q=0; q<4 ;q++)
-					maskingKey[q] = readNextByte();
+			if (framePayloadLength < 65536) {
+				protocolViolation("invalid data frame length (not using minimal length encoding): " + framePayloadLength);
 			}
+		} else {
+			framePayloadLength = framePayloadLen1;
 		}
-		catch (IllegalStateException e) {
-			// the stream has ended we don't have enough data to continue
-			return null;
+
+		if (maxPayloadLength > 0 && framePayloadLength > maxPayloadLength) {
+			protocolViolation("Max Message Size Exceeded " + framePayloadLength + " allowed max size is " + maxPayloadLength);
 		}
 
-		// Remember the payload position
-		payloadStartIndex = readIndex;
-		totalPacketLength = readIndex + framePayloadLength;
+		// Analyze the mask
+		if (frameMasked) {
+			if(end - index < 4) return -1;
+			maskingKey = buffer.getInt(index);
+			index += 4;
+		}
 
-		// Check if we have enough data at all
-		if(writeIndex < totalPacketLength) {
-			if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-				logger.logDebug("Abort decode. Write index is at " + writeIndex + " and totalPacketLength is " + totalPacketLength);
-			}
-			return null; // wait for more data
+		if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+			logger.logDebug("Decoding WebSocket Frame length=" + framePayloadLength);
 		}
 
-		// Unmask data if needed and only if the condition above is true
+		frameHeaderLength = index - start;
+		return frameHeaderLength + framePayloadLength;
+	}
+
+	/**
+	 * Unmask the payload of the frame whose header was just read and return it as a slice.
+	 */
+	private ByteBuffer payload(ByteBuffer buffer, int start, int frameLength) {
+		int payloadStart = start + frameHeaderLength;
+		int payloadEnd = start + frameLength;
 		if (frameMasked) {
-			unmask(decodeBuffer, payloadStartIndex, (int) (payloadStartIndex + framePayloadLength));
+			applyMask(buffer, payloadStart, payloadEnd, maskingKey);
 		}
+		ByteBuffer payload = buffer.duplicate();
+		payload.limit(payloadEnd);
+		payload.position(payloadStart);
+		return payload.slice();
+	}
 
-		// Finally isolate the unmasked payload, the bytes are plaintext here
-		byte[] plainTextBytes = new byte[(int) framePayloadLength];
-		System.arraycopy(decodeBuffer, payloadStartIndex, plainTextBytes, 0, (int) framePayloadLength);
-		
-		// Now move the pending data to the begining of the buffer so we can continue having good stream
-		for(int q=1; q<writeIndex - totalPacketLength; q++) {
-			decodeBuffer[q] = decodeBuffer[(int)totalPacketLength + q];
-		}
-		writeIndex -= totalPacketLength;
-		
-		if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
-			logger.logDebug("writeIndex = " + writeIndex + " " + totalPacketLength);
+	/**
+	 * Make room in the pending buffer for the given number of bytes.
+	 */
+	private void reserve(int capacity) {
+		if(capacity > pending.capacity()) {
+			int newSize = Math.max(Math.max(2 * pending.capacity(), capacity), 2048);
+			if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
+				logger.logDebug("Increasing buffer size from " + pending.capacity() + " newSize " + newSize);
+			}
+			ByteBuffer resized = ByteBuffer.allocate(newSize);
+			pending.flip();
+			resized.put(pending);
+			pending = resized;
 		}
-		
-		// All done, we are ready to be called again
-		return plainTextBytes;
 	}
-	
+
+	private void append(ByteBuffer input, int length) {
+		reserve(pending.position() + length);
+		ByteBuffer part = input.duplicate();
+		part.limit(part.position() + length);
+		pending.put(part);
+		input.position(input.position() + length);
+	}
+
 	protected static byte[] encode(byte[] msg, int rsv, boolean fin, boolean maskPayload) throws Exception {
 		return encode(msg, rsv, fin, maskPayload, OPCODE_TEXT);
 	}
 
 
 	protected static byte[] encode(byte[] msg, int rsv, boolean fin, boolean maskPayload, byte opcode) throws Exception {
-		ByteArrayOutputStream frame = new ByteArrayOutputStream();
+		ByteBuffer header = encodeHeader(msg.length, rsv, fin, maskPayload, opcode);
+		byte[] frame = new byte[header.remaining() + msg.length];
+		header.get(frame, 0, header.remaining());
+		System.arraycopy(msg, 0, frame, frame.length - msg.length, msg.length);
+		if(maskPayload) {
+			// the copy is masked, the message may be the cached encoding of a SIP message
+			applyMask(ByteBuffer.wrap(frame), frame.length - msg.length, frame.length, TRIVIAL_MASK);
+		}
+		return frame;
+	}
 
-		long length = msg.length;
+	/**
+	 * Frame a text message without copying it. A masked payload is masked in a copy, the
+	 * message may be the cached encoding of a SIP message that is sent again later.
+	 * 
+	 * @return the frame header and the payload, to be written in this order
+	 */
+	public static ByteBuffer[] encodeFrame(byte[] msg, boolean maskPayload) {
+		ByteBuffer header = encodeHeader(msg.length, 0, true, maskPayload, OPCODE_TEXT);
+		if(maskPayload) {
+			ByteBuffer payload = ByteBuffer.wrap(msg.clone());
+			applyMask(payload, 0, msg.length, TRIVIAL_MASK);
+			return new ByteBuffer[] {header, payload};
+		}
+		return new ByteBuffer[] {header, ByteBuffer.wrap(msg)};
+	}
 
+	/**
+	 * @return the header of a frame with a payload of the given length, ready to be read
+	 */
+	public static ByteBuffer encodeHeader(long length, int rsv, boolean fin, boolean maskPayload, byte opcode) {
 		if(logger.isLoggingEnabled(LogLevels.TRACE_DEBUG)) {
 			logger.logDebug("Encoding WebSocket Frame opCode=" + opcode + " length=" + length);
 		}
@@ -260,40 +357,43 @@ public class WebSocketCodec {
 		b0 |= rsv % 8 << 4;
 		b0 |= opcode % 128;
 
-
+		ByteBuffer frame = ByteBuffer.allocate(MAX_HEADER_LENGTH);
+		frame.put((byte) b0);
 		if (length <= 125) {
-			frame.write(b0);
-			byte b = (byte) (maskPayload ? 0x80 | (byte) length : (byte) length);
-			frame.write(b);
+			frame.put((byte) (maskPayload ? 0x80 | (byte) length : (byte) length));
 		} else if (length <= 0xFFFF) {
-			frame.write(b0);
-			frame.write(maskPayload ? 0xFE : 126);
-			frame.write((byte)(length >>> 8));
-			frame.write((byte)length);
+			frame.put((byte) (maskPayload ? 0xFE : 126));
+			frame.putShort((short) length);
 		} else {
-			frame.write(b0);
-			frame.write(maskPayload ? 0xFF : 127);
-			for(int q=0;q<8;q++) {
-				byte b = (byte)(length>>>(7-q)*8);
-				frame.write(b);
-			}
+			frame.put((byte) (maskPayload ? 0xFF : 127));
+			frame.putLong(length);
 		}
 		if(maskPayload) {
-			frame.write(trivialMask);
-			applyMask(msg, 0, msg.length, trivialMask);
+			frame.putInt(TRIVIAL_MASK);
 		}
-		frame.write(msg);
-		return frame.toByteArray();
-
+		frame.flip();
+		return frame;
 	}
 
-	private void unmask(byte[] frame, int startIndex, int endIndex) {
-		applyMask(frame, startIndex, endIndex, maskingKey);
-	}
-	
 	public static void applyMask(byte[] frame, int startIndex, int endIndex, byte[] mask) {
-		for (int i = 0; i < endIndex-startIndex; i++) {
-			frame[startIndex+i] = (byte) (frame[startIndex+i] ^ mask[i % 4]);
+		applyMask(ByteBuffer.wrap(frame), startIndex, endIndex,
+				(mask[0] & 0xFF) << 24 | (mask[1] & 0xFF) << 16 | (mask[2] & 0xFF) << 8 | (mask[3] & 0xFF));
+	}
+
+	/**
+	 * XOR the bytes between start and end with the 4 byte mask, first byte of the mask in the
+	 * most significant bits. Eight bytes are masked at a time, then the remaining ones one by one.
+	 */
+	public static void applyMask(ByteBuffer buffer, int startIndex, int endIndex, int mask) {
+		ByteBuffer frame = buffer.order() == ByteOrder.BIG_ENDIAN ? buffer : buffer.duplicate().order(ByteOrder.BIG_ENDIAN);
+		long wideMask = ((long) mask << 32) | (mask & 0xFFFFFFFFL);
+		int i = startIndex;
+		for (; i + 8 <= endIndex; i += 8) {
+			frame.putLong(i, frame.getLong(i) ^ wideMask);
+		}
+		// the words are a multiple of the mask length so the rest starts with the first mask byte
+		for (int shift = 24; i < endIndex; i++, shift -= 8) {
+			frame.put(i, (byte) (frame.get(i) ^ (mask >>> shift)));
 		}
 	}
 
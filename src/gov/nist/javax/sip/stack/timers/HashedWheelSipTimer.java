@@ -0,0 +1,415 @@
+/*
+* Conditions Of Use
+*
+* This software was developed by employees of the National Institute of
+* Standards and Technology (NIST), an agency of the Federal Government.
+* Pursuant to title 15 Untied States Code Section 105, works of NIST
+* employees are not subject to copyright protection in the United States
+* and are considered to be in the public domain.  As a result, a formal
+* license is not needed to use the software.
+*
+* This software is provided by NIST as a service and is expressly
+* provided "AS IS."  NIST MAKES NO WARRANTY OF ANY KIND, EXPRESS, IMPLIED
+* OR STATUTORY, INCLUDING, WITHOUT LIMITATION, THE IMPLIED WARRANTY OF
+* MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE, NON-INFRINGEMENT
+* AND DATA ACCURACY.  NIST does not warrant or make any representations
+* regarding the use of the software or the results thereof, including but
+* not limited to the correctness, accuracy, reliability or usefulness of
+* the software.
+*
+* Permission to use this software is contingent upon your acceptance
+* of the terms of this agreement
+*
+* .
+*
+*/
+package gov.nist.javax.sip.stack.timers;
+
+import gov.nist.core.CommonLogger;
+import gov.nist.core.NamingThreadFactory;
+import gov.nist.core.StackLogger;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+
+import java.util.Properties;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * SIP Timer implementation based on a hashed timing wheel. Scheduling and
+ * cancelling a task are O(1) whatever the number of pending tasks, which
+ * makes it a better fit than the heap based timers when hundreds of thousands
+ * of transaction and dialog timers are pending.
+ * <p>
+ * The wheel is an array of buckets, each covering one tick. A task is put in
+ * the bucket of its expiration tick along with the number of turns of the
+ * wheel left before it expires, so delays longer than a turn don't need a
+ * bigger wheel. A single thread advances the wheel every tick and runs the
+ * tasks that expired, the same way the java.util.Timer based implementation
+ * does. Cancelled tasks are unlinked from their bucket on the next tick
+ * instead of staying around until their expiration time.
+ * </p>
+ * The following stack properties can be used to tune it:
+ * <ul>
+ * <li><b>gov.nist.javax.sip.TIMER_WHEEL_TICK_DURATION</b> duration of a tick
+ * in milliseconds, and so the precision of the timer. Default is 10.</li>
+ * <li><b>gov.nist.javax.sip.TIMER_WHEEL_SIZE</b> number of buckets of the
+ * wheel, rounded up to a power of two. Default is 512.</li>
+ * </ul>
+ *
+ * @see SipTimer
+ */
+public class HashedWheelSipTimer implements SipTimer {
+	private static StackLogger logger = CommonLogger.getLogger(HashedWheelSipTimer.class);
+
+	public static final String TICK_DURATION_PROPERTY = "gov.nist.javax.sip.TIMER_WHEEL_TICK_DURATION";
+	public static final String WHEEL_SIZE_PROPERTY = "gov.nist.javax.sip.TIMER_WHEEL_SIZE";
+
+	private static final long DEFAULT_TICK_DURATION = 10;
+	private static final int DEFAULT_WHEEL_SIZE = 512;
+
+	protected AtomicBoolean started = new AtomicBoolean(false);
+	protected SipStackImpl sipStackImpl;
+
+	// tick duration in nanoseconds
+	private long tickDuration;
+	private Bucket[] wheel;
+	private int mask;
+	// reference for the deadlines of the tasks, set when the timer is started
+	private volatile long startTime;
+	// only accessed by the worker thread
+	private long tick;
+	private Thread workerThread;
+
+	// tasks are handed over to the worker thread that owns the wheel
+	private final Queue<WheelTimeout> pendingTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+	private final Queue<WheelTimeout> cancelledTimeouts = new ConcurrentLinkedQueue<WheelTimeout>();
+	private final AtomicLong pendingTaskCount = new AtomicLong();
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#schedule(gov.nist.javax.sip.stack.SIPStackTimerTask, long)
+	 */
+	public boolean schedule(SIPStackTimerTask task, long delay) {
+		return scheduleWithFixedDelay(task, delay, 0);
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#scheduleWithFixedDelay(gov.nist.javax.sip.stack.SIPStackTimerTask, long, long)
+	 */
+	public boolean scheduleWithFixedDelay(SIPStackTimerTask task, long delay,
+			long period) {
+		if(!started.get()) {
+			throw new IllegalStateException("The SIP Stack Timer has been stopped, no new tasks can be scheduled !");
+		}
+		if(delay < 0) {
+			delay = 0;
+		}
+		WheelTimeout timeout = new WheelTimeout(task,
+				System.nanoTime() - startTime + TimeUnit.MILLISECONDS.toNanos(delay),
+				TimeUnit.MILLISECONDS.toNanos(period));
+		task.setSipTimerTask(timeout);
+		pendingTaskCount.incrementAndGet();
+		pendingTimeouts.add(timeout);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#cancel(gov.nist.javax.sip.stack.SIPStackTimerTask)
+	 */
+	public boolean cancel(SIPStackTimerTask task) {
+		Object sipTimerTask = task.getSipTimerTask();
+		if(!(sipTimerTask instanceof WheelTimeout)) {
+			return false;
+		}
+		WheelTimeout timeout = (WheelTimeout) sipTimerTask;
+		if(!timeout.cancel()) {
+			return false;
+		}
+		task.cleanUpBeforeCancel();
+		task.setSipTimerTask(null);
+		cancelledTimeouts.add(timeout);
+		return true;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#start(gov.nist.javax.sip.SipStackImpl, java.util.Properties)
+	 */
+	public void start(SipStackImpl sipStack, Properties configurationProperties) {
+		sipStackImpl= sipStack;
+		long tickMillis = DEFAULT_TICK_DURATION;
+		int wheelSize = DEFAULT_WHEEL_SIZE;
+		if(configurationProperties != null) {
+			tickMillis = Long.parseLong(configurationProperties.getProperty(
+					TICK_DURATION_PROPERTY, String.valueOf(DEFAULT_TICK_DURATION)));
+			wheelSize = Integer.parseInt(configurationProperties.getProperty(
+					WHEEL_SIZE_PROPERTY, String.valueOf(DEFAULT_WHEEL_SIZE)));
+		}
+		if(tickMillis <= 0) {
+			throw new IllegalArgumentException(TICK_DURATION_PROPERTY + " must be positive : " + tickMillis);
+		}
+		if(wheelSize <= 0 || wheelSize > (1 << 30)) {
+			throw new IllegalArgumentException(WHEEL_SIZE_PROPERTY + " out of range : " + wheelSize);
+		}
+		int size = 1;
+		while(size < wheelSize) {
+			size <<= 1;
+		}
+		wheel = new Bucket[size];
+		for(int i = 0; i < size; i++) {
+			wheel[i] = new Bucket();
+		}
+		mask = size - 1;
+		tickDuration = TimeUnit.MILLISECONDS.toNanos(tickMillis);
+		tick = 0;
+		startTime = System.nanoTime();
+		started.set(true);
+		workerThread = new NamingThreadFactory("jain_sip_timer_wheel").newThread(new Worker());
+		workerThread.start();
+		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("the sip stack timer " + this.getClass().getName() + " has been started with " 
+					+ size + " buckets of " + tickMillis + " ms");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#stop()
+	 */
+	public void stop() {
+		if(!started.compareAndSet(true, false)) {
+			return;
+		}
+		if(workerThread != null && workerThread != Thread.currentThread()) {
+			workerThread.interrupt();
+		}
+		pendingTimeouts.clear();
+		cancelledTimeouts.clear();
+		logger.logStackTrace(StackLogger.TRACE_DEBUG);
+		if(logger.isLoggingEnabled(StackLogger.TRACE_INFO)) {
+			logger.logInfo("the sip stack timer " + this.getClass().getName() + " has been stopped");
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * @see gov.nist.javax.sip.stack.timers.SipTimer#isStarted()
+	 */
+	public boolean isStarted() {
+		return started.get();
+	}
+
+	/**
+	 * Get the number of tasks that are scheduled and neither expired nor cancelled yet.
+	 * Periodic tasks are counted until cancelled.
+	 *
+	 * @return the number of pending tasks.
+	 */
+	public long getPendingTaskCount() {
+		return pendingTaskCount.get();
+	}
+
+	private class Worker implements Runnable {
+		public void run() {
+			while(started.get()) {
+				if(waitForNextTick() < 0) {
+					break;
+				}
+				removeCancelledTimeouts();
+				transferPendingTimeouts();
+				Bucket bucket = wheel[(int) (tick & mask)];
+				tick++;
+				bucket.expireTimeouts();
+			}
+			// Let the garbage collector have the tasks still in the wheel
+			for(int i = 0; i < wheel.length; i++) {
+				wheel[i].clear();
+			}
+		}
+
+		/**
+		 * Sleep until the start of the next tick.
+		 *
+		 * @return the current time relative to the start time or -1 if the timer was stopped.
+		 */
+		private long waitForNextTick() {
+			long deadline = tickDuration * (tick + 1);
+			for(;;) {
+				long current = System.nanoTime() - startTime;
+				long sleepMillis = (deadline - current + 999999) / 1000000;
+				if(sleepMillis <= 0) {
+					return current;
+				}
+				try {
+					Thread.sleep(sleepMillis);
+				} catch (InterruptedException e) {
+					if(!started.get()) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		private void transferPendingTimeouts() {
+			WheelTimeout timeout;
+			while((timeout = pendingTimeouts.poll()) != null) {
+				if(timeout.isCancelled()) {
+					// already removed from the count by removeCancelledTimeouts
+					continue;
+				}
+				addTimeout(timeout);
+			}
+		}
+
+		private void removeCancelledTimeouts() {
+			WheelTimeout timeout;
+			while((timeout = cancelledTimeouts.poll()) != null) {
+				if(timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+				pendingTaskCount.decrementAndGet();
+			}
+		}
+	}
+
+	// Only called from the worker thread
+	private void addTimeout(WheelTimeout timeout) {
+		long expirationTick = timeout.deadline / tickDuration;
+		timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+		// a task whose time already passed goes in the current bucket
+		if(expirationTick < tick) {
+			expirationTick = tick;
+		}
+		wheel[(int) (expirationTick & mask)].add(timeout);
+	}
+
+	private void runTimeout(WheelTimeout timeout) {
+		SIPStackTimerTask task = timeout.task;
+		if(task == null) {
+			return;
+		}
+		boolean periodic = timeout.period > 0;
+		if(!periodic) {
+			if(!timeout.expire()) {
+				// cancelled concurrently
+				return;
+			}
+			pendingTaskCount.decrementAndGet();
+		}
+		try {
+			task.runTask();
+		} catch (Throwable e) {
+			logger.logError("SIP stack timer task failed due to exception:", e);
+		}
+		if(periodic && !timeout.isCancelled() && started.get()) {
+			timeout.deadline = System.nanoTime() - startTime + timeout.period;
+			addTimeout(timeout);
+		}
+	}
+
+	/**
+	 * Doubly linked list of the tasks of a tick, only accessed from the worker thread.
+	 */
+	private class Bucket {
+		private WheelTimeout head;
+		private WheelTimeout tail;
+
+		void add(WheelTimeout timeout) {
+			timeout.bucket = this;
+			if(head == null) {
+				head = tail = timeout;
+			} else {
+				tail.next = timeout;
+				timeout.prev = tail;
+				tail = timeout;
+			}
+		}
+
+		void remove(WheelTimeout timeout) {
+			WheelTimeout next = timeout.next;
+			if(timeout.prev != null) {
+				timeout.prev.next = next;
+			}
+			if(next != null) {
+				next.prev = timeout.prev;
+			}
+			if(timeout == head) {
+				head = next;
+			}
+			if(timeout == tail) {
+				tail = timeout.prev;
+			}
+			timeout.prev = null;
+			timeout.next = null;
+			timeout.bucket = null;
+		}
+
+		void expireTimeouts() {
+			WheelTimeout timeout = head;
+			while(timeout != null) {
+				WheelTimeout next = timeout.next;
+				if(timeout.remainingRounds <= 0) {
+					remove(timeout);
+					runTimeout(timeout);
+				} else {
+					timeout.remainingRounds--;
+				}
+				timeout = next;
+			}
+		}
+
+		void clear() {
+			head = tail = null;
+		}
+	}
+
+	private static final class WheelTimeout {
+		private static final int ST_INIT = 0;
+		private static final int ST_CANCELLED = 1;
+		private static final int ST_EXPIRED = 2;
+		private static final AtomicIntegerFieldUpdater<WheelTimeout> STATE_UPDATER =
+				AtomicIntegerFieldUpdater.newUpdater(WheelTimeout.class, "state");
+
+		volatile SIPStackTimerTask task;
+		final long period;
+		// relative to the start time of the timer, in nanoseconds
+		long deadline;
+		long remainingRounds;
+		@SuppressWarnings("unused")
+		private volatile int state = ST_INIT;
+
+		WheelTimeout next;
+		WheelTimeout prev;
+		Bucket bucket;
+
+		WheelTimeout(SIPStackTimerTask task, long deadline, long period) {
+			this.task = task;
+			this.deadline = deadline;
+			this.period = period;
+		}
+
+		boolean cancel() {
+			if(!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+				return false;
+			}
+			// don't keep the task (and the transaction it references) until the next tick
+			task = null;
+			return true;
+		}
+
+		boolean expire() {
+			return STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED);
+		}
+
+		boolean isCancelled() {
+			return state == ST_CANCELLED;
+		}
+	}
+}
@@ -153,5 +153,15 @@ public class ScheduledExecutorSipTimer implements SipTimer {
 	public boolean isStarted() {
 		return threadPoolExecutor.isTerminated();
 	}
+
+	/**
+	 * Get the number of tasks waiting in the executor queue, cancelled tasks
+	 * not purged yet included.
+	 *
+	 * @return the number of pending tasks.
+	 */
+	public long getPendingTaskCount() {
+		return threadPoolExecutor.getQueue().size();
+	}
 	
 }
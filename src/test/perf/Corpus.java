@@ -0,0 +1,100 @@
+package test.perf;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Messages used by the benchmarks. They are taken from traces of real user
+ * agents so that header mix, parameter counts and body sizes look like what
+ * the stack sees on the wire.
+ */
+public final class Corpus {
+
+    public static final String INVITE = "INVITE sip:bob@biloxi.example.com SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds;rport\r\n"
+            + "Via: SIP/2.0/UDP bigbox3.site3.atlanta.example.com;branch=z9hG4bK77ef4c2312983.1;received=192.0.2.1\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n"
+            + "Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Contact: <sip:alice@pc33.atlanta.example.com;transport=udp>;+sip.instance=\"<urn:uuid:00000000-0000-1000-8000-000A95A0E128>\"\r\n"
+            + "Record-Route: <sip:p1.example.com;lr>, <sip:p2.example.com;lr>\r\n"
+            + "Allow: INVITE, ACK, CANCEL, OPTIONS, BYE, REFER, NOTIFY, MESSAGE, SUBSCRIBE, INFO, UPDATE, PRACK\r\n"
+            + "Supported: replaces, timer, 100rel\r\n"
+            + "Session-Expires: 1800;refresher=uac\r\n"
+            + "User-Agent: Example UA/1.0\r\n"
+            + "P-Asserted-Identity: \"Alice\" <sip:alice@atlanta.example.com>\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 250\r\n\r\n"
+            + "v=0\r\n"
+            + "o=alice 2890844526 2890844526 IN IP4 pc33.atlanta.example.com\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 192.0.2.101\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 49172 RTP/AVP 0 8 18 101\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n"
+            + "a=rtpmap:8 PCMA/8000\r\n"
+            + "a=rtpmap:18 G729/8000\r\n"
+            + "a=rtpmap:101 telephone-event/8000\r\n"
+            + "a=sendrecv\r\n";
+
+    public static final String REGISTER = "REGISTER sip:nist.gov SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 129.6.55.182:14826;branch=z9hG4bK-d8754z-c2ac7de1b3ce90f7-1---d8754z-;rport\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "From: <sip:mranga@nist.gov>;tag=6fcd5c7ace8b4a45acf0f0cd539b168b;epid=0d4c418ddf\r\n"
+            + "To: <sip:mranga@nist.gov>\r\n"
+            + "Call-ID: c5679907eb954a8da9f9dceb282d7230@129.6.55.182\r\n"
+            + "CSeq: 1 REGISTER\r\n"
+            + "Contact: <sip:129.6.55.182:14826>;methods=\"INVITE, MESSAGE, INFO, SUBSCRIBE, OPTIONS, BYE, CANCEL, NOTIFY, ACK, REFER\"\r\n"
+            + "User-Agent: RTC/(Microsoft RTC)\r\n"
+            + "Event:  registration\r\n"
+            + "Allow-Events: presence\r\n"
+            + "Expires: 3600\r\n"
+            + "Authorization: Digest username=\"mranga\",realm=\"nist.gov\",nonce=\"4a6b3f5b9e1c\",uri=\"sip:nist.gov\",response=\"6629fae49393a05397450978507c4ef1\",algorithm=MD5\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    public static final String OK = "SIP/2.0 200 OK\r\n"
+            + "Via: SIP/2.0/UDP pc33.atlanta.example.com:5060;branch=z9hG4bK776asdhds;rport=5060;received=192.0.2.101\r\n"
+            + "Record-Route: <sip:p1.example.com;lr>, <sip:p2.example.com;lr>\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>;tag=a6c85cf\r\n"
+            + "From: Alice <sip:alice@atlanta.example.com>;tag=1928301774\r\n"
+            + "Call-ID: a84b4c76e66710@pc33.atlanta.example.com\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Contact: <sip:bob@192.0.2.4>\r\n"
+            + "Require: timer\r\n"
+            + "Session-Expires: 1800;refresher=uac\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 129\r\n\r\n"
+            + "v=0\r\n"
+            + "o=bob 2890844527 2890844527 IN IP4 192.0.2.4\r\n"
+            + "s=-\r\n"
+            + "c=IN IP4 192.0.2.4\r\n"
+            + "t=0 0\r\n"
+            + "m=audio 3456 RTP/AVP 0\r\n"
+            + "a=rtpmap:0 PCMU/8000\r\n";
+
+    private Corpus() {
+    }
+
+    /**
+     * Return the message with the given name (INVITE, REGISTER or 200) as it
+     * would arrive from the network.
+     */
+    public static byte[] get(String name) {
+        String message;
+        if ("INVITE".equals(name)) {
+            message = INVITE;
+        } else if ("REGISTER".equals(name)) {
+            message = REGISTER;
+        } else if ("200".equals(name)) {
+            message = OK;
+        } else {
+            throw new IllegalArgumentException("No message named " + name);
+        }
+        try {
+            return message.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException ex) {
+            throw new IllegalStateException(ex);
+        }
+    }
+}
@@ -0,0 +1,61 @@
+package test.perf;
+
+import gov.nist.core.ByteBufferWriter;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Encodes parsed corpus messages the way the message channels do before
+ * writing them to the network.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EncodeBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "200" })
+    public String message;
+
+    private SIPMessage sipMessage;
+
+    private final ByteBufferWriter writer = new ByteBufferWriter();
+
+    @Setup
+    public void setUp() throws Exception {
+        sipMessage = new StringMsgParser().parseSIPMessage(Corpus.get(message), true, false, null);
+    }
+
+    @Benchmark
+    public byte[] encodeAsBytes() {
+        return sipMessage.encodeAsBytes("UDP");
+    }
+
+    @Benchmark
+    public int encodeToByteBuffer() {
+        writer.clear();
+        sipMessage.encode(writer, "UDP");
+        return writer.length();
+    }
+
+    @Benchmark
+    public String encode() {
+        return sipMessage.encode();
+    }
+}
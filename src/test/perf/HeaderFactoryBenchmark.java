@@ -0,0 +1,79 @@
+package test.perf;
+
+import gov.nist.javax.sip.address.AddressFactoryImpl;
+import gov.nist.javax.sip.header.HeaderFactoryImpl;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.address.Address;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.ContactHeader;
+import javax.sip.header.FromHeader;
+import javax.sip.header.ViaHeader;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Creates the headers an application builds for every outgoing request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class HeaderFactoryBenchmark {
+
+    private HeaderFactoryImpl headerFactory;
+
+    private AddressFactoryImpl addressFactory;
+
+    private Address address;
+
+    @Setup
+    public void setUp() throws Exception {
+        headerFactory = new HeaderFactoryImpl();
+        addressFactory = new AddressFactoryImpl();
+        address = addressFactory.createAddress("Alice <sip:alice@atlanta.example.com>");
+    }
+
+    @Benchmark
+    public ViaHeader createVia() throws Exception {
+        return headerFactory.createViaHeader("192.0.2.101", 5060, "udp", "z9hG4bK776asdhds");
+    }
+
+    @Benchmark
+    public FromHeader createFrom() throws Exception {
+        return headerFactory.createFromHeader(address, "1928301774");
+    }
+
+    @Benchmark
+    public CSeqHeader createCSeq() throws Exception {
+        return headerFactory.createCSeqHeader(314159L, "INVITE");
+    }
+
+    @Benchmark
+    public CallIdHeader createCallId() throws Exception {
+        return headerFactory.createCallIdHeader("a84b4c76e66710@pc33.atlanta.example.com");
+    }
+
+    @Benchmark
+    public ContactHeader createContact() throws Exception {
+        return headerFactory.createContactHeader(addressFactory.createAddress("sip:alice@192.0.2.101:5060"));
+    }
+
+    @Benchmark
+    public Object createFromString() throws Exception {
+        return headerFactory.createHeader("Via", "SIP/2.0/UDP 192.0.2.101:5060;branch=z9hG4bK776asdhds;rport");
+    }
+}
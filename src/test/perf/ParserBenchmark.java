@@ -0,0 +1,65 @@
+package test.perf;
+
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.ByteMsgParser;
+import gov.nist.javax.sip.parser.MessageParser;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Parses the corpus messages with the parsers the stack can be configured
+ * with.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParserBenchmark {
+
+    @Param({ "INVITE", "REGISTER", "200" })
+    public String message;
+
+    @Param({ "string", "byte" })
+    public String parser;
+
+    private byte[] bytes;
+
+    private MessageParser messageParser;
+
+    @Setup
+    public void setUp() {
+        bytes = Corpus.get(message);
+        messageParser = "byte".equals(parser) ? new ByteMsgParser() : new StringMsgParser();
+    }
+
+    @Benchmark
+    public SIPMessage parse() throws Exception {
+        return messageParser.parseSIPMessage(bytes, true, false, null);
+    }
+
+    @Benchmark
+    public String parseAndReadHeaders() throws Exception {
+        SIPMessage sipMessage = messageParser.parseSIPMessage(bytes, true, false, null);
+        // what the stack reads from every message before it reaches the listener
+        sipMessage.getTopmostVia().getBranch();
+        sipMessage.getFrom().getTag();
+        sipMessage.getTo().getTag();
+        sipMessage.getCSeq().getMethod();
+        return sipMessage.getCallId().getCallId();
+    }
+}
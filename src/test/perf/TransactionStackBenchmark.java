@@ -0,0 +1,161 @@
+package test.perf;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.SIPDialog;
+import gov.nist.javax.sip.stack.SIPTransaction;
+
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Matches responses to client transactions and creates dialogs on a stack
+ * holding a given number of live transactions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TransactionStackBenchmark implements SipListener {
+
+    private static final int PORT = 5615;
+
+    @Param({ "1000", "100000" })
+    public int transactions;
+
+    private SipStackImpl sipStack;
+
+    private SipProviderImpl sipProvider;
+
+    private SIPResponse[] responses;
+
+    /**
+     * Per thread position in the response table, so that threads do not
+     * share a counter.
+     */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "benchmark");
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("javax.sip.AUTOMATIC_DIALOG_SUPPORT", "off");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        AddressFactory addressFactory = sipFactory.createAddressFactory();
+        HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+        MessageFactory messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        sipProvider = (SipProviderImpl) sipStack.createSipProvider(lp);
+        sipProvider.addSipListener(this);
+
+        Address from = addressFactory.createAddress("Alice <sip:alice@127.0.0.1>");
+        Address to = addressFactory.createAddress("Bob <sip:bob@127.0.0.1:5616>");
+        responses = new SIPResponse[transactions];
+        for (int i = 0; i < transactions; i++) {
+            ArrayList<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", PORT, "udp", "z9hG4bK-bench-" + i));
+            Request request = messageFactory.createRequest(addressFactory.createURI("sip:bob@127.0.0.1:5616"),
+                    Request.INVITE, headerFactory.createCallIdHeader("bench-" + i + "@127.0.0.1"),
+                    headerFactory.createCSeqHeader(1L, Request.INVITE),
+                    headerFactory.createFromHeader(from, "f" + i), headerFactory.createToHeader(to, null), vias,
+                    headerFactory.createMaxForwardsHeader(70));
+            request.addHeader(headerFactory.createContactHeader(from));
+            sipProvider.getNewClientTransaction(request);
+            SIPResponse response = (SIPResponse) messageFactory.createResponse(Response.OK, request);
+            ((ToHeader) response.getHeader(ToHeader.NAME)).setTag("t" + i);
+            responses[i] = response;
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private SIPResponse next(Cursor cursor) {
+        int i = cursor.next;
+        cursor.next = i + 1 == responses.length ? 0 : i + 1;
+        return responses[i];
+    }
+
+    /**
+     * Lookup as done for a retransmitted response: the same message objects
+     * are matched again and again.
+     */
+    @Benchmark
+    public SIPTransaction findTransaction(Cursor cursor) {
+        return sipStack.findTransaction(next(cursor), false);
+    }
+
+    /**
+     * Lookup of a response that was just parsed and has never been matched.
+     */
+    @Benchmark
+    public SIPTransaction findTransactionFreshMessage(Cursor cursor) {
+        return sipStack.findTransaction((SIPResponse) next(cursor).clone(), false);
+    }
+
+    @Benchmark
+    public SIPDialog createDialog(Cursor cursor) {
+        return new SIPDialog(sipProvider, next(cursor));
+    }
+
+    public void processRequest(RequestEvent requestEvent) {
+    }
+
+    public void processResponse(ResponseEvent responseEvent) {
+    }
+
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+    }
+
+    public void processIOException(IOExceptionEvent exceptionEvent) {
+    }
+
+    public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+}
@@ -0,0 +1,173 @@
+package test.perf;
+
+import gov.nist.javax.sip.SipProviderImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.stack.SIPClientTransaction;
+import gov.nist.javax.sip.stack.SIPDialog;
+
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ToHeader;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Adds, looks up and removes client transactions and dialogs from several
+ * threads. Every thread works on its own calls, so a per thread rate that
+ * drops as threads are added comes from contention inside the stack tables;
+ * compare runs with -t 1, -t 2, -t 4 and so on to see how they scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class TransactionTableBenchmark implements SipListener {
+
+    private static final int PORT = 5613;
+
+    private SipStackImpl sipStack;
+
+    private SipProviderImpl sipProvider;
+
+    private AddressFactory addressFactory;
+
+    private HeaderFactory headerFactory;
+
+    private MessageFactory messageFactory;
+
+    private Address from;
+
+    private Address to;
+
+    /**
+     * Per thread call numbering, so that threads do not share a counter and
+     * never build the same transaction or dialog identifiers.
+     */
+    @State(Scope.Thread)
+    public static class Calls {
+        private static final AtomicInteger threads = new AtomicInteger();
+
+        String prefix;
+
+        long next;
+
+        @Setup
+        public void setUp() {
+            prefix = "t" + threads.incrementAndGet() + "-";
+        }
+    }
+
+    @Setup
+    public void setUp() throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "tablebenchmark");
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("javax.sip.AUTOMATIC_DIALOG_SUPPORT", "off");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        addressFactory = sipFactory.createAddressFactory();
+        headerFactory = sipFactory.createHeaderFactory();
+        messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        sipProvider = (SipProviderImpl) sipStack.createSipProvider(lp);
+        sipProvider.addSipListener(this);
+        from = addressFactory.createAddress("sip:caller@127.0.0.1");
+        to = addressFactory.createAddress("sip:callee@127.0.0.1:5614");
+    }
+
+    @TearDown
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private Request createRequest(String id) throws Exception {
+        ArrayList<ViaHeader> vias = new ArrayList<ViaHeader>();
+        vias.add(headerFactory.createViaHeader("127.0.0.1", PORT, "udp", "z9hG4bK-bench-" + id));
+        Request request = messageFactory.createRequest(addressFactory.createURI("sip:callee@127.0.0.1:5614"),
+                Request.INVITE, headerFactory.createCallIdHeader("bench-" + id + "@127.0.0.1"),
+                headerFactory.createCSeqHeader(1L, Request.INVITE),
+                headerFactory.createFromHeader(from, "f" + id), headerFactory.createToHeader(to, null), vias,
+                headerFactory.createMaxForwardsHeader(70));
+        request.addHeader(headerFactory.createContactHeader(from));
+        return request;
+    }
+
+    /**
+     * One call worth of table work: client transaction add, lookup and remove,
+     * then dialog put, lookup and remove.
+     */
+    @Benchmark
+    public SIPDialog call(Calls calls) throws Exception {
+        String id = calls.prefix + calls.next++;
+        Request request = createRequest(id);
+        SIPClientTransaction ct = (SIPClientTransaction) sipProvider.getNewClientTransaction(request);
+        if (sipStack.findTransaction(ct.getTransactionId(), false) != ct) {
+            throw new IllegalStateException("transaction not found");
+        }
+
+        SIPResponse response = (SIPResponse) messageFactory.createResponse(Response.OK, request);
+        ((ToHeader) response.getHeader(ToHeader.NAME)).setTag("t" + id);
+        SIPDialog dialog = new SIPDialog(sipProvider, response);
+        dialog.setDialogId(response.getDialogId(false));
+        sipStack.putDialog(dialog);
+        if (sipStack.getDialog(dialog.getDialogId()) != dialog) {
+            throw new IllegalStateException("dialog not found");
+        }
+        sipStack.removeDialog(dialog.getDialogId());
+        sipStack.removeTransaction(ct);
+        return dialog;
+    }
+
+    public void processRequest(RequestEvent requestEvent) {
+    }
+
+    public void processResponse(ResponseEvent responseEvent) {
+    }
+
+    public void processTimeout(TimeoutEvent timeoutEvent) {
+    }
+
+    public void processIOException(IOExceptionEvent exceptionEvent) {
+    }
+
+    public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {
+    }
+
+    public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {
+    }
+}
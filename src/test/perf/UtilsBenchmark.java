@@ -0,0 +1,43 @@
+package test.perf;
+
+import gov.nist.javax.sip.Utils;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Generates the identifiers needed for every new transaction and dialog.
+ * Runs with several threads because the generators are shared by the whole
+ * stack; run with -t 1 to see the uncontended cost.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(4)
+@Fork(1)
+public class UtilsBenchmark {
+
+    @Benchmark
+    public String generateBranchId() {
+        return Utils.getInstance().generateBranchId();
+    }
+
+    @Benchmark
+    public String generateTag() {
+        return Utils.getInstance().generateTag();
+    }
+
+    @Benchmark
+    public String generateCallIdentifier() {
+        return Utils.getInstance().generateCallIdentifier("192.0.2.101");
+    }
+}
@@ -0,0 +1,242 @@
+package test.unit.gov.nist.javax.sip;
+
+import gov.nist.javax.sip.CachingAddressResolver;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.HopImpl;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.address.Hop;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks NAPTR/SRV resolution, caching and failover of the caching address
+ * resolver against a zone file.
+ */
+public class CachingAddressResolverTest extends TestCase {
+
+    private File zoneFile;
+
+    private CachingAddressResolver resolver;
+
+    public void setUp() throws Exception {
+        zoneFile = File.createTempFile("zone", ".txt");
+        writeZone("$TTL 300\n"
+                + "; NAPTR pointing to SRV\n"
+                + "example.test.          IN NAPTR 10 50 \"s\" \"SIP+D2T\" \"\" _sip._tcp.example.test.\n"
+                + "example.test.          IN NAPTR 20 50 \"s\" \"SIP+D2U\" \"\" _sip._udp.srv.example.test.\n"
+                + "_sip._udp.srv.example.test. IN SRV 10 50 5070 sip1.example.test.\n"
+                + "_sip._tcp.example.test. IN SRV 10 50 5080 sip2.example.test.\n"
+                + "_sip._udp.failover.test. IN SRV 10 0 5090 primary.example.test.\n"
+                + "_sip._udp.failover.test. IN SRV 20 0 5091 backup.example.test.\n"
+                + "_sip._udp.weighted.test. IN SRV 10 90 5060 heavy.example.test.\n"
+                + "_sip._udp.weighted.test. IN SRV 10 10 5060 light.example.test.\n"
+                + "sip1.example.test.     IN A 127.0.0.1\n"
+                + "sip2.example.test.     IN A 127.0.0.2\n"
+                + "primary.example.test.  IN A 127.0.0.3\n"
+                + "backup.example.test.   IN A 127.0.0.4\n"
+                + "plain.example.test. 1  IN A 127.0.0.5\n"
+                + "v6.example.test.       IN AAAA ::1\n");
+        resolver = new CachingAddressResolver();
+        Properties properties = new Properties();
+        properties.setProperty("gov.nist.javax.sip.DNS_ZONE_FILE", zoneFile.getPath());
+        properties.setProperty("gov.nist.javax.sip.DNS_NEGATIVE_TTL", "1");
+        properties.setProperty("gov.nist.javax.sip.DNS_FAILOVER_TIME", "1");
+        resolver.setStackProperties(properties);
+    }
+
+    public void tearDown() {
+        zoneFile.delete();
+    }
+
+    private void writeZone(String zone) throws Exception {
+        long previous = zoneFile.lastModified();
+        Writer writer = new OutputStreamWriter(new FileOutputStream(zoneFile), "UTF-8");
+        try {
+            writer.write(zone);
+        } finally {
+            writer.close();
+        }
+        // make sure the change is seen with a coarse file time granularity
+        zoneFile.setLastModified(Math.max(System.currentTimeMillis(), previous + 2000));
+    }
+
+    public void testNaptr() throws Exception {
+        Hop hop = resolver.resolveAddress(new HopImpl("example.test", -1, "UDP"));
+        assertEquals("sip1.example.test", hop.getHost());
+        assertEquals(5070, hop.getPort());
+        assertEquals("127.0.0.1", resolver.resolveHost(hop.getHost()).getHostAddress());
+
+        hop = resolver.resolveAddress(new HopImpl("example.test", -1, "TCP"));
+        assertEquals("sip2.example.test", hop.getHost());
+        assertEquals(5080, hop.getPort());
+    }
+
+    public void testNoSrv() throws Exception {
+        Hop hop = resolver.resolveAddress(new HopImpl("plain.example.test", -1, "UDP"));
+        assertEquals("plain.example.test", hop.getHost());
+        assertEquals(5060, hop.getPort());
+        hop = resolver.resolveAddress(new HopImpl("plain.example.test", -1, "TLS"));
+        assertEquals(5061, hop.getPort());
+
+        // an explicit port is used as is
+        hop = resolver.resolveAddress(new HopImpl("example.test", 5062, "UDP"));
+        assertEquals("example.test", hop.getHost());
+        assertEquals(5062, hop.getPort());
+
+        assertEquals("127.0.0.5", resolver.resolveHost("plain.example.test").getHostAddress());
+        assertEquals("0:0:0:0:0:0:0:1", resolver.resolveHost("v6.example.test").getHostAddress());
+        assertEquals("10.0.0.1", resolver.resolveHost("10.0.0.1").getHostAddress());
+    }
+
+    public void testFailover() throws Exception {
+        Hop hop = resolver.resolveAddress(new HopImpl("failover.test", -1, "UDP"));
+        assertEquals("primary.example.test", hop.getHost());
+        resolver.reportFailure(new HopImpl("127.0.0.3", 5090, "UDP"));
+        hop = resolver.resolveAddress(new HopImpl("failover.test", -1, "UDP"));
+        assertEquals("backup.example.test", hop.getHost());
+        assertEquals(5091, hop.getPort());
+
+        // the failure is forgotten after the failover time
+        Thread.sleep(1100);
+        hop = resolver.resolveAddress(new HopImpl("failover.test", -1, "UDP"));
+        assertEquals("primary.example.test", hop.getHost());
+    }
+
+    public void testWeights() throws Exception {
+        int heavy = 0;
+        for (int i = 0; i < 1000; i++) {
+            if ("heavy.example.test".equals(resolver.resolveAddress(new HopImpl("weighted.test", -1, "UDP")).getHost()))
+                heavy++;
+        }
+        assertTrue("heavy target chosen " + heavy + " times", heavy > 800 && heavy < 980);
+    }
+
+    public void testCaching() throws Exception {
+        assertEquals("127.0.0.5", resolver.resolveHost("plain.example.test").getHostAddress());
+        try {
+            resolver.resolveHost("new.example.test");
+            fail("resolved a missing name");
+        } catch (UnknownHostException ex) {
+        }
+        long misses = resolver.getCacheMisses();
+
+        writeZone("plain.example.test. 1 IN A 127.0.0.6\n"
+                + "new.example.test. 300 IN A 127.0.0.7\n");
+        // still cached
+        assertEquals("127.0.0.5", resolver.resolveHost("plain.example.test").getHostAddress());
+        try {
+            resolver.resolveHost("new.example.test");
+            fail("negative answer not cached");
+        } catch (UnknownHostException ex) {
+        }
+        assertEquals(misses, resolver.getCacheMisses());
+
+        // expired: refreshed in the background, the old answer in the meantime
+        Thread.sleep(1100);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!"127.0.0.6".equals(resolver.resolveHost("plain.example.test").getHostAddress())
+                && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals("127.0.0.6", resolver.resolveHost("plain.example.test").getHostAddress());
+        while (System.currentTimeMillis() < deadline) {
+            try {
+                resolver.resolveHost("new.example.test");
+                break;
+            } catch (UnknownHostException ex) {
+                Thread.sleep(10);
+            }
+        }
+        assertEquals("127.0.0.7", resolver.resolveHost("new.example.test").getHostAddress());
+        assertEquals(misses, resolver.getCacheMisses());
+    }
+
+    /**
+     * A request to a domain goes to the server found through SRV.
+     */
+    public void testStack() throws Exception {
+        writeZone("_sip._udp.stack.test. 300 IN SRV 10 50 5624 server.stack.test.\n"
+                + "server.stack.test. 300 IN A 127.0.0.1\n");
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "resolver");
+        properties.setProperty("gov.nist.javax.sip.ADDRESS_RESOLVER", CachingAddressResolver.class.getName());
+        properties.setProperty("gov.nist.javax.sip.DNS_ZONE_FILE", zoneFile.getPath());
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        SipStackImpl sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        Properties serverProperties = new Properties();
+        serverProperties.setProperty("javax.sip.STACK_NAME", "resolver-server");
+        SipStackImpl serverStack = (SipStackImpl) sipFactory.createSipStack(serverProperties);
+        try {
+            assertTrue(sipStack.getAddressResolver() instanceof CachingAddressResolver);
+            final SipProvider clientProvider = sipStack.createSipProvider(
+                    sipStack.createListeningPoint("127.0.0.1", 5623, "udp"));
+            SipProvider serverProvider = serverStack.createSipProvider(
+                    serverStack.createListeningPoint("127.0.0.1", 5624, "udp"));
+            final CountDownLatch received = new CountDownLatch(1);
+            SipListener listener = new SipListener() {
+                public void processRequest(RequestEvent requestEvent) {
+                    received.countDown();
+                }
+
+                public void processResponse(ResponseEvent responseEvent) {}
+
+                public void processTimeout(TimeoutEvent timeoutEvent) {}
+
+                public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+                public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+                public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+            };
+            clientProvider.addSipListener(listener);
+            serverProvider.addSipListener(listener);
+            sipStack.start();
+            serverStack.start();
+
+            AddressFactory addressFactory = sipFactory.createAddressFactory();
+            HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+            MessageFactory messageFactory = sipFactory.createMessageFactory();
+            Address from = addressFactory.createAddress("sip:alice@127.0.0.1:5623");
+            Address to = addressFactory.createAddress("sip:bob@stack.test");
+            ArrayList<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", 5623, "udp", null));
+            Request request = messageFactory.createRequest(to.getURI(), Request.OPTIONS,
+                    clientProvider.getNewCallId(), headerFactory.createCSeqHeader(1L, Request.OPTIONS),
+                    headerFactory.createFromHeader(from, "1234"), headerFactory.createToHeader(to, null),
+                    vias, headerFactory.createMaxForwardsHeader(70));
+            ClientTransaction ct = clientProvider.getNewClientTransaction(request);
+            ct.sendRequest();
+            assertTrue(received.await(5, TimeUnit.SECONDS));
+        } finally {
+            sipStack.stop();
+            serverStack.stop();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package test.unit.gov.nist.javax.sip;
+
+import gov.nist.javax.sip.SIPConstants;
+import gov.nist.javax.sip.Utils;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the format and uniqueness of the identifiers generated by Utils.
+ */
+public class UtilsTest extends TestCase {
+
+    public void testFormat() {
+        Utils utils = Utils.getInstance();
+        String branch = utils.generateBranchId();
+        assertTrue(branch, branch.startsWith(SIPConstants.BRANCH_MAGIC_COOKIE + "-" + Utils.getSignature() + "-"));
+        assertTrue(Utils.isRfc3261Branch(branch));
+        assertEquals(SIPConstants.BRANCH_MAGIC_COOKIE.length() + Utils.getSignature().length() + 2 + 32,
+                branch.length());
+
+        String tag = utils.generateTag();
+        assertEquals(8, tag.length());
+        assertTrue(tag, tag.matches("[0-9a-f]+"));
+
+        String callId = utils.generateCallIdentifier("192.0.2.1");
+        assertTrue(callId, callId.matches("[0-9a-f]{32}@192\\.0\\.2\\.1"));
+    }
+
+    public void testUniqueAcrossThreads() throws Exception {
+        final Set<String> branches = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final Set<String> callIds = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        final int perThread = 20000;
+        Thread[] threads = new Thread[8];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread() {
+                public void run() {
+                    Utils utils = Utils.getInstance();
+                    for (int j = 0; j < perThread; j++) {
+                        branches.add(utils.generateBranchId());
+                        callIds.add(utils.generateCallIdentifier("here"));
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(threads.length * perThread, branches.size());
+        assertEquals(threads.length * perThread, callIds.size());
+    }
+
+    public void testTagsDiffer() {
+        Set<String> tags = new HashSet<String>();
+        for (int i = 0; i < 1000; i++) {
+            tags.add(Utils.getInstance().generateTag());
+        }
+        // 32 random bits each, a collision in 1000 draws is very unlikely
+        assertTrue(tags.size() >= 999);
+    }
+}
@@ -0,0 +1,165 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.core.ByteBufferWriter;
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.CallID;
+import gov.nist.javax.sip.header.Contact;
+import gov.nist.javax.sip.header.ContentLength;
+import gov.nist.javax.sip.header.From;
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.header.To;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.message.SIPResponse;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.Arrays;
+import java.util.Iterator;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that encoding messages and headers straight to bytes gives the same
+ * bytes as encoding them as strings.
+ */
+public class ByteEncodingTest extends TestCase {
+
+    private static final String[] messages = {
+        "INVITE sip:bob@biloxi.example.com;transport=tcp?Subject=hi SIP/2.0\r\n"
+            + "Via: SIP/2.0/TCP client.atlanta.example.com:5060;branch=z9hG4bK74bf9;received=10.1.1.1;rport=5066\r\n"
+            + "Via: SIP/2.0/UDP [2001:db8::9]:5070;branch=z9hG4bK-2;maddr=224.2.0.1;ttl=16 (a comment)\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "From: \"Alice \\\"A\\\" Liddell\" <sip:alice:secret@atlanta.example.com>;tag=9fxced76sl\r\n"
+            + "To: Bob <sip:bob@biloxi.example.com>\r\n"
+            + "Call-ID: 3848276298220188511@atlanta.example.com\r\n"
+            + "CSeq: 1 invite\r\n"
+            + "Contact: <sip:alice@client.atlanta.example.com;transport=tcp>;expires=3600;q=0.7, sip:alice@[::1]:5080\r\n"
+            + "Route: <sip:p1.example.com;lr>, <sip:p2.example.com;lr>\r\n"
+            + "Record-Route: <sip:p3.example.com;lr>\r\n"
+            + "Supported: timer, 100rel\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 26\r\n\r\n"
+            + "v=0\r\no=- 0 0 IN IP4 0.0.0.0",
+        "SIP/2.0 180 Ringing\r\n"
+            + "Via: SIP/2.0/UDP 10.0.0.1:5060;branch=z9hG4bK-a;rport\r\n"
+            + "From: sip:alice@atlanta.example.com;tag=1\r\n"
+            + "To: <sip:bob@biloxi.example.com>;tag=2\r\n"
+            + "Call-ID: a84b4c76e66710\r\n"
+            + "CSeq: 314159 INVITE\r\n"
+            + "Contact: *\r\n"
+            + "Content-Length: 0\r\n\r\n",
+        "REGISTER sip:sip.svgc.ru SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 10.0.2.250:5060;branch=z9hG4bK-ztk7799cnhxx;rport\r\n"
+            + "From: \"\u0442\u0435\u043b\u0435 C\u043d\u043e\u043c\" <sip:3606@sip.svgc.ru>;tag=lqffmqdzmv\r\n"
+            + "To: <sip:3606@sip.svgc.ru>\r\n"
+            + "Call-ID: 3c2688891598-8lqnbdxvv6ip\r\n"
+            + "CSeq: 2 REGISTER\r\n"
+            + "Contact: <sip:3606@10.0.2.250:5060;line=qbc05th0>;reg-id=1;+sip.instance=\"<urn:uuid:0>\"\r\n"
+            + "Expires: 600\r\n"
+            + "User-Agent: snom360/7.3.30\r\n"
+            + "Content-Length: 0\r\n\r\n",
+    };
+
+    private static SIPMessage parse(String message) throws Exception {
+        return new StringMsgParser().parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+    }
+
+    /**
+     * The message encoded the way it was before there was a byte encoding.
+     */
+    private static byte[] encodeAsString(SIPMessage message) throws Exception {
+        StringBuilder encoding = new StringBuilder();
+        if (message instanceof SIPRequest)
+            encoding.append(((SIPRequest) message).getRequestLine().encode());
+        else
+            encoding.append(((SIPResponse) message).getStatusLine().encode());
+        for (Iterator<SIPHeader> it = message.getHeaders(); it.hasNext();) {
+            SIPHeader header = it.next();
+            if (!(header instanceof ContentLength))
+                header.encode(encoding);
+        }
+        ((ContentLength) message.getContentLength()).encode(encoding);
+        encoding.append("\r\n");
+        byte[] headers = encoding.toString().getBytes("UTF-8");
+        byte[] content = message.getRawContent();
+        if (content == null)
+            return headers;
+        byte[] bytes = Arrays.copyOf(headers, headers.length + content.length);
+        System.arraycopy(content, 0, bytes, headers.length, content.length);
+        return bytes;
+    }
+
+    private static void assertSameEncoding(SIPHeader header) throws Exception {
+        ByteBufferWriter writer = new ByteBufferWriter(16);
+        header.encode(writer);
+        assertEquals(header.encode(), new String(writer.toByteArray(), "UTF-8"));
+    }
+
+    public void testMessages() throws Exception {
+        for (String text : messages) {
+            SIPMessage message = parse(text);
+            // sets the transport of the topmost Via
+            byte[] bytes = message.encodeAsBytes("UDP");
+            byte[] expected = encodeAsString(message);
+            assertEquals(new String(expected, "UTF-8"), new String(bytes, "UTF-8"));
+            assertTrue(Arrays.equals(expected, bytes));
+
+            for (Iterator<SIPHeader> it = message.getHeaders(); it.hasNext();) {
+                assertSameEncoding(it.next());
+            }
+        }
+    }
+
+    public void testHeaders() throws Exception {
+        Via via = new Via();
+        via.setHost("10.0.0.1");
+        via.setTransport("tls");
+        via.setBranch("z9hG4bK-x");
+        via.setRPort();
+        via.setReceived("192.168.0.1");
+        assertSameEncoding(via);
+
+        SIPMessage message = parse(messages[0]);
+        From from = (From) message.getFrom();
+        from.removeTag();
+        assertSameEncoding(from);
+        To to = (To) message.getTo();
+        to.setTag("5678");
+        assertSameEncoding(to);
+        assertSameEncoding(new To());
+
+        CallID callId = new CallID("no-host");
+        assertSameEncoding(callId);
+        assertSameEncoding(new CSeq(Long.MAX_VALUE, "message"));
+        assertSameEncoding(new ContentLength());
+        assertSameEncoding(new ContentLength(123456));
+
+        Contact contact = new Contact();
+        contact.setWildCardFlag(true);
+        assertSameEncoding(contact);
+    }
+
+    public void testWriter() throws Exception {
+        ByteBufferWriter writer = new ByteBufferWriter(4);
+        writer.append(0).append(' ').append(-42).append(' ').append(Long.MIN_VALUE)
+            .append(' ').append(Integer.MAX_VALUE);
+        assertEquals("0 -42 " + Long.MIN_VALUE + " " + Integer.MAX_VALUE,
+                new String(writer.toByteArray(), "UTF-8"));
+        writer.clear();
+        writer.append("caf\u00e9 ").append(new StringBuilder("\u00fc")).append('\u00e9');
+        assertEquals("caf\u00e9 \u00fc\u00e9", new String(writer.toByteArray(), "UTF-8"));
+        assertEquals(writer.length(), writer.getBuffer().remaining());
+
+        writer.clear();
+        writer.setCharset("ISO-8859-1");
+        writer.append("\u00e9");
+        assertTrue(Arrays.equals(new byte[] { (byte) 0xe9 }, writer.toByteArray()));
+
+        ByteBufferWriter pooled = ByteBufferWriter.getInstance();
+        assertNotSame(pooled, ByteBufferWriter.getInstance());
+        ByteBufferWriter.release(pooled);
+        assertSame(pooled, ByteBufferWriter.getInstance());
+        ByteBufferWriter.release(pooled);
+    }
+}
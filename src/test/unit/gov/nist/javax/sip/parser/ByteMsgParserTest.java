@@ -0,0 +1,129 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.header.ExtensionHeaderImpl;
+import gov.nist.javax.sip.header.SIPHeaderList;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.ByteMsgParser;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.nio.ByteBuffer;
+import java.text.ParseException;
+
+import javax.sip.header.ViaHeader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the byte level parser builds the same messages as the
+ * StringMsgParser.
+ */
+public class ByteMsgParserTest extends TestCase {
+
+    static {
+        SIPHeaderList.setPrettyEncode(false);
+    }
+
+    private static final String[] messages = {
+            "INVITE sip:littleguy@there.com:5060 SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 65.243.118.100:5050;branch=z9hG4bK-1\r\n"
+                    + "v: SIP/2.0/UDP 65.243.118.101:5050;branch=z9hG4bK-2\r\n"
+                    + "From: M. Ranganathan  <sip:M.Ranganathan@sipbakeoff.com>;tag=1234\r\n"
+                    + "To: \"littleguy@there.com\" <sip:littleguy@there.com:5060> \r\n"
+                    + "Call-ID: Q2AboBsaGn9!?x6@sipbakeoff.com \r\n"
+                    + "CSeq: 1 INVITE \r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "X-Custom-Header:  some value \r\n"
+                    + "Subject: a subject\r\n"
+                    + "  continued on the next line\r\n"
+                    + "Content-Type: application/sdp\r\n"
+                    + "Content-Length: 30\r\n\r\n"
+                    + "v=0\r\n"
+                    + "o=4855 13760 13760 IN IP4\r\n",
+
+            "SIP/2.0 200 OK\r\n"
+                    + "To: \"The Little Blister\" <sip:LittleGuy@there.com>;tag=469bc066\r\n"
+                    + "f: \"The Master Blaster\" <sip:BigGuy@here.com>;tag=11\r\n"
+                    + "VIA: SIP/2.0/UDP 139.10.134.246:5060;branch=z9hG4bK8b0a86f6_1030c7d18e0_17;received=139.10.134.246\r\n"
+                    + "i: 1030c7d18ae_a97b0b_b@8b0a86f6\r\n"
+                    + "CSeq: 1 SUBSCRIBE\r\n"
+                    + "m: <sip:172.16.11.162:5070>\r\n"
+                    + "l: 0\r\n\r\n",
+
+            "REGISTER sip:nist.gov SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 129.6.55.182:14826\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "From: \"\u0420\u0443\u0441\" <sip:mranga@nist.gov>;tag=6fcd5c7ace8b4a45acf0f0cd539b168b;epid=0d4c418ddf\r\n"
+                    + "To: <sip:mranga@nist.gov>\r\n"
+                    + "Call-ID: c5679907eb954a8da9f9dceb282d7230@129.6.55.182\r\n"
+                    + "CSeq: 1 REGISTER\r\n"
+                    + "Contact: <sip:129.6.55.182:14826>;methods=\"INVITE, MESSAGE, INFO, SUBSCRIBE, OPTIONS, BYE, CANCEL, NOTIFY, ACK, REFER\"\r\n"
+                    + "User-Agent: RTC/(Microsoft RTC)\r\n"
+                    + "Event:  registration\r\n"
+                    + "Allow-Events: presence\r\n"
+                    + "P-Asserted-Identity: <sip:mranga@nist.gov>\r\n"
+                    + "Content-Length: 0\r\n\r\n" };
+
+    public void testParity() throws Exception {
+        for (int i = 0; i < messages.length; i++) {
+            byte[] bytes = messages[i].getBytes("UTF-8");
+            SIPMessage expected = new StringMsgParser().parseSIPMessage(bytes, true, false, null);
+            SIPMessage actual = new ByteMsgParser().parseSIPMessage(bytes, true, false, null);
+            assertEquals(expected.encode(), actual.encode());
+            assertEquals(expected.getSize(), actual.getSize());
+            assertEquals(expected, actual);
+        }
+    }
+
+    public void testExtensionHeader() throws Exception {
+        SIPMessage message = new ByteMsgParser().parseSIPMessage(messages[0].getBytes("UTF-8"), true, false, null);
+        ExtensionHeaderImpl header = (ExtensionHeaderImpl) message.getHeader("X-Custom-Header");
+        assertNotNull(header);
+        assertEquals("some value", header.getValue());
+        assertEquals(2, ((SIPRequest) message).getViaHeaders().size());
+        assertEquals("z9hG4bK-1", ((ViaHeader) message.getHeader(ViaHeader.NAME)).getBranch());
+        assertEquals("a subject continued on the next line", message.getHeader("Subject").toString().substring(9).trim());
+    }
+
+    public void testByteBufferSlice() throws Exception {
+        byte[] bytes = messages[1].getBytes("UTF-8");
+        byte[] padded = new byte[bytes.length + 20];
+        System.arraycopy(bytes, 0, padded, 10, bytes.length);
+        ByteBuffer buffer = ByteBuffer.wrap(padded, 10, bytes.length);
+        SIPMessage actual = new ByteMsgParser().parseSIPMessage(buffer, true, false, null);
+        SIPMessage expected = new StringMsgParser().parseSIPMessage(bytes, true, false, null);
+        assertEquals(expected.encode(), actual.encode());
+        assertEquals(10, buffer.position());
+
+        ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes).flip();
+        actual = new ByteMsgParser().parseSIPMessage(direct, true, false, null);
+        assertEquals(expected.encode(), actual.encode());
+    }
+
+    public void testBadContinuation() throws Exception {
+        try {
+            new ByteMsgParser().parseSIPMessage(("BYE sip:127.0.0.1:5080 SIP/2.0\r\n"
+                    + " Via: SIP/2.0/TCP 127.0.0.1:5060;branch=z9hG4bKd2c8\r\n\r\n").getBytes(), true, false, null);
+            fail("Should throw a ParseException");
+        } catch (ParseException ex) {
+            // expected
+        }
+    }
+
+    public void testJunkAtEndOfMessage() throws Exception {
+        try {
+            new ByteMsgParser().parseSIPMessage(("BYE sip:127.0.0.1:5080;transport=tcp SIP/2.0\r\n"
+                    + "Via: SIP/2.0/TCP 127.0.0.1:5060;rport=5060;branch=z9hG4bKd2c87858eb0a7a09becc7a115c608d27\r\n"
+                    + "CSeq: 2 BYE\r\n"
+                    + "Call-ID: 84a5c57fd263bcce6fec05edf20c5aba@127.0.0.1\r\n"
+                    + "From: \"The Master Blaster\" <sip:BigGuy@here.com>;tag=12345\r\n"
+                    + "To: \"The Little Blister\" <sip:LittleGuy@there.com>;tag=2955\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "Content-Length: 0\r\n" + " \r\n").getBytes(), true, true, null);
+            fail("Should throw a ParseException");
+        } catch (ParseException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.header.ExtensionHeaderImpl;
+import gov.nist.javax.sip.header.SIPHeaderList;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.ByteMsgParser;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.Arrays;
+import java.util.ListIterator;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sip.header.ExpiresHeader;
+import javax.sip.header.MinExpiresHeader;
+import javax.sip.header.SubjectHeader;
+import javax.sip.header.SupportedHeader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that headers left unparsed by the lazy parser are encoded as received
+ * and parsed on access.
+ */
+public class LazyMsgParserTest extends TestCase {
+
+    static {
+        SIPHeaderList.setPrettyEncode(false);
+    }
+
+    private static final String message = "INVITE sip:littleguy@there.com:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 65.243.118.100:5050;branch=z9hG4bK-1\r\n"
+            + "From: M. Ranganathan  <sip:M.Ranganathan@sipbakeoff.com>;tag=1234\r\n"
+            + "To: \"littleguy@there.com\" <sip:littleguy@there.com:5060>\r\n"
+            + "Call-ID: Q2AboBsaGn9!?x6@sipbakeoff.com\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Contact: <sip:M.Ranganathan@65.243.118.100:5050>\r\n"
+            + "User-Agent: NIST-SIP  test\r\n"
+            + "X-Custom-Header:   some value\r\n"
+            + "Subject: a subject\r\n"
+            + "  continued on the next line\r\n"
+            + "Expires: 60\r\n"
+            + "Content-Type: application/sdp\r\n"
+            + "Content-Length: 4\r\n\r\n"
+            + "v=0\n";
+
+    private SIPMessage parse() throws Exception {
+        return new ByteMsgParser(Arrays.asList("Contact")).parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+    }
+
+    public void testVerbatimEncoding() throws Exception {
+        SIPMessage lazy = parse();
+        String encoded = new String(lazy.encodeAsBytes("UDP"), "UTF-8");
+        assertTrue(encoded.indexOf("User-Agent: NIST-SIP  test\r\n") > 0);
+        assertTrue(encoded.indexOf("X-Custom-Header:   some value\r\n") > 0);
+        assertTrue(encoded.endsWith("Content-Length: 4\r\n\r\nv=0\n"));
+        assertEquals(lazy.encode(), encoded);
+
+        // Reading the message back gives the same headers
+        SIPMessage reparsed = new StringMsgParser().parseSIPMessage(encoded.getBytes("UTF-8"), true, false, null);
+        SIPMessage eager = new StringMsgParser().parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+        assertEquals(eager, reparsed);
+        assertEquals(eager, lazy);
+    }
+
+    public void testParseOnAccess() throws Exception {
+        SIPMessage lazy = parse();
+        assertTrue(lazy.hasHeader(SubjectHeader.NAME));
+        assertEquals(60, ((ExpiresHeader) lazy.getHeader(ExpiresHeader.NAME)).getExpires());
+        assertEquals("some value", ((ExtensionHeaderImpl) lazy.getHeader("x-custom-header")).getValue());
+        SubjectHeader subject = (SubjectHeader) lazy.getHeader(SubjectHeader.NAME);
+        assertEquals("a subject continued on the next line", subject.getSubject().trim());
+        assertNotNull(((SIPRequest) lazy).getContactHeader());
+
+        lazy.removeHeader("User-Agent");
+        assertFalse(lazy.hasHeader("User-Agent"));
+        assertTrue(lazy.encode().indexOf("User-Agent") < 0);
+    }
+
+    public void testReceivedOrder() throws Exception {
+        String received = message.replace("Contact: ", "Supported: timer\r\nUser-Agent: early\r\nContact: ")
+                .replace("User-Agent: NIST-SIP  test\r\n", "Supported: 100rel\r\n");
+        SIPMessage lazy = new ByteMsgParser(Arrays.asList("Contact")).parseSIPMessage(received.getBytes("UTF-8"), true, false, null);
+        String encoded = lazy.encode();
+        assertTrue(encoded.indexOf("Supported: timer\r\nUser-Agent: early\r\nContact: ") > 0);
+        assertTrue(encoded.indexOf("Supported: 100rel\r\nX-Custom-Header:   some value\r\n") > 0);
+        assertEquals(encoded, new String(lazy.encodeAsBytes("UDP"), "UTF-8"));
+
+        // The parsed headers take the place of the first one of their name
+        assertNotNull(lazy.getHeader("User-Agent"));
+        ListIterator<?> supported = lazy.getHeaders(SupportedHeader.NAME);
+        assertEquals("timer", ((SupportedHeader) supported.next()).getOptionTag());
+        assertEquals("100rel", ((SupportedHeader) supported.next()).getOptionTag());
+        encoded = lazy.encode();
+        int contact = encoded.indexOf("Contact: ");
+        assertTrue(encoded.indexOf("Supported: timer,100rel\r\n") < contact);
+        assertTrue(encoded.indexOf("User-Agent: early\r\n") < contact);
+        assertTrue(encoded.indexOf("100rel\r\nX-Custom") < 0);
+        assertTrue(contact < encoded.indexOf("X-Custom-Header:   some value\r\n"));
+        assertEquals(encoded, new String(lazy.encodeAsBytes("UDP"), "UTF-8"));
+    }
+
+    public void testConcurrentAccess() throws Exception {
+        for (int round = 0; round < 50; round++) {
+            final SIPMessage lazy = parse();
+            final CountDownLatch start = new CountDownLatch(1);
+            final AtomicInteger found = new AtomicInteger();
+            Thread[] threads = new Thread[4];
+            for (int i = 0; i < threads.length; i++) {
+                threads[i] = new Thread() {
+                    public void run() {
+                        try {
+                            start.await();
+                            if (lazy.getHeader(SubjectHeader.NAME) != null
+                                    && lazy.getHeader(ExpiresHeader.NAME) != null)
+                                found.incrementAndGet();
+                            lazy.encode();
+                        } catch (InterruptedException e) {
+                            // counted as not found
+                        }
+                    }
+                };
+                threads[i].start();
+            }
+            start.countDown();
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            assertEquals(threads.length, found.get());
+            String encoded = lazy.encode();
+            assertEquals(encoded.indexOf("Subject: "), encoded.lastIndexOf("Subject: "));
+            assertEquals(encoded.indexOf("Expires: "), encoded.lastIndexOf("Expires: "));
+            assertTrue(encoded.indexOf("Subject: ") < encoded.indexOf("Expires: "));
+        }
+    }
+
+    public void testClone() throws Exception {
+        SIPMessage lazy = parse();
+        SIPMessage clone = (SIPMessage) lazy.clone();
+        assertEquals(lazy.encode(), clone.encode());
+        clone.removeHeader(SubjectHeader.NAME);
+        assertNotNull(lazy.getHeader(SubjectHeader.NAME));
+        assertNull(clone.getHeader(SubjectHeader.NAME));
+    }
+
+    public void testBadLazyHeader() throws Exception {
+        String bad = message.replace("Expires: 60", "Expires: sixty");
+        SIPMessage lazy = new ByteMsgParser(Arrays.asList("Contact")).parseSIPMessage(bad.getBytes("UTF-8"), true, false, null);
+        assertNull(lazy.getHeader(ExpiresHeader.NAME));
+        assertTrue(lazy.getUnrecognizedHeaders().hasNext());
+
+        // a header parser failing with a runtime exception
+        bad = message.replace("Expires: 60", "Min-Expires: 99999999999999999999");
+        lazy = new ByteMsgParser(Arrays.asList("Contact")).parseSIPMessage(bad.getBytes("UTF-8"), true, false, null);
+        assertNull(lazy.getHeader(MinExpiresHeader.NAME));
+        assertNull(lazy.getHeader(MinExpiresHeader.NAME));
+        String encoded = lazy.encode();
+        assertTrue(encoded.indexOf("Min-Expires: 99999999999999999999") > 0);
+        assertNotNull(lazy.clone());
+    }
+}
@@ -0,0 +1,136 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.parser.NioPipelineParser;
+import gov.nist.javax.sip.parser.PostParseExecutorServices;
+import gov.nist.javax.sip.parser.SIPMessageListener;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import javax.sip.SipFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the framing of a stream of messages by the NIO parser, whatever the
+ * chunks the bytes arrive in, and the order the messages of a Call-ID are
+ * processed in when they are parsed on the post parse thread pool.
+ */
+public class NioPipelineParserTest extends TestCase {
+
+    private SipStackImpl sipStack;
+
+    private final List<SIPMessage> messages = Collections.synchronizedList(new ArrayList<SIPMessage>());
+
+    private int pongs;
+
+    private final SIPMessageListener listener = new SIPMessageListener() {
+        public void processMessage(SIPMessage msg) {
+            messages.add(msg);
+        }
+
+        public void sendSingleCRLF() {
+            pongs++;
+        }
+
+        public void handleException(ParseException ex, SIPMessage sipMessage, Class headerClass,
+                String headerText, String messageText) throws ParseException {
+            throw ex;
+        }
+    };
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "nioparser-" + getName());
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+    }
+
+    public void tearDown() {
+        PostParseExecutorServices.setPostParseExcutorSize(0, 0);
+        sipStack.stop();
+    }
+
+    private static String message(int call, int cseq, String body) throws Exception {
+        return "INFO sip:bob@127.0.0.1:5060;transport=tcp SIP/2.0\r\n"
+                + "Via: SIP/2.0/TCP 127.0.0.1:5070;branch=z9hG4bK-" + call + "-" + cseq + "\r\n"
+                + "From: <sip:alice@127.0.0.1>;tag=" + call + "\r\n"
+                + "To: <sip:bob@127.0.0.1>\r\n"
+                // the compact forms have to be found as well
+                + (call % 2 == 0 ? "Call-ID: " : "i: ") + "call-" + call + "@127.0.0.1\r\n"
+                + "CSeq: " + cseq + " INFO\r\n"
+                + "Max-Forwards: 70\r\n"
+                + (cseq % 2 == 0 ? "Content-Length: " : "l:") + body.getBytes("UTF-8").length + "\r\n\r\n"
+                + body;
+    }
+
+    public void testChunks() throws Exception {
+        String text = message(0, 1, "") + "\r\n\r\n" + message(1, 2, "caf\u00e9 body") + message(2, 3, "x");
+        byte[] bytes = text.getBytes("UTF-8");
+        for (int chunk = 1; chunk <= bytes.length; chunk *= 3) {
+            messages.clear();
+            NioPipelineParser parser = new NioPipelineParser(sipStack, listener, 0);
+            for (int i = 0; i < bytes.length; i += chunk) {
+                parser.addBytes(Arrays.copyOfRange(bytes, i, Math.min(bytes.length, i + chunk)));
+            }
+            assertEquals(3, messages.size());
+            assertEquals("call-1@127.0.0.1", messages.get(1).getCallId().getCallId());
+            assertEquals(2, messages.get(1).getCSeq().getSeqNumber());
+            assertEquals("caf\u00e9 body", new String(messages.get(1).getRawContent(), "UTF-8"));
+            assertEquals("x", new String(messages.get(2).getRawContent(), "UTF-8"));
+        }
+    }
+
+    public void testKeepAlive() throws Exception {
+        NioPipelineParser parser = new NioPipelineParser(sipStack, listener, 0);
+        parser.addBytes("\r\n\r\n".getBytes());
+        assertEquals(1, pongs);
+        assertTrue(messages.isEmpty());
+    }
+
+    public void testMaxMessageSize() throws Exception {
+        NioPipelineParser parser = new NioPipelineParser(sipStack, listener, 100);
+        try {
+            parser.addBytes(message(0, 1, "").getBytes("UTF-8"));
+            fail("the message is larger than the limit");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    public void testPostParsePool() throws Exception {
+        PostParseExecutorServices.setPostParseExcutorSize(4, 8000);
+        NioPipelineParser parser = new NioPipelineParser(sipStack, listener, 0);
+        int calls = 10;
+        int cseqs = 50;
+        StringBuilder text = new StringBuilder();
+        for (int cseq = 1; cseq <= cseqs; cseq++) {
+            for (int call = 0; call < calls; call++) {
+                text.append(message(call, cseq, "body"));
+            }
+        }
+        parser.addBytes(text.toString().getBytes("UTF-8"));
+        long deadline = System.currentTimeMillis() + 10000;
+        while (messages.size() < calls * cseqs && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(calls * cseqs, messages.size());
+        long[] last = new long[calls];
+        synchronized (messages) {
+            for (SIPMessage message : messages) {
+                String callId = message.getCallId().getCallId();
+                int call = Integer.parseInt(callId.substring(5, callId.indexOf('@')));
+                long cseq = message.getCSeq().getSeqNumber();
+                assertEquals(last[call] + 1, cseq);
+                last[call] = cseq;
+                assertEquals("body", new String(message.getRawContent(), "UTF-8"));
+            }
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package test.unit.gov.nist.javax.sip.parser;
+
+import gov.nist.javax.sip.header.SIPHeader;
+import gov.nist.javax.sip.parser.HeaderParser;
+import gov.nist.javax.sip.parser.ParserFactory;
+import gov.nist.javax.sip.parser.ToParser;
+import gov.nist.javax.sip.parser.ViaParser;
+import gov.nist.javax.sip.parser.extensions.SessionExpiresParser;
+import gov.nist.javax.sip.parser.ims.PAssertedIdentityParser;
+
+import java.lang.reflect.Method;
+import java.util.Set;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the parser factory creates the parser registered for every
+ * header name, compact forms and parsers added at runtime included.
+ */
+public class ParserFactoryTest extends TestCase {
+
+    /**
+     * A parser registered at runtime.
+     */
+    public static class DispatchParser extends HeaderParser {
+        public DispatchParser(String header) {
+            super(header);
+        }
+    }
+
+    public void testParserTable() throws Exception {
+        Method names = ParserFactory.class.getDeclaredMethod("getParserTableNames");
+        Method parserClass = ParserFactory.class.getDeclaredMethod("getParserClass", String.class);
+        names.setAccessible(true);
+        parserClass.setAccessible(true);
+        for (Object name : (Set<?>) names.invoke(null)) {
+            HeaderParser parser = ParserFactory.createParser(name + ": x\n");
+            assertSame((String) name, parserClass.invoke(null, name), parser.getClass());
+        }
+    }
+
+    public void testDispatch() throws Exception {
+        assertSame(ViaParser.class, ParserFactory.createParser("VIA: SIP/2.0/UDP 10.0.0.1\n").getClass());
+        assertSame(ViaParser.class, ParserFactory.createParser("v: SIP/2.0/UDP 10.0.0.1\n").getClass());
+        assertSame(ToParser.class, ParserFactory.createParser("T: <sip:bob@10.0.0.1>\n").getClass());
+        assertSame(SessionExpiresParser.class, ParserFactory.createParser("x: 3600\n").getClass());
+        assertSame(PAssertedIdentityParser.class,
+                ParserFactory.createParser("P-Asserted-Identity: <sip:alice@10.0.0.1>\n").getClass());
+        assertSame(HeaderParser.class, ParserFactory.createParser("X-Unknown: 1\n").getClass());
+
+        SIPHeader header = (SIPHeader) ParserFactory.createParser("Via: SIP/2.0/TCP 10.0.0.1:5070\n").parse();
+        assertEquals("Via: SIP/2.0/TCP 10.0.0.1:5070\r\n", header.encode());
+    }
+
+    public void testRegisteredParser() throws Exception {
+        ParserFactory.addToParserTable("X-Dispatch-Test", DispatchParser.class);
+        assertSame(DispatchParser.class, ParserFactory.createParser("x-dispatch-test: 1\n").getClass());
+    }
+}
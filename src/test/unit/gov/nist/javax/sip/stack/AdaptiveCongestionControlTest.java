@@ -0,0 +1,173 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.stack.AdaptiveCongestionControlMessageValve;
+import gov.nist.javax.sip.stack.MessageChannel;
+
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.sip.ListeningPoint;
+import javax.sip.SipFactory;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Drives the adaptive valve with a clock and delays set by the test, and
+ * checks that it sheds new dialogs with 503 and Retry-After when the queues
+ * or the listener fall behind and recovers once they keep up again.
+ */
+public class AdaptiveCongestionControlTest extends TestCase {
+
+    private static final int PORT = 5625;
+
+    /**
+     * A valve whose time and measures are set by the test.
+     */
+    public static class ManualValve extends AdaptiveCongestionControlMessageValve {
+        volatile long now = 1000;
+        volatile long queueDelay;
+        volatile long listenerTime;
+
+        protected long currentTimeMillis() {
+            return now;
+        }
+
+        protected long measureQueueDelay() {
+            return queueDelay;
+        }
+
+        protected long measureListenerResponseTime() {
+            return listenerTime;
+        }
+    }
+
+    private SipStackImpl sipStack;
+
+    private MessageFactory messageFactory;
+
+    private DatagramSocket socket;
+
+    private ManualValve valve;
+
+    private MessageChannel channel;
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "adaptivevalve-" + getName());
+        properties.setProperty("gov.nist.javax.sip.SIP_MESSAGE_VALVE", ManualValve.class.getName());
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_TARGET_DELAY", "20");
+        properties.setProperty("gov.nist.javax.sip.CONGESTION_INTERVAL", "50");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        sipStack.createSipProvider(lp);
+        sipStack.start();
+        valve = (ManualValve) sipStack.sipMessageValve;
+        socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        channel = ((ListeningPointImpl) lp).getMessageProcessor().createMessageChannel(
+                InetAddress.getByName("127.0.0.1"), socket.getLocalPort());
+    }
+
+    public void tearDown() {
+        socket.close();
+        sipStack.stop();
+    }
+
+    private SIPRequest request(String method, int i, String toTag) throws Exception {
+        return (SIPRequest) messageFactory.createRequest(method + " sip:server@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + socket.getLocalPort() + ";branch=z9hG4bK-" + method + i + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:server@127.0.0.1>" + (toTag == null ? "" : ";tag=" + toTag) + "\r\n"
+                + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                + "Call-ID: adaptive-" + method + i + "@127.0.0.1\r\n"
+                + "CSeq: 1 " + method + "\r\n"
+                + "Contact: <sip:client@127.0.0.1:" + socket.getLocalPort() + ">\r\n"
+                + "Content-Length: 0\r\n\r\n");
+    }
+
+    /**
+     * Let one interval go by and hand the valve a request at its end.
+     */
+    private boolean nextInterval(int i) throws Exception {
+        valve.now += 50;
+        return valve.processRequest(request(Request.OPTIONS, i, null), channel);
+    }
+
+    public void testShedAndRecover() throws Exception {
+        assertEquals(1.0, valve.getAdmitRatio(), 0.0);
+
+        // a standing queue halves the admitted share at the end of each interval
+        valve.queueDelay = 100;
+        nextInterval(0);
+        assertTrue(valve.isCongested());
+        assertEquals(100, valve.getQueueDelay());
+        assertEquals(0.5, valve.getAdmitRatio(), 0.0);
+        for (int i = 1; i < 6; i++) {
+            nextInterval(i);
+        }
+        assertEquals(0.05, valve.getAdmitRatio(), 0.0);
+
+        // new dialogs are shed, the rest goes through
+        for (int i = 0; i < 40; i++) {
+            valve.processRequest(request(Request.INVITE, i, null), channel);
+        }
+        assertTrue("rejected " + valve.getRejectedRequests(), valve.getRejectedRequests() > 0);
+        assertEquals(40, valve.getRejectedRequests() + valve.getAdmittedRequests());
+        assertTrue(valve.processRequest(request(Request.INVITE, 100, "callee"), channel));
+        assertEquals(40, valve.getRejectedRequests() + valve.getAdmittedRequests());
+
+        socket.setSoTimeout(5000);
+        DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+        socket.receive(packet);
+        String response = new String(packet.getData(), 0, packet.getLength());
+        assertTrue(response, response.startsWith("SIP/2.0 503"));
+        assertTrue(response, response.indexOf("Retry-After: 5") > 0);
+
+        // once the queues drain the share grows by a tenth per interval
+        valve.queueDelay = 0;
+        nextInterval(10);
+        assertFalse(valve.isCongested());
+        assertEquals(0.15, valve.getAdmitRatio(), 0.001);
+        // and after a quiet second without traffic everything is admitted again
+        valve.now += 1000;
+        nextInterval(11);
+        assertEquals(1.0, valve.getAdmitRatio(), 0.0);
+    }
+
+    public void testBurstIsNotCongestion() throws Exception {
+        valve.queueDelay = 100;
+        valve.now += 20;
+        valve.processRequest(request(Request.OPTIONS, 0, null), channel);
+        // the queue drained once during the interval, it is not a standing queue
+        valve.queueDelay = 0;
+        valve.now += 15;
+        valve.processRequest(request(Request.OPTIONS, 1, null), channel);
+        valve.queueDelay = 100;
+        nextInterval(2);
+        assertEquals(100, valve.getQueueDelay());
+        assertFalse(valve.isCongested());
+        assertEquals(1.0, valve.getAdmitRatio(), 0.0);
+    }
+
+    public void testSlowListener() throws Exception {
+        // the moving average of the listener response time over its target
+        valve.listenerTime = 500;
+        nextInterval(0);
+        assertTrue(valve.isCongested());
+        assertEquals(500, valve.getListenerResponseTime());
+        assertEquals(0.5, valve.getAdmitRatio(), 0.0);
+        valve.listenerTime = 10;
+        nextInterval(1);
+        assertFalse(valve.isCongested());
+        assertEquals(0.6, valve.getAdmitRatio(), 0.001);
+    }
+}
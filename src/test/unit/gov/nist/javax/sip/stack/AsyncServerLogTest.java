@@ -0,0 +1,167 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.ServerLog;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the message trace written by the background writer has the
+ * messages sent and received, gets rotated and accounts for dropped messages.
+ */
+public class AsyncServerLogTest extends TestCase {
+
+    private static final int PORT = 5621;
+
+    private File logFile;
+
+    private SipStackImpl sipStack;
+
+    private SipProvider provider;
+
+    private MessageFactory messageFactory;
+
+    private void createStack(int queueSize, long maxFileSize) throws Exception {
+        logFile = File.createTempFile("serverlog", ".xml");
+        logFile.delete();
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "asynclog-" + queueSize);
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "16");
+        properties.setProperty("gov.nist.javax.sip.SERVER_LOG", logFile.getPath());
+        properties.setProperty("gov.nist.javax.sip.SERVER_LOG_QUEUE_SIZE", "" + queueSize);
+        properties.setProperty("gov.nist.javax.sip.SERVER_LOG_MAX_FILE_SIZE", "" + maxFileSize);
+        properties.setProperty("gov.nist.javax.sip.SERVER_LOG_BACKUP_COUNT", "2");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        sipStack.start();
+        messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        provider = sipStack.createSipProvider(lp);
+        provider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    provider.sendResponse(messageFactory.createResponse(Response.OK, requestEvent.getRequest()));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {}
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {}
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+            public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+            public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+        });
+    }
+
+    public void tearDown() {
+        for (String suffix : new String[] {"", ".1", ".2"}) {
+            new File(logFile.getPath() + suffix).delete();
+        }
+    }
+
+    private static String read(File file) throws Exception {
+        if (!file.exists()) {
+            return "";
+        }
+        FileInputStream in = new FileInputStream(file);
+        try {
+            byte[] bytes = new byte[(int) file.length()];
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+            return new String(bytes, "UTF-8");
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String request(int i, int port) {
+        return "OPTIONS sip:server@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                + "Via: SIP/2.0/UDP 127.0.0.1:" + port + ";branch=z9hG4bK-log-" + i + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:server@127.0.0.1>\r\n"
+                + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                + "Call-ID: asynclog-" + i + "@127.0.0.1\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n\r\n";
+    }
+
+    public void testTrace() throws Exception {
+        createStack(1024, 0);
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(5000);
+        try {
+            for (int i = 0; i < 5; i++) {
+                byte[] bytes = request(i, socket.getLocalPort()).getBytes();
+                socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), PORT));
+                socket.receive(new DatagramPacket(new byte[4096], 4096));
+            }
+        } finally {
+            socket.close();
+            sipStack.stop();
+        }
+        String trace = read(logFile);
+        assertTrue(trace.startsWith("<!-- Use the  Trace Viewer"));
+        for (int i = 0; i < 5; i++) {
+            assertTrue(trace.indexOf("Call-ID: asynclog-" + i + "@127.0.0.1") > 0);
+        }
+        int sent = 0;
+        for (int index = trace.indexOf("isSender=\"true\""); index >= 0; index = trace.indexOf("isSender=\"true\"", index + 1)) {
+            sent++;
+        }
+        assertEquals(5, sent);
+        assertTrue(trace.indexOf("firstLine=\"SIP/2.0 200 OK\"") > 0);
+        assertTrue(trace.indexOf("firstLine=\"OPTIONS sip:server@127.0.0.1:" + PORT + " SIP/2.0\"") > 0);
+    }
+
+    public void testRotationAndDrops() throws Exception {
+        createStack(4, 2048);
+        ServerLog serverLog = (ServerLog) sipStack.getServerLogger();
+        byte[] bytes = request(0, 5060).getBytes();
+        // bursts larger than the queue, with pauses so the writer gets to rotate
+        for (int i = 0; i < 1000; i++) {
+            serverLog.logMessage(bytes, null, "127.0.0.1:5060", "127.0.0.1:" + PORT, null, false, i);
+            if (i % 50 == 49) {
+                Thread.sleep(20);
+            }
+        }
+        long dropped = serverLog.getDroppedMessageCount();
+        sipStack.stop();
+        assertTrue(dropped > 0);
+
+        File first = new File(logFile.getPath() + ".1");
+        assertTrue(first.exists());
+        assertTrue(new File(logFile.getPath() + ".2").exists());
+        assertFalse(new File(logFile.getPath() + ".3").exists());
+        String trace = read(logFile) + read(first) + read(new File(logFile.getPath() + ".2"));
+        assertTrue(trace.indexOf("messages dropped from the trace") > 0);
+        assertTrue(trace.indexOf("Call-ID: asynclog-0@127.0.0.1") > 0);
+    }
+}
@@ -0,0 +1,102 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.stack.ByteBufferFactory;
+
+import java.nio.ByteBuffer;
+
+import junit.framework.TestCase;
+
+public class ByteBufferFactoryTest extends TestCase {
+
+    private ByteBufferFactory factory;
+
+    public void setUp() {
+        factory = new ByteBufferFactory();
+    }
+
+    public void testReuse() {
+        ByteBuffer buffer = factory.allocateDirect(3000);
+        assertTrue(buffer.isDirect());
+        assertEquals(4096, buffer.capacity());
+        buffer.put((byte) 1);
+        factory.release(buffer);
+        ByteBuffer again = factory.allocateDirect(4000);
+        assertSame(buffer, again);
+        assertEquals(0, again.position());
+        assertEquals(again.capacity(), again.limit());
+        // other size class and heap buffers come from other pools
+        assertNotSame(buffer, factory.allocateDirect(5000));
+        assertFalse(factory.allocate(3000).isDirect());
+        assertEquals(1, factory.getReuseCount());
+        assertEquals(1, factory.getReleaseCount());
+    }
+
+    public void testSharedPool() throws Exception {
+        final ByteBuffer[] buffers = new ByteBuffer[20];
+        for (int i = 0; i < buffers.length; i++) {
+            buffers[i] = factory.allocate(1024);
+        }
+        // released by another thread, only part of them fit in its cache
+        Thread thread = new Thread() {
+            public void run() {
+                for (int i = 0; i < buffers.length; i++) {
+                    factory.release(buffers[i]);
+                }
+            }
+        };
+        thread.start();
+        thread.join();
+        assertTrue(factory.getPooledBufferCount() > 0);
+        long allocations = factory.getAllocationCount();
+        for (int i = 0; i < factory.getPooledBufferCount(); i++) {
+            factory.allocate(1024);
+        }
+        assertEquals(allocations, factory.getAllocationCount());
+    }
+
+    public void testNotPooled() {
+        ByteBuffer big = factory.allocateDirect(100000);
+        assertEquals(100000, big.capacity());
+        factory.release(big);
+        assertEquals(0, factory.getReleaseCount());
+
+        factory.setPooled(false);
+        ByteBuffer buffer = factory.allocate(100);
+        assertEquals(100, buffer.capacity());
+        factory.release(buffer);
+        assertNotSame(buffer, factory.allocate(100));
+    }
+
+    public void testRefusedReleases() {
+        // a buffer of a pooled size that the pool never handed out
+        ByteBuffer foreign = ByteBuffer.allocate(2048);
+        factory.release(foreign);
+        assertEquals(0, factory.getReleaseCount());
+        assertNotSame(foreign, factory.allocate(2048));
+
+        ByteBuffer buffer = factory.allocate(2048);
+        factory.release(buffer);
+        factory.release(buffer);
+        assertEquals(1, factory.getReleaseCount());
+        // pooled once, so only one allocation gets it
+        assertSame(buffer, factory.allocate(2048));
+        assertNotSame(buffer, factory.allocate(2048));
+    }
+
+    public void testLeakDetection() throws Exception {
+        factory.setLeakDetection(true);
+        ByteBuffer buffer = factory.allocate(2048);
+        factory.release(buffer);
+        // second release is refused instead of pooling the buffer twice
+        factory.release(buffer);
+        assertEquals(1, factory.getReleaseCount());
+
+        factory.allocate(2048);
+        factory.allocate(2048);
+        for (int i = 0; i < 50 && factory.getLeakCount() == 0; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        assertTrue(factory.getLeakCount() > 0);
+    }
+}
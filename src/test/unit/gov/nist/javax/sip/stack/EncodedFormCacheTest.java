@@ -0,0 +1,105 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import java.util.Arrays;
+
+import javax.sip.header.ContentLengthHeader;
+import javax.sip.header.SubjectHeader;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the encoded form kept by a message is reused while the message
+ * is unchanged and dropped by any change of its headers or content.
+ */
+public class EncodedFormCacheTest extends TestCase {
+
+    private static final String message = "INVITE sip:littleguy@there.com:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 65.243.118.100:5050;branch=z9hG4bK-Abc\r\n"
+            + "From: <sip:M.Ranganathan@sipbakeoff.com>;tag=1234\r\n"
+            + "To: <sip:littleguy@there.com:5060>\r\n"
+            + "Call-ID: Q2AboBsaGn9!?x6@sipbakeoff.com\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private SIPRequest parse() throws Exception {
+        return (SIPRequest) new StringMsgParser().parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+    }
+
+    private static String encoded(SIPRequest request) throws Exception {
+        return new String(request.encodeAsBytesCached("UDP"), "UTF-8");
+    }
+
+    public void testCached() throws Exception {
+        SIPRequest request = parse();
+        assertNull(request.getEncodedForm("UDP"));
+        byte[] bytes = request.encodeAsBytesCached("UDP");
+        assertTrue(Arrays.equals(request.encodeAsBytes("UDP"), bytes));
+        assertSame(bytes, request.encodeAsBytesCached("UDP"));
+        assertSame(bytes, request.getEncodedForm("udp"));
+        assertNull(request.getEncodedForm("TCP"));
+        assertNull(((SIPRequest) request.clone()).getEncodedForm("UDP"));
+    }
+
+    public void testHeaderChanges() throws Exception {
+        SIPRequest request = parse();
+        encoded(request);
+        SubjectHeader subject = new gov.nist.javax.sip.header.Subject();
+        subject.setSubject("cached");
+        request.setHeader(subject);
+        assertTrue(encoded(request).indexOf("Subject: cached") > 0);
+        request.removeHeader(SubjectHeader.NAME);
+        assertTrue(encoded(request).indexOf("Subject") < 0);
+
+        Via via = new Via();
+        via.setHost("127.0.0.1");
+        via.setPort(5070);
+        via.setTransport("UDP");
+        via.setBranch("z9hG4bK-proxy");
+        request.addFirst(via);
+        assertTrue(encoded(request).indexOf("branch=z9hG4bK-proxy") > 0);
+
+        request.setToTag("5678");
+        assertTrue(encoded(request).indexOf("tag=5678") > 0);
+        request.setRequestURI(request.getFrom().getAddress().getURI());
+        assertTrue(encoded(request).startsWith("INVITE sip:M.Ranganathan@sipbakeoff.com SIP/2.0"));
+    }
+
+    public void testContentChanges() throws Exception {
+        SIPRequest request = parse();
+        encoded(request);
+        request.setContent("v=0\r\n", new gov.nist.javax.sip.header.ContentType("application", "sdp"));
+        String encoded = encoded(request);
+        assertTrue(encoded.endsWith("\r\n\r\nv=0\r\n"));
+        assertTrue(encoded.indexOf(ContentLengthHeader.NAME + ": 5") > 0);
+        request.removeContent();
+        assertTrue(encoded(request).endsWith("\r\n\r\n"));
+    }
+
+    public void testSetters() throws Exception {
+        SIPRequest request = parse();
+        encoded(request);
+        request.setCallId("changed@sipbakeoff.com");
+        assertTrue(encoded(request).indexOf("Call-ID: changed@sipbakeoff.com") > 0);
+        request.setContentLength(new gov.nist.javax.sip.header.ContentLength(0));
+        request.setContentLength(new gov.nist.javax.sip.header.ContentLength(7));
+        assertTrue(encoded(request).indexOf(ContentLengthHeader.NAME + ": 7") > 0);
+        request.addUnparsed("X-Unparsed: one");
+        assertTrue(encoded(request).indexOf("X-Unparsed: one") > 0);
+        request.addHeader("X-Other: @@@ two");
+        assertTrue(encoded(request).indexOf("X-Other") > 0);
+    }
+
+    public void testInvalidate() throws Exception {
+        SIPRequest request = parse();
+        encoded(request);
+        // changes made in place to a header are only seen once invalidated
+        request.getTopmostVia().setBranch("z9hG4bK-Other");
+        request.invalidateEncodedForm();
+        assertTrue(encoded(request).indexOf("branch=z9hG4bK-Other") > 0);
+    }
+}
@@ -0,0 +1,175 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.EventScanner;
+import gov.nist.javax.sip.EventWrapper;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.SIPTransaction;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.sip.ClientTransaction;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.Timeout;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.CSeqHeader;
+import javax.sip.header.CallIdHeader;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that with several event dispatch threads the events of a call are
+ * delivered in order by a single thread while different calls use different
+ * threads.
+ */
+public class EventDispatchTest extends TestCase {
+
+    private static final int PORT = 5619;
+
+    private static final int CALLS = 20;
+
+    private static final int EVENTS = 10;
+
+    private SipStackImpl sipStack;
+
+    private SipProvider provider;
+
+    private final CountDownLatch received = new CountDownLatch(CALLS * EVENTS);
+
+    // last CSeq seen per call, or -1 once an event came out of order
+    private final Map<String, Long> lastCSeq = new ConcurrentHashMap<String, Long>();
+
+    private final Map<String, String> threads = new ConcurrentHashMap<String, String>();
+
+    private final Set<String> busy = new HashSet<String>();
+
+    private volatile boolean overlap;
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "dispatch");
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("gov.nist.javax.sip.EVENT_DISPATCH_THREADS", "4");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        sipStack.start();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", PORT, "udp");
+        provider = sipStack.createSipProvider(lp);
+        provider.addSipListener(new SipListener() {
+            public void processTimeout(TimeoutEvent timeoutEvent) {
+                Request request = timeoutEvent.getClientTransaction().getRequest();
+                String callId = ((CallIdHeader) request.getHeader(CallIdHeader.NAME)).getCallId();
+                long cseq = ((CSeqHeader) request.getHeader(CSeqHeader.NAME)).getSeqNumber();
+                synchronized (busy) {
+                    if (!busy.add(callId)) {
+                        overlap = true;
+                    }
+                }
+                try {
+                    Long last = lastCSeq.get(callId);
+                    lastCSeq.put(callId, (last == null ? 0 : last) == cseq - 1 ? cseq : -1L);
+                    String thread = Thread.currentThread().getName();
+                    String previous = threads.put(callId, thread);
+                    if (previous != null && !previous.equals(thread)) {
+                        overlap = true;
+                    }
+                    Thread.sleep(1);
+                } catch (InterruptedException ex) {
+                } finally {
+                    synchronized (busy) {
+                        busy.remove(callId);
+                    }
+                    received.countDown();
+                }
+            }
+
+            public void processRequest(RequestEvent requestEvent) {}
+
+            public void processResponse(ResponseEvent responseEvent) {}
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+            public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+            public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+        });
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    private ClientTransaction createTransaction(int call, int n) throws Exception {
+        SipFactory sipFactory = SipFactory.getInstance();
+        AddressFactory addressFactory = sipFactory.createAddressFactory();
+        HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+        MessageFactory messageFactory = sipFactory.createMessageFactory();
+        List<ViaHeader> vias = new ArrayList<ViaHeader>();
+        vias.add(headerFactory.createViaHeader("127.0.0.1", PORT, "udp", "z9hG4bK-dispatch-" + call + "-" + n));
+        Request request = messageFactory.createRequest(addressFactory.createURI("sip:server@127.0.0.1:5620"),
+                Request.MESSAGE, headerFactory.createCallIdHeader("dispatch-" + call + "@127.0.0.1"),
+                headerFactory.createCSeqHeader((long) n, Request.MESSAGE),
+                headerFactory.createFromHeader(addressFactory.createAddress("sip:client@127.0.0.1"), "" + call),
+                headerFactory.createToHeader(addressFactory.createAddress("sip:server@127.0.0.1"), null),
+                vias, headerFactory.createMaxForwardsHeader(70));
+        return provider.getNewClientTransaction(request);
+    }
+
+    public void testCallOrdering() throws Exception {
+        EventScanner eventScanner = sipStack.getEventScanner();
+        assertEquals(4, eventScanner.getShardCount());
+
+        for (int n = 1; n <= EVENTS; n++) {
+            for (int i = 0; i < CALLS; i++) {
+                ClientTransaction ct = createTransaction(i, n);
+                eventScanner.addEvent(new EventWrapper(new TimeoutEvent(provider, ct, Timeout.TRANSACTION),
+                        (SIPTransaction) ct));
+            }
+        }
+        assertTrue(received.await(30, TimeUnit.SECONDS));
+
+        assertFalse("a call was delivered by two threads at once", overlap);
+        for (Map.Entry<String, Long> entry : lastCSeq.entrySet()) {
+            assertEquals(entry.getKey(), EVENTS, entry.getValue().longValue());
+        }
+        assertEquals(CALLS, lastCSeq.size());
+        assertTrue(new HashSet<String>(threads.values()).size() > 1);
+
+        // the listener returned, wait for the scanner to account for the last events
+        for (int i = 0; i < eventScanner.getShardCount(); i++) {
+            for (int wait = 0; eventScanner.getQueueDepth(i) > 0 && wait < 100; wait++) {
+                Thread.sleep(10);
+            }
+            assertEquals(0, eventScanner.getQueueDepth(i));
+        }
+        long delivered = 0;
+        int maxQueueDepth = 0;
+        for (int i = 0; i < eventScanner.getShardCount(); i++) {
+            delivered += eventScanner.getDeliveredEvents(i);
+            maxQueueDepth = Math.max(maxQueueDepth, eventScanner.getMaxQueueDepth(i));
+        }
+        assertEquals(CALLS * EVENTS, delivered);
+        assertTrue(maxQueueDepth > 0);
+    }
+}
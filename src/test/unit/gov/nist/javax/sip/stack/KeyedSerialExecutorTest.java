@@ -0,0 +1,222 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.stack.KeyedSerialExecutor;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the tasks of a key run in order and one at a time while a slow
+ * key does not hold up the others.
+ */
+public class KeyedSerialExecutorTest extends TestCase {
+
+    private ExecutorService pool;
+
+    public void setUp() {
+        pool = Executors.newFixedThreadPool(4);
+    }
+
+    public void tearDown() {
+        pool.shutdownNow();
+    }
+
+    public void testOrdering() throws Exception {
+        KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<String>(pool, 4, 0);
+        final int keys = 8;
+        final int tasks = 500;
+        final List<List<Integer>> runs = new ArrayList<List<Integer>>();
+        final AtomicInteger[] running = new AtomicInteger[keys];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(keys * tasks);
+        for (int k = 0; k < keys; k++) {
+            runs.add(Collections.synchronizedList(new ArrayList<Integer>()));
+            running[k] = new AtomicInteger();
+        }
+        for (int i = 0; i < tasks; i++) {
+            for (int k = 0; k < keys; k++) {
+                final int key = k;
+                final int index = i;
+                executor.execute("call-" + k, new Runnable() {
+                    public void run() {
+                        if (running[key].incrementAndGet() != 1)
+                            overlaps.incrementAndGet();
+                        runs.get(key).add(index);
+                        running[key].decrementAndGet();
+                        done.countDown();
+                    }
+                });
+            }
+        }
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        assertEquals(0, overlaps.get());
+        for (int k = 0; k < keys; k++) {
+            List<Integer> run = runs.get(k);
+            assertEquals(tasks, run.size());
+            for (int i = 0; i < tasks; i++)
+                assertEquals(i, run.get(i).intValue());
+        }
+        assertEquals(keys * tasks, executor.getExecutedTasks());
+        assertTrue(executor.getMaxDepth() >= 1);
+        assertTrue(executor.getDepthHistogram().getCount() == keys * tasks);
+
+        // emptied mailboxes go away
+        long deadline = System.currentTimeMillis() + 2000;
+        while (executor.getMailboxCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, executor.getMailboxCount());
+    }
+
+    public void testConcurrentSubmitters() throws Exception {
+        // a single task per turn so that mailboxes are dropped and made again all the time
+        final KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<String>(pool, 1, 0);
+        final int submitters = 4;
+        final int keys = 16;
+        final int tasks = 5000;
+        final AtomicIntegerArray runs = new AtomicIntegerArray(submitters * tasks);
+        final AtomicInteger[] running = new AtomicInteger[keys];
+        // the last task run of each submitter and key
+        final int[][] last = new int[submitters][keys];
+        final AtomicInteger overlaps = new AtomicInteger();
+        final AtomicInteger outOfOrder = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(submitters * tasks);
+        for (int k = 0; k < keys; k++) {
+            running[k] = new AtomicInteger();
+            for (int s = 0; s < submitters; s++)
+                last[s][k] = -1;
+        }
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[submitters];
+        for (int s = 0; s < submitters; s++) {
+            final int submitter = s;
+            threads[s] = new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException ex) {
+                        return;
+                    }
+                    for (int i = 0; i < tasks; i++) {
+                        final int index = i;
+                        final int key = i % keys;
+                        executor.execute("call-" + key, new Runnable() {
+                            public void run() {
+                                if (running[key].incrementAndGet() != 1)
+                                    overlaps.incrementAndGet();
+                                runs.incrementAndGet(submitter * tasks + index);
+                                if (last[submitter][key] > index)
+                                    outOfOrder.incrementAndGet();
+                                last[submitter][key] = index;
+                                running[key].decrementAndGet();
+                                done.countDown();
+                            }
+                        });
+                    }
+                }
+            };
+            threads[s].start();
+        }
+        start.countDown();
+        assertTrue(done.await(20, TimeUnit.SECONDS));
+        for (Thread thread : threads)
+            thread.join();
+        // nothing is run twice
+        Thread.sleep(100);
+        for (int i = 0; i < submitters * tasks; i++)
+            assertEquals("task " + i, 1, runs.get(i));
+        assertEquals(0, overlaps.get());
+        assertEquals(0, outOfOrder.get());
+        assertEquals(submitters * tasks, executor.getExecutedTasks());
+    }
+
+    public void testSlowKey() throws Exception {
+        KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<String>(pool, 1, 0);
+        final CountDownLatch release = new CountDownLatch(1);
+        for (int i = 0; i < 10; i++) {
+            executor.execute("slow", new Runnable() {
+                public void run() {
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                    }
+                }
+            });
+        }
+        // the queued tasks of the slow call do not take any other thread
+        final CountDownLatch done = new CountDownLatch(100);
+        for (int i = 0; i < 100; i++) {
+            executor.execute("fast-" + i % 3, new Runnable() {
+                public void run() {
+                    done.countDown();
+                }
+            });
+        }
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(10, executor.getDepth("slow"));
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (executor.getDepth("slow") > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, executor.getDepth("slow"));
+        assertTrue(executor.getYields() > 0);
+    }
+
+    public void testExpired() throws Exception {
+        KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<String>(pool, 16, 50);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicInteger ran = new AtomicInteger();
+        executor.execute("call", new Runnable() {
+            public void run() {
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                }
+            }
+        });
+        final AtomicInteger dropped = new AtomicInteger();
+        executor.execute("call", new KeyedSerialExecutor.DroppableTask() {
+            public void run() {
+                ran.incrementAndGet();
+            }
+
+            public void dropped() {
+                dropped.incrementAndGet();
+            }
+        });
+        Thread.sleep(200);
+        release.countDown();
+        long deadline = System.currentTimeMillis() + 2000;
+        while (executor.getMailboxCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        assertEquals(0, ran.get());
+        assertEquals(1, dropped.get());
+        assertEquals(1, executor.getExpiredTasks());
+    }
+
+    public void testRejected() throws Exception {
+        KeyedSerialExecutor<String> executor = new KeyedSerialExecutor<String>(pool, 16, 0);
+        pool.shutdown();
+        final AtomicInteger dropped = new AtomicInteger();
+        for (int i = 0; i < 3; i++) {
+            executor.execute("call", new KeyedSerialExecutor.DroppableTask() {
+                public void run() {
+                }
+
+                public void dropped() {
+                    dropped.incrementAndGet();
+                }
+            });
+        }
+        assertEquals(3, dropped.get());
+        assertEquals(0, executor.getMailboxCount());
+    }
+}
@@ -0,0 +1,104 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.net.Socket;
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that connections spread over several NIO selector threads are all
+ * read from and written to.
+ */
+public class NioMultiSelectorTest extends TestCase {
+
+    private static final int SERVER_PORT = 5611;
+
+    private static final int CONNECTIONS = 12;
+
+    private SipStack sipStack;
+
+    private SipProvider provider;
+
+    private MessageFactory messageFactory;
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "server");
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY", NioMessageProcessorFactory.class.getName());
+        properties.setProperty("gov.nist.javax.sip.NIO_SELECTOR_THREADS", "4");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = sipFactory.createSipStack(properties);
+        sipStack.start();
+        messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", SERVER_PORT, "tcp");
+        provider = sipStack.createSipProvider(lp);
+        provider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    Response response = messageFactory.createResponse(Response.OK, requestEvent.getRequest());
+                    provider.sendResponse(response);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {}
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {}
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+            public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+            public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+        });
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    public void testConnectionsOnAllSelectors() throws Exception {
+        Socket[] sockets = new Socket[CONNECTIONS];
+        for (int i = 0; i < CONNECTIONS; i++) {
+            sockets[i] = new Socket("127.0.0.1", SERVER_PORT);
+            sockets[i].setSoTimeout(5000);
+            int port = sockets[i].getLocalPort();
+            String request = "OPTIONS sip:server@127.0.0.1:" + SERVER_PORT + " SIP/2.0\r\n"
+                    + "Via: SIP/2.0/TCP 127.0.0.1:" + port + ";branch=z9hG4bK-multi-" + i + "\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "To: <sip:server@127.0.0.1>\r\n"
+                    + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                    + "Call-ID: multi-selector-" + i + "@127.0.0.1\r\n"
+                    + "CSeq: 1 OPTIONS\r\n"
+                    + "Content-Length: 0\r\n\r\n";
+            sockets[i].getOutputStream().write(request.getBytes());
+            sockets[i].getOutputStream().flush();
+        }
+        for (int i = 0; i < CONNECTIONS; i++) {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(sockets[i].getInputStream()));
+            assertEquals("SIP/2.0 200 OK", reader.readLine());
+            sockets[i].close();
+        }
+    }
+}
@@ -0,0 +1,219 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.ListeningPointImpl;
+import gov.nist.javax.sip.SipStackExt;
+import gov.nist.javax.sip.stack.NioUdpMessageProcessor;
+import gov.nist.javax.sip.stack.NioUdpMessageProcessorFactory;
+import gov.nist.javax.sip.stack.SIPTransactionStack;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Properties;
+
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.ListeningPoint;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.SipStack;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.address.Address;
+import javax.sip.address.AddressFactory;
+import javax.sip.header.HeaderFactory;
+import javax.sip.header.ViaHeader;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that datagrams spread over several NIO UDP channels are all
+ * processed and answered, and that retransmissions go out through the send
+ * queue unchanged.
+ */
+public class NioUdpMessageProcessorTest extends TestCase {
+
+    private static final int SERVER_PORT = 5612;
+
+    private static final int CLIENTS = 12;
+
+    private SipStack sipStack;
+
+    private SipProvider provider;
+
+    private SipFactory sipFactory;
+
+    private MessageFactory messageFactory;
+
+    private NioUdpMessageProcessor messageProcessor;
+
+    /**
+     * Lets the test queue datagrams of its own.
+     */
+    private static class Processor extends NioUdpMessageProcessor {
+        Processor(SIPTransactionStack sipStack) throws IOException {
+            super(InetAddress.getByName("127.0.0.1"), sipStack, 0);
+        }
+
+        void send(byte[] bytes, InetAddress address, int port) throws IOException {
+            sendDatagram(bytes, address, port);
+        }
+    }
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "server-" + getName());
+        properties.setProperty("gov.nist.javax.sip.TRACE_LEVEL", "0");
+        properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY", NioUdpMessageProcessorFactory.class.getName());
+        properties.setProperty("gov.nist.javax.sip.NIO_UDP_CHANNELS", "4");
+        sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = sipFactory.createSipStack(properties);
+        sipStack.start();
+        messageFactory = sipFactory.createMessageFactory();
+        ListeningPoint lp = sipStack.createListeningPoint("127.0.0.1", SERVER_PORT, "udp");
+        provider = sipStack.createSipProvider(lp);
+        messageProcessor = (NioUdpMessageProcessor) ((ListeningPointImpl) lp).getMessageProcessor();
+        provider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    Response response = messageFactory.createResponse(Response.OK, requestEvent.getRequest());
+                    provider.sendResponse(response);
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {}
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {}
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+            public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+            public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+        });
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    public void testDatagramsOnAllChannels() throws Exception {
+        // one channel only when SO_REUSEPORT isn't available
+        assertTrue(messageProcessor.getChannelCount() == 4 || messageProcessor.getChannelCount() == 1);
+        DatagramSocket[] sockets = new DatagramSocket[CLIENTS];
+        InetAddress address = InetAddress.getByName("127.0.0.1");
+        for (int i = 0; i < CLIENTS; i++) {
+            sockets[i] = new DatagramSocket(0, address);
+            sockets[i].setSoTimeout(5000);
+            int port = sockets[i].getLocalPort();
+            String request = "OPTIONS sip:server@127.0.0.1:" + SERVER_PORT + " SIP/2.0\r\n"
+                    + "Via: SIP/2.0/UDP 127.0.0.1:" + port + ";branch=z9hG4bK-udp-" + i + "\r\n"
+                    + "Max-Forwards: 70\r\n"
+                    + "To: <sip:server@127.0.0.1>\r\n"
+                    + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                    + "Call-ID: nio-udp-" + i + "@127.0.0.1\r\n"
+                    + "CSeq: 1 OPTIONS\r\n"
+                    + "Content-Length: 0\r\n\r\n";
+            byte[] bytes = request.getBytes();
+            sockets[i].send(new DatagramPacket(bytes, bytes.length, address, SERVER_PORT));
+        }
+        for (int i = 0; i < CLIENTS; i++) {
+            byte[] buffer = new byte[4096];
+            DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+            sockets[i].receive(packet);
+            String response = new String(packet.getData(), 0, packet.getLength());
+            assertTrue(response, response.startsWith("SIP/2.0 200 OK\r\n"));
+            assertTrue(response, response.indexOf("Call-ID: nio-udp-" + i + "@127.0.0.1") > 0);
+            sockets[i].close();
+        }
+    }
+
+    public void testRetransmissions() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(5000);
+        try {
+            AddressFactory addressFactory = sipFactory.createAddressFactory();
+            HeaderFactory headerFactory = sipFactory.createHeaderFactory();
+            Address from = addressFactory.createAddress("sip:server@127.0.0.1:" + SERVER_PORT);
+            Address to = addressFactory.createAddress("sip:peer@127.0.0.1:" + socket.getLocalPort());
+            ArrayList<ViaHeader> vias = new ArrayList<ViaHeader>();
+            vias.add(headerFactory.createViaHeader("127.0.0.1", SERVER_PORT, "udp", null));
+            Request request = messageFactory.createRequest(to.getURI(), Request.OPTIONS,
+                    provider.getNewCallId(), headerFactory.createCSeqHeader(1L, Request.OPTIONS),
+                    headerFactory.createFromHeader(from, "1234"), headerFactory.createToHeader(to, null),
+                    vias, headerFactory.createMaxForwardsHeader(70));
+            provider.getNewClientTransaction(request).sendRequest();
+
+            // the request and two retransmissions of Timer E, never answered
+            String first = null;
+            for (int i = 0; i < 3; i++) {
+                DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+                socket.receive(packet);
+                String sent = new String(packet.getData(), 0, packet.getLength());
+                assertTrue(sent, sent.startsWith("OPTIONS sip:peer@127.0.0.1:" + socket.getLocalPort()));
+                if (first == null) {
+                    first = sent;
+                } else {
+                    assertEquals(first, sent);
+                }
+            }
+            assertEquals(0, messageProcessor.getSendQueueSize());
+            // the retransmissions reuse the encoded request
+            assertTrue(((SipStackExt) sipStack).getStackMetrics().getValue("encoding.cache.hits") >= 2);
+        } finally {
+            socket.close();
+        }
+    }
+
+    public void testSendErrors() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(5000);
+        Processor processor = new Processor((SIPTransactionStack) sipStack);
+        processor.start();
+        try {
+            // too big for a datagram, the sending thread fails on it
+            processor.send(new byte[70000], socket.getLocalAddress(), socket.getLocalPort());
+            processor.send("after".getBytes(), socket.getLocalAddress(), socket.getLocalPort());
+            DatagramPacket packet = new DatagramPacket(new byte[4096], 4096);
+            socket.receive(packet);
+            assertEquals("after", new String(packet.getData(), 0, packet.getLength()));
+            assertEquals(1, processor.getSendErrors());
+            assertEquals(1, ((SipStackExt) sipStack).getStackMetrics().getValue("udp.send.errors"));
+        } finally {
+            processor.stop();
+            socket.close();
+        }
+    }
+
+    public void testQueueDrainedOnStop() throws Exception {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        Processor processor = new Processor((SIPTransactionStack) sipStack);
+        processor.start();
+        try {
+            for (int i = 0; i < 1000; i++) {
+                processor.send(new byte[1000], socket.getLocalAddress(), socket.getLocalPort());
+            }
+        } finally {
+            processor.stop();
+            socket.close();
+        }
+        // whatever the sending thread didn't get to is dropped and counted
+        for (int i = 0; i < 50 && processor.getSendQueueSize() > 0; i++) {
+            Thread.sleep(100);
+        }
+        assertEquals(0, processor.getSendQueueSize());
+        assertEquals(processor.getSendErrors(),
+                ((SipStackExt) sipStack).getStackMetrics().getValue("udp.send.errors"));
+    }
+}
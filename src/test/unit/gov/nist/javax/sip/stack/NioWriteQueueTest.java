@@ -0,0 +1,158 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.stack.NioWriteQueue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that queued messages are written with gathering writes and that a
+ * peer that doesn't read makes the queue refuse data.
+ */
+public class NioWriteQueueTest extends TestCase {
+
+    private ServerSocketChannel server;
+
+    private SocketChannel client;
+
+    private SocketChannel peer;
+
+    public void setUp() throws Exception {
+        server = ServerSocketChannel.open();
+        server.socket().bind(new InetSocketAddress(InetAddress.getByName("127.0.0.1"), 0));
+        client = SocketChannel.open(server.socket().getLocalSocketAddress());
+        client.configureBlocking(false);
+        peer = server.accept();
+    }
+
+    public void tearDown() throws Exception {
+        client.close();
+        peer.close();
+        server.close();
+    }
+
+    private byte[] message(int n, int size) {
+        byte[] bytes = new byte[size];
+        for (int i = 0; i < size; i++) {
+            bytes[i] = (byte) (n + i);
+        }
+        return bytes;
+    }
+
+    private void readFully(ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (peer.read(buffer) < 0) {
+                fail("connection closed");
+            }
+        }
+        buffer.flip();
+    }
+
+    public void testGatheringWrite() throws Exception {
+        NioWriteQueue queue = new NioWriteQueue(client, 0);
+        assertTrue(queue.offer(ByteBuffer.wrap(message(0, 100))));
+        for (int i = 1; i < 10; i++) {
+            assertFalse(queue.offer(ByteBuffer.wrap(message(i, 100))));
+        }
+        assertEquals(1000, queue.getQueuedBytes());
+        assertTrue(queue.flush());
+        assertEquals(1, queue.getWriteCount());
+        assertEquals(0, queue.getQueuedBytes());
+
+        ByteBuffer received = ByteBuffer.allocate(1000);
+        readFully(received);
+        for (int i = 0; i < 10; i++) {
+            byte[] bytes = new byte[100];
+            received.get(bytes);
+            assertTrue(Arrays.equals(message(i, 100), bytes));
+        }
+
+        // idle again, the next message needs a new write
+        assertTrue(queue.offer(ByteBuffer.wrap(message(0, 10))));
+    }
+
+    public void testMultiBufferMessages() throws Exception {
+        NioWriteQueue queue = new NioWriteQueue(client, 0);
+        // more buffers than a single gathering write takes
+        for (int i = 0; i < 40; i++) {
+            queue.offer(new ByteBuffer[] { ByteBuffer.wrap(message(i, 4)), ByteBuffer.wrap(message(i + 100, 50)) });
+        }
+        assertEquals(40 * 54, queue.getQueuedBytes());
+        assertTrue(queue.flush());
+        assertEquals(2, queue.getWriteCount());
+
+        ByteBuffer received = ByteBuffer.allocate(40 * 54);
+        readFully(received);
+        for (int i = 0; i < 40; i++) {
+            byte[] header = new byte[4];
+            byte[] payload = new byte[50];
+            received.get(header);
+            received.get(payload);
+            assertTrue(Arrays.equals(message(i, 4), header));
+            assertTrue(Arrays.equals(message(i + 100, 50), payload));
+        }
+    }
+
+    public void testClearReschedules() throws Exception {
+        NioWriteQueue queue = new NioWriteQueue(client, 0);
+        assertTrue(queue.offer(ByteBuffer.wrap(message(0, 100))));
+        assertFalse(queue.offer(ByteBuffer.wrap(message(1, 100))));
+        // the flush never came, the next message has to ask for one again
+        queue.clear();
+        assertEquals(0, queue.getQueuedBytes());
+        assertTrue(queue.offer(ByteBuffer.wrap(message(2, 100))));
+    }
+
+    public void testBackpressure() throws Exception {
+        int limit = 64 * 1024;
+        NioWriteQueue queue = new NioWriteQueue(client, limit);
+        long sent = 0;
+        boolean refused = false;
+        // the peer doesn't read, fill the socket buffers and then the queue
+        for (int i = 0; i < 100000 && !refused; i++) {
+            try {
+                queue.offer(ByteBuffer.wrap(message(i, 8192)));
+                sent += 8192;
+            } catch (IOException ex) {
+                refused = true;
+            }
+            queue.flush();
+        }
+        assertTrue(refused);
+        assertTrue(queue.isBlocked());
+        assertTrue(queue.getQueuedBytes() <= limit);
+
+        ByteBuffer received = ByteBuffer.allocate((int) sent);
+        while (received.hasRemaining()) {
+            queue.flush();
+            if (peer.read(received) < 0) {
+                fail("connection closed");
+            }
+        }
+        assertTrue(queue.flush());
+        assertFalse(queue.isBlocked());
+        assertEquals(0, queue.getQueuedBytes());
+    }
+
+    public void testLargeMessage() throws Exception {
+        NioWriteQueue queue = new NioWriteQueue(client, 1024);
+        assertTrue(queue.offer(ByteBuffer.wrap(message(0, 4096))));
+        try {
+            queue.offer(ByteBuffer.wrap(message(1, 10)));
+            fail("queue should be full");
+        } catch (IOException expected) {
+        }
+        queue.flush();
+        ByteBuffer received = ByteBuffer.allocate(4096);
+        readFully(received);
+        assertTrue(queue.flush());
+        assertFalse(queue.isBlocked());
+    }
+}
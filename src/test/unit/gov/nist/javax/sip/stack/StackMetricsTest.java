@@ -0,0 +1,167 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.core.LatencyHistogram;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.stack.StackMetrics;
+
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.util.Properties;
+import java.util.SortedMap;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import javax.sip.DialogTerminatedEvent;
+import javax.sip.IOExceptionEvent;
+import javax.sip.RequestEvent;
+import javax.sip.ResponseEvent;
+import javax.sip.SipFactory;
+import javax.sip.SipListener;
+import javax.sip.SipProvider;
+import javax.sip.TimeoutEvent;
+import javax.sip.TransactionTerminatedEvent;
+import javax.sip.message.MessageFactory;
+import javax.sip.message.Request;
+import javax.sip.message.Response;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks the counters, histograms and gauges of the stack metrics and their
+ * JMX export.
+ */
+public class StackMetricsTest extends TestCase {
+
+    private static final int PORT = 5627;
+
+    private SipStackImpl sipStack;
+
+    private SipProvider provider;
+
+    private MessageFactory messageFactory;
+
+    public void setUp() throws Exception {
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "metrics-" + getName());
+        properties.setProperty("gov.nist.javax.sip.METRICS_JMX", "true");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        messageFactory = sipFactory.createMessageFactory();
+        provider = sipStack.createSipProvider(sipStack.createListeningPoint("127.0.0.1", PORT, "udp"));
+        provider.addSipListener(new SipListener() {
+            public void processRequest(RequestEvent requestEvent) {
+                try {
+                    provider.sendResponse(messageFactory.createResponse(Response.OK, requestEvent.getRequest()));
+                } catch (Exception ex) {
+                    ex.printStackTrace();
+                }
+            }
+
+            public void processResponse(ResponseEvent responseEvent) {}
+
+            public void processTimeout(TimeoutEvent timeoutEvent) {}
+
+            public void processIOException(IOExceptionEvent exceptionEvent) {}
+
+            public void processTransactionTerminated(TransactionTerminatedEvent transactionTerminatedEvent) {}
+
+            public void processDialogTerminated(DialogTerminatedEvent dialogTerminatedEvent) {}
+        });
+        sipStack.start();
+    }
+
+    public void tearDown() {
+        sipStack.stop();
+    }
+
+    public void testHistogram() {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000, histogram.getMax());
+        assertEquals(500, histogram.getMean(), 1);
+        // within the precision of the buckets
+        assertEquals(500, histogram.getPercentile(50), 500 / 16);
+        assertEquals(990, histogram.getPercentile(99), 990 / 16);
+    }
+
+    public void testCounters() throws Exception {
+        StackMetrics metrics = sipStack.getStackMetrics();
+        assertNotNull(metrics);
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getByName("127.0.0.1"));
+        socket.setSoTimeout(5000);
+        int length = 0;
+        try {
+            for (int i = 0; i < 3; i++) {
+                byte[] bytes = ("OPTIONS sip:server@127.0.0.1:" + PORT + " SIP/2.0\r\n"
+                        + "Via: SIP/2.0/UDP 127.0.0.1:" + socket.getLocalPort() + ";branch=z9hG4bK-metrics" + i + "\r\n"
+                        + "Max-Forwards: 70\r\n"
+                        + "To: <sip:server@127.0.0.1>\r\n"
+                        + "From: <sip:client@127.0.0.1>;tag=" + i + "\r\n"
+                        + "Call-ID: metrics-" + i + "@127.0.0.1\r\n"
+                        + "CSeq: 1 OPTIONS\r\n"
+                        + "Content-Length: 0\r\n\r\n").getBytes();
+                length += bytes.length;
+                socket.send(new DatagramPacket(bytes, bytes.length, InetAddress.getByName("127.0.0.1"), PORT));
+                socket.receive(new DatagramPacket(new byte[4096], 4096));
+            }
+        } finally {
+            socket.close();
+        }
+
+        // the responses are counted and the listener timed once sent, wait for that
+        long deadline = System.currentTimeMillis() + 2000;
+        while (metrics.getValue("messages.sent.response.200") < 3 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Thread.sleep(100);
+        SortedMap<String, Long> snapshot = metrics.snapshot();
+        assertEquals(Long.valueOf(3), snapshot.get("messages.received.request.OPTIONS"));
+        assertEquals(Long.valueOf(3), snapshot.get("messages.sent.response.200"));
+        assertEquals(Long.valueOf(length), snapshot.get("bytes.received.UDP"));
+        assertTrue(snapshot.get("bytes.sent.UDP") > 0);
+        assertEquals(Long.valueOf(3), snapshot.get("parse.time.us.count"));
+        assertEquals(Long.valueOf(0), snapshot.get("retransmissions"));
+        assertEquals(Long.valueOf(3), snapshot.get("encoding.cache.misses"));
+        assertEquals(Long.valueOf(0), snapshot.get("encoding.cache.hit.percent"));
+        assertTrue(snapshot.get("transactions.server") >= 0);
+        assertEquals(Long.valueOf(0), snapshot.get("dialogs"));
+        assertNotNull(snapshot.get("timer.pending"));
+        boolean dispatch = false;
+        for (String name : snapshot.keySet()) {
+            dispatch |= name.startsWith("dispatch.time.us.") && name.endsWith(".count")
+                    && snapshot.get(name) == 3;
+        }
+        assertTrue(dispatch);
+
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        ObjectName name = new ObjectName("gov.nist.javax.sip:type=StackMetrics,name=\"metrics-testCounters\"");
+        assertTrue(server.isRegistered(name));
+        assertEquals(Long.valueOf(3), server.getAttribute(name, "messages.received.request." + Request.OPTIONS));
+        sipStack.stop();
+        assertFalse(server.isRegistered(name));
+    }
+
+    public void testOtherMethods() throws Exception {
+        StackMetrics metrics = new StackMetrics();
+        for (int i = 0; i < 100; i++) {
+            SIPRequest request = new SIPRequest();
+            request.setMethod("X" + i);
+            metrics.messageReceived(request, "udp");
+        }
+        SIPRequest request = new SIPRequest();
+        request.setMethod(Request.INVITE);
+        metrics.messageReceived(request, "udp");
+        SortedMap<String, Long> snapshot = metrics.snapshot();
+        assertEquals(Long.valueOf(100), snapshot.get("messages.received.request.other"));
+        assertEquals(Long.valueOf(1), snapshot.get("messages.received.request.INVITE"));
+        assertNull(snapshot.get("messages.received.request.X0"));
+        assertNull(snapshot.get("messages.received.request.BYE"));
+    }
+}
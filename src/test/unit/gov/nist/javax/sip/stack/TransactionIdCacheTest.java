@@ -0,0 +1,83 @@
+package test.unit.gov.nist.javax.sip.stack;
+
+import gov.nist.javax.sip.header.CSeq;
+import gov.nist.javax.sip.header.Via;
+import gov.nist.javax.sip.message.SIPMessage;
+import gov.nist.javax.sip.message.SIPRequest;
+import gov.nist.javax.sip.parser.StringMsgParser;
+
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Checks that the transaction identifier cached on a message follows changes
+ * to the headers it is computed from.
+ */
+public class TransactionIdCacheTest extends TestCase {
+
+    private static final String message = "INVITE sip:littleguy@there.com:5060 SIP/2.0\r\n"
+            + "Via: SIP/2.0/UDP 65.243.118.100:5050;branch=z9hG4bK-Abc\r\n"
+            + "From: <sip:M.Ranganathan@sipbakeoff.com>;tag=1234\r\n"
+            + "To: <sip:littleguy@there.com:5060>\r\n"
+            + "Call-ID: Q2AboBsaGn9!?x6@sipbakeoff.com\r\n"
+            + "CSeq: 1 INVITE\r\n"
+            + "Max-Forwards: 70\r\n"
+            + "Content-Length: 0\r\n\r\n";
+
+    private SIPRequest parse() throws Exception {
+        return (SIPRequest) new StringMsgParser().parseSIPMessage(message.getBytes("UTF-8"), true, false, null);
+    }
+
+    public void testCached() throws Exception {
+        SIPRequest request = parse();
+        String id = request.getTransactionId();
+        assertEquals("z9hg4bk-abc", id);
+        assertSame(id, request.getTransactionId());
+    }
+
+    public void testBranchChange() throws Exception {
+        SIPRequest request = parse();
+        request.getTransactionId();
+        request.getTopmostVia().setBranch("z9hG4bK-Other");
+        assertEquals("z9hg4bk-other", request.getTransactionId());
+    }
+
+    public void testNewTopmostVia() throws Exception {
+        SIPRequest request = parse();
+        request.getTransactionId();
+        Via via = new Via();
+        via.setHost("127.0.0.1");
+        via.setPort(5070);
+        via.setTransport("UDP");
+        via.setBranch("z9hG4bK-proxy");
+        request.addFirst(via);
+        assertEquals("z9hg4bk-proxy", request.getTransactionId());
+        request.removeFirst(Via.NAME);
+        assertEquals("z9hg4bk-abc", request.getTransactionId());
+    }
+
+    public void testCancel() throws Exception {
+        SIPRequest request = parse();
+        request.getTransactionId();
+        SIPRequest cancel = request.createCancelRequest();
+        assertEquals("z9hg4bk-abc:cancel", cancel.getTransactionId());
+        ((CSeq) request.getCSeq()).setMethod(Request.CANCEL);
+        assertEquals("z9hg4bk-abc:cancel", request.getTransactionId());
+    }
+
+    public void testClone() throws Exception {
+        SIPRequest request = parse();
+        request.getTransactionId();
+        SIPMessage clone = (SIPMessage) request.clone();
+        clone.getTopmostVia().setBranch("z9hG4bK-clone");
+        assertEquals("z9hg4bk-clone", clone.getTransactionId());
+        assertEquals("z9hg4bk-abc", request.getTransactionId());
+    }
+
+    public void testOldStyleBranch() throws Exception {
+        SIPRequest request = (SIPRequest) new StringMsgParser().parseSIPMessage(
+                message.replace("z9hG4bK-Abc", "1234").getBytes("UTF-8"), true, false, null);
+        assertTrue(request.getTransactionId().indexOf("q2abobsagn9!?x6") >= 0);
+    }
+}
@@ -1,6 +1,9 @@
 package test.unit.gov.nist.javax.sip.stack;
 
 import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import gov.nist.javax.sip.stack.WebSocketCodec;
 import junit.framework.TestCase;
@@ -90,4 +93,125 @@ public class WebsocketPacketFragmentationTest extends TestCase {
 		assertTrue(s.startsWith("REGISTER"));
 		
 	}
+
+	private static byte[] payload(int size) {
+		byte[] bytes = new byte[size];
+		for (int i = 0; i < size; i++) {
+			bytes[i] = (byte) (i * 31 + size);
+		}
+		return bytes;
+	}
+
+	/**
+	 * Frames of all the length encodings decoded from reads of different sizes
+	 * @throws Exception
+	 */
+	public void testDecodeByteBuffers() throws Exception {
+		int[] sizes = {0, 5, 125, 126, 300, 65535, 70000, 1};
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		for (int size : sizes) {
+			for (ByteBuffer buffer : WebSocketCodec.encodeFrame(payload(size), true)) {
+				stream.write(buffer.array(), buffer.position(), buffer.remaining());
+			}
+		}
+		byte[] frames = stream.toByteArray();
+
+		for (int chunk : new int[] {1, 7, 1000, frames.length}) {
+			WebSocketCodec codec = new WebSocketCodec(true, false);
+			int frame = 0;
+			for (int offset = 0; offset < frames.length; offset += chunk) {
+				ByteBuffer read = ByteBuffer.wrap(Arrays.copyOfRange(frames, offset, Math.min(offset + chunk, frames.length)));
+				ByteBuffer decoded;
+				while ((decoded = codec.decode(read)) != null) {
+					byte[] bytes = new byte[decoded.remaining()];
+					decoded.get(bytes);
+					assertTrue("chunk " + chunk + " frame " + frame, Arrays.equals(payload(sizes[frame]), bytes));
+					frame++;
+				}
+				assertFalse(read.hasRemaining());
+			}
+			assertEquals(sizes.length, frame);
+		}
+	}
+
+	/**
+	 * A frame that arrives whole is unmasked where it is
+	 * @throws Exception
+	 */
+	public void testDecodeInPlace() throws Exception {
+		ByteBuffer[] frame = WebSocketCodec.encodeFrame(payload(200), true);
+		byte[] bytes = new byte[frame[0].remaining() + frame[1].remaining()];
+		ByteBuffer read = ByteBuffer.wrap(bytes);
+		read.put(frame[0]).put(frame[1]).flip();
+		ByteBuffer decoded = new WebSocketCodec(true, false).decode(read);
+		assertSame(bytes, decoded.array());
+		// 2 bytes, 2 bytes of length and the mask
+		assertEquals(8, decoded.arrayOffset());
+		assertEquals(200, decoded.remaining());
+		assertTrue(Arrays.equals(payload(200), Arrays.copyOfRange(bytes, 8, 208)));
+	}
+
+	public void testMask() throws Exception {
+		byte[] mask = {(byte) 0xa1, 0x5c, 0x03, (byte) 0xf0};
+		for (int length = 0; length < 40; length++) {
+			for (int start = 0; start < 3; start++) {
+				byte[] expected = payload(start + length);
+				byte[] masked = expected.clone();
+				for (int i = 0; i < length; i++) {
+					expected[start + i] ^= mask[i % 4];
+				}
+				WebSocketCodec.applyMask(masked, start, start + length, mask);
+				assertTrue(Arrays.equals(expected, masked));
+			}
+		}
+	}
+
+	public void testMaskedFrameKeepsMessage() throws Exception {
+		// the message may be the cached encoding that a retransmission sends again
+		byte[] message = payload(300);
+		byte[] original = message.clone();
+		for (int i = 0; i < 2; i++) {
+			ByteBuffer[] frame = WebSocketCodec.encodeFrame(message, true);
+			assertTrue(Arrays.equals(original, message));
+			ByteBuffer read = ByteBuffer.allocate(frame[0].remaining() + frame[1].remaining());
+			read.put(frame[0]).put(frame[1]).flip();
+			ByteBuffer decoded = new WebSocketCodec(true, false).decode(read);
+			byte[] bytes = new byte[decoded.remaining()];
+			decoded.get(bytes);
+			assertTrue(Arrays.equals(original, bytes));
+		}
+	}
+
+	/**
+	 * The buffer for an incomplete frame grows with the bytes received, not with the length
+	 * the frame declares
+	 * @throws Exception
+	 */
+	public void testLargeDeclaredLength() throws Exception {
+		WebSocketCodec codec = new WebSocketCodec(true, false);
+		ByteBuffer header = WebSocketCodec.encodeHeader(1500000000L, 0, true, true, (byte) 0x1);
+		ByteBuffer read = ByteBuffer.allocate(header.remaining() + 1);
+		read.put(header).put((byte) 'R').flip();
+		assertNull(codec.decode(read));
+		for (int i = 0; i < 100; i++) {
+			assertNull(codec.decode(ByteBuffer.wrap(payload(1000))));
+		}
+	}
+
+	public void testMaxPayloadLength() throws Exception {
+		WebSocketCodec codec = new WebSocketCodec(true, false, 1000);
+		ByteBuffer[] frame = WebSocketCodec.encodeFrame(payload(1000), true);
+		ByteBuffer read = ByteBuffer.allocate(frame[0].remaining() + frame[1].remaining());
+		read.put(frame[0]).put(frame[1]).flip();
+		assertEquals(1000, codec.decode(read).remaining());
+
+		// refused from the header alone
+		ByteBuffer header = WebSocketCodec.encodeHeader(1001, 0, true, true, (byte) 0x1);
+		try {
+			codec.decode(header);
+			fail("a frame over the limit was accepted");
+		} catch (RuntimeException e) {
+			assertTrue(e.getMessage().startsWith("Max Message Size Exceeded"));
+		}
+	}
 }
@@ -0,0 +1,103 @@
+package test.unit.gov.nist.javax.sip.stack.timers;
+
+import gov.nist.javax.sip.stack.SIPStackTimerTask;
+import gov.nist.javax.sip.stack.timers.HashedWheelSipTimer;
+
+import java.util.Properties;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class HashedWheelSipTimerTest extends TestCase {
+
+    private HashedWheelSipTimer timer;
+
+    private static class CountingTask extends SIPStackTimerTask {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch latch;
+        volatile long ranAt;
+
+        CountingTask(int count) {
+            latch = new CountDownLatch(count);
+        }
+
+        public void runTask() {
+            ranAt = System.nanoTime();
+            runs.incrementAndGet();
+            latch.countDown();
+        }
+    }
+
+    public void setUp() {
+        Properties properties = new Properties();
+        properties.setProperty(HashedWheelSipTimer.TICK_DURATION_PROPERTY, "5");
+        // small wheel so that the tests go around it more than once
+        properties.setProperty(HashedWheelSipTimer.WHEEL_SIZE_PROPERTY, "8");
+        timer = new HashedWheelSipTimer();
+        timer.start(null, properties);
+    }
+
+    public void tearDown() {
+        timer.stop();
+    }
+
+    public void testSchedule() throws Exception {
+        CountingTask shortTask = new CountingTask(1);
+        CountingTask longTask = new CountingTask(1);
+        long start = System.nanoTime();
+        timer.schedule(longTask, 150);
+        timer.schedule(shortTask, 20);
+        assertTrue(shortTask.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(longTask.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(longTask.ranAt - start) >= 150);
+        assertTrue(shortTask.ranAt < longTask.ranAt);
+        assertEquals(0, timer.getPendingTaskCount());
+    }
+
+    public void testCancel() throws Exception {
+        CountingTask[] tasks = new CountingTask[10000];
+        for (int i = 0; i < tasks.length; i++) {
+            tasks[i] = new CountingTask(1);
+            timer.schedule(tasks[i], 60000);
+        }
+        CountingTask kept = new CountingTask(1);
+        timer.schedule(kept, 100);
+        for (int i = 0; i < tasks.length; i++) {
+            assertTrue(timer.cancel(tasks[i]));
+            assertFalse(timer.cancel(tasks[i]));
+        }
+        // The cancelled tasks are dropped on the next tick, not in a minute
+        Thread.sleep(50);
+        assertEquals(1, timer.getPendingTaskCount());
+        assertTrue(kept.latch.await(2, TimeUnit.SECONDS));
+        assertFalse(timer.cancel(kept));
+        for (int i = 0; i < tasks.length; i++) {
+            assertEquals(0, tasks[i].runs.get());
+        }
+    }
+
+    public void testFixedDelay() throws Exception {
+        CountingTask task = new CountingTask(3);
+        timer.scheduleWithFixedDelay(task, 0, 20);
+        assertTrue(task.latch.await(2, TimeUnit.SECONDS));
+        assertTrue(timer.cancel(task));
+        Thread.sleep(50);
+        int runs = task.runs.get();
+        Thread.sleep(100);
+        assertEquals(runs, task.runs.get());
+        assertEquals(0, timer.getPendingTaskCount());
+    }
+
+    public void testStop() throws Exception {
+        timer.stop();
+        assertFalse(timer.isStarted());
+        try {
+            timer.schedule(new CountingTask(1), 10);
+            fail("Should not schedule on a stopped timer");
+        } catch (IllegalStateException ex) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,195 @@
+package test.unit.gov.nist.javax.sip.stack.tls;
+
+import gov.nist.javax.sip.ClientTransactionExt;
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.NioTlsChannelInterface;
+import gov.nist.javax.sip.stack.SSLStateMachine;
+import gov.nist.javax.sip.stack.TlsHandshakeExecutor;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.security.KeyStore;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.TrustManagerFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs a TLS handshake between two state machines whose delegated tasks are
+ * given to a handshake executor, with a single thread playing the selector.
+ */
+public class TlsHandshakeOffloadTest extends TestCase {
+
+    /**
+     * Counts the jobs given to the handshake threads.
+     */
+    private static class CountingExecutor extends TlsHandshakeExecutor {
+        final AtomicInteger jobs = new AtomicInteger();
+
+        CountingExecutor() {
+            super("TLS", 2, null);
+        }
+
+        public void execute(Runnable task) {
+            jobs.incrementAndGet();
+            super.execute(task);
+        }
+    }
+
+    /**
+     * Hands what it is asked to send to the selector thread of the test, which
+     * gives it to the state machine of the peer.
+     */
+    private class Peer implements NioTlsChannelInterface {
+        SSLStateMachine sslStateMachine;
+        Peer peer;
+        final BlockingQueue<byte[]> received = new LinkedBlockingQueue<byte[]>();
+
+        Peer(SSLEngine engine, TlsHandshakeExecutor executor) {
+            sslStateMachine = new SSLStateMachine(engine, this);
+            sslStateMachine.setHandshakeExecutor(executor);
+        }
+
+        void send(byte[] bytes) throws IOException {
+            final byte[] data = bytes;
+            network.add(new Runnable() {
+                public void run() {
+                    try {
+                        peer.sslStateMachine.unwrap(ByteBuffer.wrap(data));
+                    } catch (Exception e) {
+                        failure = e;
+                    }
+                }
+            });
+        }
+
+        void sendMessage(byte[] message) throws IOException {
+            sslStateMachine.wrap(ByteBuffer.wrap(message), prepareEncryptedDataBuffer(),
+                    new SSLStateMachine.MessageSendCallback() {
+                        public void doSend(byte[] bytes) throws IOException {
+                            send(bytes);
+                        }
+                    });
+        }
+
+        public void sendEncryptedData(byte[] msg) throws IOException {
+            send(msg);
+        }
+
+        public ByteBuffer prepareAppDataBuffer() {
+            return ByteBuffer.allocate(64 * 1024);
+        }
+
+        public ByteBuffer prepareAppDataBuffer(int capacity) {
+            return ByteBuffer.allocate(capacity);
+        }
+
+        public ByteBuffer prepareEncryptedDataBuffer() {
+            return ByteBuffer.allocate(64 * 1024);
+        }
+
+        public void addPlaintextBytes(byte[] bytes) throws Exception {
+            received.add(bytes);
+        }
+
+        public SipStackImpl getSIPStack() {
+            return null;
+        }
+
+        public ClientTransactionExt getEncapsulatedClientTransaction() {
+            return null;
+        }
+    }
+
+    private final BlockingQueue<Runnable> network = new LinkedBlockingQueue<Runnable>();
+
+    private volatile Exception failure;
+
+    private SSLContext createContext() throws Exception {
+        char[] password = "passphrase".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = getClass().getResourceAsStream("testkeys");
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        return context;
+    }
+
+    public void testOffloadedHandshake() throws Exception {
+        SSLContext context = createContext();
+        CountingExecutor executor = new CountingExecutor();
+        SSLEngine clientEngine = context.createSSLEngine();
+        clientEngine.setUseClientMode(true);
+        SSLEngine serverEngine = context.createSSLEngine();
+        serverEngine.setUseClientMode(false);
+        final Peer client = new Peer(clientEngine, executor);
+        final Peer server = new Peer(serverEngine, executor);
+        client.peer = server;
+        server.peer = client;
+
+        Thread selector = new Thread("selector") {
+            public void run() {
+                try {
+                    while (!isInterrupted()) {
+                        network.take().run();
+                    }
+                } catch (InterruptedException e) {
+                    // done
+                }
+            }
+        };
+        selector.setDaemon(true);
+        selector.start();
+        try {
+            network.add(new Runnable() {
+                public void run() {
+                    try {
+                        client.sendMessage("OPTIONS".getBytes());
+                        client.sendMessage("MESSAGE".getBytes());
+                    } catch (IOException e) {
+                        failure = e;
+                    }
+                }
+            });
+
+            byte[] first = server.received.poll(10, TimeUnit.SECONDS);
+            assertNull(failure);
+            assertNotNull(first);
+            StringBuilder received = new StringBuilder(new String(first));
+            while (received.length() < "OPTIONSMESSAGE".length()) {
+                byte[] next = server.received.poll(10, TimeUnit.SECONDS);
+                assertNotNull(next);
+                received.append(new String(next));
+            }
+            assertEquals("OPTIONSMESSAGE", received.toString());
+
+            server.sendMessage("200 OK".getBytes());
+            assertEquals("200 OK", new String(client.received.poll(10, TimeUnit.SECONDS)));
+            assertNull(failure);
+
+            assertTrue(executor.jobs.get() > 0);
+            // both ends timed their handshake
+            assertEquals(2, executor.getHandshakeTimeHistogram().getCount());
+            assertEquals(0, executor.getQueueDepth());
+        } finally {
+            selector.interrupt();
+            executor.shutdown();
+        }
+    }
+}
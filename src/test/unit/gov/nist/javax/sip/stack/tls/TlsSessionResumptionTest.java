@@ -0,0 +1,162 @@
+package test.unit.gov.nist.javax.sip.stack.tls;
+
+import gov.nist.javax.sip.SipStackImpl;
+import gov.nist.javax.sip.stack.NioMessageProcessorFactory;
+import gov.nist.javax.sip.stack.StackMetrics;
+
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.sip.SipFactory;
+import javax.sip.SipProvider;
+import javax.sip.message.Request;
+
+import junit.framework.TestCase;
+
+/**
+ * Opens two connections in a row from the stack to a local TLS peer and checks
+ * that the second one resumes the session of the first.
+ */
+public class TlsSessionResumptionTest extends TestCase {
+
+    private static final int PORT = 5093;
+
+    private SipStackImpl sipStack;
+
+    private SipProvider provider;
+
+    private SSLServerSocket serverSocket;
+
+    private final List<SSLSession> peerSessions = new ArrayList<SSLSession>();
+
+    private final List<Long> peerHandshakeStarts = new ArrayList<Long>();
+
+    public void setUp() throws Exception {
+        System.setProperty("javax.net.ssl.keyStore", TlsTest.class.getResource("testkeys").getPath());
+        System.setProperty("javax.net.ssl.trustStore", TlsTest.class.getResource("testkeys").getPath());
+        System.setProperty("javax.net.ssl.keyStorePassword", "passphrase");
+        System.setProperty("javax.net.ssl.keyStoreType", "jks");
+
+        Properties properties = new Properties();
+        properties.setProperty("javax.sip.STACK_NAME", "resumption");
+        properties.setProperty("gov.nist.javax.sip.MESSAGE_PROCESSOR_FACTORY", NioMessageProcessorFactory.class.getName());
+        properties.setProperty("gov.nist.javax.sip.TLS_CLIENT_AUTH_TYPE", "Disabled");
+        properties.setProperty("gov.nist.javax.sip.TLS_SESSION_CACHE_SIZE", "16");
+        properties.setProperty("gov.nist.javax.sip.TLS_SESSION_TIMEOUT", "60");
+        SipFactory sipFactory = SipFactory.getInstance();
+        sipFactory.setPathName("gov.nist");
+        sipStack = (SipStackImpl) sipFactory.createSipStack(properties);
+        provider = sipStack.createSipProvider(sipStack.createListeningPoint("127.0.0.1", PORT, "tls"));
+        sipStack.start();
+
+        char[] password = "passphrase".toCharArray();
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        InputStream in = getClass().getResourceAsStream("testkeys");
+        try {
+            keyStore.load(in, password);
+        } finally {
+            in.close();
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(keyStore, password);
+        TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        tmf.init(keyStore);
+        SSLContext context = SSLContext.getInstance("TLS");
+        context.init(kmf.getKeyManagers(), tmf.getTrustManagers(), null);
+        serverSocket = (SSLServerSocket) context.getServerSocketFactory().createServerSocket(0);
+    }
+
+    public void tearDown() throws Exception {
+        serverSocket.close();
+        sipStack.stop();
+        System.clearProperty("javax.net.ssl.keyStore");
+        System.clearProperty("javax.net.ssl.trustStore");
+        System.clearProperty("javax.net.ssl.keyStorePassword");
+        System.clearProperty("javax.net.ssl.keyStoreType");
+    }
+
+    /**
+     * Accept a connection, read a request and close the connection.
+     */
+    private void acceptOne() throws Exception {
+        SSLSocket socket = (SSLSocket) serverSocket.accept();
+        try {
+            socket.setSoTimeout(10000);
+            long start = System.currentTimeMillis();
+            socket.startHandshake();
+            synchronized (peerSessions) {
+                peerSessions.add(socket.getSession());
+                peerHandshakeStarts.add(start);
+            }
+            InputStream in = socket.getInputStream();
+            int matched = 0;
+            String end = "\r\n\r\n";
+            while (matched < end.length()) {
+                int c = in.read();
+                if (c < 0) {
+                    break;
+                }
+                matched = c == end.charAt(matched) ? matched + 1 : (c == '\r' ? 1 : 0);
+            }
+        } finally {
+            socket.close();
+        }
+    }
+
+    private void sendRequest(int i) throws Exception {
+        Request request = SipFactory.getInstance().createMessageFactory().createRequest(
+                "OPTIONS sip:peer@127.0.0.1:" + serverSocket.getLocalPort() + ";transport=tls SIP/2.0\r\n"
+                + "Via: SIP/2.0/TLS 127.0.0.1:" + PORT + ";branch=z9hG4bK-resume" + i + "\r\n"
+                + "Max-Forwards: 70\r\n"
+                + "To: <sip:peer@127.0.0.1>\r\n"
+                + "From: <sip:stack@127.0.0.1>;tag=" + i + "\r\n"
+                + "Call-ID: resume-" + i + "@127.0.0.1\r\n"
+                + "CSeq: 1 OPTIONS\r\n"
+                + "Content-Length: 0\r\n\r\n");
+        provider.sendRequest(request);
+    }
+
+    public void testResumption() throws Exception {
+        Thread peer = new Thread() {
+            public void run() {
+                try {
+                    acceptOne();
+                    acceptOne();
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            }
+        };
+        peer.start();
+
+        sendRequest(1);
+        long deadline = System.currentTimeMillis() + 10000;
+        while (peerSessions.isEmpty() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        // the peer closed the connection, the next request opens a new one
+        Thread.sleep(500);
+        sendRequest(2);
+        peer.join(10000);
+        assertEquals(2, peerSessions.size());
+
+        StackMetrics metrics = sipStack.getStackMetrics();
+        deadline = System.currentTimeMillis() + 5000;
+        while (metrics.getValue("tls.session.cache.hits.TLS") < 1 && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertEquals(1, metrics.getValue("tls.session.cache.misses.TLS"));
+        assertEquals(1, metrics.getValue("tls.session.cache.hits.TLS"));
+        // the peer saw it too, the second session was not made by its handshake
+        assertTrue(peerSessions.get(1).getCreationTime() < peerHandshakeStarts.get(1));
+    }
+}